@@ -6,33 +6,46 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Files;
-import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 import saker.build.exception.FileMirroringUnavailableException;
+import saker.build.file.ByteArraySakerFile;
 import saker.build.file.DirectoryVisitPredicate;
 import saker.build.file.SakerDirectory;
 import saker.build.file.SakerFile;
@@ -70,7 +83,6 @@ import saker.build.thirdparty.saker.rmi.connection.RMIVariables;
 import saker.build.thirdparty.saker.rmi.io.RMIObjectInput;
 import saker.build.thirdparty.saker.rmi.io.RMIObjectOutput;
 import saker.build.thirdparty.saker.rmi.io.wrap.RMIWrapper;
-import saker.build.thirdparty.saker.util.ConcurrentPrependAccumulator;
 import saker.build.thirdparty.saker.util.ImmutableUtils;
 import saker.build.thirdparty.saker.util.ObjectUtils;
 import saker.build.thirdparty.saker.util.ReflectUtils;
@@ -78,20 +90,28 @@ import saker.build.thirdparty.saker.util.function.Functionals;
 import saker.build.thirdparty.saker.util.function.LazySupplier;
 import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
 import saker.build.thirdparty.saker.util.io.ByteSink;
-import saker.build.thirdparty.saker.util.io.DataInputUnsyncByteArrayInputStream;
 import saker.build.thirdparty.saker.util.io.SerialUtils;
 import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.build.thirdparty.saker.util.thread.ThreadUtils;
 import saker.build.trace.BuildTrace;
 import saker.clang.api.compile.ClangCompilerWorkerTaskOutput;
+import saker.clang.impl.compile.CompilationObjectCache.CachedCompilation;
+import saker.clang.impl.compile.CompilerState.AutoPrecompiledHeaderState;
 import saker.clang.impl.compile.CompilerState.CompiledFileState;
 import saker.clang.impl.compile.CompilerState.PrecompiledHeaderState;
 import saker.clang.impl.option.CompilationPathOption;
 import saker.clang.impl.option.FileCompilationPathOption;
 import saker.clang.impl.util.ClangUtils;
-import saker.clang.impl.util.CollectingProcessIOConsumer;
 import saker.clang.impl.util.InnerTaskMirrorHandler;
+import saker.clang.impl.util.ProcessResourceUsage;
+import saker.clang.impl.util.ProcessWatchdog;
+import saker.clang.impl.util.ResourceUsageSummary;
+import saker.clang.impl.util.RunningProcessRegistry;
+import saker.clang.impl.util.SpillingProcessIOConsumer;
+import saker.clang.impl.util.UnmirrorPathResolver;
 import saker.clang.main.compile.ClangCompileTaskFactory;
 import saker.compiler.utils.api.CompilationIdentifier;
+import saker.process.api.ProcessIOConsumer;
 import saker.sdk.support.api.SDKDescription;
 import saker.sdk.support.api.SDKPathCollectionReference;
 import saker.sdk.support.api.SDKReference;
@@ -114,18 +134,75 @@ public class ClangCompileWorkerTaskFactory
 			.makeImmutableNavigableSet(new String[] { CAPABILITY_INNER_TASKS_COMPUTATIONAL });
 
 	private static final String PRECOMPILED_HEADERS_SUBDIRECTORY_NAME = "pch";
+	private static final String AUTO_PRECOMPILED_HEADER_FILE_NAME_PREFIX = "auto-pch-";
+	private static final String AUTO_PRECOMPILED_HEADER_FILE_EXTENSION = ".h";
+	/**
+	 * The minimum number of source files with the same properties for synthesizing a precompiled header for them.
+	 */
+	private static final int AUTO_PRECOMPILED_HEADER_MIN_FILE_COUNT = 4;
+	/**
+	 * The percentage of the source files in a group that need to include a header for it to be precompiled.
+	 */
+	private static final int AUTO_PRECOMPILED_HEADER_MIN_INCLUDE_PERCENT = 75;
+
+	public static final String DIAGNOSTICS_FORMAT_SARIF = "sarif";
+
+	/**
+	 * The subdirectory of the output directory that contains the compiler outputs which didn't fit in memory.
+	 * <p>
+	 * The files are only on the disk, they are kept when the output directory is synchronized, as the truncated
+	 * outputs in the compiler state refer to them.
+	 */
+	private static final String PROCESS_OUTPUT_SUBDIRECTORY_NAME = "output";
+	private static final String PROCESS_OUTPUT_SPILL_FILE_EXTENSION = ".output.txt";
+	private static final String TIME_TRACE_FILE_EXTENSION = ".json";
+	private static final String SCAN_DEPS_COMPILATION_DATABASE_FILE_NAME = "compile_commands.json";
 
-	private static final Pattern CLANG_OUTPUT_DIAGNOSTIC_PATTERN = Pattern
-			.compile("((?:[a-zA-Z]:)?[^:]+)(:([0-9]+):([0-9]+): *([^:]+): *(.+))");
-	private static final int CLANG_OUTPUT_DIAGNOSTIC_GROUP_FILE = 1;
-	private static final int CLANG_OUTPUT_DIAGNOSTIC_GROUP_FILE_REMAINING = 2;
-	private static final int CLANG_OUTPUT_DIAGNOSTIC_GROUP_LINE = 3;
-	private static final int CLANG_OUTPUT_DIAGNOSTIC_GROUP_COLUMN = 4;
-	private static final int CLANG_OUTPUT_DIAGNOSTIC_GROUP_ERRORTYPE = 5;
-	private static final int CLANG_OUTPUT_DIAGNOSTIC_GROUP_MESSAGE = 6;
+	/**
+	 * Environment user parameter for the maximum number of source files that are compiled in a single clang
+	 * invocation.
+	 * <p>
+	 * If set to a number greater than 1, the source files which are estimated to compile quickly are batched together
+	 * with other source files that have the same compilation properties. This saves the process startup costs for
+	 * projects with many tiny source files.
+	 */
+	public static final String ENVIRONMENT_PARAMETER_BATCH_SIZE = "saker.clang.compile.batch.size";
+	private static final String BATCH_SUBDIRECTORY_NAME = "batch";
+	/**
+	 * Environment user parameter for the time limit of compiling a single source file or precompiled header.
+	 * <p>
+	 * The value is in seconds, or a number with a <code>ms</code>, <code>s</code>, <code>min</code>, or
+	 * <code>h</code> unit suffix. The clang processes that run longer are terminated, and the files are reported as
+	 * timed out. The limit of batched compilations is multiplied by the number of files in the batch.
+	 */
+	public static final String ENVIRONMENT_PARAMETER_COMPILE_TIMEOUT = "saker.clang.compile.timeout";
+	private static final String BATCH_DEPENDENCY_TARGET_FILE_NAME = "batch.o";
+	/**
+	 * The source files that are estimated to compile longer than this are not batched.
+	 */
+	private static final long BATCHED_COMPILATION_ESTIMATED_NANOS_LIMIT = 100_000_000;
+
+	//rough estimates for ordering the files which have no recorded compilation duration
+	private static final long ESTIMATED_COMPILATION_NANOS_PER_SOURCE_BYTE = 20_000;
+	private static final long ESTIMATED_COMPILATION_NANOS_PER_INCLUDE = 5_000_000;
+	private static final byte[] INCLUDE_DIRECTIVE_BYTES = "include".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] INCLUDED_FROM_PREFIX_BYTES = "In file included from "
+			.getBytes(StandardCharsets.US_ASCII);
 
 	private Set<FileCompilationConfiguration> files;
 	private NavigableMap<String, SDKDescription> sdkDescriptions;
+	/**
+	 * The format of the diagnostics that clang is asked to report. <code>null</code> for the default textual format.
+	 */
+	private String diagnosticsFormat;
+	/**
+	 * Whether clang is asked to generate time traces of the compilations.
+	 */
+	private boolean timeTrace;
+	/**
+	 * Whether precompiled headers are synthesized for the commonly included headers.
+	 */
+	private boolean autoPrecompiledHeader;
 
 	/**
 	 * For {@link Externalizable}.
@@ -137,6 +214,18 @@ public class ClangCompileWorkerTaskFactory
 		this.files = files;
 	}
 
+	public void setDiagnosticsFormat(String diagnosticsFormat) {
+		this.diagnosticsFormat = diagnosticsFormat;
+	}
+
+	public void setTimeTrace(boolean timeTrace) {
+		this.timeTrace = timeTrace;
+	}
+
+	public void setAutoPrecompiledHeader(boolean autoPrecompiledHeader) {
+		this.autoPrecompiledHeader = autoPrecompiledHeader;
+	}
+
 	public void setSdkDescriptions(NavigableMap<String, SDKDescription> sdkdescriptions) {
 		ObjectUtils.requireComparator(sdkdescriptions, SDKSupportUtils.getSDKNameComparator());
 		this.sdkDescriptions = sdkdescriptions;
@@ -208,21 +297,40 @@ public class ClangCompileWorkerTaskFactory
 
 		NavigableMap<String, CompiledFileState> stateexecutioncompiledfiles = new TreeMap<>();
 		List<FileCompilationConfiguration> compilationentries = new ArrayList<>(this.files);
+		ResourceUsageSummary resourceusage = new ResourceUsageSummary(passidstr);
 
+		if (autoPrecompiledHeader) {
+			//before the unchanged files are filtered, as the files are recompiled if their precompiled header changes
+			nstate.setAutoPrecompiledHeaders(
+					assignAutoPrecompiledHeaders(taskcontext, compilationentries, prevoutput, outdir));
+		}
 		if (prevoutput != null) {
 			for (Entry<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> entry : prevoutput
 					.getPrecompiledHeaders().entrySet()) {
 				nprecompiledheaders.put(entry.getKey(), new ConcurrentSkipListMap<>(entry.getValue()));
 			}
 			filterUnchangedPreviousFiles(taskcontext, compilationentries, stateexecutioncompiledfiles, prevoutput,
-					nstate);
+					nstate, timeTrace);
 		}
 		if (!compilationentries.isEmpty()) {
 			int sccount = compilationentries.size();
 			System.out.println("Compiling " + sccount + " source file" + (sccount == 1 ? "" : "s") + ".");
-			ConcurrentPrependAccumulator<FileCompilationConfiguration> fileaccumulator = new ConcurrentPrependAccumulator<>(
-					compilationentries);
-			CompilationDuplicationPredicate duplicationpredicate = new CompilationDuplicationPredicate(fileaccumulator);
+			CompilationQueue compilationqueue = new CompilationQueue();
+			//a source file for each distinct precompiled header, they are compiled before the source files
+			//the list is only modified before the inner tasks are started
+			List<FileCompilationConfiguration> precompiledheaderjobs = new ArrayList<>();
+			PrecompiledHeaderDistribution precompiledheaderdistribution = new PrecompiledHeaderDistribution();
+			//the scanned or exactly predicted includes of the files that have no previous compilation state
+			Map<String, NavigableSet<SakerPath>> predictedincludes = new HashMap<>();
+			CompilationDuplicationPredicate duplicationpredicate = new CompilationDuplicationPredicate(
+					compilationqueue);
+			int batchsize = getBatchSize(taskcontext.getExecutionContext().getEnvironment());
+			//the batchable entries grouped by their properties without the file location
+			//the map is only modified before the inner tasks are started
+			Map<FileCompilationProperties, Queue<FileCompilationConfiguration>> batchgroups = new HashMap<>();
+			//the entries that were taken either by themselves or as part of a batch
+			Set<FileCompilationConfiguration> takenentries = ConcurrentHashMap.newKeySet();
+			List<AbortListener> abortlisteners = new ArrayList<>();
 
 			InnerTaskExecutionParameters innertaskparams = new InnerTaskExecutionParameters();
 			if (envselector != null) {
@@ -253,13 +361,18 @@ public class ClangCompileWorkerTaskFactory
 						}
 						//TODO handle local file location
 					});
-					nprecompiledheaders
-							.computeIfAbsent(outputpathkey.getFileProviderKey(),
-									Functionals.concurrentSkipListMapComputer())
-							.put(outputpathkey.getPath(),
-									new PrecompiledHeaderState(depinfo.getInputContents(), outputcontents,
-											result.getCompilationEntry().getProperties(), depinfo.getIncludes(),
-											depinfo.getProcessOutput()));
+					addResourceUsage(resourceusage, ResourceUsageSummary.KIND_PRECOMPILED_HEADER, result);
+					NavigableMap<SakerPath, PrecompiledHeaderState> pchstates = nprecompiledheaders.computeIfAbsent(
+							outputpathkey.getFileProviderKey(), Functionals.concurrentSkipListMapComputer());
+					if (!result.isSuccessful()) {
+						//don't consider it up to date in the next build, as there's no output
+						pchstates.remove(outputpathkey.getPath());
+						return;
+					}
+					pchstates.put(outputpathkey.getPath(),
+							new PrecompiledHeaderState(depinfo.getInputContents(), outputcontents,
+									result.getCompilationEntry().getProperties(), depinfo.getIncludes(),
+									depinfo.getProcessOutput()));
 				}
 
 				@Override
@@ -269,77 +382,255 @@ public class ClangCompileWorkerTaskFactory
 				}
 
 				@Override
-				public FileCompilationConfiguration take() {
+				public List<FileCompilationConfiguration> takeBatch(Set<String> readyprecompiledheaders) {
 					if (duplicationpredicate.isAborted()) {
 						return null;
 					}
-					return fileaccumulator.take();
+					FileCompilationConfiguration entry;
+					do {
+						entry = compilationqueue.take(readyprecompiledheaders);
+						if (entry == null) {
+							return null;
+						}
+						//skip the entries that were already compiled in a batch
+					} while (!takenentries.add(entry));
+					List<FileCompilationConfiguration> result = new ArrayList<>();
+					result.add(entry);
+					if (batchsize <= 1) {
+						return result;
+					}
+					Queue<FileCompilationConfiguration> group = batchgroups.get(getBatchGroupKey(entry));
+					if (group == null) {
+						return result;
+					}
+					//clang names the outputs after the source files, so they need to be unique in a batch
+					Set<String> filestems = new HashSet<>();
+					filestems.add(getBatchFileStem(entry));
+					synchronized (group) {
+						for (Iterator<FileCompilationConfiguration> it = group.iterator(); it.hasNext()
+								&& result.size() < batchsize;) {
+							FileCompilationConfiguration groupentry = it.next();
+							if (takenentries.contains(groupentry)) {
+								it.remove();
+								continue;
+							}
+							if (!filestems.add(getBatchFileStem(groupentry))) {
+								continue;
+							}
+							if (takenentries.add(groupentry)) {
+								result.add(groupentry);
+							}
+							it.remove();
+						}
+					}
+					return result;
+				}
+
+				@Override
+				public List<FileCompilationConfiguration> getPrecompiledHeaderJobs() {
+					return precompiledheaderjobs;
+				}
+
+				@Override
+				public boolean hasPendingEntries(String pchoutfilename) {
+					return compilationqueue.hasEntries(pchoutfilename);
+				}
+
+				@Override
+				public NavigableSet<SakerPath> getPreviousIncludes(String outfilename) {
+					if (prevoutput == null) {
+						return predictedincludes.get(outfilename);
+					}
+					CompiledFileState prevfilestate = prevoutput.getExecutionCompiledFiles().get(outfilename);
+					if (prevfilestate == null || !prevfilestate.isSuccessful()) {
+						return predictedincludes.get(outfilename);
+					}
+					return prevfilestate.getIncludes();
+				}
+
+				@Override
+				public long getPreviousPeakMemory(String outfilename) {
+					if (prevoutput == null) {
+						return 0;
+					}
+					CompiledFileState prevfilestate = prevoutput.getExecutionCompiledFiles().get(outfilename);
+					if (prevfilestate == null) {
+						return 0;
+					}
+					return prevfilestate.getPeakMemoryBytes();
+				}
+
+				@Override
+				public PrecompiledHeaderSource acquirePrecompiledHeader(String toolchainkey) {
+					return precompiledheaderdistribution.acquire(toolchainkey);
+				}
+
+				@Override
+				public void publishPrecompiledHeader(String toolchainkey, PrecompiledHeaderSource source) {
+					precompiledheaderdistribution.publish(toolchainkey, source);
+				}
+
+				@Override
+				public void precompiledHeaderFailed(String toolchainkey) {
+					precompiledheaderdistribution.failed(toolchainkey);
+				}
+
+				@Override
+				public void precompiledHeaderFetched(PathKey headerpathkey) {
+					NavigableMap<SakerPath, PrecompiledHeaderState> pchstates = nprecompiledheaders
+							.get(headerpathkey.getFileProviderKey());
+					if (pchstates != null) {
+						pchstates.remove(headerpathkey.getPath());
+					}
+				}
+
+				@Override
+				public void addAbortListener(AbortListener listener) {
+					synchronized (abortlisteners) {
+						if (!duplicationpredicate.isAborted()) {
+							abortlisteners.add(listener);
+							return;
+						}
+					}
+					listener.aborted();
 				}
 
 				@Override
 				public void setAborted() {
 					duplicationpredicate.setAborted();
+					precompiledheaderdistribution.abort();
+					List<AbortListener> listeners;
+					synchronized (abortlisteners) {
+						listeners = new ArrayList<>(abortlisteners);
+						abortlisteners.clear();
+					}
+					//terminate the running compilations on all machines
+					for (AbortListener listener : listeners) {
+						RMIVariables.invokeRemoteMethodAsyncOrLocal(listener, AbortListener.METHOD_ABORTED);
+					}
 				}
 			};
 			SourceCompilerInnerTaskFactory innertask = new SourceCompilerInnerTaskFactory(coordinator, outdirpath,
-					compilerinnertasksdkdescriptions, envselector, outdir);
+					compilerinnertasksdkdescriptions, envselector, outdir, diagnosticsFormat, timeTrace);
+			if (ClangScanDeps.isEnabled(taskcontext.getExecutionContext().getEnvironment())) {
+				scanDependencies(taskcontext, innertask, compilationentries, prevoutput, predictedincludes);
+			}
+			Map<FileCompilationConfiguration, Long> estimatedcosts = new HashMap<>();
+			Set<FileCompilationConfiguration> precompiledheaderentries = new HashSet<>();
+			//add the entries in increasing cost order, so the most expensive ones are taken first
+			//as the queue prepends the elements
+			for (FileCompilationConfiguration entry : getEstimatedCostAscendingCompilationEntries(taskcontext,
+					compilationentries, prevoutput, predictedincludes, estimatedcosts)) {
+				compilationqueue.add(entry, estimatedcosts.get(entry));
+				String pchoutfilename = entry.getPrecompiledHeaderOutFileName();
+				if (pchoutfilename != null) {
+					FileCompilationProperties pchproperties = entry.getProperties()
+							.withFileLocation(entry.getPrecompiledHeaderFileLocation());
+					if (precompiledheaderentries.add(new FileCompilationConfiguration(pchoutfilename, pchproperties))) {
+						precompiledheaderjobs.add(entry);
+					}
+				}
+				if (batchsize > 1 && isBatchable(taskcontext, entry, estimatedcosts.get(entry))) {
+					batchgroups.computeIfAbsent(getBatchGroupKey(entry), x -> new ArrayDeque<>()).add(entry);
+				}
+			}
 			InnerTaskResults<CompilerInnerTaskResult> innertaskresults = taskcontext.startInnerTask(innertask,
 					innertaskparams);
 			InnerTaskResultHolder<CompilerInnerTaskResult> resultholder;
 
 			while ((resultholder = innertaskresults.getNext()) != null) {
-				CompilerInnerTaskResult compilationresult = resultholder.getResult();
-				if (compilationresult == null) {
+				CompilerInnerTaskResult innertaskresult = resultholder.getResult();
+				if (innertaskresult == null) {
 					//may be if the inner task doesn't receive a compilation entry as there are no more
 					//and returns prematurely
 					continue;
 				}
-				FileCompilationConfiguration compilationentry = compilationresult.getCompilationEntry();
-				CompilationDependencyInfo depinfo = compilationresult.getDependencyInfo();
-				ByteArrayRegion procout = depinfo.getProcessOutput();
-				FileLocation compiledfilelocation = compilationentry.getProperties().getFileLocation();
-				//XXX locked print
-				taskcontext.getStandardOut().write(ByteArrayRegion
-						.wrap((ClangUtils.getFileName(compiledfilelocation) + '\n').getBytes(StandardCharsets.UTF_8)));
-				if (!procout.isEmpty()) {
-					taskcontext.println(procout.toString());
-				}
-				if (!compilationresult.isSuccessful()) {
-					coordinator.setAborted();
-				}
-				compiledfilelocation.accept(new FileLocationVisitor() {
-					@Override
-					public void visit(ExecutionFileLocation loc) {
-						CompiledFileState compiledfilestate = new CompiledFileState(depinfo.getInputContents(),
-								compilationentry);
-						compiledfilestate.setCompilerProcessOutput(depinfo.getProcessOutput());
-						compiledfilestate.setIncludes(depinfo.getIncludes());
-						compiledfilestate.setFailedIncludes(depinfo.getFailedIncludes());
-						compiledfilestate.setSuccessful(compilationresult.isSuccessful());
-						if (compilationresult.isSuccessful()) {
-							String outputobjectfilename = compilationresult.getOutputObjectName();
-							if (outputobjectfilename != null) {
-								SakerPath outputpath = outdirpath.resolve(outputobjectfilename);
-								SakerFile outfile = taskcontext.getTaskUtilities().resolveFileAtPath(outputpath);
-								if (outfile == null) {
-									throw ObjectUtils.sneakyThrow(new FileNotFoundException(
-											"Output object file was not found: " + outdirpath));
+				List<CompilerInnerTaskResult> compilationresults = new ArrayList<>();
+				compilationresults.add(innertaskresult);
+				compilationresults.addAll(innertaskresult.getBatchedResults());
+				for (CompilerInnerTaskResult compilationresult : compilationresults) {
+					if (compilationresult.isCancelled()) {
+						//terminated because of the failure of another file
+						//no state is recorded for it, so it is compiled again in the next build
+						continue;
+					}
+					FileCompilationConfiguration compilationentry = compilationresult.getCompilationEntry();
+					CompilationDependencyInfo depinfo = compilationresult.getDependencyInfo();
+					ByteArrayRegion procout = depinfo.getProcessOutput();
+					FileLocation compiledfilelocation = compilationentry.getProperties().getFileLocation();
+					//XXX locked print
+					taskcontext.getStandardOut().write(ByteArrayRegion.wrap(
+							(ClangUtils.getFileName(compiledfilelocation) + '\n').getBytes(StandardCharsets.UTF_8)));
+					if (!procout.isEmpty()) {
+						taskcontext.println(procout.toString());
+					}
+					List<CompilerDiagnostic> diagnostics = depinfo.getDiagnostics();
+					if (!ObjectUtils.isNullOrEmpty(diagnostics)) {
+						taskcontext.println(
+								CompilerDiagnostic.render(diagnostics, taskcontext.getTaskWorkingDirectoryPath()));
+					}
+					if (compilationresult.isTimedOut()) {
+						taskcontext.println("Compilation timed out: " + ClangUtils.getFileName(compiledfilelocation));
+					}
+					if (!compilationresult.isSuccessful()) {
+						coordinator.setAborted();
+					}
+					addResourceUsage(resourceusage, ResourceUsageSummary.KIND_SOURCE, compilationresult);
+					compiledfilelocation.accept(new FileLocationVisitor() {
+						@Override
+						public void visit(ExecutionFileLocation loc) {
+							if (TestFlag.ENABLED) {
+								TestFlag.metric().compilerOutput(loc.getPath(), procout.toString());
+							}
+							CompiledFileState compiledfilestate = new CompiledFileState(depinfo.getInputContents(),
+									compilationentry);
+							compiledfilestate.setCompilerProcessOutput(depinfo.getProcessOutput());
+							compiledfilestate.setDiagnostics(depinfo.getDiagnostics());
+							compiledfilestate.setIncludes(depinfo.getIncludes());
+							compiledfilestate.setFailedIncludes(depinfo.getFailedIncludes());
+							compiledfilestate.setSuccessful(compilationresult.isSuccessful());
+							compiledfilestate.setTimedOut(compilationresult.isTimedOut());
+							compiledfilestate
+									.setCompilationDurationNanos(compilationresult.getCompilationDurationNanos());
+							long peakmemory = compilationresult.getPeakMemoryBytes();
+							if (peakmemory <= 0 && prevoutput != null) {
+								//not measured, e.g. retrieved from cache. keep the previous measurement for the
+								//memory prediction of later compilations
+								CompiledFileState prevfilestate = prevoutput.getExecutionCompiledFiles()
+										.get(compilationentry.getOutFileName());
+								if (prevfilestate != null) {
+									peakmemory = prevfilestate.getPeakMemoryBytes();
 								}
-								ContentDescriptor outcontentdescriptor = outfile.getContentDescriptor();
+							}
+							compiledfilestate.setPeakMemoryBytes(peakmemory);
+							compiledfilestate.setCpuNanos(compilationresult.getUserCpuNanos(),
+									compilationresult.getSystemCpuNanos());
+							compiledfilestate.setTimeTrace(compilationresult.getTimeTrace());
+							if (compilationresult.isSuccessful()) {
+								String outputobjectfilename = compilationresult.getOutputObjectName();
+								if (outputobjectfilename != null) {
+									SakerPath outputpath = outdirpath.resolve(outputobjectfilename);
+									SakerFile outfile = taskcontext.getTaskUtilities().resolveFileAtPath(outputpath);
+									if (outfile == null) {
+										throw ObjectUtils.sneakyThrow(new FileNotFoundException(
+												"Output object file was not found: " + outdirpath));
+									}
+									ContentDescriptor outcontentdescriptor = outfile.getContentDescriptor();
 
-								compiledfilestate.setObjectOutputContents(outputpath, outcontentdescriptor);
+									compiledfilestate.setObjectOutputContents(outputpath, outcontentdescriptor);
+								}
 							}
+							stateexecutioncompiledfiles.put(compilationentry.getOutFileName(), compiledfilestate);
 						}
-						stateexecutioncompiledfiles.put(compilationentry.getOutFileName(), compiledfilestate);
-					}
 
-					@Override
-					public void visit(LocalFileLocation loc) {
-						// TODO handle local input file result
-						FileLocationVisitor.super.visit(loc);
-					}
-				});
+						@Override
+						public void visit(LocalFileLocation loc) {
+							// TODO handle local input file result
+							FileLocationVisitor.super.visit(loc);
+						}
+					});
 
+				}
 			}
 		}
 
@@ -347,21 +638,19 @@ public class ClangCompileWorkerTaskFactory
 
 		NavigableSet<SakerPath> allreferencedincludes = nstate.getAllReferencedIncludes();
 		NavigableSet<SakerPath> allfailedincludes = nstate.getAllReferencedFailedIncludes();
-		NavigableMap<SakerPath, ContentDescriptor> includecontentdescriptors = new TreeMap<>();
+		NavigableMap<SakerPath, ContentDescriptor> includecontentdescriptors = resolveFileContentDescriptors(
+				taskcontext, allreferencedincludes);
 		NavigableSet<String> includedfilenames = new TreeSet<>();
-		for (SakerPath includepath : allreferencedincludes) {
+		for (Entry<SakerPath, ContentDescriptor> entry : includecontentdescriptors.entrySet()) {
+			SakerPath includepath = entry.getKey();
 			includedfilenames.add(includepath.getFileName());
-			//XXX use a more efficient resolveFileAtPath algorithm
-			SakerFile includefile = taskcontext.getTaskUtilities().resolveFileAtPath(includepath);
-			if (includefile == null) {
+			if (entry.getValue() == null) {
 				SakerLog.error().verbose().println("Included file no longer found: " + includepath);
 				//report an IS_FILE dependency nonetheless, as that will trigger the reinvocation of the
 				//compilation the next time.
 				//this scenario should not happen at all generally.
-				includecontentdescriptors.put(includepath, CommonTaskContentDescriptors.IS_FILE);
-				continue;
+				entry.setValue(CommonTaskContentDescriptors.IS_FILE);
 			}
-			includecontentdescriptors.put(includepath, includefile.getContentDescriptor());
 		}
 		for (SakerPath includepath : allfailedincludes) {
 			ContentDescriptor prev = includecontentdescriptors.putIfAbsent(includepath,
@@ -451,13 +740,29 @@ public class ClangCompileWorkerTaskFactory
 		ObjectUtils.iterateOrderedIterables(outdir.getChildren().entrySet(), nstate.getAllOutputFileNames(),
 				(entry, name) -> entry.getKey().compareTo(name), (entry, outf) -> {
 					if (outf == null) {
+						if (autoPrecompiledHeader && PRECOMPILED_HEADERS_SUBDIRECTORY_NAME.equals(entry.getKey())) {
+							//contains the synthesized headers
+							return;
+						}
 						entry.getValue().remove();
 					}
 				});
+		resourceusage.write(outdir);
+		resourceusage.reportBuildTrace("Compiler");
+		if (timeTrace) {
+			writeTimeTraceReport(passidstr, nstate, outdir);
+		}
+		deleteStaleProcessOutputs(taskcontext.getExecutionContext(), outdirpath, nstate);
 		//use the nothing predicate to only delete the files which were removed
 		outdir.synchronize(new NothingKeepKnownDirectoryVisitPredicate());
 
 		if (!nstate.isAllCompilationSucceeded()) {
+			NavigableSet<String> timedoutfiles = nstate.getTimedOutOutFileNames();
+			if (!timedoutfiles.isEmpty()) {
+				taskcontext.abortExecution(new IOException(
+						"Compilation timed out for " + timedoutfiles.size() + " file(s): " + timedoutfiles));
+				return null;
+			}
 			taskcontext.abortExecution(new IOException("Compilation failed."));
 			return null;
 		}
@@ -466,146 +771,748 @@ public class ClangCompileWorkerTaskFactory
 				compilerinnertasksdkdescriptions);
 	}
 
-	private static final class CompilationDuplicationPredicate implements TaskDuplicationPredicate {
-		private final ConcurrentPrependAccumulator<FileCompilationConfiguration> compilationFiles;
-		private boolean aborted;
-
-		private CompilationDuplicationPredicate(
-				ConcurrentPrependAccumulator<FileCompilationConfiguration> fileaccumulator) {
-			this.compilationFiles = fileaccumulator;
+	/**
+	 * Resolves the content descriptors of the files at the given paths.
+	 * <p>
+	 * The paths are grouped by their parent directories, so each directory is only resolved once. The directories are
+	 * processed concurrently.
+	 * 
+	 * @return The content descriptors mapped to the paths. If a file is not found, <code>null</code> is mapped to its
+	 *             path.
+	 */
+	private static NavigableMap<SakerPath, ContentDescriptor> resolveFileContentDescriptors(TaskContext taskcontext,
+			NavigableSet<SakerPath> paths) {
+		Map<SakerPath, List<SakerPath>> directorypaths = new HashMap<>();
+		for (SakerPath path : paths) {
+			directorypaths.computeIfAbsent(path.getParent(), Functionals.arrayListComputer()).add(path);
+		}
+		TaskExecutionUtilities taskutilities = taskcontext.getTaskUtilities();
+		ConcurrentSkipListMap<SakerPath, Optional<ContentDescriptor>> resolved = new ConcurrentSkipListMap<>();
+		ThreadUtils.runParallelItems(directorypaths.entrySet(), entry -> {
+			SakerPath dirpath = entry.getKey();
+			SakerDirectory dir = dirpath == null ? null : taskutilities.resolveDirectoryAtPath(dirpath);
+			for (SakerPath path : entry.getValue()) {
+				SakerFile file;
+				if (dir == null) {
+					file = dirpath == null ? taskutilities.resolveFileAtPath(path) : null;
+				} else {
+					file = dir.get(path.getFileName());
+				}
+				resolved.put(path, Optional.ofNullable(file == null ? null : file.getContentDescriptor()));
+			}
+		});
+		NavigableMap<SakerPath, ContentDescriptor> result = new TreeMap<>();
+		for (Entry<SakerPath, Optional<ContentDescriptor>> entry : resolved.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().orElse(null));
 		}
+		return result;
+	}
 
-		@Override
-		public boolean shouldInvokeOnceMore() throws RuntimeException {
-			if (compilationFiles.isEmpty()) {
-				return false;
+	private static void scanDependencies(TaskContext taskcontext, SourceCompilerInnerTaskFactory innertask,
+			List<FileCompilationConfiguration> compilationentries, CompilerState prevoutput,
+			Map<String, NavigableSet<SakerPath>> predictedincludes) {
+		//only scan the files that have no usable include information from the previous compilation
+		List<FileCompilationConfiguration> scannedentries = new ArrayList<>();
+		for (FileCompilationConfiguration entry : compilationentries) {
+			CompiledFileState prevfilestate = prevoutput == null ? null
+					: prevoutput.getExecutionCompiledFiles().get(entry.getOutFileName());
+			if (prevfilestate == null || !prevfilestate.isSuccessful()) {
+				scannedentries.add(entry);
 			}
-			return !aborted;
 		}
-
-		public void setAborted() {
-			this.aborted = true;
+		if (scannedentries.isEmpty()) {
+			return;
 		}
-
-		public boolean isAborted() {
-			return aborted;
+		try {
+			predictedincludes.putAll(innertask.scanDependencies(taskcontext, scannedentries));
+		} catch (Exception e) {
+			//the dependencies are still determined during compilation
+			SakerLog.error().verbose().println("Failed to scan dependencies: " + e);
 		}
-
 	}
 
-	private static final class NothingKeepKnownDirectoryVisitPredicate implements DirectoryVisitPredicate {
-		@Override
-		public DirectoryVisitPredicate directoryVisitor(String arg0, SakerDirectory arg1) {
-			return null;
+	private static int getBatchSize(SakerEnvironment environment) {
+		String param = environment.getUserParameters().get(ENVIRONMENT_PARAMETER_BATCH_SIZE);
+		if (param == null) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(param);
+		} catch (NumberFormatException e) {
+			SakerLog.error().verbose().println(
+					"Invalid compilation batch size: " + param + " (" + ENVIRONMENT_PARAMETER_BATCH_SIZE + ")");
+			return 0;
 		}
+	}
 
-		@Override
-		public boolean visitFile(String name, SakerFile file) {
+	private boolean isBatchable(TaskContext taskcontext, FileCompilationConfiguration entry, Long estimatedcost) {
+		if (estimatedcost == null || estimatedcost >= BATCHED_COMPILATION_ESTIMATED_NANOS_LIMIT) {
 			return false;
 		}
-
-		@Override
-		public boolean visitDirectory(String name, SakerDirectory directory) {
+		if (entry.getPrecompiledHeaderOutFileName() != null) {
 			return false;
 		}
-
-		@Override
-		public NavigableSet<String> getSynchronizeFilesToKeep() {
-			//don't remove the pch subdir
-			return ImmutableUtils.singletonNavigableSet(PRECOMPILED_HEADERS_SUBDIRECTORY_NAME);
+		if (DIAGNOSTICS_FORMAT_SARIF.equals(diagnosticsFormat)) {
+			//the SARIF documents of the batched files are not split
+			return false;
+		}
+		if (CompilationObjectCache.get(taskcontext.getExecutionContext().getEnvironment()) != null) {
+			//the cache works with the compilation of single files, which already avoids the process startup
+			return false;
 		}
+		boolean[] result = { false };
+		entry.getProperties().getFileLocation().accept(new FileLocationVisitor() {
+			@Override
+			public void visit(ExecutionFileLocation loc) {
+				result[0] = true;
+			}
+
+			@Override
+			public void visit(LocalFileLocation loc) {
+				//not batchable
+			}
+		});
+		return result[0];
 	}
 
-	@Override
-	public Task<? extends ClangCompilerWorkerTaskOutput> createTask(ExecutionContext executioncontext) {
-		return this;
+	private static FileCompilationProperties getBatchGroupKey(FileCompilationConfiguration entry) {
+		return entry.getProperties().withFileLocation(null);
 	}
 
-	private static void reportAdditionDontCareDependenciesForFileNamesIncludeDirectory(TaskContext taskcontext,
-			NavigableMap<SakerPath, ContentDescriptor> includecontentdescriptors,
-			NavigableSet<String> includedfilenames, SakerPath includedirexecutionpath) {
-		if (ObjectUtils.isNullOrEmpty(includedfilenames)) {
-			//don't need to report anything
-			return;
-		}
-		FileNameRecursiveFileCollectionStrategy collectionstrategy = new FileNameRecursiveFileCollectionStrategy(
-				includedirexecutionpath, includedfilenames);
-		NavigableMap<SakerPath, SakerFile> foundsimilarfiles = taskcontext.getTaskUtilities()
-				.collectFilesReportAdditionDependency(CompilationFileTags.INCLUDE_FILE, collectionstrategy);
-		for (SakerPath similarfilepath : foundsimilarfiles.keySet()) {
-			includecontentdescriptors.putIfAbsent(similarfilepath, CommonTaskContentDescriptors.DONT_CARE);
-		}
+	private static String getBatchFileStem(FileCompilationConfiguration entry) {
+		//lowercase in case of case insensitive file systems
+		return getFileStem(ClangUtils.getFileName(entry.getProperties().getFileLocation()))
+				.toLowerCase(Locale.ENGLISH);
 	}
 
-	private static void filterUnchangedPreviousFiles(TaskContext taskcontext,
-			List<FileCompilationConfiguration> compilationentries,
-			NavigableMap<String, CompiledFileState> stateexecutioncompiledfiles, CompilerState prevoutput,
-			CompilerState nstate) throws IOException {
-		//XXX sorted iteration for equals?
-		if (!Objects.equals(nstate.getSdkDescriptions(), prevoutput.getSdkDescriptions())) {
-			//different toolchains used, recompile all
+	/**
+	 * Writes the time trace report of all the compiled files in the pass, including the ones that were not compiled in
+	 * this build.
+	 */
+	private static void writeTimeTraceReport(String passidstr, CompilerState nstate, SakerDirectory outdir)
+			throws IOException {
+		TimeTraceReport report = new TimeTraceReport(passidstr);
+		for (CompiledFileState filestate : nstate.getExecutionCompiledFiles().values()) {
+			TimeTraceSummary timetrace = filestate.getTimeTrace();
+			if (timetrace == null) {
+				continue;
+			}
+			report.add(getPathString(filestate.getCompilationConfiguration().getProperties().getFileLocation()),
+					timetrace);
+		}
+		if (report.isEmpty()) {
 			return;
 		}
-		if (!Objects.equals(nstate.getEnvironmentSelection(), prevoutput.getEnvironmentSelection())) {
-			//different environments are used to compile the sources.
-			//recompile all
+		report.write(outdir);
+		report.reportBuildTrace();
+	}
+
+	private static void addResourceUsage(ResourceUsageSummary summary, String kind, CompilerInnerTaskResult result) {
+		if (!result.isProcessMeasured()) {
 			return;
 		}
+		summary.add(kind, getPathString(result.getCompilationEntry().getProperties().getFileLocation()),
+				result.getCompilationDurationNanos(), result.getUserCpuNanos(), result.getSystemCpuNanos(),
+				result.getPeakMemoryBytes());
+	}
 
-		TaskUtils.collectFilesForTags(taskcontext.getFileDeltas(),
-				ImmutableUtils.asUnmodifiableArrayList(CompilationFileTags.SOURCE));
-		TaskFileDeltas inputfilechanges = taskcontext.getFileDeltas(DeltaType.INPUT_FILE_CHANGE);
-		TaskFileDeltas outputfilechanges = taskcontext.getFileDeltas(DeltaType.OUTPUT_FILE_CHANGE);
+	private static String getPathString(FileLocation filelocation) {
+		String[] path = { null };
+		filelocation.accept(new FileLocationVisitor() {
+			@Override
+			public void visit(ExecutionFileLocation loc) {
+				path[0] = loc.getPath().toString();
+			}
 
-		TaskFileDeltas inputfileadditions = taskcontext.getFileDeltas(DeltaType.INPUT_FILE_ADDITION);
+			@Override
+			public void visit(LocalFileLocation loc) {
+				path[0] = loc.getLocalPath().toString();
+			}
+		});
+		return path[0];
+	}
 
-		NavigableSet<SakerPath> relevantchanges = new TreeSet<>();
-		collectFileDeltaPaths(inputfilechanges.getFileDeltasWithTag(CompilationFileTags.SOURCE), relevantchanges);
-		collectFileDeltaPaths(outputfilechanges.getFileDeltasWithTag(CompilationFileTags.OBJECT_FILE), relevantchanges);
+	private static String getFileStem(String filename) {
+		int dotidx = filename.lastIndexOf('.');
+		return dotidx < 0 ? filename : filename.substring(0, dotidx);
+	}
 
-		NavigableSet<SakerPath> includechanges = new TreeSet<>();
-		collectFileDeltaPaths(inputfilechanges.getFileDeltasWithTag(CompilationFileTags.INCLUDE_FILE), includechanges);
+	private static List<FileCompilationConfiguration> getEstimatedCostAscendingCompilationEntries(
+			TaskContext taskcontext, List<FileCompilationConfiguration> compilationentries, CompilerState prevoutput,
+			Map<String, NavigableSet<SakerPath>> predictedincludes,
+			Map<FileCompilationConfiguration, Long> estimatedcosts) {
+		NavigableMap<String, CompiledFileState> prevcompiledfiles = prevoutput == null ? Collections.emptyNavigableMap()
+				: prevoutput.getExecutionCompiledFiles();
+		IncludeScanner includescanner = createIncludeScanner(taskcontext);
+		//the include scanning of new files can take a while, run them in parallel
+		//the predicted includes are only read concurrently, the scanned ones are added after
+		Map<FileCompilationConfiguration, Long> costs = new ConcurrentHashMap<>();
+		Map<String, NavigableSet<SakerPath>> scannedincludes = new ConcurrentHashMap<>();
+		ThreadUtils.runParallelItems(compilationentries, entry -> {
+			costs.put(entry, estimateCompilationDurationNanos(taskcontext, entry,
+					prevcompiledfiles.get(entry.getOutFileName()), includescanner, predictedincludes,
+					scannedincludes));
+		});
+		estimatedcosts.putAll(costs);
+		predictedincludes.putAll(scannedincludes);
+		List<FileCompilationConfiguration> result = new ArrayList<>(compilationentries);
+		result.sort((l, r) -> Long.compare(estimatedcosts.get(l), estimatedcosts.get(r)));
+		return result;
+	}
 
-		//compare using ignore-case, as if an include file was not found, we should trigger the recompilation
-		//if a file with different casing is added
-		NavigableSet<String> includeadditionfilenames = new TreeSet<>(String::compareToIgnoreCase);
-		for (FileChangeDelta adddelta : inputfileadditions.getFileDeltas()) {
-			includeadditionfilenames.add(adddelta.getFilePath().getFileName());
-		}
+	private static IncludeScanner createIncludeScanner(TaskContext taskcontext) {
+		return new IncludeScanner(path -> {
+			SakerFile file = taskcontext.getTaskUtilities().resolveFileAtPath(path);
+			if (file == null || file instanceof SakerDirectory) {
+				return null;
+			}
+			try {
+				return file.getBytes();
+			} catch (IOException e) {
+				return null;
+			}
+		});
+	}
 
-		boolean[] hadfailure = { false };
+	/**
+	 * Synthesizes precompiled headers for the source files that have no precompiled header specified.
+	 * <p>
+	 * The source files are grouped by their compilation properties. The include guarded headers that were included by
+	 * most files of a group in the previous compilation are the candidates of the umbrella header. The umbrella header
+	 * includes the longest sequence of candidates that most files of the group start with, in the same order as the
+	 * files include them.
+	 * <p>
+	 * The headers that changed since the previous build are only collected if they were already part of the
+	 * precompiled header, so the selection doesn't change back and forth while a header is being edited. The umbrella
+	 * header is only rewritten if its contents change.
+	 * <p>
+	 * The precompiled header is only assigned to the files whose leading include directives start with the exact
+	 * includes of the umbrella header, in the same order, without any other directives or code before them. As the
+	 * include guarded headers are skipped when they are included again, these files see the same declarations in the
+	 * same order with the precompiled header. The other files of the group are compiled without it.
+	 *
+	 * @return The states of the synthesized precompiled headers.
+	 */
+	private static List<AutoPrecompiledHeaderState> assignAutoPrecompiledHeaders(TaskContext taskcontext,
+			List<FileCompilationConfiguration> compilationentries, CompilerState prevoutput, SakerDirectory outdir)
+			throws IOException {
+		SakerPath outdirpath = outdir.getSakerPath();
+		SakerDirectory pchdir = outdir.getDirectoryCreate(PRECOMPILED_HEADERS_SUBDIRECTORY_NAME);
+		SakerPath pchdirpath = getPrecompiledHeaderOutputDirectoryPath(outdirpath);
+		NavigableMap<String, CompiledFileState> prevcompiledfiles = prevoutput == null ? Collections.emptyNavigableMap()
+				: prevoutput.getExecutionCompiledFiles();
+		Map<FileCompilationProperties, AutoPrecompiledHeaderState> prevstates = new HashMap<>();
+		//the names of the specified and previously synthesized precompiled headers, to avoid clashes
+		Set<String> usednames = new HashSet<>();
+		if (prevoutput != null) {
+			for (AutoPrecompiledHeaderState state : prevoutput.getAutoPrecompiledHeaders()) {
+				prevstates.put(state.getGroupProperties(), state);
+				usednames.add(state.getOutFileName());
+			}
+		}
 
-		NavigableMap<String, CompiledFileState> prevcompiledfiles = new TreeMap<>(
-				prevoutput.getExecutionCompiledFiles());
-		for (Iterator<FileCompilationConfiguration> it = compilationentries.iterator(); it.hasNext();) {
-			FileCompilationConfiguration compilationentry = it.next();
-			String outfilename = compilationentry.getOutFileName();
-			CompiledFileState prevfilestate = prevcompiledfiles.get(outfilename);
-			if (prevfilestate == null) {
-				//wasn't compiled previously, compile now
+		//the indices of the source files grouped by their properties without the file location
+		Map<FileCompilationProperties, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < compilationentries.size(); i++) {
+			FileCompilationConfiguration entry = compilationentries.get(i);
+			String pchoutfilename = entry.getPrecompiledHeaderOutFileName();
+			if (pchoutfilename != null) {
+				usednames.add(pchoutfilename);
 				continue;
 			}
-			if (!Objects.equals(prevfilestate.getCompilationConfiguration(), compilationentry)) {
-				//the configuration for the compiled file changed
+			CompiledFileState prevfilestate = prevcompiledfiles.get(entry.getOutFileName());
+			if (prevfilestate == null || prevfilestate.getIncludes() == null) {
+				//no include information yet
 				continue;
 			}
-			SakerPath outobjpath = prevfilestate.getOutputObjectPath();
-			if (outobjpath != null) {
-				if (relevantchanges.contains(outobjpath)) {
-					continue;
-				}
-			}
+			groups.computeIfAbsent(getBatchGroupKey(entry), x -> new ArrayList<>()).add(i);
+		}
 
-			if (isAnyIncludeRelatedChange(includechanges, includeadditionfilenames, prevfilestate.getIncludes())) {
+		NavigableSet<SakerPath> includechanges = new TreeSet<>();
+		collectFileDeltaPaths(taskcontext.getFileDeltas(DeltaType.INPUT_FILE_CHANGE)
+				.getFileDeltasWithTag(CompilationFileTags.INCLUDE_FILE), includechanges);
+		IncludeScanner includescanner = createIncludeScanner(taskcontext);
+
+		List<AutoPrecompiledHeaderState> result = new ArrayList<>();
+		Set<String> umbrellafilenames = new HashSet<>();
+		for (Entry<FileCompilationProperties, List<Integer>> groupentry : groups.entrySet()) {
+			FileCompilationProperties groupproperties = groupentry.getKey();
+			List<Integer> indices = groupentry.getValue();
+			if (indices.size() < AUTO_PRECOMPILED_HEADER_MIN_FILE_COUNT) {
 				continue;
 			}
-			if (isAnyIncludeRelatedChange(includechanges, includeadditionfilenames,
-					prevfilestate.getFailedIncludes())) {
+			AutoPrecompiledHeaderState prevstate = prevstates.get(groupproperties);
+			NavigableSet<SakerPath> prevmembers = prevstate == null ? Collections.emptyNavigableSet()
+					: prevstate.getMembers();
+
+			Map<SakerPath, Integer> includecounts = new HashMap<>();
+			for (int idx : indices) {
+				for (SakerPath includepath : prevcompiledfiles.get(compilationentries.get(idx).getOutFileName())
+						.getIncludes()) {
+					includecounts.merge(includepath, 1, Integer::sum);
+				}
+			}
+			List<SakerPath> includedirs = getExecutionPaths(groupproperties.getIncludeDirectories());
+			//the candidates mapped to the paths that include them in the umbrella header
+			Map<SakerPath, String> candidates = new HashMap<>();
+			for (Entry<SakerPath, Integer> entry : includecounts.entrySet()) {
+				SakerPath includepath = entry.getKey();
+				if (entry.getValue() * 100 < indices.size() * AUTO_PRECOMPILED_HEADER_MIN_INCLUDE_PERCENT) {
+					continue;
+				}
+				if (includepath.startsWith(outdirpath)) {
+					//a synthesized header
+					continue;
+				}
+				if (includechanges.contains(includepath) && !prevmembers.contains(includepath)) {
+					//not stable yet
+					continue;
+				}
+				if (!includescanner.isIncludeGuarded(includepath)) {
+					//it would be included again by the source files
+					continue;
+				}
+				String directivepath = includescanner.getIncludeDirectivePath(includepath, includedirs);
+				if (directivepath == null) {
+					//not found through the include directories, e.g. included relative to the source file
+					continue;
+				}
+				candidates.put(includepath, directivepath);
+			}
+			if (candidates.isEmpty()) {
 				continue;
 			}
 
-			compilationentry.getProperties().getFileLocation().accept(new FileLocationVisitor() {
-				@Override
+			//the leading includes of the source files that are candidates
+			Map<Integer, List<SakerPath>> leadingcandidates = new HashMap<>();
+			Map<List<SakerPath>, Integer> prefixcounts = new HashMap<>();
+			for (int idx : indices) {
+				SakerPath sourcepath = getExecutionPath(compilationentries.get(idx).getProperties().getFileLocation());
+				if (sourcepath == null) {
+					continue;
+				}
+				List<SakerPath> leadingincludes = includescanner.getLeadingIncludes(sourcepath, includedirs);
+				if (leadingincludes == null) {
+					continue;
+				}
+				int count = 0;
+				while (count < leadingincludes.size() && candidates.containsKey(leadingincludes.get(count))) {
+					++count;
+				}
+				List<SakerPath> sequence = leadingincludes.subList(0, count);
+				leadingcandidates.put(idx, sequence);
+				for (int i = 1; i <= count; i++) {
+					prefixcounts.merge(sequence.subList(0, i), 1, Integer::sum);
+				}
+			}
+			List<SakerPath> memberlist = null;
+			for (Entry<List<SakerPath>, Integer> entry : prefixcounts.entrySet()) {
+				int count = entry.getValue();
+				if (count < AUTO_PRECOMPILED_HEADER_MIN_FILE_COUNT
+						|| count * 100 < indices.size() * AUTO_PRECOMPILED_HEADER_MIN_INCLUDE_PERCENT) {
+					continue;
+				}
+				List<SakerPath> sequence = entry.getKey();
+				if (memberlist == null || sequence.size() > memberlist.size()) {
+					memberlist = sequence;
+				}
+			}
+			if (memberlist == null) {
+				continue;
+			}
+
+			StringBuilder umbrella = new StringBuilder();
+			umbrella.append("// Generated precompiled header. Do not modify.\n");
+			for (SakerPath member : memberlist) {
+				umbrella.append("#include <").append(candidates.get(member)).append(">\n");
+			}
+			NavigableSet<SakerPath> members = new TreeSet<>(memberlist);
+
+			String name;
+			if (prevstate != null) {
+				name = prevstate.getOutFileName();
+			} else {
+				int counter = 1;
+				do {
+					name = AUTO_PRECOMPILED_HEADER_FILE_NAME_PREFIX + counter++;
+				} while (!usednames.add(name));
+			}
+			String umbrellafilename = name + AUTO_PRECOMPILED_HEADER_FILE_EXTENSION;
+			umbrellafilenames.add(umbrellafilename);
+			byte[] umbrellabytes = umbrella.toString().getBytes(StandardCharsets.UTF_8);
+			SakerFile prevumbrella = pchdir.get(umbrellafilename);
+			if (prevumbrella == null || prevumbrella instanceof SakerDirectory
+					|| !Arrays.equals(prevumbrella.getBytes().copyOptionally(), umbrellabytes)) {
+				ByteArraySakerFile umbrellafile = new ByteArraySakerFile(umbrellafilename, umbrellabytes);
+				pchdir.add(umbrellafile);
+				umbrellafile.synchronize();
+			}
+			result.add(new AutoPrecompiledHeaderState(name, groupproperties,
+					ImmutableUtils.unmodifiableNavigableSet(members)));
+
+			ExecutionFileLocation umbrellalocation = ExecutionFileLocation
+					.create(pchdirpath.resolve(umbrellafilename));
+			for (int idx : indices) {
+				List<SakerPath> sequence = leadingcandidates.get(idx);
+				if (sequence == null || sequence.size() < memberlist.size()
+						|| !sequence.subList(0, memberlist.size()).equals(memberlist)) {
+					//the precompiled header would change the order of the declarations
+					continue;
+				}
+				FileCompilationConfiguration entry = compilationentries.get(idx);
+				FileCompilationConfiguration pchentry = new FileCompilationConfiguration(entry.getOutFileName(),
+						entry.getProperties());
+				pchentry.setPrecompiledHeader(umbrellalocation, name);
+				compilationentries.set(idx, pchentry);
+			}
+		}
+		//remove the umbrella headers that are no longer used.
+		//the directory is not synchronized as it contains the compiled headers, so delete them from the disk as well
+		ExecutionContext executioncontext = taskcontext.getExecutionContext();
+		for (SakerFile file : new ArrayList<>(pchdir.getChildren().values())) {
+			String filename = file.getName();
+			if (file instanceof SakerDirectory || umbrellafilenames.contains(filename)
+					|| !filename.startsWith(AUTO_PRECOMPILED_HEADER_FILE_NAME_PREFIX)
+					|| !filename.endsWith(AUTO_PRECOMPILED_HEADER_FILE_EXTENSION)) {
+				continue;
+			}
+			file.remove();
+			Files.deleteIfExists(executioncontext.toMirrorPath(pchdirpath.resolve(filename)));
+		}
+		return result;
+	}
+
+	private static long estimateCompilationDurationNanos(TaskContext taskcontext,
+			FileCompilationConfiguration compilationentry, CompiledFileState prevfilestate,
+			IncludeScanner includescanner, Map<String, NavigableSet<SakerPath>> predictedincludes,
+			Map<String, NavigableSet<SakerPath>> scannedincludesresult) {
+		if (prevfilestate != null) {
+			long prevduration = prevfilestate.getCompilationDurationNanos();
+			if (prevduration > 0) {
+				//the duration of the previous compilation is the best estimate we can get.
+				//it is used even if the compilation configuration changed, as that rarely changes
+				//the cost of the compilation significantly
+				return prevduration;
+			}
+		}
+		long[] result = { 0 };
+		compilationentry.getProperties().getFileLocation().accept(new FileLocationVisitor() {
+			@Override
+			public void visit(ExecutionFileLocation loc) {
+				SakerFile file = taskcontext.getTaskUtilities().resolveFileAtPath(loc.getPath());
+				if (file == null) {
+					//the compilation will fail anyway
+					return;
+				}
+				long filesize = getFileSize(taskcontext, file);
+				if (filesize < 0) {
+					//failed to read, don't care, the compilation reports it
+					return;
+				}
+				int includecount;
+				NavigableSet<SakerPath> scannedincludes = predictedincludes.get(compilationentry.getOutFileName());
+				if (prevfilestate != null && prevfilestate.getIncludes() != null) {
+					includecount = prevfilestate.getIncludes().size();
+				} else if (scannedincludes != null) {
+					includecount = scannedincludes.size();
+				} else {
+					FileCompilationProperties properties = compilationentry.getProperties();
+					IncludeScanner.ScanResult scanresult = includescanner.scan(loc.getPath(),
+							getExecutionPaths(properties.getForceInclude()),
+							getExecutionPaths(properties.getIncludeDirectories()),
+							ObjectUtils.isNullOrEmpty(properties.getMacroDefinitions()) ? Collections.emptySet()
+									: properties.getMacroDefinitions().keySet());
+					if (scanresult != null) {
+						//the transitive includes are a better estimate than the directives in the source file
+						includecount = scanresult.getIncludes().size();
+						if (scanresult.isExact()) {
+							scannedincludesresult.put(compilationentry.getOutFileName(), scanresult.getIncludes());
+						}
+					} else {
+						//undecidable includes, only clang can determine them
+						try {
+							includecount = countIncludeDirectives(file.getBytes());
+						} catch (IOException e) {
+							includecount = 0;
+						}
+					}
+				}
+				result[0] = filesize * ESTIMATED_COMPILATION_NANOS_PER_SOURCE_BYTE
+						+ includecount * ESTIMATED_COMPILATION_NANOS_PER_INCLUDE;
+			}
+
+			@Override
+			public void visit(LocalFileLocation loc) {
+				//the cost of local files is unknown, they are taken after the files with an estimated cost
+			}
+		});
+		return result[0];
+	}
+
+	/**
+	 * Gets the size of the file without reading its contents.
+	 * <p>
+	 * The size is queried from the file attributes of the file system the file is synchronized to. If the file only
+	 * exists in memory (e.g. it was generated by a task, and not yet synchronized), the contents are retrieved, which
+	 * doesn't require any I/O in that case.
+	 *
+	 * @return The size of the file in bytes, or -1 if it cannot be determined.
+	 */
+	private static long getFileSize(TaskContext taskcontext, SakerFile file) {
+		ProviderHolderPathKey pathkey = taskcontext.getExecutionContext().getPathConfiguration()
+				.getPathKey(file.getSakerPath());
+		try {
+			return pathkey.getFileProvider().getFileAttributes(pathkey.getPath()).size();
+		} catch (IOException e) {
+		}
+		try {
+			return file.getBytes().getLength();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static SakerPath getExecutionPath(FileLocation location) {
+		SakerPath[] result = { null };
+		location.accept(new FileLocationVisitor() {
+			@Override
+			public void visit(ExecutionFileLocation loc) {
+				result[0] = loc.getPath();
+			}
+
+			@Override
+			public void visit(LocalFileLocation loc) {
+				//local files are not scanned
+			}
+		});
+		return result[0];
+	}
+
+	private static List<SakerPath> getExecutionPaths(Collection<CompilationPathOption> pathoptions) {
+		if (ObjectUtils.isNullOrEmpty(pathoptions)) {
+			return Collections.emptyList();
+		}
+		List<SakerPath> result = new ArrayList<>();
+		for (CompilationPathOption pathoption : pathoptions) {
+			pathoption.accept(new CompilationPathOption.Visitor() {
+				@Override
+				public void visit(FileCompilationPathOption path) {
+					path.getFileLocation().accept(new FileLocationVisitor() {
+						@Override
+						public void visit(ExecutionFileLocation loc) {
+							result.add(loc.getPath());
+						}
+
+						@Override
+						public void visit(LocalFileLocation loc) {
+							//local paths are not tracked as includes
+						}
+					});
+				}
+
+				@Override
+				public void visit(SDKPathCollectionReference path) {
+					//SDK paths are not tracked as includes
+				}
+			});
+		}
+		return result;
+	}
+
+	private static int countIncludeDirectives(ByteArrayRegion bytes) {
+		//count the lines which look like an #include directive
+		//this doesn't take the conditional preprocessor directives and transitive includes into account,
+		//but is good enough for a rough estimate
+		byte[] array = bytes.getArray();
+		int end = bytes.getOffset() + bytes.getLength();
+		int count = 0;
+		boolean linestart = true;
+		for (int i = bytes.getOffset(); i < end; i++) {
+			byte b = array[i];
+			if (b == '\n') {
+				linestart = true;
+				continue;
+			}
+			if (b == ' ' || b == '\t') {
+				continue;
+			}
+			if (linestart && b == '#') {
+				int idx = i + 1;
+				while (idx < end && (array[idx] == ' ' || array[idx] == '\t')) {
+					++idx;
+				}
+				if (regionStartsWith(array, idx, end, INCLUDE_DIRECTIVE_BYTES)) {
+					++count;
+				}
+			}
+			linestart = false;
+		}
+		return count;
+	}
+
+	private static boolean regionStartsWith(byte[] array, int offset, int end, byte[] prefix) {
+		if (end - offset < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (array[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class CompilationDuplicationPredicate implements TaskDuplicationPredicate {
+		private final CompilationQueue compilationFiles;
+		private boolean aborted;
+
+		private CompilationDuplicationPredicate(CompilationQueue compilationqueue) {
+			this.compilationFiles = compilationqueue;
+		}
+
+		@Override
+		public boolean shouldInvokeOnceMore() throws RuntimeException {
+			if (compilationFiles.isEmpty()) {
+				return false;
+			}
+			return !aborted;
+		}
+
+		public void setAborted() {
+			this.aborted = true;
+		}
+
+		public boolean isAborted() {
+			return aborted;
+		}
+
+	}
+
+	private static final class NothingKeepKnownDirectoryVisitPredicate implements DirectoryVisitPredicate {
+		@Override
+		public DirectoryVisitPredicate directoryVisitor(String arg0, SakerDirectory arg1) {
+			return null;
+		}
+
+		@Override
+		public boolean visitFile(String name, SakerFile file) {
+			return false;
+		}
+
+		@Override
+		public boolean visitDirectory(String name, SakerDirectory directory) {
+			return false;
+		}
+
+		@Override
+		public NavigableSet<String> getSynchronizeFilesToKeep() {
+			//don't remove the pch and the spilled process output subdirs
+			return ImmutableUtils.makeImmutableNavigableSet(
+					new String[] { PRECOMPILED_HEADERS_SUBDIRECTORY_NAME, PROCESS_OUTPUT_SUBDIRECTORY_NAME });
+		}
+	}
+
+	@Override
+	public Task<? extends ClangCompilerWorkerTaskOutput> createTask(ExecutionContext executioncontext) {
+		return this;
+	}
+
+	private static void reportAdditionDontCareDependenciesForFileNamesIncludeDirectory(TaskContext taskcontext,
+			NavigableMap<SakerPath, ContentDescriptor> includecontentdescriptors,
+			NavigableSet<String> includedfilenames, SakerPath includedirexecutionpath) {
+		if (ObjectUtils.isNullOrEmpty(includedfilenames)) {
+			//don't need to report anything
+			return;
+		}
+		FileNameRecursiveFileCollectionStrategy collectionstrategy = new FileNameRecursiveFileCollectionStrategy(
+				includedirexecutionpath, includedfilenames);
+		NavigableMap<SakerPath, SakerFile> foundsimilarfiles = taskcontext.getTaskUtilities()
+				.collectFilesReportAdditionDependency(CompilationFileTags.INCLUDE_FILE, collectionstrategy);
+		for (SakerPath similarfilepath : foundsimilarfiles.keySet()) {
+			includecontentdescriptors.putIfAbsent(similarfilepath, CommonTaskContentDescriptors.DONT_CARE);
+		}
+	}
+
+	private static void filterUnchangedPreviousFiles(TaskContext taskcontext,
+			List<FileCompilationConfiguration> compilationentries,
+			NavigableMap<String, CompiledFileState> stateexecutioncompiledfiles, CompilerState prevoutput,
+			CompilerState nstate, boolean timetrace) throws IOException {
+		//XXX sorted iteration for equals?
+		if (!Objects.equals(nstate.getSdkDescriptions(), prevoutput.getSdkDescriptions())) {
+			//different toolchains used, recompile all
+			return;
+		}
+		if (!Objects.equals(nstate.getEnvironmentSelection(), prevoutput.getEnvironmentSelection())) {
+			//different environments are used to compile the sources.
+			//recompile all
+			return;
+		}
+
+		TaskUtils.collectFilesForTags(taskcontext.getFileDeltas(),
+				ImmutableUtils.asUnmodifiableArrayList(CompilationFileTags.SOURCE));
+		TaskFileDeltas inputfilechanges = taskcontext.getFileDeltas(DeltaType.INPUT_FILE_CHANGE);
+		TaskFileDeltas outputfilechanges = taskcontext.getFileDeltas(DeltaType.OUTPUT_FILE_CHANGE);
+
+		TaskFileDeltas inputfileadditions = taskcontext.getFileDeltas(DeltaType.INPUT_FILE_ADDITION);
+
+		NavigableSet<SakerPath> relevantchanges = new TreeSet<>();
+		collectFileDeltaPaths(inputfilechanges.getFileDeltasWithTag(CompilationFileTags.SOURCE), relevantchanges);
+		collectFileDeltaPaths(outputfilechanges.getFileDeltasWithTag(CompilationFileTags.OBJECT_FILE), relevantchanges);
+
+		NavigableSet<SakerPath> includechanges = new TreeSet<>();
+		collectFileDeltaPaths(inputfilechanges.getFileDeltasWithTag(CompilationFileTags.INCLUDE_FILE), includechanges);
+
+		//compare using ignore-case, as if an include file was not found, we should trigger the recompilation
+		//if a file with different casing is added
+		NavigableSet<String> includeadditionfilenames = new TreeSet<>(String::compareToIgnoreCase);
+		for (FileChangeDelta adddelta : inputfileadditions.getFileDeltas()) {
+			includeadditionfilenames.add(adddelta.getFilePath().getFileName());
+		}
+
+		//look up the affected files through the include index of the previous state
+		//rather than checking the includes of each file separately
+		NavigableSet<String> includedependentoutfilenames = prevoutput.getIncludeDependentOutFileNames(includechanges,
+				includeadditionfilenames);
+
+		boolean[] hadfailure = { false };
+
+		//the states of the unchanged files are carried over to the new state by reference
+		//so look them up directly in the previous state without copying them
+		NavigableMap<String, CompiledFileState> prevcompiledfiles = prevoutput.getExecutionCompiledFiles();
+		for (Iterator<FileCompilationConfiguration> it = compilationentries.iterator(); it.hasNext();) {
+			FileCompilationConfiguration compilationentry = it.next();
+			String outfilename = compilationentry.getOutFileName();
+			CompiledFileState prevfilestate = prevcompiledfiles.get(outfilename);
+			if (prevfilestate == null) {
+				//wasn't compiled previously, compile now
+				continue;
+			}
+			if (!Objects.equals(prevfilestate.getCompilationConfiguration(), compilationentry)) {
+				//the configuration for the compiled file changed
+				continue;
+			}
+			if (timetrace && prevfilestate.getTimeTrace() == null && prevfilestate.isSuccessful()) {
+				//the time trace was turned on, or not available previously, recompile to generate it
+				continue;
+			}
+			if (prevfilestate.isTimedOut()) {
+				//the hang may've been caused by the environment, try again
+				continue;
+			}
+			SakerPath outobjpath = prevfilestate.getOutputObjectPath();
+			if (outobjpath != null) {
+				if (relevantchanges.contains(outobjpath)) {
+					continue;
+				}
+			}
+
+			if (includedependentoutfilenames.contains(outfilename)) {
+				//an included file changed, or an include may be resolved differently
+				continue;
+			}
+
+			compilationentry.getProperties().getFileLocation().accept(new FileLocationVisitor() {
+				@Override
 				public void visit(ExecutionFileLocation loc) {
 					SakerPath sourcefilepath = loc.getPath();
 					if (relevantchanges.contains(sourcefilepath)) {
@@ -669,16 +1576,54 @@ public class ClangCompileWorkerTaskFactory
 	private static void printDiagnostics(TaskContext taskcontext, CompiledFileState state)
 			throws NullPointerException, IOException {
 		ByteArrayRegion procout = state.getCompilerProcessOutput();
-		if (procout == null || procout.isEmpty()) {
-			return;
+		if (procout != null && !procout.isEmpty()) {
+			taskcontext.println(procout.toString());
+		}
+		List<CompilerDiagnostic> diagnostics = state.getDiagnostics();
+		if (!ObjectUtils.isNullOrEmpty(diagnostics)) {
+			taskcontext.println(CompilerDiagnostic.render(diagnostics, taskcontext.getTaskWorkingDirectoryPath()));
 		}
-		taskcontext.println(procout.toString());
 	}
 
 	protected static SakerPath getPrecompiledHeaderOutputDirectoryPath(SakerPath outputdirpath) {
 		return outputdirpath.resolve(PRECOMPILED_HEADERS_SUBDIRECTORY_NAME);
 	}
 
+	private static SakerPath getProcessOutputSpillPath(SakerPath outputdirpath, String outfilename) {
+		return outputdirpath.resolve(PROCESS_OUTPUT_SUBDIRECTORY_NAME)
+				.resolve(outfilename + PROCESS_OUTPUT_SPILL_FILE_EXTENSION);
+	}
+
+	/**
+	 * Deletes the spilled compiler outputs of the files which are no longer part of the compilation.
+	 * <p>
+	 * The outputs of the other files are overwritten when they are compiled again.
+	 */
+	private static void deleteStaleProcessOutputs(ExecutionContext executioncontext, SakerPath outputdirpath,
+			CompilerState state) {
+		Path outputsdir;
+		try {
+			outputsdir = executioncontext.toMirrorPath(outputdirpath.resolve(PROCESS_OUTPUT_SUBDIRECTORY_NAME));
+		} catch (FileMirroringUnavailableException e) {
+			return;
+		}
+		NavigableMap<String, CompiledFileState> compiledfiles = state.getExecutionCompiledFiles();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputsdir)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(PROCESS_OUTPUT_SPILL_FILE_EXTENSION) && compiledfiles.containsKey(
+						name.substring(0, name.length() - PROCESS_OUTPUT_SPILL_FILE_EXTENSION.length()))) {
+					continue;
+				}
+				Files.deleteIfExists(file);
+			}
+		} catch (NoSuchFileException e) {
+			//no outputs were spilled
+		} catch (IOException e) {
+			SakerLog.error().verbose().println("Failed to delete stale compiler outputs: " + e);
+		}
+	}
+
 	private static void collectFileDeltaPaths(Collection<? extends FileChangeDelta> deltas,
 			Collection<SakerPath> result) {
 		if (ObjectUtils.isNullOrEmpty(deltas)) {
@@ -733,6 +1678,9 @@ public class ClangCompileWorkerTaskFactory
 	public void writeExternal(ObjectOutput out) throws IOException {
 		SerialUtils.writeExternalCollection(out, files);
 		SerialUtils.writeExternalMap(out, sdkDescriptions);
+		out.writeObject(diagnosticsFormat);
+		out.writeBoolean(timeTrace);
+		out.writeBoolean(autoPrecompiledHeader);
 	}
 
 	@Override
@@ -740,6 +1688,9 @@ public class ClangCompileWorkerTaskFactory
 		files = SerialUtils.readExternalImmutableLinkedHashSet(in);
 		sdkDescriptions = SerialUtils.readExternalSortedImmutableNavigableMap(in,
 				SDKSupportUtils.getSDKNameComparator());
+		diagnosticsFormat = (String) in.readObject();
+		timeTrace = in.readBoolean();
+		autoPrecompiledHeader = in.readBoolean();
 	}
 
 	@Override
@@ -748,6 +1699,9 @@ public class ClangCompileWorkerTaskFactory
 		int result = 1;
 		result = prime * result + ((files == null) ? 0 : files.hashCode());
 		result = prime * result + ((sdkDescriptions == null) ? 0 : sdkDescriptions.hashCode());
+		result = prime * result + ((diagnosticsFormat == null) ? 0 : diagnosticsFormat.hashCode());
+		result = prime * result + (timeTrace ? 1231 : 1237);
+		result = prime * result + (autoPrecompiledHeader ? 1231 : 1237);
 		return result;
 	}
 
@@ -770,6 +1724,15 @@ public class ClangCompileWorkerTaskFactory
 				return false;
 		} else if (!sdkDescriptions.equals(other.sdkDescriptions))
 			return false;
+		if (diagnosticsFormat == null) {
+			if (other.diagnosticsFormat != null)
+				return false;
+		} else if (!diagnosticsFormat.equals(other.diagnosticsFormat))
+			return false;
+		if (timeTrace != other.timeTrace)
+			return false;
+		if (autoPrecompiledHeader != other.autoPrecompiledHeader)
+			return false;
 		return true;
 	}
 
@@ -781,6 +1744,17 @@ public class ClangCompileWorkerTaskFactory
 		protected NavigableSet<SakerPath> failedIncludes = new TreeSet<>();
 		//XXX this should not be here but only for compiled source files. no need for pch
 		protected ByteArrayRegion processOutput = ByteArrayRegion.EMPTY;
+		/**
+		 * The structured diagnostics if the compiler was asked to report them in a machine readable format.
+		 */
+		protected List<CompilerDiagnostic> diagnostics;
+		/**
+		 * The absolute local paths of the included files that are not part of the build execution, if they are
+		 * collected for the object cache.
+		 * <p>
+		 * Only used on the compiling machine, not serialized.
+		 */
+		protected NavigableSet<String> localIncludes;
 
 		/**
 		 * For {@link Externalizable}.
@@ -808,12 +1782,53 @@ public class ClangCompileWorkerTaskFactory
 			return processOutput;
 		}
 
+		public List<CompilerDiagnostic> getDiagnostics() {
+			return diagnostics;
+		}
+
+		/**
+		 * Appends a message to the process output.
+		 */
+		public void appendProcessOutput(String message) {
+			byte[] messagebytes = message.getBytes(StandardCharsets.UTF_8);
+			try (UnsyncByteArrayOutputStream baos = new UnsyncByteArrayOutputStream(
+					processOutput.getLength() + messagebytes.length + 1)) {
+				baos.write(processOutput);
+				if (!processOutput.isEmpty()
+						&& processOutput.get(processOutput.getOffset() + processOutput.getLength() - 1) != '\n') {
+					baos.write('\n');
+				}
+				baos.write(messagebytes);
+				processOutput = baos.toByteArrayRegion();
+			}
+		}
+
+		/**
+		 * Gets the process output with the structured diagnostics rendered after it.
+		 */
+		public ByteArrayRegion getRenderedProcessOutput(SakerPath workingdir) {
+			if (ObjectUtils.isNullOrEmpty(diagnostics)) {
+				return processOutput;
+			}
+			byte[] rendered = CompilerDiagnostic.render(diagnostics, workingdir).getBytes(StandardCharsets.UTF_8);
+			if (processOutput.isEmpty()) {
+				return ByteArrayRegion.wrap(rendered);
+			}
+			try (UnsyncByteArrayOutputStream baos = new UnsyncByteArrayOutputStream(
+					processOutput.getLength() + rendered.length)) {
+				baos.write(processOutput);
+				baos.write(rendered);
+				return baos.toByteArrayRegion();
+			}
+		}
+
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
 			out.writeObject(inputContents);
 			SerialUtils.writeExternalCollection(out, includes);
 			SerialUtils.writeExternalCollection(out, failedIncludes);
 			out.writeObject(processOutput);
+			SerialUtils.writeExternalCollection(out, diagnostics);
 		}
 
 		@Override
@@ -822,6 +1837,7 @@ public class ClangCompileWorkerTaskFactory
 			includes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
 			failedIncludes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
 			processOutput = (ByteArrayRegion) in.readObject();
+			diagnostics = SerialUtils.readExternalImmutableList(in);
 		}
 	}
 
@@ -830,9 +1846,32 @@ public class ClangCompileWorkerTaskFactory
 
 		protected FileCompilationConfiguration compilationEntry;
 		protected boolean successful;
+		protected boolean cancelled;
+		/**
+		 * Whether the compiler process was terminated as it didn't finish in time. The result is unsuccessful in this
+		 * case.
+		 */
+		protected boolean timedOut;
 		protected String outputObjectName;
+		protected long compilationDurationNanos;
+		protected long peakMemoryBytes;
+		protected long userCpuNanos;
+		protected long systemCpuNanos;
+		/**
+		 * Whether the measurements are of an actual compiler process. <code>false</code> if the result was retrieved
+		 * from the cache, or the compilation wasn't started.
+		 */
+		protected boolean processMeasured;
+		/**
+		 * The summary of the time trace of the compilation if it was requested.
+		 */
+		protected TimeTraceSummary timeTrace;
 
 		protected CompilationDependencyInfo dependencyInfo;
+		/**
+		 * The results of the other files that were compiled in the same batch.
+		 */
+		protected List<CompilerInnerTaskResult> batchedResults;
 
 		/**
 		 * For {@link Externalizable}.
@@ -856,10 +1895,39 @@ public class ClangCompileWorkerTaskFactory
 			return result;
 		}
 
+		/**
+		 * Creates a result for files whose compilation was cancelled, as the compilation of another file failed.
+		 */
+		public static CompilerInnerTaskResult cancelled(List<FileCompilationConfiguration> compilationEntries) {
+			CompilerInnerTaskResult result = null;
+			for (FileCompilationConfiguration entry : compilationEntries) {
+				CompilerInnerTaskResult fileresult = new CompilerInnerTaskResult(entry);
+				fileresult.cancelled = true;
+				if (result == null) {
+					result = fileresult;
+				} else {
+					result.addBatchedResult(fileresult);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Gets if the compilation was cancelled before it could finish. The cancelled results have no outputs, and
+		 * shouldn't be reported.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
 		public boolean isSuccessful() {
 			return successful;
 		}
 
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
 		public FileCompilationConfiguration getCompilationEntry() {
 			return compilationEntry;
 		}
@@ -868,24 +1936,99 @@ public class ClangCompileWorkerTaskFactory
 			return outputObjectName;
 		}
 
+		public long getCompilationDurationNanos() {
+			return compilationDurationNanos;
+		}
+
+		public long getPeakMemoryBytes() {
+			return peakMemoryBytes;
+		}
+
+		public long getUserCpuNanos() {
+			return userCpuNanos;
+		}
+
+		public long getSystemCpuNanos() {
+			return systemCpuNanos;
+		}
+
+		public boolean isProcessMeasured() {
+			return processMeasured;
+		}
+
+		public TimeTraceSummary getTimeTrace() {
+			return timeTrace;
+		}
+
+		/**
+		 * Sets the measurements of the compiler process.
+		 *
+		 * @param durationnanos
+		 *            The wall clock time of the process.
+		 * @param usage
+		 *            The resource usage of the process.
+		 * @param filecount
+		 *            The number of files that were compiled by the process. The times are distributed evenly among
+		 *            them, as the separate times are not known. The peak memory is an upper bound for all of them.
+		 */
+		public void setProcessMeasurements(long durationnanos, ProcessResourceUsage usage, int filecount) {
+			this.compilationDurationNanos = durationnanos / filecount;
+			this.peakMemoryBytes = usage.getPeakResidentSetSizeBytes();
+			this.userCpuNanos = usage.getUserCpuNanos() / filecount;
+			this.systemCpuNanos = usage.getSystemCpuNanos() / filecount;
+			this.processMeasured = true;
+		}
+
 		public CompilationDependencyInfo getDependencyInfo() {
 			return dependencyInfo;
 		}
 
+		public List<CompilerInnerTaskResult> getBatchedResults() {
+			if (batchedResults == null) {
+				return Collections.emptyList();
+			}
+			return batchedResults;
+		}
+
+		public void addBatchedResult(CompilerInnerTaskResult result) {
+			if (batchedResults == null) {
+				batchedResults = new ArrayList<>();
+			}
+			batchedResults.add(result);
+		}
+
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
 			out.writeObject(compilationEntry);
 			out.writeBoolean(successful);
+			out.writeBoolean(cancelled);
+			out.writeBoolean(timedOut);
 			out.writeObject(outputObjectName);
+			out.writeLong(compilationDurationNanos);
+			out.writeLong(peakMemoryBytes);
+			out.writeLong(userCpuNanos);
+			out.writeLong(systemCpuNanos);
+			out.writeBoolean(processMeasured);
+			out.writeObject(timeTrace);
 			out.writeObject(dependencyInfo);
+			SerialUtils.writeExternalCollection(out, batchedResults);
 		}
 
 		@Override
 		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
 			compilationEntry = (FileCompilationConfiguration) in.readObject();
 			successful = in.readBoolean();
+			cancelled = in.readBoolean();
+			timedOut = in.readBoolean();
 			outputObjectName = (String) in.readObject();
+			compilationDurationNanos = in.readLong();
+			peakMemoryBytes = in.readLong();
+			userCpuNanos = in.readLong();
+			systemCpuNanos = in.readLong();
+			processMeasured = in.readBoolean();
+			timeTrace = (TimeTraceSummary) in.readObject();
 			dependencyInfo = (CompilationDependencyInfo) in.readObject();
+			batchedResults = SerialUtils.readExternalImmutableList(in);
 		}
 	}
 
@@ -900,13 +2043,104 @@ public class ClangCompileWorkerTaskFactory
 		public NavigableMap<SakerPath, PrecompiledHeaderState> getPrecompiledHeaderStates(
 				@RMISerialize RootFileProviderKey fpk);
 
-		public FileCompilationConfiguration take();
+		/**
+		 * Takes the next entry to compile, and the compatible entries that should be compiled with it in the same
+		 * clang invocation.
+		 * <p>
+		 * The entries which don't use a precompiled header, or use one that is already compiled on the caller machine
+		 * are preferred.
+		 *
+		 * @param readyprecompiledheaders
+		 *            The output file names of the precompiled headers that are compiled on the caller machine.
+		 * @return The entries or <code>null</code> if there are no more.
+		 */
+		@RMISerialize
+		public List<FileCompilationConfiguration> takeBatch(@RMISerialize Set<String> readyprecompiledheaders);
+
+		/**
+		 * Gets a source file for each distinct precompiled header that is used by the compiled files.
+		 */
+		@RMISerialize
+		public List<FileCompilationConfiguration> getPrecompiledHeaderJobs();
+
+		/**
+		 * Checks if there are source files that use the given precompiled header and are not yet taken for
+		 * compilation.
+		 */
+		public boolean hasPendingEntries(String pchoutfilename);
+
+		@RMISerialize
+		public NavigableSet<SakerPath> getPreviousIncludes(String outfilename);
+
+		/**
+		 * Gets the peak memory usage of the previous compilation of a file in bytes, or 0 if unknown.
+		 */
+		public long getPreviousPeakMemory(String outfilename);
+
+		/**
+		 * Acquires a precompiled header compiled by another machine.
+		 * <p>
+		 * If the header is being compiled, the method waits for it.
+		 *
+		 * @return The header or <code>null</code> if the caller should compile it. In this case the caller must call
+		 *             {@link #publishPrecompiledHeader(String, PrecompiledHeaderSource)} or
+		 *             {@link #precompiledHeaderFailed(String)} afterwards.
+		 */
+		public PrecompiledHeaderSource acquirePrecompiledHeader(String toolchainkey);
+
+		public void publishPrecompiledHeader(String toolchainkey, PrecompiledHeaderSource source);
+
+		public void precompiledHeaderFailed(String toolchainkey);
+
+		/**
+		 * Notifies the coordinator that the precompiled header for the given header path was fetched from another
+		 * machine, and any previous state of it should be discarded.
+		 */
+		public void precompiledHeaderFetched(PathKey headerpathkey);
+
+		/**
+		 * Adds a listener that is notified when the compilation is aborted.
+		 * <p>
+		 * The listener is called right away if the compilation is already aborted.
+		 */
+		public void addAbortListener(AbortListener listener);
 
 		public void setAborted();
 	}
 
+	public interface AbortListener {
+		public static final Method METHOD_ABORTED = ReflectUtils.getMethodAssert(AbortListener.class, "aborted");
+
+		public void aborted();
+	}
+
+	/**
+	 * A precompiled header that is compiled on a machine and can be fetched by the others.
+	 * <p>
+	 * The header is transferred as gzip compressed chunks.
+	 */
+	public interface PrecompiledHeaderSource {
+		/**
+		 * Gets the SHA-256 checksum of the uncompressed header.
+		 */
+		@RMISerialize
+		public byte[] getChecksum() throws IOException;
+
+		public int getChunkCount() throws IOException;
+
+		@RMISerialize
+		public byte[] readChunk(int index) throws IOException;
+
+		@RMISerialize
+		public NavigableSet<SakerPath> getIncludes();
+	}
+
 	private static class PrecompiledHeaderDependencyInfo {
 		protected NavigableSet<SakerPath> includes;
+		/**
+		 * Whether the precompiled header was fetched from another machine.
+		 */
+		protected boolean fetched;
 
 		public PrecompiledHeaderDependencyInfo() {
 			this.includes = new TreeSet<>();
@@ -929,11 +2163,32 @@ public class ClangCompileWorkerTaskFactory
 		protected NavigableMap<String, SDKDescription> sdkDescriptions;
 		protected TaskExecutionEnvironmentSelector environmentSelector;
 		protected SakerDirectory outputDir;
+		protected String diagnosticsFormat;
+		protected boolean timeTrace;
 
 		private transient InnerTaskMirrorHandler mirrorHandler = new InnerTaskMirrorHandler();
+		private transient UnmirrorPathResolver unmirrorResolver = new UnmirrorPathResolver();
+		private transient ConcurrentHashMap<SakerPath, Optional<byte[]>> includeContentHashes = new ConcurrentHashMap<>();
+		private transient DriverExpansionCache driverExpansionCache = new DriverExpansionCache();
+		/**
+		 * The compiler processes running on this machine, which are destroyed when the compilation is aborted.
+		 */
+		private transient RunningProcessRegistry processRegistry = new RunningProcessRegistry();
+		private transient AtomicBoolean abortListenerAdded = new AtomicBoolean();
 
 		private transient ConcurrentHashMap<FileCompilationConfiguration, Object> precompiledHeaderCreationLocks = new ConcurrentHashMap<>();
 		private transient ConcurrentHashMap<FileCompilationConfiguration, Optional<PrecompiledHeaderDependencyInfo>> precompiledHeaderCreationResults = new ConcurrentHashMap<>();
+		/**
+		 * The output file names of the precompiled headers that are already compiled on this machine.
+		 */
+		private transient Set<String> readyPrecompiledHeaders = ConcurrentHashMap.newKeySet();
+		/**
+		 * The precompiled headers that should be compiled on this machine before the source files that use them.
+		 */
+		private transient final Supplier<Queue<FileCompilationConfiguration>> pendingPrecompiledHeadersLazySupplier = LazySupplier
+				.of(() -> {
+					return new ConcurrentLinkedQueue<>(coordinator.getPrecompiledHeaderJobs());
+				});
 
 		private transient final Supplier<NavigableMap<SakerPath, PrecompiledHeaderState>> precompiledHeaderStatesLazySupplier = LazySupplier
 				.of(() -> {
@@ -948,12 +2203,14 @@ public class ClangCompileWorkerTaskFactory
 
 		public SourceCompilerInnerTaskFactory(WorkerTaskCoordinator coordinator, SakerPath outputDirPath,
 				NavigableMap<String, SDKDescription> sdkDescriptions, TaskExecutionEnvironmentSelector envselector,
-				SakerDirectory outputDir) {
+				SakerDirectory outputDir, String diagnosticsFormat, boolean timeTrace) {
 			this.coordinator = coordinator;
 			this.outputDirPath = outputDirPath;
 			this.sdkDescriptions = sdkDescriptions;
 			this.environmentSelector = envselector;
 			this.outputDir = outputDir;
+			this.diagnosticsFormat = diagnosticsFormat;
+			this.timeTrace = timeTrace;
 		}
 
 		@Override
@@ -982,6 +2239,23 @@ public class ClangCompileWorkerTaskFactory
 			return TaskFactory.super.getExecutionEnvironmentSelector();
 		}
 
+		private boolean isAutoPrecompiledHeader(FileLocation pchfilelocation) {
+			boolean[] result = { false };
+			pchfilelocation.accept(new FileLocationVisitor() {
+				@Override
+				public void visit(ExecutionFileLocation loc) {
+					//the specified precompiled headers can't be in the output directory
+					result[0] = getPrecompiledHeaderOutputDirectoryPath(outputDirPath)
+							.equals(loc.getPath().getParent());
+				}
+
+				@Override
+				public void visit(LocalFileLocation loc) {
+				}
+			});
+			return result[0];
+		}
+
 		private static boolean isPrecompiledHeaderUpToDate(TaskContext taskcontext, PrecompiledHeaderState prevstate,
 				ContentDescriptor currentcontents, Path outputpath, FileCompilationProperties entrypch) {
 			if (prevstate == null) {
@@ -991,26 +2265,495 @@ public class ClangCompileWorkerTaskFactory
 				//the input header changed
 				return false;
 			}
-			//the output was changed
-			if (!prevstate.getOutputContents().equals(taskcontext.getExecutionContext()
-					.getContentDescriptor(LocalFileProvider.getInstance().getPathKey(outputpath)))) {
-				return false;
+			//the output was changed
+			if (!prevstate.getOutputContents().equals(taskcontext.getExecutionContext()
+					.getContentDescriptor(LocalFileProvider.getInstance().getPathKey(outputpath)))) {
+				return false;
+			}
+			if (!entrypch.equals(prevstate.getCompilationProperties())) {
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public CompilerInnerTaskResult run(TaskContext taskcontext) throws Exception {
+			FileCompilationConfiguration pchjob = takePrecompiledHeaderJob();
+			if (pchjob != null) {
+				addAbortListener();
+				if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
+					BuildTrace.setDisplayInformation(
+							ClangUtils.getFileName(pchjob.getPrecompiledHeaderFileLocation()) + ".pch", null);
+				}
+				try {
+					//the result is reported to the coordinator
+					getPrecompiledHeader(taskcontext, pchjob);
+				} catch (CancellationException e) {
+					//the compilation was aborted
+				}
+				return null;
+			}
+			List<FileCompilationConfiguration> compilationentries = coordinator
+					.takeBatch(new TreeSet<>(readyPrecompiledHeaders));
+			if (ObjectUtils.isNullOrEmpty(compilationentries)) {
+				if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_014) {
+					BuildTrace.omitInnerTask();
+				}
+				return null;
+			}
+			addAbortListener();
+			try {
+				if (compilationentries.size() == 1) {
+					return compile(taskcontext, compilationentries.get(0));
+				}
+				return compileBatch(taskcontext, compilationentries);
+			} catch (CancellationException e) {
+				return CompilerInnerTaskResult.cancelled(compilationentries);
+			}
+		}
+
+		private void addAbortListener() {
+			if (abortListenerAdded.compareAndSet(false, true)) {
+				//once for each machine, as the inner tasks running on it share this instance
+				coordinator.addAbortListener(processRegistry::cancel);
+			}
+		}
+
+		/**
+		 * Takes a precompiled header that should be compiled on this machine.
+		 * <p>
+		 * The precompiled headers are compiled by their own inner tasks before the source files are taken, so the
+		 * source files don't wait for them while holding a computation token. The headers which are no longer needed by
+		 * any of the remaining source files are skipped.
+		 *
+		 * @return A source file that uses the precompiled header, or <code>null</code> if there are no more headers
+		 *             to compile.
+		 */
+		private FileCompilationConfiguration takePrecompiledHeaderJob() {
+			Queue<FileCompilationConfiguration> pending = pendingPrecompiledHeadersLazySupplier.get();
+			for (FileCompilationConfiguration job; (job = pending.poll()) != null;) {
+				if (readyPrecompiledHeaders.contains(job.getPrecompiledHeaderOutFileName())) {
+					continue;
+				}
+				if (!coordinator.hasPendingEntries(job.getPrecompiledHeaderOutFileName())) {
+					continue;
+				}
+				return job;
+			}
+			return null;
+		}
+
+		/**
+		 * Compiles multiple source files with the same properties in a single clang invocation.
+		 * <p>
+		 * Clang doesn't accept the <code>-o</code> and <code>-MF</code> arguments for multiple inputs, so the process
+		 * is started in a separate directory where the outputs are created next to each other with the names of the
+		 * source files. They are moved to their expected location after the compilation.
+		 * <p>
+		 * If the compilation fails, the files are compiled one by one, so the errors are reported precisely.
+		 */
+		private CompilerInnerTaskResult compileBatch(TaskContext taskcontext,
+				List<FileCompilationConfiguration> compilationentries) throws Exception {
+			FileCompilationConfiguration firstentry = compilationentries.get(0);
+			FileCompilationProperties compilationproperties = firstentry.getProperties();
+			SakerPath outputdirpath = outputDirPath;
+			TaskExecutionUtilities taskutilities = taskcontext.getTaskUtilities();
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+			SakerEnvironment environment = executioncontext.getEnvironment();
+
+			int count = compilationentries.size();
+			ContentDescriptor[] contents = new ContentDescriptor[count];
+			Path[] compilefilepaths = new Path[count];
+			for (int i = 0; i < count; i++) {
+				ContentDescriptor[] filecontents = { null };
+				compilefilepaths[i] = getCompileFilePath(compilationentries.get(i).getProperties(), environment,
+						taskutilities, filecontents);
+				contents[i] = filecontents[0];
+			}
+
+			if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
+				BuildTrace.setDisplayInformation(
+						compilefilepaths[0].getFileName().toString() + " (+" + (count - 1) + ")", null);
+			}
+
+			NavigableMap<String, SDKReference> sdks = SDKSupportUtils
+					.resolveSDKReferences(taskcontext.getExecutionContext().getEnvironment(), sdkDescriptions);
+
+			List<Path> includedirpaths = getIncludePaths(taskutilities, environment,
+					compilationproperties.getIncludeDirectories(), true, sdks);
+			List<Path> forceincludepaths = getIncludePaths(taskutilities, environment,
+					compilationproperties.getForceInclude(), false, sdks);
+
+			SDKReference clangsdk = SDKSupportUtils.requireSDK(sdks, ClangUtils.SDK_NAME_CLANG);
+			String executable = ClangUtils.getClangExecutable(clangsdk);
+
+			Path batchdirpath = executioncontext.toMirrorPath(
+					outputdirpath.resolve(BATCH_SUBDIRECTORY_NAME).resolve(firstentry.getOutFileName()));
+			LocalFileProvider localfp = LocalFileProvider.getInstance();
+			localfp.createDirectories(batchdirpath);
+			//the same target for the dependency files of all source files
+			Path deptargetpath = batchdirpath.resolve(BATCH_DEPENDENCY_TARGET_FILE_NAME);
+
+			List<String> commands = new ArrayList<>();
+			commands.add(executable);
+			//compile only
+			commands.add("-c");
+			addDiagnosticsFormatCommands(commands);
+			addTimeTraceCommands(commands);
+			ClangUtils.evaluateSimpleParameters(commands, compilationproperties.getSimpleParameters(), sdks);
+			addLanguageCommandLineOption(compilationproperties.getLanguage(), commands);
+			for (int i = 0; i < count; i++) {
+				commands.add(compilefilepaths[i].toString());
+				//remove the leftovers of a previous batch
+				String stem = getFileStem(compilefilepaths[i].getFileName().toString());
+				Files.deleteIfExists(batchdirpath.resolve(stem + ".o"));
+				Files.deleteIfExists(batchdirpath.resolve(stem + ".d"));
+				Files.deleteIfExists(batchdirpath.resolve(stem + TIME_TRACE_FILE_EXTENSION));
+			}
+			addIncludeCommands(commands, includedirpaths);
+			addForceIncludeCommands(commands, forceincludepaths);
+			addMacroDefinitionCommands(commands, compilationproperties.getMacroDefinitions());
+			//without -MF, the dependency files are named after the outputs
+			commands.add("-MMD");
+			// -MT <target>	Specify name of main file output in depfile
+			commands.add("-MT");
+			commands.add(deptargetpath.toString());
+
+			SakerPath workingdir = SakerPath.valueOf(batchdirpath);
+			//a truncated output is not spilled, as the files are compiled one by one in that case
+			SpillingProcessIOConsumer stdoutcollector = new SpillingProcessIOConsumer(
+					SpillingProcessIOConsumer.DEFAULT_MEMORY_LIMIT, null, null);
+			List<String> outfilenames = new ArrayList<>(count);
+			for (FileCompilationConfiguration compilationentry : compilationentries) {
+				outfilenames.add(compilationentry.getOutFileName());
+			}
+			ProcessResourceUsage resourceusage = new ProcessResourceUsage();
+			ProcessWatchdog watchdog = ProcessWatchdog.create(environment, ENVIRONMENT_PARAMETER_COMPILE_TIMEOUT,
+					count);
+			long compilestartnanos = System.nanoTime();
+			int procresult;
+			try {
+				procresult = runBudgetedClangProcess(environment, commands, workingdir, stdoutcollector,
+						outfilenames, resourceusage, watchdog);
+			} finally {
+				stdoutcollector.close();
+			}
+			long compilationdurationnanos = System.nanoTime() - compilestartnanos;
+			if (procresult != 0 || !stdoutcollector.isComplete()) {
+				//if timed out, the files are compiled one by one as well, so the hanging one is found
+				return compileIndividually(taskcontext, compilationentries);
+			}
+
+			Path[] objoutpaths = new Path[count];
+			Path[] depfileoutpaths = new Path[count];
+			try {
+				localfp.createDirectories(executioncontext.toMirrorPath(outputdirpath));
+				for (int i = 0; i < count; i++) {
+					String outputfilenamebase = compilationentries.get(i).getOutFileName();
+					objoutpaths[i] = executioncontext.toMirrorPath(outputdirpath.resolve(outputfilenamebase + ".o"));
+					depfileoutpaths[i] = executioncontext
+							.toMirrorPath(outputdirpath.resolve(outputfilenamebase + ".dep"));
+					String stem = getFileStem(compilefilepaths[i].getFileName().toString());
+					Files.move(batchdirpath.resolve(stem + ".o"), objoutpaths[i], StandardCopyOption.REPLACE_EXISTING);
+					Files.move(batchdirpath.resolve(stem + ".d"), depfileoutpaths[i],
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				SakerLog.error().verbose().println("Failed to retrieve the outputs of batched compilation: " + e);
+				return compileIndividually(taskcontext, compilationentries);
+			}
+
+			ByteArrayRegion[] fileoutputs = splitBatchOutput(stdoutcollector.getOutputBytes(), compilefilepaths);
+			CompilerInnerTaskResult result = null;
+			for (int i = 0; i < count; i++) {
+				FileCompilationConfiguration compilationentry = compilationentries.get(i);
+				String outputobjectfilename = compilationentry.getOutFileName() + ".o";
+				CompilationDependencyInfo depinfo = new CompilationDependencyInfo(contents[i]);
+				try (SpillingProcessIOConsumer fileoutput = new SpillingProcessIOConsumer(
+						SpillingProcessIOConsumer.DEFAULT_MEMORY_LIMIT, null, null)) {
+					ByteArrayRegion fileoutputbytes = fileoutputs[i];
+					fileoutput.handleOutput(ByteBuffer.wrap(fileoutputbytes.getArray(), fileoutputbytes.getOffset(),
+							fileoutputbytes.getLength()));
+					fileoutput.close();
+					analyzeClangOutput(taskcontext, includedirpaths, fileoutput, depinfo, procresult,
+							depfileoutpaths[i], deptargetpath, compilefilepaths[i], null);
+				}
+
+				ProviderHolderPathKey objoutpathkey = localfp.getPathKey(objoutpaths[i]);
+				taskutilities.addSynchronizeInvalidatedProviderPathFileToDirectory(outputDir, objoutpathkey,
+						outputobjectfilename);
+
+				CompilerInnerTaskResult fileresult = CompilerInnerTaskResult.successful(compilationentry);
+				fileresult.outputObjectName = outputobjectfilename;
+				fileresult.setProcessMeasurements(compilationdurationnanos, resourceusage, count);
+				fileresult.dependencyInfo = depinfo;
+				if (timeTrace) {
+					String stem = getFileStem(compilefilepaths[i].getFileName().toString());
+					fileresult.timeTrace = collectTimeTrace(executioncontext,
+							batchdirpath.resolve(stem + TIME_TRACE_FILE_EXTENSION));
+				}
+				if (result == null) {
+					result = fileresult;
+				} else {
+					result.addBatchedResult(fileresult);
+				}
+			}
+			return result;
+		}
+
+		private CompilerInnerTaskResult compileIndividually(TaskContext taskcontext,
+				List<FileCompilationConfiguration> compilationentries) throws Exception {
+			CompilerInnerTaskResult result = null;
+			for (FileCompilationConfiguration compilationentry : compilationentries) {
+				CompilerInnerTaskResult fileresult;
+				try {
+					fileresult = compile(taskcontext, compilationentry);
+				} catch (CancellationException e) {
+					fileresult = CompilerInnerTaskResult.cancelled(Collections.singletonList(compilationentry));
+				}
+				if (result == null) {
+					result = fileresult;
+				} else {
+					result.addBatchedResult(fileresult);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Splits the output of a batched compilation to the compiled source files.
+		 * <p>
+		 * The driver compiles the sources in order, so the diagnostic lines are assigned to the last source file that
+		 * was referenced either directly or in an include stack by the lines so far.
+		 */
+		private static ByteArrayRegion[] splitBatchOutput(ByteArrayRegion output, Path[] compilefilepaths) {
+			int count = compilefilepaths.length;
+			byte[][] pathbytes = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				pathbytes[i] = compilefilepaths[i].toString().getBytes(StandardCharsets.UTF_8);
+			}
+			UnsyncByteArrayOutputStream[] outputs = new UnsyncByteArrayOutputStream[count];
+			for (int i = 0; i < count; i++) {
+				outputs[i] = new UnsyncByteArrayOutputStream();
+			}
+			byte[] array = output.getArray();
+			int end = output.getOffset() + output.getLength();
+			int current = 0;
+			int linestart = output.getOffset();
+			while (linestart < end) {
+				int lineend = linestart;
+				while (lineend < end && array[lineend] != '\n') {
+					++lineend;
+				}
+				int nextlinestart = Math.min(lineend + 1, end);
+				int pathstart = linestart;
+				if (regionStartsWith(array, linestart, lineend, INCLUDED_FROM_PREFIX_BYTES)) {
+					pathstart += INCLUDED_FROM_PREFIX_BYTES.length;
+				}
+				for (int i = current + 1; i < count; i++) {
+					byte[] path = pathbytes[i];
+					if (pathstart + path.length < lineend && array[pathstart + path.length] == ':'
+							&& regionStartsWith(array, pathstart, lineend, path)) {
+						current = i;
+						break;
+					}
+				}
+				outputs[current].write(array, linestart, nextlinestart - linestart);
+				linestart = nextlinestart;
+			}
+			ByteArrayRegion[] result = new ByteArrayRegion[count];
+			for (int i = 0; i < count; i++) {
+				result[i] = outputs[i].toByteArrayRegion();
 			}
-			if (!entrypch.equals(prevstate.getCompilationProperties())) {
-				return false;
+			return result;
+		}
+
+		/**
+		 * Fetches the precompiled header from the machine that compiled it, or acquires the right to compile it.
+		 * <p>
+		 * No state is recorded for a fetched header, as clang can only load it with the validation of the input files
+		 * turned off. Their modification times differ on the machines. If the header is needed in the next build, it
+		 * is compiled or fetched again.
+		 *
+		 * @return The dependency information of the fetched header, or <code>null</code> if it should be compiled
+		 *             locally.
+		 */
+		private Optional<PrecompiledHeaderDependencyInfo> fetchPrecompiledHeader(String toolchainkey, Path pchoutpath,
+				SakerPath pchcompilesakerfilepath) {
+			PrecompiledHeaderSource source = coordinator.acquirePrecompiledHeader(toolchainkey);
+			if (source == null || !PrecompiledHeaderDistribution.fetch(source, pchoutpath)) {
+				return null;
 			}
-			return true;
+			coordinator.precompiledHeaderFetched(LocalFileProvider.getPathKeyStatic(pchcompilesakerfilepath));
+			PrecompiledHeaderDependencyInfo result = new PrecompiledHeaderDependencyInfo(source.getIncludes());
+			result.fetched = true;
+			return Optional.of(result);
 		}
 
-		@Override
-		public CompilerInnerTaskResult run(TaskContext taskcontext) throws Exception {
-			FileCompilationConfiguration compilationentry = coordinator.take();
-			if (compilationentry == null) {
-				if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_014) {
-					BuildTrace.omitInnerTask();
+		/**
+		 * Gets the precompiled header used by the given source file.
+		 * <p>
+		 * Each precompiled header is compiled once on a machine, the callers that need the same header wait for its
+		 * compilation.
+		 *
+		 * @return The dependency information of the header, or empty if it failed to compile.
+		 */
+		private Optional<PrecompiledHeaderDependencyInfo> getPrecompiledHeader(TaskContext taskcontext,
+				FileCompilationConfiguration compilationentry) throws Exception {
+			String pchoutfilename = compilationentry.getPrecompiledHeaderOutFileName();
+			FileCompilationProperties pchproperties = compilationentry.getProperties()
+					.withFileLocation(compilationentry.getPrecompiledHeaderFileLocation());
+			FileCompilationConfiguration entrypch = new FileCompilationConfiguration(pchoutfilename, pchproperties);
+			Optional<PrecompiledHeaderDependencyInfo> headerres = precompiledHeaderCreationResults.get(entrypch);
+			if (headerres != null) {
+				return headerres;
+			}
+			synchronized (precompiledHeaderCreationLocks.computeIfAbsent(entrypch, Functionals.objectComputer())) {
+				headerres = precompiledHeaderCreationResults.get(entrypch);
+				if (headerres != null) {
+					return headerres;
 				}
-				return null;
+				SakerPath outputdirpath = outputDirPath;
+				TaskExecutionUtilities taskutilities = taskcontext.getTaskUtilities();
+				ExecutionContext executioncontext = taskcontext.getExecutionContext();
+				SakerEnvironment environment = executioncontext.getEnvironment();
+				LocalFileProvider localfp = LocalFileProvider.getInstance();
+
+				NavigableMap<String, SDKReference> sdks = SDKSupportUtils.resolveSDKReferences(environment,
+						sdkDescriptions);
+				List<Path> includedirpaths = getIncludePaths(taskutilities, environment,
+						pchproperties.getIncludeDirectories(), true, sdks);
+				List<Path> forceincludepaths = getIncludePaths(taskutilities, environment,
+						pchproperties.getForceInclude(), false, sdks);
+				String executable = ClangUtils
+						.getClangExecutable(SDKSupportUtils.requireSDK(sdks, ClangUtils.SDK_NAME_CLANG));
+
+				SakerPath pchoutdir = getPrecompiledHeaderOutputDirectoryPath(outputdirpath);
+				Path pchoutpath = executioncontext.toMirrorPath(pchoutdir.resolve(pchoutfilename + ".pch"));
+				localfp.createDirectories(pchoutpath.getParent());
+
+				ContentDescriptor[] pchcontents = { null };
+				Path pchcompilefilepath = getCompileFilePath(pchproperties, environment, taskutilities,
+						pchcontents);
+
+				NavigableMap<SakerPath, PrecompiledHeaderState> precompiledheaderstates = precompiledHeaderStatesLazySupplier
+						.get();
+				SakerPath pchcompilesakerfilepath = SakerPath.valueOf(pchcompilefilepath);
+				PrecompiledHeaderState prevheaderstate = ObjectUtils.getMapValue(precompiledheaderstates,
+						pchcompilesakerfilepath);
+				if (isPrecompiledHeaderUpToDate(taskcontext, prevheaderstate, pchcontents[0],
+						pchcompilefilepath, pchproperties)) {
+					headerres = Optional
+							.of(new PrecompiledHeaderDependencyInfo(prevheaderstate.getIncludes()));
+				} else {
+					Path pchdepfileoutpath = executioncontext
+							.toMirrorPath(pchoutdir.resolve(pchoutfilename + ".pch.dep"));
+					List<String> commands = new ArrayList<>();
+					commands.add(executable);
+					//compile only
+					commands.add("-c");
+					addDiagnosticsFormatCommands(commands);
+					ClangUtils.evaluateSimpleParameters(commands, pchproperties.getSimpleParameters(),
+							sdks);
+					addLanguageHeaderCommandLineOption(pchproperties.getLanguage(), commands);
+					commands.add(pchcompilefilepath.toString());
+					commands.add("-o");
+					commands.add(pchoutpath.toString());
+					addIncludeCommands(commands, includedirpaths);
+					addForceIncludeCommands(commands, forceincludepaths);
+					addMacroDefinitionCommands(commands, pchproperties.getMacroDefinitions());
+					// -MMD			Write a depfile containing user headers
+					// -MD			Write a depfile containing user and system headers
+					//use -MMD as we're not interested in system headers
+					commands.add("-MMD");
+					// -MF <file>	Write depfile output from -MMD, -MD, -MM, or -M to <file>
+					commands.add("-MF");
+					commands.add(pchdepfileoutpath.toString());
+
+					String toolchainkey = environmentSelector == null ? null
+							: PrecompiledHeaderDistribution.getToolchainKey(environment, executable, commands);
+					if (toolchainkey != null) {
+						headerres = fetchPrecompiledHeader(toolchainkey, pchoutpath, pchcompilesakerfilepath);
+					}
+					if (headerres == null) {
+						boolean published = false;
+						try {
+							//use the output parent path as the working directory
+							SakerPath workingdir = SakerPath.valueOf(pchoutpath.getParent());
+							//the output of the headers is spilled in the pch directory, next to the header
+							SpillingProcessIOConsumer stdoutcollector = createProcessOutputConsumer(pchoutpath
+									.resolveSibling(pchoutpath.getFileName() + PROCESS_OUTPUT_SPILL_FILE_EXTENSION));
+							ProcessResourceUsage resourceusage = new ProcessResourceUsage();
+							ProcessWatchdog watchdog = ProcessWatchdog.create(environment,
+									ENVIRONMENT_PARAMETER_COMPILE_TIMEOUT, 1);
+							long compilestartnanos = System.nanoTime();
+							int procresult;
+							try {
+								procresult = runBudgetedClangProcess(environment, commands, workingdir,
+										stdoutcollector, Collections.emptyList(), resourceusage, watchdog);
+							} finally {
+								stdoutcollector.close();
+							}
+							long compilationdurationnanos = System.nanoTime() - compilestartnanos;
+							CompilationDependencyInfo depinfo = new CompilationDependencyInfo(pchcontents[0]);
+							pchproperties.getFileLocation().accept(new FileLocationVisitor() {
+								//add the compiled header file as an include dependency,
+								//so it is added to the source files
+								@Override
+								public void visit(ExecutionFileLocation loc) {
+									depinfo.includes.add(loc.getPath());
+								}
+								//TODO handle local precompiled header
+							});
+							analyzeClangOutput(taskcontext, includedirpaths, stdoutcollector, depinfo, procresult,
+									pchdepfileoutpath, pchoutpath, pchcompilefilepath, null);
+							//the precompiled header states only store the diagnostics as text
+							depinfo.processOutput = depinfo
+									.getRenderedProcessOutput(taskcontext.getTaskWorkingDirectoryPath());
+							depinfo.diagnostics = null;
+							boolean timedout = watchdog != null && watchdog.isTimedOut();
+							if (timedout) {
+								depinfo.appendProcessOutput(watchdog.getHangDiagnostics());
+							}
+							CompilerInnerTaskResult headerprecompileresult;
+							if (procresult == 0 && !timedout) {
+								headerprecompileresult = CompilerInnerTaskResult.successful(entrypch);
+
+								headerres = Optional.of(new PrecompiledHeaderDependencyInfo(depinfo));
+							} else {
+								headerprecompileresult = CompilerInnerTaskResult.failed(entrypch);
+								headerprecompileresult.timedOut = timedout;
+
+								headerres = Optional.empty();
+							}
+							headerprecompileresult.dependencyInfo = depinfo;
+							headerprecompileresult.setProcessMeasurements(compilationdurationnanos, resourceusage,
+									1);
+							coordinator.headerPrecompiled(headerprecompileresult,
+									LocalFileProvider.getPathKeyStatic(pchcompilesakerfilepath),
+									taskcontext.getExecutionContext()
+											.getContentDescriptor(localfp.getPathKey(pchcompilesakerfilepath)));
+							if (toolchainkey != null && headerres.isPresent()) {
+								coordinator.publishPrecompiledHeader(toolchainkey,
+										new PrecompiledHeaderDistribution.FileSource(pchoutpath, depinfo.includes));
+								published = true;
+							}
+						} finally {
+							if (toolchainkey != null && !published) {
+								//let the other machines compile it themselves
+								coordinator.precompiledHeaderFailed(toolchainkey);
+							}
+						}
+					}
+				}
+				precompiledHeaderCreationResults.put(entrypch, headerres);
+				readyPrecompiledHeaders.add(pchoutfilename);
+				return headerres;
 			}
+		}
+
+		private CompilerInnerTaskResult compile(TaskContext taskcontext, FileCompilationConfiguration compilationentry)
+				throws Exception {
 			FileCompilationProperties compilationentryproperties = compilationentry.getProperties();
 			SakerPath outputdirpath = outputDirPath;
 			ContentDescriptor[] contents = { null };
@@ -1048,111 +2791,38 @@ public class ClangCompileWorkerTaskFactory
 
 			String pchoutfilename = compilationentry.getPrecompiledHeaderOutFileName();
 			Path pchoutpath = null;
-			String pchname = null;
 			PrecompiledHeaderDependencyInfo pchdepinfo = null;
 			if (pchoutfilename != null) {
-				FileCompilationProperties pchproperties = compilationentryproperties
-						.withFileLocation(compilationconfiguration.getPrecompiledHeaderFileLocation());
-				SakerPath pchoutdir = getPrecompiledHeaderOutputDirectoryPath(outputdirpath);
-				pchname = ClangUtils.getFileName(pchproperties.getFileLocation());
-				pchoutpath = executioncontext.toMirrorPath(pchoutdir.resolve(pchoutfilename + ".pch"));
-
-				localfp.createDirectories(pchoutpath.getParent());
-
-				FileCompilationConfiguration entrypch = new FileCompilationConfiguration(pchoutfilename, pchproperties);
-				Optional<PrecompiledHeaderDependencyInfo> headerres = precompiledHeaderCreationResults.get(entrypch);
-				if (headerres == null) {
-					synchronized (precompiledHeaderCreationLocks.computeIfAbsent(entrypch,
-							Functionals.objectComputer())) {
-						headerres = precompiledHeaderCreationResults.get(entrypch);
-						if (headerres == null) {
-							ContentDescriptor[] pchcontents = { null };
-							Path pchcompilefilepath = getCompileFilePath(pchproperties, environment, taskutilities,
-									pchcontents);
-
-							NavigableMap<SakerPath, PrecompiledHeaderState> precompiledheaderstates = precompiledHeaderStatesLazySupplier
-									.get();
-							SakerPath pchcompilesakerfilepath = SakerPath.valueOf(pchcompilefilepath);
-							PrecompiledHeaderState prevheaderstate = ObjectUtils.getMapValue(precompiledheaderstates,
-									pchcompilesakerfilepath);
-							if (isPrecompiledHeaderUpToDate(taskcontext, prevheaderstate, pchcontents[0],
-									pchcompilefilepath, pchproperties)) {
-								headerres = Optional
-										.of(new PrecompiledHeaderDependencyInfo(prevheaderstate.getIncludes()));
-							} else {
-								Path pchdepfileoutpath = executioncontext
-										.toMirrorPath(outputdirpath.resolve(outputdepfilename));
-								List<String> commands = new ArrayList<>();
-								commands.add(executable);
-								//compile only
-								commands.add("-c");
-								ClangUtils.evaluateSimpleParameters(commands, pchproperties.getSimpleParameters(),
-										sdks);
-								addLanguageHeaderCommandLineOption(pchproperties.getLanguage(), commands);
-								commands.add(pchcompilefilepath.toString());
-								commands.add("-o");
-								commands.add(pchoutpath.toString());
-								addIncludeCommands(commands, includedirpaths);
-								addForceIncludeCommands(commands, forceincludepaths);
-								addMacroDefinitionCommands(commands, pchproperties.getMacroDefinitions());
-								// -MMD			Write a depfile containing user headers
-								// -MD			Write a depfile containing user and system headers
-								//use -MMD as we're not interested in system headers
-								commands.add("-MMD");
-								// -MF <file>	Write depfile output from -MMD, -MD, -MM, or -M to <file>
-								commands.add("-MF");
-								commands.add(pchdepfileoutpath.toString());
-
-								CollectingProcessIOConsumer stdoutcollector = new CollectingProcessIOConsumer();
-								//use the output parent path as the working directory
-								SakerPath workingdir = SakerPath.valueOf(pchoutpath.getParent());
-								int procresult = ClangUtils.runClangProcess(environment, commands, workingdir,
-										stdoutcollector, null, true);
-								CompilationDependencyInfo depinfo = new CompilationDependencyInfo(pchcontents[0]);
-								pchproperties.getFileLocation().accept(new FileLocationVisitor() {
-									//add the compiled header file as an include dependency, so it is added to the source files
-									@Override
-									public void visit(ExecutionFileLocation loc) {
-										depinfo.includes.add(loc.getPath());
-									}
-									//TODO handle local precompiled header
-								});
-								analyzeClangOutput(taskcontext, includedirpaths, stdoutcollector.getOutputBytes(),
-										depinfo, procresult, pchdepfileoutpath, pchoutpath, pchcompilefilepath, null);
-								CompilerInnerTaskResult headerprecompileresult;
-								if (procresult == 0) {
-									headerprecompileresult = CompilerInnerTaskResult.successful(entrypch);
-
-									headerres = Optional.of(new PrecompiledHeaderDependencyInfo(depinfo));
-								} else {
-									headerprecompileresult = CompilerInnerTaskResult.failed(entrypch);
-
-									headerres = Optional.empty();
-								}
-								headerprecompileresult.dependencyInfo = depinfo;
-								coordinator.headerPrecompiled(headerprecompileresult,
-										LocalFileProvider.getPathKeyStatic(pchcompilesakerfilepath),
-										taskcontext.getExecutionContext()
-												.getContentDescriptor(localfp.getPathKey(pchcompilesakerfilepath)));
-							}
-							precompiledHeaderCreationResults.put(entrypch, headerres);
-							//clear the force include paths as they are part of the precompiled header
-							//and they shouldn't be included in the source files
-							forceincludepaths = Collections.emptyList();
-						}
-					}
-				}
-				if (!headerres.isPresent()) {
+				pchoutpath = executioncontext.toMirrorPath(
+						getPrecompiledHeaderOutputDirectoryPath(outputdirpath).resolve(pchoutfilename + ".pch"));
+				Optional<PrecompiledHeaderDependencyInfo> headerres = getPrecompiledHeader(taskcontext,
+						compilationentry);
+				if (headerres.isPresent()) {
+					pchdepinfo = headerres.get();
+					//clear the force include paths as they are part of the precompiled header
+					//and they shouldn't be included in the source files
+					forceincludepaths = Collections.emptyList();
+				} else if (isAutoPrecompiledHeader(compilationconfiguration.getPrecompiledHeaderFileLocation())) {
+					//the synthesized header failed to compile.
+					//compile without it, so the errors are reported for the source file
+					pchoutpath = null;
+				} else {
+					String pchname = ClangUtils
+							.getFileName(compilationconfiguration.getPrecompiledHeaderFileLocation());
 					//TODO reify exception
 					throw new IOException("Failed to compile required precompiled header. (" + pchname + ")");
 				}
-				pchdepinfo = headerres.get();
 			}
 
+			//the time trace is only generated when the file is actually compiled
+			CompilationObjectCache objectcache = timeTrace ? null : CompilationObjectCache.get(environment);
+
 			List<String> commands = new ArrayList<>();
 			commands.add(executable);
 			//compile only
 			commands.add("-c");
+			addDiagnosticsFormatCommands(commands);
+			addTimeTraceCommands(commands);
 			ClangUtils.evaluateSimpleParameters(commands, compilationentryproperties.getSimpleParameters(), sdks);
 			addLanguageCommandLineOption(compilationentryproperties.getLanguage(), commands);
 			commands.add(compilefilepath.toString());
@@ -1163,25 +2833,90 @@ public class ClangCompileWorkerTaskFactory
 			addMacroDefinitionCommands(commands, compilationentryproperties.getMacroDefinitions());
 			// -MMD			Write a depfile containing user headers
 			// -MD			Write a depfile containing user and system headers
-			//use -MMD as we're not interested in system headers
-			commands.add("-MMD");
+			//use -MMD as we're not interested in system headers, unless the object file is cached.
+			//the cache is shared between build directories, so the updates of the system headers must be detected
+			commands.add(objectcache == null ? "-MMD" : "-MD");
 			// -MF <file>	Write depfile output from -MMD, -MD, -MM, or -M to <file>
 			commands.add("-MF");
 			commands.add(depfileoutpath.toString());
 			if (pchoutpath != null) {
 				commands.add("-include-pch");
 				commands.add(pchoutpath.toString());
+				if (pchdepinfo.fetched) {
+					//the modification times of the input files differ from the ones recorded in the header
+					commands.add("-Xclang");
+					commands.add("-fno-validate-pch");
+				}
+			}
+
+			String cachemanifestkey = null;
+			if (objectcache != null) {
+				cachemanifestkey = objectcache.getManifestKey(sdkDescriptions, commands, contents[0]);
+				if (cachemanifestkey != null) {
+					//check the includes of the previous compilation as well, in case the cache manifest was evicted
+					NavigableSet<SakerPath> previncludes = coordinator
+							.getPreviousIncludes(compilationentry.getOutFileName());
+					CachedCompilation cached = objectcache.lookup(cachemanifestkey,
+							previncludes == null ? null : Collections.singleton(previncludes),
+							includepath -> getIncludeContentHash(taskutilities, includepath), objoutpath);
+					if (cached != null) {
+						CompilationDependencyInfo depinfo = new CompilationDependencyInfo(contents[0]);
+						depinfo.includes.addAll(cached.getIncludes());
+						ByteArrayRegion cachedoutput = cached.getProcessOutput();
+						if (!cachedoutput.isEmpty()) {
+							//the output is rewritten for this task the same way as the output of a compilation
+							try (SpillingProcessIOConsumer outputcollector = new SpillingProcessIOConsumer(
+									SpillingProcessIOConsumer.DEFAULT_MEMORY_LIMIT, null, null)) {
+								outputcollector.handleOutput(ByteBuffer.wrap(cachedoutput.getArray(),
+										cachedoutput.getOffset(), cachedoutput.getLength()));
+								outputcollector.close();
+								scanClangOutput(taskcontext, includedirpaths, outputcollector, depinfo,
+										compilefilepath);
+							}
+						}
+
+						ProviderHolderPathKey objoutpathkey = localfp.getPathKey(objoutpath);
+						taskutilities.addSynchronizeInvalidatedProviderPathFileToDirectory(outputDir, objoutpathkey,
+								outputobjectfilename);
+						CompilerInnerTaskResult result = CompilerInnerTaskResult.successful(compilationentry);
+						result.outputObjectName = outputobjectfilename;
+						result.compilationDurationNanos = cached.getCompilationDurationNanos();
+						result.dependencyInfo = depinfo;
+						return result;
+					}
+				}
 			}
 
-			CollectingProcessIOConsumer stdoutcollector = new CollectingProcessIOConsumer();
 			//use the output parent path as the working directory
 			SakerPath workingdir = SakerPath.valueOf(objoutpath.getParent());
-			int procresult = ClangUtils.runClangProcess(environment, commands, workingdir, stdoutcollector, null, true);
+			List<String> processcommands = commands;
+			if (DriverExpansionCache.isEnabled(environment)) {
+				//invoke the frontend directly instead of the driver if possible
+				List<String> frontendcommands = driverExpansionCache.getFrontendCommands(environment, commands,
+						workingdir, compilefilepath.toString(), objoutpath.toString(), depfileoutpath.toString());
+				if (frontendcommands != null) {
+					processcommands = frontendcommands;
+				}
+			}
+			SpillingProcessIOConsumer stdoutcollector = createProcessOutputConsumer(executioncontext.toMirrorPath(
+					getProcessOutputSpillPath(outputdirpath, compilationentry.getOutFileName())));
+			ProcessResourceUsage resourceusage = new ProcessResourceUsage();
+			ProcessWatchdog watchdog = ProcessWatchdog.create(environment, ENVIRONMENT_PARAMETER_COMPILE_TIMEOUT, 1);
+			long compilestartnanos = System.nanoTime();
+			int procresult;
+			try {
+				procresult = runBudgetedClangProcess(environment, processcommands, workingdir, stdoutcollector,
+						Collections.singletonList(compilationentry.getOutFileName()), resourceusage, watchdog);
+			} finally {
+				stdoutcollector.close();
+			}
+			long compilationdurationnanos = System.nanoTime() - compilestartnanos;
 			CompilationDependencyInfo depinfo = new CompilationDependencyInfo(contents[0]);
+			if (cachemanifestkey != null) {
+				depinfo.localIncludes = new TreeSet<>();
+			}
 
-			ByteArrayRegion stdoutputbytes = stdoutcollector.getOutputBytes();
-
-			analyzeClangOutput(taskcontext, includedirpaths, stdoutputbytes, depinfo, procresult, depfileoutpath,
+			analyzeClangOutput(taskcontext, includedirpaths, stdoutcollector, depinfo, procresult, depfileoutpath,
 					objoutpath, compilefilepath, pchoutpath);
 
 			if (pchdepinfo != null) {
@@ -1189,11 +2924,34 @@ public class ClangCompileWorkerTaskFactory
 				depinfo.includes.addAll(pchdepinfo.includes);
 			}
 
+			boolean timedout = watchdog != null && watchdog.isTimedOut();
+			if (timedout) {
+				//keep the partial output, and add the state of the process before it was terminated
+				depinfo.appendProcessOutput(watchdog.getHangDiagnostics());
+			}
+
 			CompilerInnerTaskResult result;
-			if (procresult != 0) {
+			if (procresult != 0 || timedout) {
 				result = CompilerInnerTaskResult.failed(compilationentry);
+				result.timedOut = timedout;
 				RMIVariables.invokeRemoteMethodAsyncOrLocal(coordinator, WorkerTaskCoordinator.METHOD_SET_ABORTED);
 			} else {
+				//the truncated outputs are not cached, as the spilled part is not stored
+				if (cachemanifestkey != null && depinfo.failedIncludes.isEmpty() && stdoutcollector.isComplete()) {
+					NavigableMap<SakerPath, byte[]> includehashes = new TreeMap<>();
+					for (SakerPath includepath : depinfo.includes) {
+						byte[] hash = getIncludeContentHash(taskutilities, includepath);
+						if (hash == null) {
+							includehashes = null;
+							break;
+						}
+						includehashes.put(includepath, hash);
+					}
+					if (includehashes != null) {
+						objectcache.store(cachemanifestkey, includehashes, depinfo.localIncludes, objoutpath,
+								stdoutcollector.getOutputBytes(), compilationdurationnanos);
+					}
+				}
 				ProviderHolderPathKey objoutpathkey = localfp.getPathKey(objoutpath);
 				taskutilities.addSynchronizeInvalidatedProviderPathFileToDirectory(outputDir, objoutpathkey,
 						outputobjectfilename);
@@ -1201,39 +2959,84 @@ public class ClangCompileWorkerTaskFactory
 			}
 
 			result.outputObjectName = outputobjectfilename;
+			result.setProcessMeasurements(compilationdurationnanos, resourceusage, 1);
 			result.dependencyInfo = depinfo;
+			if (timeTrace) {
+				//clang names the trace after the object file
+				result.timeTrace = collectTimeTrace(executioncontext, objoutpath
+						.resolveSibling(getFileStem(objoutpath.getFileName().toString()) + TIME_TRACE_FILE_EXTENSION));
+			}
 
 			return result;
 		}
 
-		private static int getPathEndIndexFromInFileIncludedFromLine(String line) {
-			//get the path from a line that starts with "In file included from ".
-			// e.g. In file included from main.cpp:1:
-			int colonidx = line.indexOf(':', 22);
-			if (colonidx < 0) {
-				return -1;
+		/**
+		 * Runs a clang process after reserving its predicted memory usage from the memory budget of the build machine,
+		 * if enabled.
+		 * <p>
+		 * The process is destroyed if the compilation is aborted, in which case {@link CancellationException} is
+		 * thrown.
+		 *
+		 * @param outfilenames
+		 *            The out file names of the compiled files, used to predict the memory usage.
+		 * @param watchdog
+		 *            The watchdog that limits the running time of the process, or <code>null</code>.
+		 */
+		private int runBudgetedClangProcess(SakerEnvironment environment, List<String> commands,
+				SakerPath workingdir, ProcessIOConsumer stdoutconsumer, Collection<String> outfilenames,
+				ProcessResourceUsage usage, ProcessWatchdog watchdog) throws IOException, InterruptedException {
+			CompilationMemoryBudget memorybudget = CompilationMemoryBudget.get(environment);
+			if (memorybudget == null) {
+				return ClangUtils.runClangProcess(environment, commands, workingdir, stdoutconsumer, null, true,
+						usage, processRegistry, watchdog);
 			}
-			if (colonidx == 23) {
-				//possibly 
-				//In file included from c:/windows/path.cpp:1:
-				int ncolonidx = line.indexOf(':', 24);
-				if (ncolonidx < 0) {
-					return colonidx;
+			long previouspeak = 0;
+			for (String outfilename : outfilenames) {
+				previouspeak = Math.max(previouspeak, coordinator.getPreviousPeakMemory(outfilename));
+			}
+			long reservation = memorybudget
+					.acquire(CompilationMemoryBudget.getMemoryEstimate(environment, previouspeak));
+			try {
+				return ClangUtils.runClangProcess(environment, commands, workingdir, stdoutconsumer, null, true,
+						usage, processRegistry, watchdog);
+			} finally {
+				memorybudget.release(reservation);
+			}
+		}
+
+		private byte[] getIncludeContentHash(TaskExecutionUtilities taskutilities, SakerPath path) {
+			Optional<byte[]> result = includeContentHashes.get(path);
+			if (result == null) {
+				//use the contents of the mirrored file, as that is cached, and the include directories are
+				//mirrored anyway
+				byte[] hash;
+				try {
+					MirroredFileContents mirrored = mirrorHandler.mirrorFile(taskutilities, path);
+					hash = CompilationObjectCache.hashContents(mirrored.getContents());
+				} catch (FileMirroringUnavailableException | IOException e) {
+					//the file doesn't exist or not mirrorable
+					hash = null;
 				}
-				colonidx = ncolonidx;
+				result = Optional.ofNullable(hash);
+				includeContentHashes.putIfAbsent(path, result);
 			}
-			return colonidx;
+			return result.orElse(null);
+		}
+
+		private static SpillingProcessIOConsumer createProcessOutputConsumer(Path spillpath) throws IOException {
+			//the output that doesn't fit in memory is written to the spill file
+			return new SpillingProcessIOConsumer(SpillingProcessIOConsumer.DEFAULT_MEMORY_LIMIT, spillpath, null);
 		}
 
-		private static void analyzeClangOutput(TaskContext taskcontext, List<Path> includedirpaths,
-				ByteArrayRegion stdoutputbytes, CompilationDependencyInfo depinfo, int procresult, Path depfileoutpath,
+		private void analyzeClangOutput(TaskContext taskcontext, List<Path> includedirpaths,
+				SpillingProcessIOConsumer stdoutcollector, CompilationDependencyInfo depinfo, int procresult, Path depfileoutpath,
 				Path outputpath, Path compilefilepath, Path pchpath) throws IOException {
-			NavigableSet<SakerPath> failedincludes = depinfo.failedIncludes;
 			NavigableSet<SakerPath> includes = depinfo.includes;
+			NavigableSet<String> localincludes = depinfo.localIncludes;
 			ExecutionContext executioncontext = taskcontext.getExecutionContext();
 
 			boolean includeerror = false;
-			if (stdoutputbytes.isEmpty()) {
+			if (stdoutcollector.isEmpty()) {
 				if (procresult != 0) {
 					depinfo.processOutput = ByteArrayRegion.wrap(("error: clang exited with error code: " + procresult
 							+ " (0x" + Integer.toHexString(procresult) + ")").getBytes(StandardCharsets.UTF_8));
@@ -1242,145 +3045,43 @@ public class ClangCompileWorkerTaskFactory
 					return;
 				}
 			} else {
-				Matcher errmatcher = null;
-				try (UnsyncByteArrayOutputStream diagbaos = new UnsyncByteArrayOutputStream(
-						stdoutputbytes.getLength())) {
-					try (DataInputUnsyncByteArrayInputStream reader = new DataInputUnsyncByteArrayInputStream(
-							stdoutputbytes)) {
-						for (String line; (line = reader.readLine()) != null;) {
-							if (line.isEmpty()) {
-								continue;
-							}
-							if (errmatcher == null) {
-								errmatcher = CLANG_OUTPUT_DIAGNOSTIC_PATTERN.matcher(line);
-							} else {
-								errmatcher.reset(line);
-							}
-							if (line.startsWith("In file included from ")) {
-								int pathendidx = getPathEndIndexFromInFileIncludedFromLine(line);
-								if (pathendidx > 22) {
-									SakerPath wd = taskcontext.getTaskWorkingDirectoryPath();
-									String file = line.substring(22, pathendidx);
-									try {
-										Path diagpath = Paths.get(file);
-										SakerPath execpath = executioncontext.toUnmirrorPath(diagpath);
-										if (execpath != null) {
-											if (!compilefilepath.equals(diagpath)) {
-												includes.add(execpath);
-											}
-											if (execpath.startsWith(wd)) {
-												file = wd.relativize(execpath).toString();
-											} else {
-												file = execpath.toString();
-											}
-										}
-									} catch (Exception e) {
-										logIncludePathParseFailure(file, e);
-									}
-									diagbaos.write(("In file included from " + file + line.substring(pathendidx) + "\n")
-											.getBytes(StandardCharsets.UTF_8));
-									continue;
-								}
-							}
-							if (errmatcher.matches()) {
-								String file = errmatcher.group(CLANG_OUTPUT_DIAGNOSTIC_GROUP_FILE);
-								String msg = errmatcher.group(CLANG_OUTPUT_DIAGNOSTIC_GROUP_MESSAGE);
-								SakerPath wd = taskcontext.getTaskWorkingDirectoryPath();
-								try {
-									Path diagpath = Paths.get(file);
-									SakerPath execpath = executioncontext.toUnmirrorPath(diagpath);
-									if (execpath != null) {
-										if (execpath.startsWith(wd)) {
-											file = wd.relativize(execpath).toString();
-										} else {
-											file = execpath.toString();
-										}
-									}
-								} catch (Exception e) {
-									logDiagnosticPathParseFailure(file, e);
-								}
-
-								//check not found header files
-								//in format
-								//     main.cpp:5:10: fatal error: 'second/nonexist.h' file not found
-								//     main.cpp:5:10: fatal error: 'second/nonexist.h' file not found [category, id, others...]
-								//these errors may be prefixed by one or multiple lines of the following:
-								//     In file included from main.cpp:1:
-								//     In file included from ./first.h:1:
-								//     ./second.h:1:10: fatal error: 'third.h' file not found
-								if (!msg.isEmpty() && msg.charAt(0) == '\'') {
-									int nfidx = msg.indexOf("' file not found");
-									if (nfidx > 0) {
-										includeerror = true;
-										String notfoundfilepathstr = msg.substring(1, nfidx);
-										Path notfoundpath = Paths.get(notfoundfilepathstr);
-										if (notfoundpath.isAbsolute()) {
-											SakerPath unmirrored = executioncontext.toUnmirrorPath(notfoundpath);
-											if (unmirrored != null) {
-												if (failedincludes == null) {
-													failedincludes = new TreeSet<>();
-												}
-												failedincludes.add(unmirrored);
-											} else {
-												//TODO handle local missing include
-											}
-										} else {
-											for (Path includedirpath : includedirpaths) {
-												Path notfoundabspath = includedirpath.resolve(notfoundpath);
-												SakerPath unmirrored = executioncontext.toUnmirrorPath(notfoundabspath);
-												if (unmirrored != null) {
-													if (failedincludes == null) {
-														failedincludes = new TreeSet<>();
-													}
-													failedincludes.add(unmirrored);
-												} else {
-													//TODO handle local missing include
-												}
-											}
-										}
-									}
-								}
-
-								diagbaos.write(file.getBytes(StandardCharsets.UTF_8));
-								diagbaos.write(errmatcher.group(CLANG_OUTPUT_DIAGNOSTIC_GROUP_FILE_REMAINING)
-										.getBytes(StandardCharsets.UTF_8));
-							} else {
-								diagbaos.write(line.getBytes(StandardCharsets.UTF_8));
-							}
-							diagbaos.write('\n');
-						}
-					}
-					depinfo.processOutput = diagbaos.toByteArrayRegion();
-				}
+				includeerror = scanClangOutput(taskcontext, includedirpaths, stdoutcollector, depinfo,
+						compilefilepath);
 			}
 			if (!includeerror) {
 				//if there was an include error, clang doesn't create a dependency file
 				// in that case don't attempt to read and parse it, as it may be a leftover from previous compilation
 				// and could contain incorrect dependency information
 				try {
-					List<Path> dependencypaths;
-					try (Stream<String> depfilelinestream = Files.lines(depfileoutpath)) {
-						dependencypaths = getDependencyFileDependencies(depfilelinestream.iterator());
-					}
-					dependencypaths.remove(outputpath);
-					dependencypaths.remove(compilefilepath);
-					if (pchpath != null) {
-						dependencypaths.remove(pchpath);
+					//exclude the output, source and precompiled header files from the includes
+					Set<SakerPath> excludedpaths = new HashSet<>();
+					for (Path excludepath : new Path[] { outputpath, compilefilepath, pchpath }) {
+						if (excludepath == null) {
+							continue;
+						}
+						SakerPath unmirrored = unmirrorResolver.unmirror(executioncontext, excludepath);
+						if (unmirrored != null) {
+							excludedpaths.add(unmirrored);
+						}
 					}
-					for (Path reallocalpath : dependencypaths) {
+					new DependencyFileParser().parse(depfileoutpath, pathstr -> {
 						try {
-							SakerPath unmirrored = executioncontext.toUnmirrorPath(reallocalpath);
+							SakerPath unmirrored = unmirrorResolver.unmirror(executioncontext, pathstr);
 							if (unmirrored != null) {
-								includes.add(unmirrored);
+								if (!excludedpaths.contains(unmirrored)) {
+									includes.add(unmirrored);
+								}
+							} else if (localincludes != null) {
+								//the working directory of the compilation is the parent of the output
+								localincludes.add(outputpath.resolveSibling(pathstr).normalize().toString());
 							} else {
 								//TODO handle non mirrored included path
 							}
-						} catch (InvalidPathException e) {
-							SakerLog.error().verbose().println(
-									"Failed to determine included file path for: " + reallocalpath + " (" + e + ")");
-							continue;
+						} catch (IllegalArgumentException e) {
+							SakerLog.error().verbose()
+									.println("Failed to determine included file path for: " + pathstr + " (" + e + ")");
 						}
-					}
+					});
 				} catch (IOException e) {
 					//the dependency file may not exist if the preprocessing failed
 					//we can ignore this exception
@@ -1388,6 +3089,201 @@ public class ClangCompileWorkerTaskFactory
 			}
 		}
 
+		/**
+		 * Scans the output of clang for the diagnostics and the included files, and rewrites the paths in it to be
+		 * relative to the working directory of the task.
+		 *
+		 * @return <code>true</code> if an included file was not found.
+		 */
+		private boolean scanClangOutput(TaskContext taskcontext, List<Path> includedirpaths,
+				SpillingProcessIOConsumer stdoutcollector, CompilationDependencyInfo depinfo, Path compilefilepath)
+				throws IOException {
+			NavigableSet<SakerPath> failedincludes = depinfo.failedIncludes;
+			NavigableSet<SakerPath> includes = depinfo.includes;
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+
+			SakerPath wd = taskcontext.getTaskWorkingDirectoryPath();
+			SakerPath compilefileexecpath = unmirrorResolver.unmirror(executioncontext, compilefilepath);
+			boolean[] includeerrorflag = { false };
+			//the output to scan as text, or null to scan the whole output as a stream
+			ByteArrayRegion textoutput = null;
+			//the SARIF document is only parsed if it is all in memory, the output is handled as text otherwise
+			if (DIAGNOSTICS_FORMAT_SARIF.equals(diagnosticsFormat) && stdoutcollector.isComplete()) {
+				ByteArrayRegion stdoutputbytes = stdoutcollector.getOutputBytes();
+				byte[] outputarray = stdoutputbytes.getArray();
+				int outputoffset = stdoutputbytes.getOffset();
+				int outputend = outputoffset + stdoutputbytes.getLength();
+				int docstart = SarifDiagnosticsParser.getDocumentStart(outputarray, outputoffset,
+						stdoutputbytes.getLength());
+				if (docstart >= 0) {
+					//the document is printed on a single line
+					int docend = docstart;
+					while (docend < outputend && outputarray[docend] != '\n') {
+						++docend;
+					}
+					List<CompilerDiagnostic> diagnostics = new ArrayList<>();
+					try {
+						SarifDiagnosticsParser.parse(outputarray, docstart, docend - docstart,
+								(uri, line, column, level, message) -> {
+									diagnostics.add(createSarifDiagnostic(executioncontext, uri, line, column,
+											level, message));
+									if (isFileNotFoundMessage(message)) {
+										includeerrorflag[0] = true;
+										addFailedIncludes(executioncontext, includedirpaths,
+												message.substring(1, message.indexOf("' file not found")),
+												failedincludes);
+									}
+								});
+						depinfo.diagnostics = diagnostics;
+						//the rest of the output is handled as text
+						UnsyncByteArrayOutputStream textbaos = new UnsyncByteArrayOutputStream(
+								stdoutputbytes.getLength() - (docend - docstart));
+						textbaos.write(outputarray, outputoffset, docstart - outputoffset);
+						textbaos.write(outputarray, docend, outputend - docend);
+						textoutput = textbaos.toByteArrayRegion();
+					} catch (IllegalArgumentException e) {
+						SakerLog.error().verbose().println("Failed to parse SARIF diagnostics output: " + e);
+					}
+				}
+			}
+			try (UnsyncByteArrayOutputStream diagbaos = new UnsyncByteArrayOutputStream()) {
+				ClangDiagnosticScanner.Handler scanhandler = new ClangDiagnosticScanner.Handler() {
+					@Override
+					public String handleIncludedFromPath(String file) {
+						try {
+							SakerPath execpath = unmirrorResolver.unmirror(executioncontext, file);
+							if (execpath != null) {
+								if (!execpath.equals(compilefileexecpath)) {
+									includes.add(execpath);
+								}
+								return toDiagnosticPathString(wd, execpath);
+							}
+						} catch (Exception e) {
+							logIncludePathParseFailure(file, e);
+						}
+						return null;
+					}
+
+					@Override
+					public String handleDiagnosticPath(String file) {
+						try {
+							SakerPath execpath = unmirrorResolver.unmirror(executioncontext, file);
+							if (execpath != null) {
+								return toDiagnosticPathString(wd, execpath);
+							}
+						} catch (Exception e) {
+							logDiagnosticPathParseFailure(file, e);
+						}
+						return null;
+					}
+
+					@Override
+					public void handleFileNotFound(String notfoundfilepathstr) {
+						//check not found header files
+						//in format
+						//     main.cpp:5:10: fatal error: 'second/nonexist.h' file not found
+						//     main.cpp:5:10: fatal error: 'second/nonexist.h' file not found [category, id, others...]
+						//these errors may be prefixed by one or multiple lines of the following:
+						//     In file included from main.cpp:1:
+						//     In file included from ./first.h:1:
+						//     ./second.h:1:10: fatal error: 'third.h' file not found
+						includeerrorflag[0] = true;
+						addFailedIncludes(executioncontext, includedirpaths, notfoundfilepathstr, failedincludes);
+					}
+				};
+				if (textoutput != null) {
+					ClangDiagnosticScanner.scan(textoutput, diagbaos, scanhandler);
+				} else {
+					//scan all of the output, but only keep a limited amount of it
+					long[] omittedlength = { 0 };
+					UnsyncByteArrayOutputStream linesbaos = new UnsyncByteArrayOutputStream();
+					stdoutcollector.readLines(lines -> {
+						ClangDiagnosticScanner.scan(lines, linesbaos, scanhandler);
+						if (diagbaos.size() < SpillingProcessIOConsumer.DEFAULT_MEMORY_LIMIT) {
+							diagbaos.write(linesbaos.toByteArrayRegion());
+						} else {
+							omittedlength[0] += linesbaos.size();
+						}
+						linesbaos.reset();
+					});
+					if (!stdoutcollector.isComplete()) {
+						Path spilledfile = stdoutcollector.getSpilledFile();
+						SakerPath spilledexecpath = spilledfile == null ? null
+								: unmirrorResolver.unmirror(executioncontext, spilledfile);
+						StringBuilder sb = new StringBuilder();
+						sb.append("note: compiler output is truncated, ");
+						sb.append(omittedlength[0]);
+						sb.append(" bytes omitted.");
+						if (spilledfile != null) {
+							sb.append(" Rest of the output: ");
+							sb.append(spilledexecpath == null ? spilledfile.toString()
+									: toDiagnosticPathString(wd, spilledexecpath));
+						}
+						sb.append('\n');
+						diagbaos.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+					}
+				}
+				depinfo.processOutput = diagbaos.toByteArrayRegion();
+			}
+			return includeerrorflag[0];
+		}
+
+		private void addFailedIncludes(ExecutionContext executioncontext, List<Path> includedirpaths,
+				String notfoundfilepathstr, NavigableSet<SakerPath> failedincludes) {
+			Path notfoundpath = Paths.get(notfoundfilepathstr);
+			if (notfoundpath.isAbsolute()) {
+				SakerPath unmirrored = unmirrorResolver.unmirror(executioncontext, notfoundpath);
+				if (unmirrored != null) {
+					failedincludes.add(unmirrored);
+				} else {
+					//TODO handle local missing include
+				}
+			} else {
+				for (Path includedirpath : includedirpaths) {
+					Path notfoundabspath = includedirpath.resolve(notfoundpath);
+					SakerPath unmirrored = unmirrorResolver.unmirror(executioncontext, notfoundabspath);
+					if (unmirrored != null) {
+						failedincludes.add(unmirrored);
+					} else {
+						//TODO handle local missing include
+					}
+				}
+			}
+		}
+
+		private static boolean isFileNotFoundMessage(String message) {
+			//in format
+			//     'second/nonexist.h' file not found
+			return message.length() > 1 && message.charAt(0) == '\'' && message.indexOf("' file not found") > 1;
+		}
+
+		private CompilerDiagnostic createSarifDiagnostic(ExecutionContext executioncontext, String uri, int line,
+				int column, String level, String message) {
+			if (uri == null) {
+				return new CompilerDiagnostic(null, null, line, column, level, message);
+			}
+			String localpath = uri;
+			try {
+				if (uri.startsWith("file:")) {
+					localpath = Paths.get(URI.create(uri)).toString();
+				}
+				SakerPath execpath = unmirrorResolver.unmirror(executioncontext, localpath);
+				if (execpath != null) {
+					return new CompilerDiagnostic(execpath, null, line, column, level, message);
+				}
+			} catch (IllegalArgumentException | FileSystemNotFoundException e) {
+				logDiagnosticPathParseFailure(uri, e);
+			}
+			return new CompilerDiagnostic(null, localpath, line, column, level, message);
+		}
+
+		private static String toDiagnosticPathString(SakerPath workingdir, SakerPath execpath) {
+			if (execpath.startsWith(workingdir)) {
+				return workingdir.relativize(execpath).toString();
+			}
+			return execpath.toString();
+		}
+
 		private static void logIncludePathParseFailure(String file, Exception e) {
 			SakerLog.error().verbose().println("Failed to parse clang include path: " + e + " for " + file);
 		}
@@ -1424,93 +3320,56 @@ public class ClangCompileWorkerTaskFactory
 			SakerLog.error().verbose().println("Failed to parse clang diagnostic path: " + e + " for " + file);
 		}
 
-		private static List<Path> getDependencyFileDependencies(Iterator<String> lineit) {
-			//expected format:
-//			/home/user/temp/build/saker.clang.compile/default/main.cpp.o: \
-//			  /home/user/temp/main.cpp /home/user/temp/main.h \
-//			  /home/user/temp/second\ header.h
-
-			List<Path> result = new ArrayList<>();
-			StringBuilder sb = new StringBuilder();
-			outer:
-			while (lineit.hasNext()) {
-				//trim preceeding whitespace
-				String l = lineit.next().trim();
-				sb.setLength(0);
-
-				int linelen = l.length();
-				for (int i = 0; i < linelen; i++) {
-					char c = l.charAt(i);
-					if (c == '\\') {
-						if (i + 1 == linelen) {
-							//go to next line
-							//the path string builder should be empty
-							continue outer;
-						}
-						char nc = l.charAt(i + 1);
-						if (nc == ' ') {
-							sb.append(' ');
-							++i;
-							continue;
-						}
-						sb.append('\\');
-						sb.append(nc);
-						++i;
-						//if clang is invoked in windows (e.g. Android NDK)
-						//then it can produce backslashes in regular paths
-						//e.g.
-						//c:\the\path\to\source.cpp: \
-						//    etc...
-
-						//so we continue instead of throwing an exception
-						continue;
-//						throw new IllegalArgumentException("Unrecognized escaped character in dependency file: " + nc
-//								+ " as 0x" + Integer.toHexString(nc) + " in line: " + l + " at index: " + i);
-					}
-					if (c == ' ') {
-						//next file is coming up
-						if (sb.length() > 0) {
-							result.add(Paths.get(sb.toString()));
-							sb.setLength(0);
-						}
-						continue;
-					}
-					if (c == ':') {
-						if (i + 1 == linelen) {
-							//: at the end of line. finish the path and continue
-							if (sb.length() > 0) {
-								result.add(Paths.get(sb.toString()));
-								sb.setLength(0);
-							}
-							//break line char iteration
-							break;
-						}
-						if (l.charAt(i + 1) == ' ') {
-							//: in the line, and next is a space
-							//finish the path and continue
-							if (sb.length() > 0) {
-								result.add(Paths.get(sb.toString()));
-								sb.setLength(0);
-							}
-							++i;
-							continue;
-						}
-						//: in the line, and has a valid char next.
-						sb.append(c);
-						continue;
+		private void addTimeTraceCommands(List<String> commands) {
+			if (timeTrace) {
+				commands.add("-ftime-trace");
+			}
+		}
+
+		/**
+		 * Reads the time trace file generated by clang, and deletes it, as only its summary is kept.
+		 *
+		 * @return The summary or <code>null</code> if the trace is not available.
+		 */
+		private TimeTraceSummary collectTimeTrace(ExecutionContext executioncontext, Path tracepath) {
+			byte[] tracebytes;
+			try {
+				tracebytes = Files.readAllBytes(tracepath);
+			} catch (IOException e) {
+				SakerLog.error().verbose().println("Failed to read clang time trace: " + tracepath + " (" + e + ")");
+				return null;
+			}
+			try {
+				Files.deleteIfExists(tracepath);
+			} catch (IOException e) {
+				//ignore, will be overwritten by the next compilation
+			}
+			TimeTraceSummary.Collector collector = new TimeTraceSummary.Collector(sourcepath -> {
+				try {
+					SakerPath execpath = unmirrorResolver.unmirror(executioncontext, sourcepath);
+					if (execpath != null) {
+						return execpath.toString();
 					}
-					sb.append(c);
+				} catch (Exception e) {
+					logIncludePathParseFailure(sourcepath, e);
 				}
-				//reached end of line without any signal to continue
-				//line probably didn't end with \
-				break;
+				return sourcepath;
+			});
+			try {
+				TimeTraceParser.parse(tracebytes, 0, tracebytes.length, collector);
+			} catch (IllegalArgumentException e) {
+				SakerLog.error().verbose().println("Failed to parse clang time trace: " + tracepath + " (" + e + ")");
+				return null;
 			}
-			//add the last path of the last line if present
-			if (sb.length() > 0) {
-				result.add(Paths.get(sb.toString()));
-				sb.setLength(0);
+			return collector.create();
+		}
+
+		private void addDiagnosticsFormatCommands(List<String> commands) {
+			if (DIAGNOSTICS_FORMAT_SARIF.equals(diagnosticsFormat)) {
+				commands.add("-fdiagnostics-format=sarif");
+				//clang warns that the format is unstable
+				commands.add("-Wno-sarif-format-unstable");
 			}
-			return result;
 		}
 
 		private static void addForceIncludeCommands(List<String> commands, List<Path> forceincludepaths) {
@@ -1602,13 +3461,9 @@ public class ClangCompileWorkerTaskFactory
 					if (TestFlag.ENABLED) {
 						TestFlag.metric().compiling(path, environment);
 					}
-					try {
-						MirroredFileContents mirrorres = mirrorHandler.mirrorFile(taskutilities, path);
-						compilefilepath[0] = mirrorres.getPath();
-						contents[0] = mirrorres.getContents();
-					} catch (FileMirroringUnavailableException | IOException e) {
-						throw ObjectUtils.sneakyThrow(e);
-					}
+					MirroredFileContents mirrorres = mirrorCompileFile(taskutilities, path);
+					compilefilepath[0] = mirrorres.getPath();
+					contents[0] = mirrorres.getContents();
 				}
 
 				@Override
@@ -1620,6 +3475,142 @@ public class ClangCompileWorkerTaskFactory
 			return compilefilepath[0];
 		}
 
+		private MirroredFileContents mirrorCompileFile(TaskExecutionUtilities taskutilities, SakerPath path) {
+			try {
+				MirroredFileContents mirrorres = mirrorHandler.mirrorFile(taskutilities, path);
+				Path mirrorparent = mirrorres.getPath().getParent();
+				SakerPath parentpath = path.getParent();
+				if (mirrorparent != null && parentpath != null) {
+					unmirrorResolver.addMirrorDirectory(mirrorparent, parentpath);
+				}
+				return mirrorres;
+			} catch (FileMirroringUnavailableException | IOException e) {
+				throw ObjectUtils.sneakyThrow(e);
+			}
+		}
+
+		/**
+		 * Computes the includes of the argument compilation entries using <code>clang-scan-deps</code>, before they are
+		 * compiled.
+		 * <p>
+		 * Called by the worker task before the inner tasks are started. The files are mirrored the same way as for the
+		 * compilation, so the inner tasks running on the same machine can reuse them.
+		 *
+		 * @return The includes of the successfully scanned entries mapped to their output file names.
+		 */
+		public Map<String, NavigableSet<SakerPath>> scanDependencies(TaskContext taskcontext,
+				Collection<FileCompilationConfiguration> compilationentries) throws Exception {
+			TaskExecutionUtilities taskutilities = taskcontext.getTaskUtilities();
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+			SakerEnvironment environment = executioncontext.getEnvironment();
+			NavigableMap<String, SDKReference> sdks = SDKSupportUtils.resolveSDKReferences(environment,
+					sdkDescriptions);
+			SDKReference clangsdk = SDKSupportUtils.requireSDK(sdks, ClangUtils.SDK_NAME_CLANG);
+			String executable = ClangUtils.getClangExecutable(clangsdk);
+
+			Path outputdirmirrorpath = executioncontext.toMirrorPath(outputDirPath);
+			LocalFileProvider.getInstance().createDirectories(outputdirmirrorpath);
+
+			List<ClangScanDeps.CompileCommand> compilecommands = new ArrayList<>();
+			//the output paths mapped to the out file names of the entries
+			Map<String, String> outputoutfilenames = new HashMap<>();
+			//the source paths mapped to the out file names, in case the rule targets are not the output paths
+			//null value if the same source file is compiled multiple times
+			Map<String, String> sourceoutfilenames = new HashMap<>();
+			for (FileCompilationConfiguration compilationentry : compilationentries) {
+				FileCompilationProperties properties = compilationentry.getProperties();
+				SakerPath[] sourcepath = { null };
+				properties.getFileLocation().accept(new FileLocationVisitor() {
+					@Override
+					public void visit(ExecutionFileLocation loc) {
+						sourcepath[0] = loc.getPath();
+					}
+
+					@Override
+					public void visit(LocalFileLocation loc) {
+						//not scanned
+					}
+				});
+				if (sourcepath[0] == null) {
+					continue;
+				}
+				Path compilefilepath = mirrorCompileFile(taskutilities, sourcepath[0]).getPath();
+				Path objoutpath = outputdirmirrorpath.resolve(compilationentry.getOutFileName() + ".o");
+
+				List<String> commands = new ArrayList<>();
+				commands.add(executable);
+				commands.add("-c");
+				ClangUtils.evaluateSimpleParameters(commands, properties.getSimpleParameters(), sdks);
+				addLanguageCommandLineOption(properties.getLanguage(), commands);
+				commands.add(compilefilepath.toString());
+				commands.add("-o");
+				commands.add(objoutpath.toString());
+				addIncludeCommands(commands,
+						getIncludePaths(taskutilities, environment, properties.getIncludeDirectories(), true, sdks));
+				addForceIncludeCommands(commands,
+						getIncludePaths(taskutilities, environment, properties.getForceInclude(), false, sdks));
+				FileLocation pchlocation = compilationentry.getPrecompiledHeaderFileLocation();
+				if (pchlocation != null) {
+					//the precompiled header is not available yet, include the header itself instead
+					Path[] pchpath = { null };
+					pchlocation.accept(new FileLocationVisitor() {
+						@Override
+						public void visit(ExecutionFileLocation loc) {
+							pchpath[0] = mirrorCompileFile(taskutilities, loc.getPath()).getPath();
+						}
+					});
+					addForceIncludeCommands(commands, Collections.singletonList(pchpath[0]));
+				}
+				addMacroDefinitionCommands(commands, properties.getMacroDefinitions());
+
+				compilecommands.add(new ClangScanDeps.CompileCommand(objoutpath.getParent().toString(), commands,
+						compilefilepath.toString(), objoutpath.toString()));
+				outputoutfilenames.put(objoutpath.toString(), compilationentry.getOutFileName());
+				if (sourceoutfilenames.containsKey(compilefilepath.toString())) {
+					sourceoutfilenames.put(compilefilepath.toString(), null);
+				} else {
+					sourceoutfilenames.put(compilefilepath.toString(), compilationentry.getOutFileName());
+				}
+			}
+			Map<String, NavigableSet<SakerPath>> result = new HashMap<>();
+			if (compilecommands.isEmpty()) {
+				return result;
+			}
+			Path dbpath = outputdirmirrorpath.resolve(SCAN_DEPS_COMPILATION_DATABASE_FILE_NAME);
+			ClangScanDeps.writeCompilationDatabase(dbpath, compilecommands);
+
+			ClangScanDeps.run(environment, ClangScanDeps.getScanDepsExecutable(executable), dbpath,
+					SakerPath.valueOf(outputdirmirrorpath),
+					outputdirmirrorpath.resolve(SCAN_DEPS_COMPILATION_DATABASE_FILE_NAME
+							+ PROCESS_OUTPUT_SPILL_FILE_EXTENSION),
+					paths -> {
+						String outfilename = outputoutfilenames.get(paths.get(0));
+						if (outfilename == null) {
+							if (paths.size() < 2) {
+								return;
+							}
+							outfilename = sourceoutfilenames.get(paths.get(1));
+							if (outfilename == null) {
+								return;
+							}
+						}
+						NavigableSet<SakerPath> includes = new TreeSet<>();
+						//the second path is the source file itself
+						for (int i = 2; i < paths.size(); i++) {
+							try {
+								SakerPath unmirrored = unmirrorResolver.unmirror(executioncontext, paths.get(i));
+								if (unmirrored != null) {
+									includes.add(unmirrored);
+								}
+							} catch (IllegalArgumentException e) {
+								logIncludePathParseFailure(paths.get(i), e);
+							}
+						}
+						result.put(outfilename, includes);
+					});
+			return result;
+		}
+
 		private List<Path> getIncludePaths(TaskExecutionUtilities taskutilities, SakerEnvironment environment,
 				Collection<CompilationPathOption> includeoptions, boolean directories,
 				Map<String, ? extends SDKReference> sdks) {
@@ -1649,6 +3640,7 @@ public class ClangCompileWorkerTaskFactory
 								Path incpath;
 								if (directories) {
 									incpath = mirrorHandler.mirrorDirectory(taskutilities, path);
+									unmirrorResolver.addMirrorDirectory(incpath, path);
 								} else {
 									//XXX handle mirrored force include contents?
 									incpath = mirrorHandler.mirrorFile(taskutilities, path).getPath();
@@ -1707,6 +3699,8 @@ public class ClangCompileWorkerTaskFactory
 			out.writeSerializedObject(task.sdkDescriptions);
 			out.writeSerializedObject(task.environmentSelector);
 			out.writeRemoteObject(task.outputDir);
+			out.writeObject(task.diagnosticsFormat);
+			out.writeBoolean(task.timeTrace);
 		}
 
 		@SuppressWarnings("unchecked")
@@ -1718,6 +3712,8 @@ public class ClangCompileWorkerTaskFactory
 			task.sdkDescriptions = (NavigableMap<String, SDKDescription>) in.readObject();
 			task.environmentSelector = (TaskExecutionEnvironmentSelector) in.readObject();
 			task.outputDir = (SakerDirectory) in.readObject();
+			task.diagnosticsFormat = (String) in.readObject();
+			task.timeTrace = in.readBoolean();
 		}
 
 		@Override
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.nio.charset.StandardCharsets;
+
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+
+/**
+ * Byte level scanner for the diagnostic output of clang.
+ * <p>
+ * The scanner recognizes the following line formats:
+ *
+ * <pre>
+ * In file included from main.cpp:1:
+ * main.cpp:5:10: fatal error: 'second/nonexist.h' file not found
+ * </pre>
+ *
+ * The paths in these lines are passed to the {@link Handler} which may rewrite them. The rest of the output is copied
+ * to the result as is, without decoding it. Empty lines are omitted.
+ * <p>
+ * The paths may contain colons, e.g. drive letters on Windows. The end of a path is determined by the line and column
+ * numbers that follow it.
+ */
+final class ClangDiagnosticScanner {
+	private static final byte[] IN_FILE_INCLUDED_FROM_PREFIX = "In file included from "
+			.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] FILE_NOT_FOUND_SUFFIX = "' file not found".getBytes(StandardCharsets.UTF_8);
+
+	public interface Handler {
+		/**
+		 * Handles the path of an <code>In file included from</code> line.
+		 *
+		 * @param path
+		 *            The path.
+		 * @return The path to write to the output in place of the argument, or <code>null</code> to keep it.
+		 */
+		public String handleIncludedFromPath(String path);
+
+		/**
+		 * Handles the path of a diagnostic line.
+		 *
+		 * @param path
+		 *            The path.
+		 * @return The path to write to the output in place of the argument, or <code>null</code> to keep it.
+		 */
+		public String handleDiagnosticPath(String path);
+
+		/**
+		 * Handles a not found include in the <code>'&lt;path&gt;' file not found</code> diagnostic message.
+		 *
+		 * @param includepath
+		 *            The include path as it was specified in the source file.
+		 */
+		public void handleFileNotFound(String includepath);
+	}
+
+	private ClangDiagnosticScanner() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void scan(ByteArrayRegion output, UnsyncByteArrayOutputStream result, Handler handler) {
+		byte[] bytes = output.getArray();
+		int end = output.getOffset() + output.getLength();
+		int linestart = output.getOffset();
+		while (linestart < end) {
+			int lineend = indexOf(bytes, (byte) '\n', linestart, end);
+			int nextlinestart = lineend + 1;
+			if (lineend > linestart && bytes[lineend - 1] == '\r') {
+				--lineend;
+			}
+			if (lineend > linestart) {
+				scanLine(bytes, linestart, lineend, result, handler);
+			}
+			linestart = nextlinestart;
+		}
+	}
+
+	private static void scanLine(byte[] bytes, int start, int end, UnsyncByteArrayOutputStream result,
+			Handler handler) {
+		if (regionStartsWith(bytes, start, end, IN_FILE_INCLUDED_FROM_PREFIX)) {
+			int pathstart = start + IN_FILE_INCLUDED_FROM_PREFIX.length;
+			int pathend = getInFileIncludedFromPathEnd(bytes, pathstart, end);
+			if (pathend > pathstart) {
+				result.write(bytes, start, pathstart - start);
+				String rewritten = handler.handleIncludedFromPath(toString(bytes, pathstart, pathend));
+				writePath(bytes, pathstart, pathend, rewritten, result);
+				result.write(bytes, pathend, end - pathend);
+				result.write('\n');
+				return;
+			}
+		}
+		int pathend = getDiagnosticPathEnd(bytes, start, end);
+		if (pathend < 0) {
+			result.write(bytes, start, end - start);
+			result.write('\n');
+			return;
+		}
+		String path = toString(bytes, start, pathend);
+		String rewritten = handler.handleDiagnosticPath(path);
+
+		int msgstart = getDiagnosticMessageStart(bytes, pathend, end);
+		if (msgstart < end && bytes[msgstart] == '\'') {
+			int nfidx = indexOf(bytes, FILE_NOT_FOUND_SUFFIX, msgstart + 1, end);
+			if (nfidx > msgstart + 1) {
+				handler.handleFileNotFound(toString(bytes, msgstart + 1, nfidx));
+			}
+		}
+
+		writePath(bytes, start, pathend, rewritten, result);
+		result.write(bytes, pathend, end - pathend);
+		result.write('\n');
+	}
+
+	/**
+	 * Gets the end index of the path in an included from line in the format of
+	 * <code>&lt;path&gt;:&lt;line&gt;:</code>.
+	 * <p>
+	 * The line number is searched from the end of the line, so the path may contain colons.
+	 *
+	 * @return The index of the colon after the path or -1 if the line is not in the expected format.
+	 */
+	private static int getInFileIncludedFromPathEnd(byte[] bytes, int pathstart, int end) {
+		if (end - pathstart < 3 || bytes[end - 1] != ':') {
+			return -1;
+		}
+		int idx = end - 1;
+		while (idx > pathstart && isDigit(bytes[idx - 1])) {
+			--idx;
+		}
+		if (idx == end - 1) {
+			//no line number
+			return -1;
+		}
+		int pathend = idx - 1;
+		if (pathend <= pathstart || bytes[pathend] != ':') {
+			//empty path, or no colon before the line number
+			return -1;
+		}
+		return pathend;
+	}
+
+	/**
+	 * Gets the end index of the path in a diagnostic line in the format of
+	 * <code>&lt;path&gt;:&lt;line&gt;:&lt;column&gt;: &lt;type&gt;: &lt;message&gt;</code>.
+	 * <p>
+	 * The path ends at the first colon that is followed by the rest of the format, so the path may contain colons.
+	 *
+	 * @return The index of the colon after the path or -1 if the line is not in the expected format.
+	 */
+	private static int getDiagnosticPathEnd(byte[] bytes, int start, int end) {
+		//the path must contain at least one character
+		for (int pathend = indexOf(bytes, (byte) ':', start + 1, end); pathend < end; pathend = indexOf(bytes,
+				(byte) ':', pathend + 1, end)) {
+			if (isDiagnosticLocationAndMessage(bytes, pathend, end)) {
+				return pathend;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isDiagnosticLocationAndMessage(byte[] bytes, int pathend, int end) {
+		int idx = skipDigits(bytes, pathend + 1, end);
+		if (idx < 0) {
+			return false;
+		}
+		idx = skipDigits(bytes, idx, end);
+		if (idx < 0) {
+			return false;
+		}
+		//the diagnostic type must contain at least one character, followed by a colon
+		int typeend = indexOf(bytes, (byte) ':', idx, end);
+		if (typeend == idx || typeend == end) {
+			return false;
+		}
+		//the message must contain at least one character
+		return typeend + 1 < end;
+	}
+
+	/**
+	 * Skips a non-empty digit sequence that is followed by a colon.
+	 *
+	 * @return The index after the trailing colon, or -1 if not found.
+	 */
+	private static int skipDigits(byte[] bytes, int start, int end) {
+		int i = start;
+		while (i < end && isDigit(bytes[i])) {
+			++i;
+		}
+		if (i == start || i == end || bytes[i] != ':') {
+			return -1;
+		}
+		return i + 1;
+	}
+
+	private static int getDiagnosticMessageStart(byte[] bytes, int pathend, int end) {
+		//skip line, column and type
+		int idx = indexOf(bytes, (byte) ':', pathend + 1, end);
+		idx = indexOf(bytes, (byte) ':', idx + 1, end);
+		idx = indexOf(bytes, (byte) ':', idx + 1, end) + 1;
+		while (idx < end && bytes[idx] == ' ') {
+			++idx;
+		}
+		return idx;
+	}
+
+	private static void writePath(byte[] bytes, int start, int end, String rewritten,
+			UnsyncByteArrayOutputStream result) {
+		if (rewritten == null) {
+			result.write(bytes, start, end - start);
+		} else {
+			result.write(rewritten.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static String toString(byte[] bytes, int start, int end) {
+		return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean regionStartsWith(byte[] bytes, int start, int end, byte[] prefix) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[start + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static int indexOf(byte[] bytes, byte[] sequence, int start, int end) {
+		int last = end - sequence.length;
+		for (int i = start; i <= last; i++) {
+			if (regionStartsWith(bytes, i, end, sequence)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
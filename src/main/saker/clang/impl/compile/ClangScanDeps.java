@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.runtime.execution.SakerLog;
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.clang.impl.util.ClangUtils;
+import saker.clang.impl.util.JsonWriter;
+import saker.clang.impl.util.SpillingProcessIOConsumer;
+
+/**
+ * Runs <code>clang-scan-deps</code> to compute the include dependencies of multiple translation units with a single
+ * process.
+ * <p>
+ * The scanning is enabled by setting the {@value #ENVIRONMENT_PARAMETER_SCAN_DEPENDENCIES} environment user parameter
+ * to <code>true</code>. The <code>clang-scan-deps</code> executable is expected to be next to the clang executable,
+ * with the same version suffix. (E.g. <code>clang-scan-deps-14</code> for <code>clang-14</code>.)
+ * <p>
+ * The translation units are passed to the process in a compilation database, and the results are read from the make
+ * formatted output in a streaming manner.
+ */
+final class ClangScanDeps {
+	public static final String ENVIRONMENT_PARAMETER_SCAN_DEPENDENCIES = "saker.clang.compile.scan.dependencies";
+
+	private static final String SCAN_DEPS_EXECUTABLE_NAME = "clang-scan-deps";
+
+	public static final class CompileCommand {
+		protected final String directory;
+		protected final List<String> arguments;
+		protected final String file;
+		protected final String output;
+
+		public CompileCommand(String directory, List<String> arguments, String file, String output) {
+			this.directory = directory;
+			this.arguments = arguments;
+			this.file = file;
+			this.output = output;
+		}
+	}
+
+	public interface RuleHandler {
+		/**
+		 * Handles a rule in the output.
+		 *
+		 * @param paths
+		 *            The paths in the rule. The first one is the target, which is the output of the compilation.
+		 */
+		public void handleRule(List<String> paths);
+	}
+
+	private ClangScanDeps() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static boolean isEnabled(SakerEnvironment environment) {
+		return Boolean.parseBoolean(environment.getUserParameters().get(ENVIRONMENT_PARAMETER_SCAN_DEPENDENCIES));
+	}
+
+	/**
+	 * Gets the <code>clang-scan-deps</code> executable that corresponds to the given clang executable.
+	 */
+	public static String getScanDepsExecutable(String clangexecutable) {
+		Path exepath = Paths.get(clangexecutable);
+		Path filename = exepath.getFileName();
+		if (filename == null) {
+			return SCAN_DEPS_EXECUTABLE_NAME;
+		}
+		String name = filename.toString();
+		String extension = "";
+		if (name.toLowerCase(Locale.ENGLISH).endsWith(".exe")) {
+			extension = name.substring(name.length() - 4);
+			name = name.substring(0, name.length() - 4);
+		}
+		String suffix;
+		if (name.startsWith("clang++")) {
+			suffix = name.substring(7);
+		} else if (name.startsWith("clang")) {
+			suffix = name.substring(5);
+		} else {
+			suffix = "";
+		}
+		String scandepsname = SCAN_DEPS_EXECUTABLE_NAME + suffix + extension;
+		Path parent = exepath.getParent();
+		if (parent == null) {
+			//found on the PATH
+			return scandepsname;
+		}
+		return parent.resolve(scandepsname).toString();
+	}
+
+	public static void writeCompilationDatabase(Path path, List<CompileCommand> commands) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		for (int i = 0; i < commands.size(); i++) {
+			CompileCommand cmd = commands.get(i);
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("\n{\"directory\":");
+			JsonWriter.appendString(sb, cmd.directory);
+			sb.append(",\"arguments\":[");
+			for (int j = 0; j < cmd.arguments.size(); j++) {
+				if (j > 0) {
+					sb.append(',');
+				}
+				JsonWriter.appendString(sb, cmd.arguments.get(j));
+			}
+			sb.append("],\"file\":");
+			JsonWriter.appendString(sb, cmd.file);
+			sb.append(",\"output\":");
+			JsonWriter.appendString(sb, cmd.output);
+			sb.append('}');
+		}
+		sb.append("\n]\n");
+		try (OutputStream os = Files.newOutputStream(path)) {
+			os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Runs the scanning and reports the dependency rules to the handler.
+	 *
+	 * @return The exit code of the process.
+	 */
+	public static int run(SakerEnvironment environment, String executable, Path compilationdatabase,
+			SakerPath workingdir, Path outputspillfile, RuleHandler handler)
+			throws IOException, InterruptedException {
+		List<String> commands = Arrays.asList(executable, "-compilation-database=" + compilationdatabase,
+				"-format=make");
+		int procresult;
+		try (SpillingProcessIOConsumer stdoutconsumer = new SpillingProcessIOConsumer(
+				SpillingProcessIOConsumer.DEFAULT_MEMORY_LIMIT, outputspillfile, null);
+				SpillingProcessIOConsumer stderrconsumer = new SpillingProcessIOConsumer(
+						SpillingProcessIOConsumer.DEFAULT_MEMORY_LIMIT, null, null)) {
+			procresult = ClangUtils.runClangProcess(environment, commands, workingdir, stdoutconsumer, stderrconsumer,
+					false);
+			stdoutconsumer.close();
+			if (procresult != 0) {
+				//some of the translation units may still have been scanned successfully
+				SakerLog.error().verbose().println(SCAN_DEPS_EXECUTABLE_NAME + " exited with error code: " + procresult
+						+ "\n" + stderrconsumer.getOutputBytes());
+			}
+			parseRules(stdoutconsumer, handler);
+		}
+		return procresult;
+	}
+
+	private static void parseRules(SpillingProcessIOConsumer output, RuleHandler handler) throws IOException {
+		DependencyFileParser parser = new DependencyFileParser();
+		UnsyncByteArrayOutputStream rulebuffer = new UnsyncByteArrayOutputStream();
+		output.readLines(lines -> {
+			byte[] bytes = lines.getArray();
+			int end = lines.getOffset() + lines.getLength();
+			int linestart = lines.getOffset();
+			while (linestart < end) {
+				int lineend = linestart;
+				while (lineend < end && bytes[lineend] != '\n') {
+					++lineend;
+				}
+				int nextlinestart = lineend + 1;
+				rulebuffer.write(bytes, linestart, Math.min(nextlinestart, end) - linestart);
+				if (!isContinuedLine(bytes, linestart, lineend)) {
+					flushRule(parser, rulebuffer, handler);
+				}
+				linestart = nextlinestart;
+			}
+		});
+		flushRule(parser, rulebuffer, handler);
+	}
+
+	private static void flushRule(DependencyFileParser parser, UnsyncByteArrayOutputStream rulebuffer,
+			RuleHandler handler) {
+		if (rulebuffer.size() == 0) {
+			return;
+		}
+		ByteArrayRegion rule = rulebuffer.toByteArrayRegion();
+		List<String> paths = new ArrayList<>();
+		parser.parse(rule.getArray(), rule.getOffset(), rule.getLength(), paths::add);
+		rulebuffer.reset();
+		if (!paths.isEmpty()) {
+			handler.handleRule(paths);
+		}
+	}
+
+	private static boolean isContinuedLine(byte[] bytes, int linestart, int lineend) {
+		int idx = lineend - 1;
+		while (idx >= linestart && (bytes[idx] == '\r' || bytes[idx] == ' ' || bytes[idx] == '\t')) {
+			--idx;
+		}
+		return idx >= linestart && bytes[idx] == '\\';
+	}
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import saker.build.file.path.SakerPath;
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.std.api.file.location.ExecutionFileLocation;
+import saker.std.api.file.location.FileLocation;
+import saker.std.api.file.location.FileLocationVisitor;
+import saker.std.api.file.location.LocalFileLocation;
+
+/**
+ * Compact encoding of the compiler state data.
+ * <p>
+ * The strings, paths, compilation property templates and other objects are collected to dictionaries, and are only
+ * referenced by index in the records. The dictionaries are written before the records, so a record can be decoded
+ * independently of the others, and its encoded form stays valid as long as the same dictionary is used.
+ * <p>
+ * A writer can be based on a previous dictionary. In that case the new entries are appended to it, and the records
+ * that were encoded with the previous dictionary can be written as is, without decoding and encoding them again.
+ * <p>
+ * Paths are encoded by referencing their parent paths, so the common prefixes of the paths are only written once.
+ * Integers are written using a variable length encoding.
+ */
+final class CompactStateSerialization {
+	private static final int NULL_INDEX = 0;
+	private static final int FIRST_ENTRY_INDEX = 1;
+
+	private static final int FILE_LOCATION_NULL = 0;
+	private static final int FILE_LOCATION_EXECUTION = 1;
+	private static final int FILE_LOCATION_OTHER = 2;
+
+	private CompactStateSerialization() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new InvalidObjectException("Malformed variable length integer.");
+	}
+
+	/**
+	 * The dictionaries that the encoded records reference.
+	 * <p>
+	 * The class is immutable.
+	 */
+	public static final class Dictionary {
+		protected final String[] strings;
+		protected final SakerPath[] paths;
+		protected final FileCompilationProperties[] propertiesTemplates;
+		protected final Object[] objects;
+		/**
+		 * The number of records that were written with this dictionary.
+		 */
+		protected final int recordCount;
+		/**
+		 * The number of entries the dictionary had when it was last created without a base dictionary.
+		 * <p>
+		 * The entries that are only referenced by replaced records are not removed when new entries are appended, so
+		 * this is used to decide when to create the dictionary from scratch again.
+		 */
+		protected final int compactEntryCount;
+
+		Dictionary(String[] strings, SakerPath[] paths, FileCompilationProperties[] propertiesTemplates,
+				Object[] objects, int recordCount, int compactEntryCount) {
+			this.strings = strings;
+			this.paths = paths;
+			this.propertiesTemplates = propertiesTemplates;
+			this.objects = objects;
+			this.recordCount = recordCount;
+			this.compactEntryCount = compactEntryCount;
+		}
+
+		public int getRecordCount() {
+			return recordCount;
+		}
+
+		public int getEntryCount() {
+			return strings.length + paths.length + propertiesTemplates.length + objects.length;
+		}
+
+		public int getCompactEntryCount() {
+			return compactEntryCount;
+		}
+
+		public String getString(int index) throws InvalidObjectException {
+			return getEntry(strings, index);
+		}
+
+		public SakerPath getPath(int index) throws InvalidObjectException {
+			return getEntry(paths, index);
+		}
+
+		public static Dictionary read(ObjectInput in) throws IOException, ClassNotFoundException {
+			int recordcount = readVarInt(in);
+			int compactentrycount = readVarInt(in);
+			String[] strings = new String[readVarInt(in)];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readUTF();
+			}
+			SakerPath[] paths = new SakerPath[readVarInt(in)];
+			for (int i = 0; i < paths.length; i++) {
+				//the parents are always before the children
+				int parentidx = readVarInt(in);
+				String name = getEntry(strings, readVarInt(in));
+				if (parentidx == NULL_INDEX) {
+					paths[i] = SakerPath.valueOf(name);
+				} else {
+					int parentlistidx = parentidx - FIRST_ENTRY_INDEX;
+					if (parentlistidx >= i) {
+						throw new InvalidObjectException("Invalid parent path index: " + parentidx);
+					}
+					paths[i] = paths[parentlistidx].resolve(name);
+				}
+			}
+			FileCompilationProperties[] templates = new FileCompilationProperties[readVarInt(in)];
+			for (int i = 0; i < templates.length; i++) {
+				templates[i] = (FileCompilationProperties) in.readObject();
+			}
+			Object[] objects = new Object[readVarInt(in)];
+			for (int i = 0; i < objects.length; i++) {
+				objects[i] = in.readObject();
+			}
+			return new Dictionary(strings, paths, templates, objects, recordcount, compactentrycount);
+		}
+	}
+
+	public static final class Writer {
+		private final int compactEntryCount;
+
+		private final Map<String, Integer> strings = new HashMap<>();
+		private final List<String> stringList = new ArrayList<>();
+		private final Map<SakerPath, Integer> paths = new HashMap<>();
+		private final List<SakerPath> pathList = new ArrayList<>();
+		private final Map<PropertiesTemplateKey, Integer> propertiesTemplates = new HashMap<>();
+		private final List<FileCompilationProperties> propertiesTemplateList = new ArrayList<>();
+		private final Map<Object, Integer> objects = new HashMap<>();
+		private final List<Object> objectList = new ArrayList<>();
+
+		private final UnsyncByteArrayOutputStream record = new UnsyncByteArrayOutputStream();
+
+		/**
+		 * Creates a new writer.
+		 *
+		 * @param base
+		 *            The dictionary to append the new entries to, or <code>null</code> to start with empty
+		 *            dictionaries.
+		 */
+		public Writer(Dictionary base) {
+			if (base == null) {
+				this.compactEntryCount = -1;
+				return;
+			}
+			this.compactEntryCount = base.compactEntryCount;
+			for (String s : base.strings) {
+				addEntry(strings, stringList, s);
+			}
+			for (SakerPath path : base.paths) {
+				addEntry(paths, pathList, path);
+			}
+			for (FileCompilationProperties template : base.propertiesTemplates) {
+				addTemplateEntry(propertiesTemplates, propertiesTemplateList, new PropertiesTemplateKey(template));
+			}
+			for (Object obj : base.objects) {
+				addEntry(objects, objectList, obj);
+			}
+		}
+
+		/**
+		 * Gets the encoded form of the record that was written since the previous call, and starts a new record.
+		 */
+		public byte[] finishRecord() {
+			byte[] result = record.toByteArray();
+			record.reset();
+			return result;
+		}
+
+		/**
+		 * Writes the dictionaries that are referenced by the written records.
+		 *
+		 * @return The written dictionary that can be used to decode the records, or as the base of a subsequent
+		 *             writer.
+		 */
+		public Dictionary writeDictionary(ObjectOutput out, int recordcount) throws IOException {
+			int entrycount = stringList.size() + pathList.size() + propertiesTemplateList.size() + objectList.size();
+			int compactentrycount = compactEntryCount < 0 ? entrycount : compactEntryCount;
+			CompactStateSerialization.writeVarInt(out, recordcount);
+			CompactStateSerialization.writeVarInt(out, compactentrycount);
+			CompactStateSerialization.writeVarInt(out, stringList.size());
+			for (String s : stringList) {
+				out.writeUTF(s);
+			}
+			CompactStateSerialization.writeVarInt(out, pathList.size());
+			for (SakerPath path : pathList) {
+				SakerPath parent = getParentPath(path);
+				CompactStateSerialization.writeVarInt(out, parent == null ? NULL_INDEX : paths.get(parent));
+				CompactStateSerialization.writeVarInt(out, strings.get(getPathName(path, parent)));
+			}
+			CompactStateSerialization.writeVarInt(out, propertiesTemplateList.size());
+			for (FileCompilationProperties template : propertiesTemplateList) {
+				out.writeObject(template);
+			}
+			CompactStateSerialization.writeVarInt(out, objectList.size());
+			for (Object obj : objectList) {
+				out.writeObject(obj);
+			}
+			return new Dictionary(stringList.toArray(new String[stringList.size()]),
+					pathList.toArray(new SakerPath[pathList.size()]),
+					propertiesTemplateList.toArray(new FileCompilationProperties[propertiesTemplateList.size()]),
+					objectList.toArray(), recordcount, compactentrycount);
+		}
+
+		/**
+		 * Gets the dictionary index of a string, adding it if necessary.
+		 */
+		public int getStringIndex(String s) {
+			if (s == null) {
+				return NULL_INDEX;
+			}
+			Integer idx = strings.get(s);
+			if (idx != null) {
+				return idx;
+			}
+			return addEntry(strings, stringList, s);
+		}
+
+		/**
+		 * Gets the dictionary index of a path, adding it and its parents if necessary.
+		 */
+		public int getPathIndex(SakerPath path) {
+			if (path == null) {
+				return NULL_INDEX;
+			}
+			Integer idx = paths.get(path);
+			if (idx != null) {
+				return idx;
+			}
+			//add the parent and the name first, so the parents are before the children in the dictionary
+			SakerPath parent = getParentPath(path);
+			getPathIndex(parent);
+			getStringIndex(getPathName(path, parent));
+			return addEntry(paths, pathList, path);
+		}
+
+		public void writeVarInt(int value) {
+			while ((value & ~0x7F) != 0) {
+				record.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			record.write(value);
+		}
+
+		public void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				record.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			record.write((int) value);
+		}
+
+		public void writeBoolean(boolean value) {
+			record.write(value ? 1 : 0);
+		}
+
+		public void writeString(String s) {
+			writeVarInt(getStringIndex(s));
+		}
+
+		public void writePath(SakerPath path) {
+			writeVarInt(getPathIndex(path));
+		}
+
+		public void writeBytes(ByteArrayRegion bytes) {
+			if (bytes == null) {
+				writeVarInt(0);
+				return;
+			}
+			writeVarInt(bytes.getLength() + 1);
+			record.write(bytes.getArray(), bytes.getOffset(), bytes.getLength());
+		}
+
+		/**
+		 * Writes an object that is serialized in the dictionary.
+		 * <p>
+		 * Equal objects are only serialized once.
+		 */
+		public void writeObject(Object obj) {
+			if (obj == null) {
+				writeVarInt(NULL_INDEX);
+				return;
+			}
+			Integer idx = objects.get(obj);
+			if (idx == null) {
+				idx = addEntry(objects, objectList, obj);
+			}
+			writeVarInt(idx);
+		}
+
+		public void writeFileLocation(FileLocation fl) {
+			if (fl == null) {
+				writeVarInt(FILE_LOCATION_NULL);
+				return;
+			}
+			ExecutionFileLocation[] execlocation = { null };
+			fl.accept(new FileLocationVisitor() {
+				@Override
+				public void visit(ExecutionFileLocation loc) {
+					execlocation[0] = loc;
+				}
+
+				@Override
+				public void visit(LocalFileLocation loc) {
+				}
+			});
+			if (execlocation[0] != null) {
+				writeVarInt(FILE_LOCATION_EXECUTION);
+				writePath(execlocation[0].getPath());
+			} else {
+				writeVarInt(FILE_LOCATION_OTHER);
+				writeObject(fl);
+			}
+		}
+
+		public void writeCompilationConfiguration(FileCompilationConfiguration config) {
+			if (config == null) {
+				writeBoolean(false);
+				return;
+			}
+			writeBoolean(true);
+			writeString(config.getOutFileName());
+			FileCompilationProperties properties = config.getProperties();
+			if (properties == null) {
+				writeVarInt(NULL_INDEX);
+			} else {
+				//the properties only differ in the file location for most of the files
+				//so write the rest of the properties as a shared template
+				PropertiesTemplateKey key = new PropertiesTemplateKey(properties.withFileLocation(null));
+				Integer idx = propertiesTemplates.get(key);
+				if (idx == null) {
+					idx = addTemplateEntry(propertiesTemplates, propertiesTemplateList, key);
+				}
+				writeVarInt(idx);
+				writeFileLocation(properties.getFileLocation());
+			}
+			writeFileLocation(config.getPrecompiledHeaderFileLocation());
+			writeString(config.getPrecompiledHeaderOutFileName());
+		}
+
+		private static <T> int addEntry(Map<T, Integer> indices, List<T> entries, T entry) {
+			int idx = entries.size() + FIRST_ENTRY_INDEX;
+			indices.put(entry, idx);
+			entries.add(entry);
+			return idx;
+		}
+
+		private static int addTemplateEntry(Map<PropertiesTemplateKey, Integer> indices,
+				List<FileCompilationProperties> entries, PropertiesTemplateKey key) {
+			int idx = entries.size() + FIRST_ENTRY_INDEX;
+			indices.put(key, idx);
+			entries.add(key.properties);
+			return idx;
+		}
+	}
+
+	/**
+	 * Reads a single record that was encoded by {@link Writer}.
+	 */
+	public static final class Reader {
+		private final Dictionary dictionary;
+		private final byte[] record;
+		private int index;
+
+		public Reader(Dictionary dictionary, byte[] record) {
+			this.dictionary = dictionary;
+			this.record = record;
+		}
+
+		public int readVarInt() throws IOException {
+			int result = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readUnsignedByte();
+				result |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new InvalidObjectException("Malformed variable length integer.");
+		}
+
+		public long readVarLong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readUnsignedByte();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new InvalidObjectException("Malformed variable length integer.");
+		}
+
+		public boolean readBoolean() throws IOException {
+			return readUnsignedByte() != 0;
+		}
+
+		public String readString() throws IOException {
+			return getEntry(dictionary.strings, readVarInt());
+		}
+
+		public SakerPath readPath() throws IOException {
+			return getEntry(dictionary.paths, readVarInt());
+		}
+
+		public ByteArrayRegion readBytes() throws IOException {
+			int len = readVarInt();
+			if (len == 0) {
+				return null;
+			}
+			--len;
+			if (len > record.length - index) {
+				throw new InvalidObjectException("Record too short.");
+			}
+			//the record is not modified, so the region can share its array
+			ByteArrayRegion result = ByteArrayRegion.wrap(record, index, len);
+			index += len;
+			return result;
+		}
+
+		public Object readObject() throws IOException {
+			return getEntry(dictionary.objects, readVarInt());
+		}
+
+		public FileLocation readFileLocation() throws IOException {
+			int kind = readVarInt();
+			switch (kind) {
+				case FILE_LOCATION_NULL: {
+					return null;
+				}
+				case FILE_LOCATION_EXECUTION: {
+					return ExecutionFileLocation.create(readPath());
+				}
+				case FILE_LOCATION_OTHER: {
+					return (FileLocation) readObject();
+				}
+				default: {
+					throw new InvalidObjectException("Unknown file location kind: " + kind);
+				}
+			}
+		}
+
+		public FileCompilationConfiguration readCompilationConfiguration() throws IOException {
+			if (!readBoolean()) {
+				return null;
+			}
+			String outfilename = readString();
+			FileCompilationProperties properties;
+			int templateidx = readVarInt();
+			if (templateidx == NULL_INDEX) {
+				properties = null;
+			} else {
+				FileCompilationProperties template = getEntry(dictionary.propertiesTemplates, templateidx);
+				properties = template.withFileLocation(readFileLocation());
+			}
+			FileCompilationConfiguration result = new FileCompilationConfiguration(outfilename, properties);
+			FileLocation pchfilelocation = readFileLocation();
+			String pchoutfilename = readString();
+			result.setPrecompiledHeader(pchfilelocation, pchoutfilename);
+			return result;
+		}
+
+		private int readUnsignedByte() throws IOException {
+			if (index >= record.length) {
+				throw new InvalidObjectException("Record too short.");
+			}
+			return record[index++] & 0xFF;
+		}
+	}
+
+	private static SakerPath getParentPath(SakerPath path) {
+		return path.getNameCount() == 0 ? null : path.getParent();
+	}
+
+	private static String getPathName(SakerPath path, SakerPath parent) {
+		return parent == null ? path.toString() : path.getFileName();
+	}
+
+	private static <T> T getEntry(T[] entries, int idx) throws InvalidObjectException {
+		if (idx == NULL_INDEX) {
+			return null;
+		}
+		int listidx = idx - FIRST_ENTRY_INDEX;
+		if (listidx < 0 || listidx >= entries.length) {
+			throw new InvalidObjectException("Invalid dictionary index: " + idx);
+		}
+		return entries[listidx];
+	}
+
+	/**
+	 * Key for the compilation properties templates.
+	 * <p>
+	 * {@link FileCompilationProperties#hashCode()} only takes the file location into account, which is
+	 * <code>null</code> for the templates, so this class provides a hash code based on the other properties.
+	 */
+	private static final class PropertiesTemplateKey {
+		protected final FileCompilationProperties properties;
+		private final int hashCode;
+
+		public PropertiesTemplateKey(FileCompilationProperties properties) {
+			this.properties = properties;
+			this.hashCode = Objects.hash(properties.getLanguage(), properties.getIncludeDirectories(),
+					properties.getForceInclude(), properties.getMacroDefinitions(), properties.getSimpleParameters());
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			PropertiesTemplateKey other = (PropertiesTemplateKey) obj;
+			return hashCode == other.hashCode && properties.equals(other.properties);
+		}
+	}
+}
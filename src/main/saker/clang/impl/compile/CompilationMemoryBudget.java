@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.runtime.execution.SakerLog;
+import saker.clang.impl.util.ClangUtils;
+
+/**
+ * Limits the memory that the concurrently running compiler processes may use on a build machine.
+ * <p>
+ * The budget is enabled by setting the {@value #ENVIRONMENT_PARAMETER_MEMORY_BUDGET} environment user parameter to a
+ * size. (E.g. <code>16g</code>.) Before a compiler process is started, the memory it is predicted to use is reserved
+ * from the budget, and the process waits until it becomes available. The prediction is the peak memory usage of the
+ * previous compilation of the same file, or the value of the {@value #ENVIRONMENT_PARAMETER_DEFAULT_MEMORY_ESTIMATE}
+ * environment user parameter if that is unknown.
+ * <p>
+ * A compilation that is predicted to use more memory than the whole budget is still started when nothing else is
+ * running.
+ */
+final class CompilationMemoryBudget {
+	public static final String ENVIRONMENT_PARAMETER_MEMORY_BUDGET = "saker.clang.compile.memory.budget";
+	public static final String ENVIRONMENT_PARAMETER_DEFAULT_MEMORY_ESTIMATE = "saker.clang.compile.memory.default";
+
+	private static final long DEFAULT_MEMORY_ESTIMATE = 512L * 1024 * 1024;
+
+	private static final Map<Long, CompilationMemoryBudget> BUDGETS = new ConcurrentHashMap<>();
+
+	private final long budget;
+	private long reserved;
+
+	private CompilationMemoryBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the memory budget of the build machine.
+	 *
+	 * @param environment
+	 *            The environment.
+	 * @return The budget or <code>null</code> if it is not enabled.
+	 */
+	public static CompilationMemoryBudget get(SakerEnvironment environment) {
+		String param = environment.getUserParameters().get(ENVIRONMENT_PARAMETER_MEMORY_BUDGET);
+		if (param == null || param.isEmpty()) {
+			return null;
+		}
+		long budget;
+		try {
+			budget = ClangUtils.parseByteSize(param);
+		} catch (IllegalArgumentException e) {
+			SakerLog.error().verbose().println("Invalid clang compilation memory budget: " + e);
+			return null;
+		}
+		return BUDGETS.computeIfAbsent(budget, CompilationMemoryBudget::new);
+	}
+
+	/**
+	 * Gets the predicted memory usage of a compilation.
+	 *
+	 * @param environment
+	 *            The environment.
+	 * @param previouspeak
+	 *            The peak memory usage of the previous compilation in bytes, or 0 if unknown.
+	 * @return The predicted memory usage in bytes.
+	 */
+	public static long getMemoryEstimate(SakerEnvironment environment, long previouspeak) {
+		if (previouspeak > 0) {
+			return previouspeak;
+		}
+		String param = environment.getUserParameters().get(ENVIRONMENT_PARAMETER_DEFAULT_MEMORY_ESTIMATE);
+		if (param == null || param.isEmpty()) {
+			return DEFAULT_MEMORY_ESTIMATE;
+		}
+		try {
+			return ClangUtils.parseByteSize(param);
+		} catch (IllegalArgumentException e) {
+			SakerLog.error().verbose().println("Invalid clang compilation memory estimate: " + e);
+			return DEFAULT_MEMORY_ESTIMATE;
+		}
+	}
+
+	/**
+	 * Reserves memory from the budget, waiting until it is available.
+	 *
+	 * @param amount
+	 *            The amount in bytes.
+	 * @return The reserved amount that should be passed to {@link #release(long)}.
+	 * @throws InterruptedException
+	 *             If the current thread was interrupted while waiting.
+	 */
+	public synchronized long acquire(long amount) throws InterruptedException {
+		long reservation = Math.min(amount, budget);
+		while (reserved > 0 && reserved + reservation > budget) {
+			this.wait();
+		}
+		reserved += reservation;
+		return reservation;
+	}
+
+	public synchronized void release(long reservation) {
+		reserved -= reservation;
+		this.notifyAll();
+	}
+}
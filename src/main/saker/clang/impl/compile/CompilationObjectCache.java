@@ -0,0 +1,757 @@
+package saker.clang.impl.compile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import saker.build.file.content.ContentDescriptor;
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.runtime.execution.SakerLog;
+import saker.build.thirdparty.saker.util.StringUtils;
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.clang.impl.util.ClangUtils;
+import saker.sdk.support.api.SDKDescription;
+
+/**
+ * Machine local on-disk cache of compiled object files.
+ * <p>
+ * The cache is shared between the compilation passes and build directories that use the same cache directory. It is
+ * enabled by setting the {@value #ENVIRONMENT_PARAMETER_CACHE_DIRECTORY} environment user parameter.
+ * <p>
+ * The cache consists of manifests and object entries. A manifest is addressed by the SDKs, the compiler command line
+ * and the contents of the compiled source file, and records the include sets of the most recent compilations. An
+ * object entry is addressed by the manifest key and the hashes of the included files, and contains the object file and
+ * its dependency information.
+ * <p>
+ * The include sets contain the local files that are not part of the build execution, like the system headers. As the
+ * cache is shared between build directories, the updates of these files need to be detected as well. The hashes of
+ * the local files are kept in memory, and only recomputed if their size or modification time changes.
+ * <p>
+ * The new entries and manifests are written to a staging directory first, and moved to their place when complete.
+ * The staging directory is not considered for eviction.
+ * <p>
+ * The lookup works similarly to the direct mode of ccache. As the include sets are known from the manifests and
+ * previous compilations, a cache hit only requires hashing the contents of the source and included files, and no
+ * preprocessing needs to be done.
+ * <p>
+ * The cache size is limited, and the least recently used entries are evicted when it is exceeded.
+ */
+public class CompilationObjectCache {
+	public static final String ENVIRONMENT_PARAMETER_CACHE_DIRECTORY = "saker.clang.compile.cache.directory";
+	/**
+	 * The size budget of the cache in bytes. The <code>k</code>, <code>m</code>, <code>g</code> suffixes may be used.
+	 */
+	public static final String ENVIRONMENT_PARAMETER_CACHE_SIZE = "saker.clang.compile.cache.size";
+
+	private static final long DEFAULT_CACHE_SIZE = 5L * 1024 * 1024 * 1024;
+
+	private static final int FORMAT_VERSION = 3;
+
+	/**
+	 * The maximum number of include sets recorded in a manifest.
+	 */
+	private static final int MAX_MANIFEST_VARIANT_COUNT = 8;
+
+	private static final String MANIFEST_FILE_EXTENSION = ".manifest";
+	private static final String ENTRY_OBJECT_FILE_NAME = "object.o";
+	private static final String ENTRY_INFO_FILE_NAME = "info";
+	private static final String STAGING_DIRECTORY_NAME = "tmp";
+	/**
+	 * The age after which the staged files are considered to be left behind by an interrupted store.
+	 */
+	private static final long STALE_STAGING_MILLIS = 24 * 60 * 60 * 1000;
+
+	private static final ConcurrentHashMap<Path, CompilationObjectCache> CACHES = new ConcurrentHashMap<>();
+
+	public static final class CachedCompilation {
+		private final NavigableSet<SakerPath> includes;
+		private final ByteArrayRegion processOutput;
+		private final long compilationDurationNanos;
+
+		public CachedCompilation(NavigableSet<SakerPath> includes, ByteArrayRegion processOutput,
+				long compilationDurationNanos) {
+			this.includes = includes;
+			this.processOutput = processOutput;
+			this.compilationDurationNanos = compilationDurationNanos;
+		}
+
+		/**
+		 * Gets the included files which are part of the build execution.
+		 */
+		public NavigableSet<SakerPath> getIncludes() {
+			return includes;
+		}
+
+		/**
+		 * Gets the output of the compiler as it was printed by the process.
+		 * <p>
+		 * The paths in the output are not rewritten, as the cached entries are shared between build directories.
+		 */
+		public ByteArrayRegion getProcessOutput() {
+			return processOutput;
+		}
+
+		public long getCompilationDurationNanos() {
+			return compilationDurationNanos;
+		}
+	}
+
+	/**
+	 * The files included by a compilation.
+	 */
+	private static final class IncludeSet {
+		protected final NavigableSet<SakerPath> includes;
+		/**
+		 * The absolute local paths of the included files that are not part of the build execution.
+		 */
+		protected final NavigableSet<String> localIncludes;
+
+		public IncludeSet(NavigableSet<SakerPath> includes, NavigableSet<String> localIncludes) {
+			this.includes = includes;
+			this.localIncludes = localIncludes;
+		}
+
+		@Override
+		public int hashCode() {
+			return includes.hashCode() * 31 + localIncludes.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			IncludeSet other = (IncludeSet) obj;
+			return includes.equals(other.includes) && localIncludes.equals(other.localIncludes);
+		}
+	}
+
+	private static final class LocalFileHash {
+		protected final long size;
+		protected final FileTime lastModified;
+		protected final byte[] hash;
+
+		public LocalFileHash(long size, FileTime lastModified, byte[] hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	private final Path directory;
+	private final long sizeBudget;
+
+	private final ConcurrentHashMap<String, LocalFileHash> localFileHashes = new ConcurrentHashMap<>();
+
+	private final Object sizeLock = new Object();
+	private AtomicLong size;
+
+	private CompilationObjectCache(Path directory, long sizeBudget) {
+		this.directory = directory;
+		this.sizeBudget = sizeBudget;
+	}
+
+	/**
+	 * Gets the object cache configured for the given environment.
+	 *
+	 * @param environment
+	 *            The environment.
+	 * @return The cache or <code>null</code> if the caching is not enabled.
+	 */
+	public static CompilationObjectCache get(SakerEnvironment environment) {
+		Map<String, String> userparams = environment.getUserParameters();
+		String dirparam = userparams.get(ENVIRONMENT_PARAMETER_CACHE_DIRECTORY);
+		if (dirparam == null || dirparam.isEmpty()) {
+			return null;
+		}
+		Path dir;
+		long budget;
+		try {
+			dir = Paths.get(dirparam).toAbsolutePath().normalize();
+			budget = parseSize(userparams.get(ENVIRONMENT_PARAMETER_CACHE_SIZE));
+		} catch (IllegalArgumentException e) {
+			SakerLog.error().verbose().println("Invalid clang compilation cache configuration: " + e);
+			return null;
+		}
+		return CACHES.compute(dir, (k, v) -> {
+			if (v != null && v.sizeBudget == budget) {
+				return v;
+			}
+			return new CompilationObjectCache(k, budget);
+		});
+	}
+
+	/**
+	 * Computes the key of the manifest that is used to look up the cached compilation results.
+	 *
+	 * @param sdkdescriptions
+	 *            The pinned SDK descriptions used for compilation.
+	 * @param commands
+	 *            The compiler command line.
+	 * @param sourcecontents
+	 *            The contents of the compiled source file.
+	 * @return The key or <code>null</code> if the compilation is not cacheable.
+	 */
+	public String getManifestKey(NavigableMap<String, SDKDescription> sdkdescriptions, List<String> commands,
+			ContentDescriptor sourcecontents) {
+		if (sourcecontents == null) {
+			return null;
+		}
+		try {
+			MessageDigest digest = createDigest();
+			updateDigestObject(digest, sdkdescriptions);
+			for (Iterator<String> it = commands.iterator(); it.hasNext();) {
+				String cmd = it.next();
+				updateDigest(digest, cmd);
+				if ("-o".equals(cmd) || "-MF".equals(cmd)) {
+					//the output paths don't affect the object file contents
+					if (it.hasNext()) {
+						it.next();
+					}
+				}
+			}
+			updateDigestObject(digest, sourcecontents);
+			return StringUtils.toHexString(digest.digest());
+		} catch (IOException e) {
+			//some component is not serializable, don't cache
+			SakerLog.error().verbose().println("Failed to compute clang compilation cache key: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Looks up the cached compilation result for the given manifest key, and copies the cached object file to the
+	 * specified output path on a hit.
+	 * <p>
+	 * The lookup works in direct mode, the preprocessor is not invoked. The include sets recorded in the manifest and
+	 * the specified candidate include sets are checked by hashing the current contents of the included files. The
+	 * first include set for which an object entry exists is used.
+	 *
+	 * @param manifestkey
+	 *            The manifest key.
+	 * @param candidateincludes
+	 *            Additional include sets to check if the manifest has no matching entries. May be <code>null</code>.
+	 *            They only contain the files of the build execution, so they match only the entries without local
+	 *            includes.
+	 * @param includehashes
+	 *            Function that retrieves the hash of the current contents of an included file. May return
+	 *            <code>null</code> if the file is not found.
+	 * @param objoutpath
+	 *            The output path of the object file.
+	 * @return The cached compilation result or <code>null</code> if not found.
+	 * @see #hashContents(ContentDescriptor)
+	 */
+	public CachedCompilation lookup(String manifestkey, Collection<? extends Set<SakerPath>> candidateincludes,
+			Function<? super SakerPath, byte[]> includehashes, Path objoutpath) {
+		Path manifestpath = getManifestPath(manifestkey);
+		try {
+			List<IncludeSet> variants = readManifest(manifestpath);
+			boolean manifesthit = false;
+			Set<IncludeSet> checkedincludesets = new HashSet<>();
+			Iterator<? extends Set<SakerPath>> candidatesit = candidateincludes == null ? Collections.emptyIterator()
+					: candidateincludes.iterator();
+			for (Iterator<IncludeSet> it = variants.iterator(); it.hasNext() || candidatesit.hasNext();) {
+				IncludeSet includes;
+				if (it.hasNext()) {
+					includes = it.next();
+					manifesthit = true;
+				} else {
+					Set<SakerPath> candidate = candidatesit.next();
+					if (candidate == null) {
+						continue;
+					}
+					includes = new IncludeSet(
+							candidate instanceof NavigableSet ? (NavigableSet<SakerPath>) candidate
+									: new TreeSet<>(candidate),
+							Collections.emptyNavigableSet());
+					manifesthit = false;
+				}
+				if (!checkedincludesets.add(includes)) {
+					continue;
+				}
+				String entrykey = getEntryKey(manifestkey, includes, includehashes);
+				if (entrykey == null) {
+					continue;
+				}
+				Path entrydir = getEntryDirectory(entrykey);
+				CachedCompilation result;
+				try (DataInputStream in = new DataInputStream(
+						Files.newInputStream(entrydir.resolve(ENTRY_INFO_FILE_NAME)))) {
+					result = readEntryInfo(in);
+				} catch (NoSuchFileException e) {
+					//not found or evicted concurrently
+					continue;
+				}
+				if (result == null) {
+					continue;
+				}
+				Files.copy(entrydir.resolve(ENTRY_OBJECT_FILE_NAME), objoutpath, StandardCopyOption.REPLACE_EXISTING);
+				if (manifesthit) {
+					touch(manifestpath);
+				}
+				touch(entrydir);
+				return result;
+			}
+			return null;
+		} catch (NoSuchFileException e) {
+			//evicted concurrently
+			return null;
+		} catch (IOException e) {
+			SakerLog.error().verbose().println("Failed to read clang compilation cache entry: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the result of a successful compilation in the cache.
+	 * <p>
+	 * The include set of the compilation is added to the manifest as the most recently used variant.
+	 *
+	 * @param manifestkey
+	 *            The manifest key.
+	 * @param includehashes
+	 *            The hashes of the included files of the compilation.
+	 * @param localincludes
+	 *            The absolute local paths of the included files that are not part of the build execution.
+	 * @param objpath
+	 *            The path to the compiled object file.
+	 * @param processoutput
+	 *            The output of the compiler process, without the paths rewritten.
+	 * @param compilationdurationnanos
+	 *            The duration of the compilation.
+	 * @see #hashContents(ContentDescriptor)
+	 */
+	public void store(String manifestkey, NavigableMap<SakerPath, byte[]> includehashes,
+			NavigableSet<String> localincludes, Path objpath, ByteArrayRegion processoutput,
+			long compilationdurationnanos) {
+		try {
+			IncludeSet includeset = new IncludeSet(includehashes.navigableKeySet(), localincludes);
+			String entrykey = getEntryKey(manifestkey, includeset, includehashes::get);
+			if (entrykey == null) {
+				//a local include was modified or removed since the compilation
+				return;
+			}
+			Path entrydir = getEntryDirectory(entrykey);
+			Path stagingdir = directory.resolve(STAGING_DIRECTORY_NAME);
+			long addedsize = 0;
+			if (Files.isDirectory(entrydir)) {
+				touch(entrydir);
+			} else {
+				Path tempdir = stagingdir.resolve(entrydir.getFileName() + "." + UUID.randomUUID());
+				Files.createDirectories(tempdir);
+				try {
+					Files.copy(objpath, tempdir.resolve(ENTRY_OBJECT_FILE_NAME));
+					try (DataOutputStream out = new DataOutputStream(
+							Files.newOutputStream(tempdir.resolve(ENTRY_INFO_FILE_NAME)))) {
+						writeEntryInfo(out, includehashes.navigableKeySet(), processoutput, compilationdurationnanos);
+					}
+					addedsize = getDirectorySize(tempdir);
+					Files.createDirectories(entrydir.getParent());
+					moveAtomic(tempdir, entrydir);
+				} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+					//stored concurrently
+					addedsize = 0;
+				} finally {
+					deleteRecursively(tempdir);
+				}
+			}
+			Path manifestpath = getManifestPath(manifestkey);
+			List<IncludeSet> variants;
+			try {
+				variants = readManifest(manifestpath);
+			} catch (IOException e) {
+				variants = new ArrayList<>();
+			}
+			variants.remove(includeset);
+			variants.add(0, includeset);
+			while (variants.size() > MAX_MANIFEST_VARIANT_COUNT) {
+				variants.remove(variants.size() - 1);
+			}
+			Path tempmanifest = stagingdir.resolve(manifestpath.getFileName() + "." + UUID.randomUUID());
+			try {
+				try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempmanifest))) {
+					writeManifest(out, variants);
+				}
+				long manifestsize = Files.size(tempmanifest);
+				long prevmanifestsize = getFileSizeOrZero(manifestpath);
+				Files.createDirectories(manifestpath.getParent());
+				Files.move(tempmanifest, manifestpath, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				addedsize += manifestsize - prevmanifestsize;
+			} finally {
+				Files.deleteIfExists(tempmanifest);
+			}
+			addSize(addedsize);
+		} catch (IOException e) {
+			SakerLog.error().verbose().println("Failed to store clang compilation cache entry: " + e);
+		}
+	}
+
+	/**
+	 * Computes the hash of the file contents represented by the given content descriptor.
+	 * <p>
+	 * The content descriptors are retrieved during mirroring, so hashing them doesn't require reading the files.
+	 *
+	 * @param contents
+	 *            The content descriptor.
+	 * @return The hash or <code>null</code> if the content descriptor is not serializable.
+	 */
+	public static byte[] hashContents(ContentDescriptor contents) {
+		if (contents == null) {
+			return null;
+		}
+		MessageDigest digest = createDigest();
+		try {
+			updateDigestObject(digest, contents);
+		} catch (IOException e) {
+			return null;
+		}
+		return digest.digest();
+	}
+
+	private String getEntryKey(String manifestkey, IncludeSet includes,
+			Function<? super SakerPath, byte[]> includehashes) {
+		//the sorted iteration order of the sets results in the same key
+		MessageDigest digest = createDigest();
+		updateDigest(digest, manifestkey);
+		for (SakerPath includepath : includes.includes) {
+			byte[] hash = includehashes.apply(includepath);
+			if (hash == null) {
+				return null;
+			}
+			updateDigest(digest, includepath.toString());
+			digest.update(hash);
+		}
+		//separate the local includes from the execution ones
+		digest.update((byte) 0);
+		for (String localpath : includes.localIncludes) {
+			byte[] hash = getLocalFileHash(localpath);
+			if (hash == null) {
+				return null;
+			}
+			updateDigest(digest, localpath);
+			digest.update(hash);
+		}
+		return StringUtils.toHexString(digest.digest());
+	}
+
+	/**
+	 * Gets the hash of the contents of a local file.
+	 * <p>
+	 * The hash is only recomputed if the size or the modification time of the file changed since it was last hashed.
+	 *
+	 * @return The hash or <code>null</code> if the file doesn't exist or failed to be read.
+	 */
+	private byte[] getLocalFileHash(String localpath) {
+		Path path = Paths.get(localpath);
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			LocalFileHash prev = localFileHashes.get(localpath);
+			if (prev != null && prev.size == attrs.size() && prev.lastModified.equals(attrs.lastModifiedTime())) {
+				return prev.hash;
+			}
+			MessageDigest digest = createDigest();
+			digest.update(Files.readAllBytes(path));
+			byte[] hash = digest.digest();
+			localFileHashes.put(localpath, new LocalFileHash(attrs.size(), attrs.lastModifiedTime(), hash));
+			return hash;
+		} catch (IOException | InvalidPathException e) {
+			return null;
+		}
+	}
+
+	private Path getManifestPath(String manifestkey) {
+		return directory.resolve(manifestkey.substring(0, 2)).resolve(manifestkey + MANIFEST_FILE_EXTENSION);
+	}
+
+	private Path getEntryDirectory(String entrykey) {
+		return directory.resolve(entrykey.substring(0, 2)).resolve(entrykey);
+	}
+
+	private void addSize(long addedsize) {
+		synchronized (sizeLock) {
+			if (size == null) {
+				size = new AtomicLong(computeCacheSize());
+			} else {
+				size.addAndGet(addedsize);
+			}
+			if (size.get() > sizeBudget) {
+				evict();
+			}
+		}
+	}
+
+	private long computeCacheSize() {
+		long result = 0;
+		for (CacheItem item : collectCacheItems()) {
+			result += item.size;
+		}
+		return result;
+	}
+
+	private void evict() {
+		deleteStaleStagingFiles();
+		List<CacheItem> items = collectCacheItems();
+		long currentsize = 0;
+		for (CacheItem item : items) {
+			currentsize += item.size;
+		}
+		//evict down to 90% to avoid evicting on every store
+		long targetsize = sizeBudget / 10 * 9;
+		items.sort((l, r) -> l.lastAccess.compareTo(r.lastAccess));
+		for (CacheItem item : items) {
+			if (currentsize <= targetsize) {
+				break;
+			}
+			try {
+				deleteRecursively(item.path);
+				currentsize -= item.size;
+			} catch (IOException e) {
+				SakerLog.error().verbose().println("Failed to evict clang compilation cache entry: " + e);
+			}
+		}
+		size.set(currentsize);
+	}
+
+	private void deleteStaleStagingFiles() {
+		long limit = System.currentTimeMillis() - STALE_STAGING_MILLIS;
+		try (DirectoryStream<Path> staged = Files.newDirectoryStream(directory.resolve(STAGING_DIRECTORY_NAME))) {
+			for (Path path : staged) {
+				try {
+					if (Files.getLastModifiedTime(path).toMillis() < limit) {
+						deleteRecursively(path);
+					}
+				} catch (IOException e) {
+					//removed concurrently, ignore
+				}
+			}
+		} catch (IOException e) {
+			//no staging directory
+		}
+	}
+
+	private List<CacheItem> collectCacheItems() {
+		List<CacheItem> result = new ArrayList<>();
+		try (DirectoryStream<Path> prefixdirs = Files.newDirectoryStream(directory)) {
+			for (Path prefixdir : prefixdirs) {
+				if (!Files.isDirectory(prefixdir)
+						|| STAGING_DIRECTORY_NAME.equals(prefixdir.getFileName().toString())) {
+					//the staged entries are not yet part of the cache
+					continue;
+				}
+				try (DirectoryStream<Path> items = Files.newDirectoryStream(prefixdir)) {
+					for (Path itempath : items) {
+						try {
+							BasicFileAttributes attrs = Files.readAttributes(itempath, BasicFileAttributes.class);
+							long itemsize = attrs.isDirectory() ? getDirectorySize(itempath) : attrs.size();
+							result.add(new CacheItem(itempath, attrs.lastModifiedTime(), itemsize));
+						} catch (IOException e) {
+							//removed concurrently, ignore
+						}
+					}
+				}
+			}
+		} catch (NoSuchFileException e) {
+			//nothing cached yet
+		} catch (IOException e) {
+			SakerLog.error().verbose().println("Failed to list clang compilation cache entries: " + e);
+		}
+		return result;
+	}
+
+	private static final class CacheItem {
+		protected final Path path;
+		protected final FileTime lastAccess;
+		protected final long size;
+
+		public CacheItem(Path path, FileTime lastAccess, long size) {
+			this.path = path;
+			this.lastAccess = lastAccess;
+			this.size = size;
+		}
+	}
+
+	private static void writeManifest(DataOutputStream out, List<IncludeSet> variants) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(variants.size());
+		for (IncludeSet includes : variants) {
+			writePaths(out, includes.includes);
+			out.writeInt(includes.localIncludes.size());
+			for (String localpath : includes.localIncludes) {
+				out.writeUTF(localpath);
+			}
+		}
+	}
+
+	private static List<IncludeSet> readManifest(Path manifestpath) throws IOException {
+		List<IncludeSet> result = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(manifestpath))) {
+			if (in.readInt() != FORMAT_VERSION) {
+				return result;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				NavigableSet<SakerPath> includes = readPaths(in);
+				int localcount = in.readInt();
+				NavigableSet<String> localincludes = new TreeSet<>();
+				for (int j = 0; j < localcount; j++) {
+					localincludes.add(in.readUTF());
+				}
+				result.add(new IncludeSet(includes, localincludes));
+			}
+		} catch (NoSuchFileException e) {
+			//no manifest
+		}
+		return result;
+	}
+
+	private static void writeEntryInfo(DataOutputStream out, NavigableSet<SakerPath> includes,
+			ByteArrayRegion processoutput, long compilationdurationnanos) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		writePaths(out, includes);
+		out.writeInt(processoutput.getLength());
+		out.write(processoutput.getArray(), processoutput.getOffset(), processoutput.getLength());
+		out.writeLong(compilationdurationnanos);
+	}
+
+	private static CachedCompilation readEntryInfo(DataInputStream in) throws IOException {
+		if (in.readInt() != FORMAT_VERSION) {
+			return null;
+		}
+		NavigableSet<SakerPath> includes = readPaths(in);
+		byte[] procout = new byte[in.readInt()];
+		in.readFully(procout);
+		long duration = in.readLong();
+		return new CachedCompilation(includes, ByteArrayRegion.wrap(procout), duration);
+	}
+
+	private static void writePaths(DataOutputStream out, NavigableSet<SakerPath> paths) throws IOException {
+		out.writeInt(paths.size());
+		for (SakerPath path : paths) {
+			out.writeUTF(path.toString());
+		}
+	}
+
+	private static NavigableSet<SakerPath> readPaths(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		NavigableSet<SakerPath> result = new TreeSet<>();
+		for (int i = 0; i < count; i++) {
+			result.add(SakerPath.valueOf(in.readUTF()));
+		}
+		return result;
+	}
+
+	private static void moveAtomic(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from, to);
+		}
+	}
+
+	private static void touch(Path path) throws IOException {
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	private static long getFileSizeOrZero(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static long getDirectorySize(Path dir) throws IOException {
+		long result = 0;
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path p : ds) {
+				result += Files.size(p);
+			}
+		}
+		return result;
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(path)) {
+				for (Path p : ds) {
+					deleteRecursively(p);
+				}
+			} catch (NoSuchFileException e) {
+				return;
+			}
+		}
+		Files.deleteIfExists(path);
+	}
+
+	private static long parseSize(String param) throws IllegalArgumentException {
+		if (param == null || param.isEmpty()) {
+			return DEFAULT_CACHE_SIZE;
+		}
+		try {
+			return ClangUtils.parseByteSize(param);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid cache size: " + param, e);
+		}
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError("SHA-256 is not available.", e);
+		}
+	}
+
+	private static void updateDigest(MessageDigest digest, String s) {
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+		//separator
+		digest.update((byte) 0);
+	}
+
+	private static void updateDigestObject(MessageDigest digest, Object obj) throws IOException {
+		try (UnsyncByteArrayOutputStream baos = new UnsyncByteArrayOutputStream()) {
+			try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+				oos.writeObject(obj);
+			}
+			ByteArrayRegion bytes = baos.toByteArrayRegion();
+			digest.update(bytes.getArray(), bytes.getOffset(), bytes.getLength());
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * The source files waiting for compilation, grouped by the precompiled header they use.
+ * <p>
+ * The most expensive entry is taken first among the ones that can be compiled right away on the caller machine, i.e.
+ * which don't use a precompiled header or the header is already compiled there. If there are no such entries, the
+ * most expensive remaining entry is taken, and the caller waits for its precompiled header.
+ * <p>
+ * The entries are expected to be added in increasing cost order, as they are prepended to their group.
+ */
+final class CompilationQueue {
+	private static final class QueueEntry {
+		protected final FileCompilationConfiguration entry;
+		protected final long estimatedCost;
+
+		public QueueEntry(FileCompilationConfiguration entry, long estimatedCost) {
+			this.entry = entry;
+			this.estimatedCost = estimatedCost;
+		}
+	}
+
+	/**
+	 * The entries mapped to the output file names of their precompiled headers, or <code>null</code> for the entries
+	 * without one.
+	 */
+	private final Map<String, Deque<QueueEntry>> groups = new HashMap<>();
+
+	public CompilationQueue() {
+	}
+
+	public synchronized void add(FileCompilationConfiguration entry, Long estimatedcost) {
+		groups.computeIfAbsent(entry.getPrecompiledHeaderOutFileName(), x -> new ArrayDeque<>())
+				.addFirst(new QueueEntry(entry, estimatedcost == null ? 0 : estimatedcost));
+	}
+
+	/**
+	 * Takes the next entry to compile.
+	 *
+	 * @param readyprecompiledheaders
+	 *            The output file names of the precompiled headers that are compiled on the caller machine.
+	 * @return The entry or <code>null</code> if the queue is empty.
+	 */
+	public synchronized FileCompilationConfiguration take(Set<String> readyprecompiledheaders) {
+		Deque<QueueEntry> best = null;
+		Deque<QueueEntry> bestwaiting = null;
+		for (Iterator<Entry<String, Deque<QueueEntry>>> it = groups.entrySet().iterator(); it.hasNext();) {
+			Entry<String, Deque<QueueEntry>> groupentry = it.next();
+			Deque<QueueEntry> group = groupentry.getValue();
+			QueueEntry head = group.peekFirst();
+			if (head == null) {
+				it.remove();
+				continue;
+			}
+			String pchoutfilename = groupentry.getKey();
+			if (pchoutfilename == null || readyprecompiledheaders.contains(pchoutfilename)) {
+				if (best == null || head.estimatedCost > best.peekFirst().estimatedCost) {
+					best = group;
+				}
+			} else if (bestwaiting == null || head.estimatedCost > bestwaiting.peekFirst().estimatedCost) {
+				bestwaiting = group;
+			}
+		}
+		if (best == null) {
+			best = bestwaiting;
+			if (best == null) {
+				return null;
+			}
+		}
+		return best.pollFirst().entry;
+	}
+
+	public synchronized boolean isEmpty() {
+		for (Deque<QueueEntry> group : groups.values()) {
+			if (!group.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if there are entries in the queue that use the given precompiled header.
+	 */
+	public synchronized boolean hasEntries(String pchoutfilename) {
+		Deque<QueueEntry> group = groups.get(pchoutfilename);
+		return group != null && !group.isEmpty();
+	}
+}
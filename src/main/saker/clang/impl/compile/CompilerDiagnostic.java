@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.List;
+
+import saker.build.file.path.SakerPath;
+
+/**
+ * A diagnostic reported by the compiler in a structured format.
+ * <p>
+ * The diagnostic is rendered to its textual representation only when it is displayed.
+ */
+public class CompilerDiagnostic implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The execution path of the file the diagnostic is reported for.
+	 */
+	private SakerPath path;
+	/**
+	 * The path of the file as reported by the compiler, if it has no corresponding execution path.
+	 */
+	private String localPath;
+	private int line;
+	private int column;
+	private String severity;
+	private String message;
+
+	/**
+	 * For {@link Externalizable}.
+	 */
+	public CompilerDiagnostic() {
+	}
+
+	public CompilerDiagnostic(SakerPath path, String localPath, int line, int column, String severity,
+			String message) {
+		this.path = path;
+		this.localPath = localPath;
+		this.line = line;
+		this.column = column;
+		this.severity = severity;
+		this.message = message;
+	}
+
+	public SakerPath getPath() {
+		return path;
+	}
+
+	public String getLocalPath() {
+		return localPath;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	public String getSeverity() {
+		return severity;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public boolean isError() {
+		return "error".equals(severity) || "fatal error".equals(severity);
+	}
+
+	/**
+	 * Renders the diagnostic the same way as clang does in its textual output.
+	 * <p>
+	 * The paths are displayed relative to the working directory if possible.
+	 *
+	 * @param sb
+	 *            The output.
+	 * @param workingdir
+	 *            The working directory to display the paths relative to. May be <code>null</code>.
+	 */
+	public void render(StringBuilder sb, SakerPath workingdir) {
+		boolean haslocation = true;
+		if (path != null) {
+			if (workingdir != null && path.startsWith(workingdir)) {
+				sb.append(workingdir.relativize(path));
+			} else {
+				sb.append(path);
+			}
+		} else if (localPath != null) {
+			sb.append(localPath);
+		} else {
+			haslocation = false;
+		}
+		if (haslocation) {
+			if (line > 0) {
+				sb.append(':');
+				sb.append(line);
+				if (column > 0) {
+					sb.append(':');
+					sb.append(column);
+				}
+			}
+			sb.append(": ");
+		}
+		sb.append(severity);
+		sb.append(": ");
+		sb.append(message);
+		sb.append('\n');
+	}
+
+	public static String render(List<CompilerDiagnostic> diagnostics, SakerPath workingdir) {
+		StringBuilder sb = new StringBuilder();
+		for (CompilerDiagnostic diag : diagnostics) {
+			diag.render(sb, workingdir);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeObject(path);
+		out.writeObject(localPath);
+		out.writeInt(line);
+		out.writeInt(column);
+		out.writeObject(severity);
+		out.writeObject(message);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		path = (SakerPath) in.readObject();
+		localPath = (String) in.readObject();
+		line = in.readInt();
+		column = in.readInt();
+		severity = (String) in.readObject();
+		message = (String) in.readObject();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		render(sb, null);
+		return "CompilerDiagnostic[" + sb.toString().trim() + "]";
+	}
+}
@@ -17,13 +17,24 @@ package saker.clang.impl.compile;
 
 import java.io.Externalizable;
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -31,7 +42,7 @@ import saker.build.file.content.ContentDescriptor;
 import saker.build.file.path.SakerPath;
 import saker.build.file.provider.RootFileProviderKey;
 import saker.build.task.EnvironmentSelectionResult;
-import saker.build.thirdparty.saker.util.ObjectUtils;
+import saker.build.thirdparty.saker.util.ImmutableUtils;
 import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
 import saker.build.thirdparty.saker.util.io.SerialUtils;
 import saker.sdk.support.api.SDKDescription;
@@ -40,6 +51,13 @@ import saker.sdk.support.api.SDKSupportUtils;
 public class CompilerState implements Externalizable {
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * The version of the serialized format of the compiler state.
+	 * <p>
+	 * Should be incremented when the format changes. States with different versions are not read.
+	 */
+	private static final int FORMAT_VERSION = 8;
+
 	public static class PrecompiledHeaderState implements Externalizable {
 		private static final long serialVersionUID = 1L;
 
@@ -106,6 +124,65 @@ public class CompilerState implements Externalizable {
 
 	}
 
+	/**
+	 * The state of an automatically synthesized precompiled header.
+	 * <p>
+	 * The precompiled header is an umbrella header that includes the member headers. It is used by the source files
+	 * that have the same compilation properties and include all the members.
+	 */
+	public static class AutoPrecompiledHeaderState implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private String outFileName;
+		/**
+		 * The compilation properties of the source files that use the precompiled header, without the file location.
+		 */
+		private FileCompilationProperties groupProperties;
+		private NavigableSet<SakerPath> members;
+
+		/**
+		 * For {@link Externalizable}.
+		 */
+		public AutoPrecompiledHeaderState() {
+		}
+
+		public AutoPrecompiledHeaderState(String outFileName, FileCompilationProperties groupProperties,
+				NavigableSet<SakerPath> members) {
+			this.outFileName = outFileName;
+			this.groupProperties = groupProperties;
+			this.members = members;
+		}
+
+		public String getOutFileName() {
+			return outFileName;
+		}
+
+		public FileCompilationProperties getGroupProperties() {
+			return groupProperties;
+		}
+
+		/**
+		 * Gets the absolute execution paths of the headers included by the umbrella header.
+		 */
+		public NavigableSet<SakerPath> getMembers() {
+			return members;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeObject(outFileName);
+			out.writeObject(groupProperties);
+			SerialUtils.writeExternalCollection(out, members);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			outFileName = (String) in.readObject();
+			groupProperties = (FileCompilationProperties) in.readObject();
+			members = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+		}
+	}
+
 	public static class CompiledFileState implements Externalizable {
 		private static final long serialVersionUID = 1L;
 
@@ -124,6 +201,47 @@ public class CompilerState implements Externalizable {
 		private NavigableSet<SakerPath> failedIncludes;
 
 		private boolean successful;
+		/**
+		 * Whether the compiler process was terminated as it didn't finish in time.
+		 */
+		private boolean timedOut;
+		/**
+		 * The wall clock time of the compiler process invocation in nanoseconds, or 0 if unknown.
+		 */
+		private long compilationDurationNanos;
+		/**
+		 * The peak resident memory of the compiler process in bytes, or 0 if unknown.
+		 */
+		private long peakMemoryBytes;
+		/**
+		 * The user and system CPU time of the compiler process in nanoseconds, or 0 if unknown.
+		 */
+		private long userCpuNanos;
+		private long systemCpuNanos;
+		/**
+		 * The structured diagnostics reported by the compiler, or <code>null</code> if they were reported as text in
+		 * the process output.
+		 */
+		private List<CompilerDiagnostic> diagnostics;
+		/**
+		 * The summary of the time trace of the compilation, or <code>null</code> if it wasn't traced.
+		 */
+		private TimeTraceSummary timeTrace;
+
+		/**
+		 * The compact encoding of the fields other than the include sets, and the dictionary it references.
+		 * <p>
+		 * Set when the state is read or written, and cleared when it is modified, so the unchanged states are written
+		 * without encoding them again.
+		 */
+		private byte[] encodedFields;
+		private CompactStateSerialization.Dictionary encodedDictionary;
+		/**
+		 * Whether the fields are yet to be decoded from {@link #encodedFields}.
+		 * <p>
+		 * The read states are decoded when they are first accessed, so the ones that aren't used are not decoded.
+		 */
+		private volatile boolean fieldsPending;
 
 		/**
 		 * For {@link Externalizable}.
@@ -138,30 +256,93 @@ public class CompilerState implements Externalizable {
 		}
 
 		public void setSuccessful(boolean successful) {
+			fieldsModified();
 			this.successful = successful;
 		}
 
 		public boolean isSuccessful() {
+			decodeFields();
 			return successful;
 		}
 
+		public void setTimedOut(boolean timedOut) {
+			fieldsModified();
+			this.timedOut = timedOut;
+		}
+
+		public boolean isTimedOut() {
+			decodeFields();
+			return timedOut;
+		}
+
+		public void setCompilationDurationNanos(long compilationDurationNanos) {
+			fieldsModified();
+			this.compilationDurationNanos = compilationDurationNanos;
+		}
+
+		public long getCompilationDurationNanos() {
+			decodeFields();
+			return compilationDurationNanos;
+		}
+
+		public void setPeakMemoryBytes(long peakMemoryBytes) {
+			fieldsModified();
+			this.peakMemoryBytes = peakMemoryBytes;
+		}
+
+		public long getPeakMemoryBytes() {
+			decodeFields();
+			return peakMemoryBytes;
+		}
+
+		public void setCpuNanos(long userCpuNanos, long systemCpuNanos) {
+			fieldsModified();
+			this.userCpuNanos = userCpuNanos;
+			this.systemCpuNanos = systemCpuNanos;
+		}
+
+		public long getUserCpuNanos() {
+			decodeFields();
+			return userCpuNanos;
+		}
+
+		public long getSystemCpuNanos() {
+			decodeFields();
+			return systemCpuNanos;
+		}
+
+		public TimeTraceSummary getTimeTrace() {
+			decodeFields();
+			return timeTrace;
+		}
+
+		public void setTimeTrace(TimeTraceSummary timeTrace) {
+			fieldsModified();
+			this.timeTrace = timeTrace;
+		}
+
 		public SakerPath getOutputObjectPath() {
+			decodeFields();
 			return outputObjectPath;
 		}
 
 		public ContentDescriptor getOutputObjectContents() {
+			decodeFields();
 			return outputObjectContents;
 		}
 
 		public FileCompilationConfiguration getCompilationConfiguration() {
+			decodeFields();
 			return compilationConfiguration;
 		}
 
 		public ContentDescriptor getInputContents() {
+			decodeFields();
 			return inputContents;
 		}
 
 		public ByteArrayRegion getCompilerProcessOutput() {
+			decodeFields();
 			return compilerProcessOutput;
 		}
 
@@ -174,14 +355,27 @@ public class CompilerState implements Externalizable {
 		}
 
 		public void setCompilerProcessOutput(ByteArrayRegion compilerProcessOutput) {
+			fieldsModified();
 			this.compilerProcessOutput = compilerProcessOutput;
 		}
 
+		public List<CompilerDiagnostic> getDiagnostics() {
+			decodeFields();
+			return diagnostics;
+		}
+
+		public void setDiagnostics(List<CompilerDiagnostic> diagnostics) {
+			fieldsModified();
+			this.diagnostics = diagnostics;
+		}
+
 		public void setInputContents(ContentDescriptor inputContents) {
+			fieldsModified();
 			this.inputContents = inputContents;
 		}
 
 		public void setObjectOutputContents(SakerPath outputpath, ContentDescriptor outputContents) {
+			fieldsModified();
 			this.outputObjectPath = outputpath;
 			this.outputObjectContents = outputContents;
 		}
@@ -196,34 +390,204 @@ public class CompilerState implements Externalizable {
 
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
+			decodeFields();
+			writeExternalFields(out);
+			SerialUtils.writeExternalCollection(out, includes);
+			SerialUtils.writeExternalCollection(out, failedIncludes);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			readExternalFields(in);
+			includes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+			failedIncludes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+		}
+
+		/**
+		 * Writes the fields of the state other than the include sets.
+		 */
+		void writeExternalFields(ObjectOutput out) throws IOException {
 			out.writeObject(inputContents);
 			out.writeObject(compilationConfiguration);
 			out.writeObject(outputObjectPath);
 			out.writeObject(outputObjectContents);
 			out.writeObject(compilerProcessOutput);
 			out.writeBoolean(successful);
-			SerialUtils.writeExternalCollection(out, includes);
-			SerialUtils.writeExternalCollection(out, failedIncludes);
+			out.writeBoolean(timedOut);
+			out.writeLong(compilationDurationNanos);
+			out.writeLong(peakMemoryBytes);
+			out.writeLong(userCpuNanos);
+			out.writeLong(systemCpuNanos);
+			SerialUtils.writeExternalCollection(out, diagnostics);
+			out.writeObject(timeTrace);
 		}
 
-		@Override
-		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		void readExternalFields(ObjectInput in) throws IOException, ClassNotFoundException {
 			inputContents = (ContentDescriptor) in.readObject();
 			compilationConfiguration = (FileCompilationConfiguration) in.readObject();
 			outputObjectPath = (SakerPath) in.readObject();
 			outputObjectContents = (ContentDescriptor) in.readObject();
 			compilerProcessOutput = (ByteArrayRegion) in.readObject();
 			successful = in.readBoolean();
-			includes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
-			failedIncludes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+			timedOut = in.readBoolean();
+			compilationDurationNanos = in.readLong();
+			peakMemoryBytes = in.readLong();
+			userCpuNanos = in.readLong();
+			systemCpuNanos = in.readLong();
+			diagnostics = SerialUtils.readExternalImmutableList(in);
+			timeTrace = (TimeTraceSummary) in.readObject();
+		}
+
+		/**
+		 * Writes the fields of the state other than the include sets using the compact encoding.
+		 */
+		void writeCompactFields(CompactStateSerialization.Writer writer) throws IOException {
+			decodeFields();
+			writer.writeObject(inputContents);
+			writer.writeCompilationConfiguration(compilationConfiguration);
+			writer.writePath(outputObjectPath);
+			writer.writeObject(outputObjectContents);
+			writer.writeBytes(compilerProcessOutput);
+			writer.writeBoolean(successful);
+			writer.writeBoolean(timedOut);
+			writer.writeVarLong(compilationDurationNanos);
+			writer.writeVarLong(peakMemoryBytes);
+			writer.writeVarLong(userCpuNanos);
+			writer.writeVarLong(systemCpuNanos);
+			if (diagnostics == null) {
+				writer.writeVarInt(0);
+			} else {
+				writer.writeVarInt(diagnostics.size() + 1);
+				for (CompilerDiagnostic diag : diagnostics) {
+					writer.writePath(diag.getPath());
+					writer.writeString(diag.getLocalPath());
+					writer.writeVarInt(diag.getLine());
+					writer.writeVarInt(diag.getColumn());
+					writer.writeString(diag.getSeverity());
+					writer.writeString(diag.getMessage());
+				}
+			}
+			if (timeTrace == null) {
+				writer.writeBoolean(false);
+			} else {
+				writer.writeBoolean(true);
+				timeTrace.writeCompact(writer);
+			}
+		}
+
+		private void readCompactFields(CompactStateSerialization.Reader reader) throws IOException {
+			inputContents = (ContentDescriptor) reader.readObject();
+			compilationConfiguration = reader.readCompilationConfiguration();
+			outputObjectPath = reader.readPath();
+			outputObjectContents = (ContentDescriptor) reader.readObject();
+			compilerProcessOutput = reader.readBytes();
+			successful = reader.readBoolean();
+			timedOut = reader.readBoolean();
+			compilationDurationNanos = reader.readVarLong();
+			peakMemoryBytes = reader.readVarLong();
+			userCpuNanos = reader.readVarLong();
+			systemCpuNanos = reader.readVarLong();
+			int diagcount = reader.readVarInt();
+			if (diagcount == 0) {
+				diagnostics = null;
+			} else {
+				CompilerDiagnostic[] diags = new CompilerDiagnostic[diagcount - 1];
+				for (int i = 0; i < diags.length; i++) {
+					SakerPath path = reader.readPath();
+					String localpath = reader.readString();
+					int line = reader.readVarInt();
+					int column = reader.readVarInt();
+					String severity = reader.readString();
+					String message = reader.readString();
+					diags[i] = new CompilerDiagnostic(path, localpath, line, column, severity, message);
+				}
+				diagnostics = ImmutableUtils.asUnmodifiableArrayList(diags);
+			}
+			timeTrace = reader.readBoolean() ? TimeTraceSummary.readCompact(reader) : null;
+		}
+
+		/**
+		 * Sets the encoded fields of a read state, which are decoded when the state is first accessed.
+		 */
+		void setPendingFields(CompactStateSerialization.Dictionary dictionary, byte[] fields) {
+			this.encodedDictionary = dictionary;
+			this.encodedFields = fields;
+			this.fieldsPending = true;
+		}
+
+		/**
+		 * Gets the encoded fields if they were encoded with the given dictionary.
+		 */
+		synchronized byte[] getEncodedFields(CompactStateSerialization.Dictionary dictionary) {
+			return encodedDictionary == dictionary ? encodedFields : null;
+		}
+
+		synchronized CompactStateSerialization.Dictionary getEncodedDictionary() {
+			return encodedDictionary;
+		}
+
+		/**
+		 * Sets the encoded fields after the state was written.
+		 * <p>
+		 * The dictionary may differ from the one the fields were encoded with, if it contains the same entries at the
+		 * same indices.
+		 */
+		synchronized void setEncodedFields(CompactStateSerialization.Dictionary dictionary, byte[] fields) {
+			this.encodedDictionary = dictionary;
+			this.encodedFields = fields;
+		}
+
+		private void decodeFields() {
+			if (!fieldsPending) {
+				return;
+			}
+			synchronized (this) {
+				if (!fieldsPending) {
+					return;
+				}
+				try {
+					readCompactFields(new CompactStateSerialization.Reader(encodedDictionary, encodedFields));
+				} catch (IOException e) {
+					throw new UncheckedIOException("Failed to decode compiled file state.", e);
+				}
+				fieldsPending = false;
+			}
+		}
+
+		private void fieldsModified() {
+			decodeFields();
+			synchronized (this) {
+				this.encodedDictionary = null;
+				this.encodedFields = null;
+			}
 		}
 
 	}
 
 	//maps out file names to states
 	private NavigableMap<String, CompiledFileState> executionCompiledFiles = Collections.emptyNavigableMap();
+	/**
+	 * The deduplicated include and failed include sets of the compiled file states.
+	 * <p>
+	 * The compiled file states reference the set instances in this list, and the sets share the path instances.
+	 */
+	private transient List<NavigableSet<SakerPath>> includeSets = Collections.emptyList();
+	/**
+	 * The out file names of the compiled files that use a given include set. Indexed the same way as
+	 * {@link #includeSets}.
+	 */
+	private transient List<List<String>> includeSetDependents = Collections.emptyList();
+	/**
+	 * Inverted index that maps the include paths to the indices of the include sets that contain them.
+	 */
+	private transient Map<SakerPath, int[]> includePathSetIndices = Collections.emptyMap();
+	/**
+	 * Lazily created index for the file names of the include paths. Uses case insensitive ordering.
+	 */
+	private transient NavigableMap<String, List<SakerPath>> includeFileNamePaths;
 	private Map<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> precompiledHeaders = Collections
 			.emptyMap();
+	private List<AutoPrecompiledHeaderState> autoPrecompiledHeaders = Collections.emptyList();
 	private NavigableMap<String, SDKDescription> sdkDescriptions;
 	private EnvironmentSelectionResult environmentSelection;
 
@@ -242,8 +606,17 @@ public class CompilerState implements Externalizable {
 		this.precompiledHeaders = precompiledHeaders;
 	}
 
+	public List<AutoPrecompiledHeaderState> getAutoPrecompiledHeaders() {
+		return autoPrecompiledHeaders;
+	}
+
+	public void setAutoPrecompiledHeaders(List<AutoPrecompiledHeaderState> autoPrecompiledHeaders) {
+		this.autoPrecompiledHeaders = autoPrecompiledHeaders;
+	}
+
 	public void setExecutionCompiledFiles(NavigableMap<String, CompiledFileState> executionCompiledFiles) {
 		this.executionCompiledFiles = executionCompiledFiles;
+		internIncludeSets();
 	}
 
 	public void setSdkDescriptions(NavigableMap<String, SDKDescription> sdkDescriptions) {
@@ -302,17 +675,36 @@ public class CompilerState implements Externalizable {
 	}
 
 	public NavigableSet<SakerPath> getAllReferencedIncludes() {
-		TreeSet<SakerPath> result = new TreeSet<>();
+		Set<NavigableSet<SakerPath>> sets = Collections.newSetFromMap(new IdentityHashMap<>());
 		for (CompiledFileState state : executionCompiledFiles.values()) {
-			ObjectUtils.addAll(result, state.getIncludes());
+			NavigableSet<SakerPath> set = state.getIncludes();
+			if (set != null) {
+				sets.add(set);
+			}
 		}
-		return result;
+		return unionIncludeSets(sets);
 	}
 
 	public NavigableSet<SakerPath> getAllReferencedFailedIncludes() {
-		TreeSet<SakerPath> result = new TreeSet<>();
+		Set<NavigableSet<SakerPath>> sets = Collections.newSetFromMap(new IdentityHashMap<>());
 		for (CompiledFileState state : executionCompiledFiles.values()) {
-			ObjectUtils.addAll(result, state.getFailedIncludes());
+			NavigableSet<SakerPath> set = state.getFailedIncludes();
+			if (set != null) {
+				sets.add(set);
+			}
+		}
+		return unionIncludeSets(sets);
+	}
+
+	/**
+	 * Gets the out file names of the files whose compilation was terminated as it didn't finish in time.
+	 */
+	public NavigableSet<String> getTimedOutOutFileNames() {
+		TreeSet<String> result = new TreeSet<>();
+		for (Entry<String, CompiledFileState> entry : executionCompiledFiles.entrySet()) {
+			if (entry.getValue().isTimedOut()) {
+				result.add(entry.getKey());
+			}
 		}
 		return result;
 	}
@@ -326,23 +718,361 @@ public class CompilerState implements Externalizable {
 		return true;
 	}
 
+	private static NavigableSet<SakerPath> unionIncludeSets(Set<NavigableSet<SakerPath>> sets) {
+		TreeSet<SakerPath> result = new TreeSet<>();
+		for (NavigableSet<SakerPath> set : sets) {
+			result.addAll(set);
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the out file names of the compiled files which include any of the given paths, or include a file with any
+	 * of the given file names.
+	 * <p>
+	 * Both the includes and failed includes of the compiled files are checked.
+	 * 
+	 * @param includepaths
+	 *            The include paths to look up.
+	 * @param includefilenames
+	 *            The file names to look up. Compared in a case insensitive manner.
+	 * @return The out file names.
+	 */
+	public NavigableSet<String> getIncludeDependentOutFileNames(Collection<SakerPath> includepaths,
+			Collection<String> includefilenames) {
+		BitSet setindices = new BitSet(includeSets.size());
+		for (SakerPath path : includepaths) {
+			addIncludeSetIndices(setindices, path);
+		}
+		if (!includefilenames.isEmpty()) {
+			NavigableMap<String, List<SakerPath>> filenamepaths = getIncludeFileNamePaths();
+			for (String fname : includefilenames) {
+				List<SakerPath> paths = filenamepaths.get(fname);
+				if (paths == null) {
+					continue;
+				}
+				for (SakerPath path : paths) {
+					addIncludeSetIndices(setindices, path);
+				}
+			}
+		}
+		NavigableSet<String> result = new TreeSet<>();
+		for (int i = setindices.nextSetBit(0); i >= 0; i = setindices.nextSetBit(i + 1)) {
+			result.addAll(includeSetDependents.get(i));
+		}
+		return result;
+	}
+
+	private void addIncludeSetIndices(BitSet setindices, SakerPath path) {
+		int[] indices = includePathSetIndices.get(path);
+		if (indices == null) {
+			return;
+		}
+		for (int idx : indices) {
+			setindices.set(idx);
+		}
+	}
+
+	private NavigableMap<String, List<SakerPath>> getIncludeFileNamePaths() {
+		NavigableMap<String, List<SakerPath>> result = includeFileNamePaths;
+		if (result == null) {
+			result = new TreeMap<>(String::compareToIgnoreCase);
+			for (SakerPath path : includePathSetIndices.keySet()) {
+				result.computeIfAbsent(path.getFileName(), x -> new ArrayList<>(1)).add(path);
+			}
+			includeFileNamePaths = result;
+		}
+		return result;
+	}
+
+	private void internIncludeSets() {
+		//the sets are first looked up by identity, so the already deduplicated sets of the
+		//previous states don't need to be hashed
+		Map<NavigableSet<SakerPath>, NavigableSet<SakerPath>> identitysets = new IdentityHashMap<>();
+		Map<NavigableSet<SakerPath>, NavigableSet<SakerPath>> sets = new LinkedHashMap<>();
+		Map<SakerPath, SakerPath> paths = new HashMap<>();
+		for (CompiledFileState state : executionCompiledFiles.values()) {
+			state.includes = internIncludeSet(state.includes, identitysets, sets, paths);
+			state.failedIncludes = internIncludeSet(state.failedIncludes, identitysets, sets, paths);
+		}
+		this.includeSets = new ArrayList<>(sets.values());
+
+		Map<NavigableSet<SakerPath>, Integer> setindices = getIncludeSetIndices();
+		List<List<String>> dependents = createIncludeSetDependentsList(includeSets.size());
+		for (Entry<String, CompiledFileState> entry : executionCompiledFiles.entrySet()) {
+			CompiledFileState state = entry.getValue();
+			addIncludeSetDependent(dependents, getIncludeSetIndex(setindices, state.includes), entry.getKey());
+			addIncludeSetDependent(dependents, getIncludeSetIndex(setindices, state.failedIncludes), entry.getKey());
+		}
+		this.includeSetDependents = dependents;
+
+		Map<SakerPath, IntArrayBuilder> pathsetindices = new HashMap<>();
+		for (int i = 0; i < includeSets.size(); i++) {
+			for (SakerPath path : includeSets.get(i)) {
+				pathsetindices.computeIfAbsent(path, x -> new IntArrayBuilder()).add(i);
+			}
+		}
+		Map<SakerPath, int[]> pathsetindicesarrays = new HashMap<>();
+		for (Entry<SakerPath, IntArrayBuilder> entry : pathsetindices.entrySet()) {
+			pathsetindicesarrays.put(entry.getKey(), entry.getValue().toArray());
+		}
+		this.includePathSetIndices = pathsetindicesarrays;
+		this.includeFileNamePaths = null;
+	}
+
+	private Map<NavigableSet<SakerPath>, Integer> getIncludeSetIndices() {
+		Map<NavigableSet<SakerPath>, Integer> setindices = new IdentityHashMap<>();
+		for (NavigableSet<SakerPath> set : includeSets) {
+			setindices.put(set, setindices.size());
+		}
+		return setindices;
+	}
+
+	private static List<List<String>> createIncludeSetDependentsList(int setcount) {
+		List<List<String>> result = new ArrayList<>(setcount);
+		for (int i = 0; i < setcount; i++) {
+			result.add(new ArrayList<>(1));
+		}
+		return result;
+	}
+
+	private static void addIncludeSetDependent(List<List<String>> dependents, int setindex, String outfilename) {
+		if (setindex < 0) {
+			return;
+		}
+		dependents.get(setindex).add(outfilename);
+	}
+
+	private static final class IntArrayBuilder {
+		private int[] items = new int[4];
+		private int size;
+
+		public void add(int item) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+			}
+			items[size++] = item;
+		}
+
+		public int[] toArray() {
+			return Arrays.copyOf(items, size);
+		}
+	}
+
+	private static NavigableSet<SakerPath> internIncludeSet(NavigableSet<SakerPath> set,
+			Map<NavigableSet<SakerPath>, NavigableSet<SakerPath>> identitysets,
+			Map<NavigableSet<SakerPath>, NavigableSet<SakerPath>> sets, Map<SakerPath, SakerPath> paths) {
+		if (set == null) {
+			return null;
+		}
+		NavigableSet<SakerPath> result = identitysets.get(set);
+		if (result != null) {
+			return result;
+		}
+		result = sets.get(set);
+		if (result == null) {
+			SakerPath[] items = new SakerPath[set.size()];
+			int i = 0;
+			for (SakerPath path : set) {
+				SakerPath prev = paths.putIfAbsent(path, path);
+				items[i++] = prev == null ? path : prev;
+			}
+			result = ImmutableUtils.makeImmutableNavigableSet(items);
+			sets.put(result, result);
+			identitysets.put(result, result);
+		}
+		identitysets.put(set, result);
+		return result;
+	}
+
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
-		SerialUtils.writeExternalMap(out, executionCompiledFiles);
+		CompactStateSerialization.Dictionary basedictionary = getReusableDictionary();
+		CompactStateSerialization.Writer writer = new CompactStateSerialization.Writer(basedictionary);
+
+		//the paths and the include sets are written as tables, and only referenced by index from the file states
+		Map<SakerPath, Integer> pathindices = new IdentityHashMap<>();
+		List<SakerPath> pathtable = new ArrayList<>();
+		for (NavigableSet<SakerPath> set : includeSets) {
+			for (SakerPath path : set) {
+				if (pathindices.putIfAbsent(path, pathtable.size()) == null) {
+					pathtable.add(path);
+				}
+			}
+		}
+		int[] pathdictionaryindices = new int[pathtable.size()];
+		for (int i = 0; i < pathdictionaryindices.length; i++) {
+			pathdictionaryindices[i] = writer.getPathIndex(pathtable.get(i));
+		}
+
+		//encode the file states before writing the dictionary, as they add entries to it
+		//the states that were encoded with the base dictionary are written as is
+		int filecount = executionCompiledFiles.size();
+		int[] outfilenameindices = new int[filecount];
+		byte[][] records = new byte[filecount][];
+		int recordidx = 0;
+		for (Entry<String, CompiledFileState> entry : executionCompiledFiles.entrySet()) {
+			CompiledFileState state = entry.getValue();
+			outfilenameindices[recordidx] = writer.getStringIndex(entry.getKey());
+			byte[] encoded = basedictionary == null ? null : state.getEncodedFields(basedictionary);
+			if (encoded == null) {
+				state.writeCompactFields(writer);
+				encoded = writer.finishRecord();
+			}
+			records[recordidx++] = encoded;
+		}
+
+		CompactStateSerialization.writeVarInt(out, FORMAT_VERSION);
+		CompactStateSerialization.Dictionary dictionary = writer.writeDictionary(out, filecount);
+
+		CompactStateSerialization.writeVarInt(out, pathdictionaryindices.length);
+		for (int idx : pathdictionaryindices) {
+			CompactStateSerialization.writeVarInt(out, idx);
+		}
+		Map<NavigableSet<SakerPath>, Integer> setindices = getIncludeSetIndices();
+		CompactStateSerialization.writeVarInt(out, includeSets.size());
+		for (NavigableSet<SakerPath> set : includeSets) {
+			CompactStateSerialization.writeVarInt(out, set.size());
+			for (SakerPath path : set) {
+				CompactStateSerialization.writeVarInt(out, pathindices.get(path));
+			}
+		}
+		//the inverted index of the include sets, in path table order
+		for (SakerPath path : pathtable) {
+			int[] indices = includePathSetIndices.get(path);
+			CompactStateSerialization.writeVarInt(out, indices.length);
+			for (int idx : indices) {
+				CompactStateSerialization.writeVarInt(out, idx);
+			}
+		}
+
+		//the records are length prefixed, so they can be read without decoding them
+		CompactStateSerialization.writeVarInt(out, filecount);
+		recordidx = 0;
+		for (CompiledFileState state : executionCompiledFiles.values()) {
+			byte[] encoded = records[recordidx];
+			CompactStateSerialization.writeVarInt(out, outfilenameindices[recordidx]);
+			//offset the indices by one, so null sets are written as 0
+			CompactStateSerialization.writeVarInt(out, getIncludeSetIndex(setindices, state.includes) + 1);
+			CompactStateSerialization.writeVarInt(out, getIncludeSetIndex(setindices, state.failedIncludes) + 1);
+			CompactStateSerialization.writeVarInt(out, encoded.length);
+			out.write(encoded);
+			//the written dictionary contains the entries of the base dictionary at the same indices
+			//so the reused records are valid with it as well
+			state.setEncodedFields(dictionary, encoded);
+			++recordidx;
+		}
 		SerialUtils.writeExternalMap(out, sdkDescriptions);
 		SerialUtils.writeExternalMap(out, precompiledHeaders, SerialUtils::writeExternalObject,
 				SerialUtils::writeExternalMap);
 		out.writeObject(environmentSelection);
+		SerialUtils.writeExternalCollection(out, autoPrecompiledHeaders);
+	}
+
+	/**
+	 * Gets the dictionary that most of the file states were encoded with, if the states should be written with it.
+	 * <p>
+	 * If too many of the states were replaced since the dictionary was created, <code>null</code> is returned, so the
+	 * entries that are no longer referenced are dropped by creating a new dictionary.
+	 */
+	private CompactStateSerialization.Dictionary getReusableDictionary() {
+		Map<CompactStateSerialization.Dictionary, Integer> counts = new IdentityHashMap<>();
+		CompactStateSerialization.Dictionary result = null;
+		int resultcount = 0;
+		for (CompiledFileState state : executionCompiledFiles.values()) {
+			CompactStateSerialization.Dictionary dictionary = state.getEncodedDictionary();
+			if (dictionary == null) {
+				continue;
+			}
+			int count = counts.merge(dictionary, 1, Integer::sum);
+			if (count > resultcount) {
+				result = dictionary;
+				resultcount = count;
+			}
+		}
+		if (result == null) {
+			return null;
+		}
+		if (resultcount * 2 < result.getRecordCount()
+				|| result.getEntryCount() > result.getCompactEntryCount() * 2) {
+			return null;
+		}
+		return result;
+	}
+
+	private static int getIncludeSetIndex(Map<NavigableSet<SakerPath>, Integer> setindices,
+			NavigableSet<SakerPath> set) {
+		if (set == null) {
+			return -1;
+		}
+		return setindices.get(set);
 	}
 
 	@Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-		executionCompiledFiles = SerialUtils.readExternalSortedImmutableNavigableMap(in);
+		int version = CompactStateSerialization.readVarInt(in);
+		if (version != FORMAT_VERSION) {
+			throw new InvalidObjectException("Unsupported compiler state format version: " + version);
+		}
+		CompactStateSerialization.Dictionary dictionary = CompactStateSerialization.Dictionary.read(in);
+
+		SakerPath[] pathtable = new SakerPath[CompactStateSerialization.readVarInt(in)];
+		for (int i = 0; i < pathtable.length; i++) {
+			pathtable[i] = dictionary.getPath(CompactStateSerialization.readVarInt(in));
+		}
+		int setcount = CompactStateSerialization.readVarInt(in);
+		List<NavigableSet<SakerPath>> sets = new ArrayList<>(setcount);
+		for (int i = 0; i < setcount; i++) {
+			SakerPath[] items = new SakerPath[CompactStateSerialization.readVarInt(in)];
+			for (int j = 0; j < items.length; j++) {
+				items[j] = pathtable[CompactStateSerialization.readVarInt(in)];
+			}
+			sets.add(ImmutableUtils.makeImmutableNavigableSet(items));
+		}
+		includeSets = sets;
+		Map<SakerPath, int[]> pathsetindices = new HashMap<>();
+		for (int i = 0; i < pathtable.length; i++) {
+			int[] indices = new int[CompactStateSerialization.readVarInt(in)];
+			for (int j = 0; j < indices.length; j++) {
+				indices[j] = CompactStateSerialization.readVarInt(in);
+			}
+			pathsetindices.put(pathtable[i], indices);
+		}
+		includePathSetIndices = pathsetindices;
+		List<List<String>> dependents = createIncludeSetDependentsList(setcount);
+
+		int filecount = CompactStateSerialization.readVarInt(in);
+		NavigableMap<String, CompiledFileState> compiledfiles = new TreeMap<>();
+		for (int i = 0; i < filecount; i++) {
+			String outfilename = dictionary.getString(CompactStateSerialization.readVarInt(in));
+			int includesetidx = CompactStateSerialization.readVarInt(in) - 1;
+			int failedincludesetidx = CompactStateSerialization.readVarInt(in) - 1;
+			//the fields are decoded when the state is first accessed
+			byte[] fields = new byte[CompactStateSerialization.readVarInt(in)];
+			in.readFully(fields);
+			CompiledFileState state = new CompiledFileState();
+			state.setPendingFields(dictionary, fields);
+			state.includes = getIncludeSet(sets, includesetidx);
+			state.failedIncludes = getIncludeSet(sets, failedincludesetidx);
+			addIncludeSetDependent(dependents, includesetidx, outfilename);
+			addIncludeSetDependent(dependents, failedincludesetidx, outfilename);
+			compiledfiles.put(outfilename, state);
+		}
+		includeSetDependents = dependents;
+		executionCompiledFiles = ImmutableUtils.unmodifiableNavigableMap(compiledfiles);
 		sdkDescriptions = SerialUtils.readExternalSortedImmutableNavigableMap(in,
 				SDKSupportUtils.getSDKNameComparator());
 		precompiledHeaders = SerialUtils.readExternalMap(new HashMap<>(), in, SerialUtils::readExternalObject,
 				SerialUtils::readExternalSortedImmutableNavigableMap);
 		environmentSelection = (EnvironmentSelectionResult) in.readObject();
+		autoPrecompiledHeaders = SerialUtils.readExternalImmutableList(in);
+	}
+
+	private static NavigableSet<SakerPath> getIncludeSet(List<NavigableSet<SakerPath>> sets, int index) {
+		if (index < 0) {
+			return null;
+		}
+		return sets.get(index);
 	}
 
 }
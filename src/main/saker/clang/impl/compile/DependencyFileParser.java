@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Parser for the make style dependency files that clang generates with the <code>-MMD -MF</code> arguments.
+ * <p>
+ * The parser works on the raw bytes of the file, and only creates a {@link String} for each path in it. Only the first
+ * rule of the file is parsed.
+ * <p>
+ * Expected format:
+ *
+ * <pre>
+ * /home/user/temp/build/saker.clang.compile/default/main.cpp.o: \
+ *   /home/user/temp/main.cpp /home/user/temp/main.h \
+ *   /home/user/temp/second\ header.h
+ * </pre>
+ *
+ * The target path of the rule is reported as well.
+ * <p>
+ * The instances can be reused, but they are not thread safe.
+ */
+final class DependencyFileParser {
+	private byte[] contents = {};
+	private byte[] pathBuffer = new byte[1024];
+	private int pathLength;
+
+	public void parse(Path depfile, Consumer<? super String> pathconsumer) throws IOException {
+		int len;
+		try (FileChannel channel = FileChannel.open(depfile, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException("Dependency file too large: " + depfile + " with size: " + size);
+			}
+			if (contents.length < size) {
+				contents = new byte[(int) size];
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(contents, 0, (int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("Dependency file was truncated during reading: " + depfile);
+				}
+			}
+			len = buffer.position();
+		}
+		parse(contents, 0, len, pathconsumer);
+	}
+
+	public void parse(byte[] bytes, int offset, int length, Consumer<? super String> pathconsumer) {
+		pathLength = 0;
+		int end = offset + length;
+		int linestart = offset;
+		outer:
+		while (linestart < end) {
+			int lineend = indexOf(bytes, '\n', linestart, end);
+			int nextlinestart = lineend + 1;
+			//trim the line
+			while (linestart < lineend && isWhitespace(bytes[linestart])) {
+				++linestart;
+			}
+			while (lineend > linestart && isWhitespace(bytes[lineend - 1])) {
+				--lineend;
+			}
+
+			for (int i = linestart; i < lineend; i++) {
+				byte c = bytes[i];
+				if (c == '\\') {
+					if (i + 1 == lineend) {
+						//continues on the next line
+						linestart = nextlinestart;
+						continue outer;
+					}
+					byte nc = bytes[i + 1];
+					++i;
+					if (nc == ' ') {
+						appendPathByte((byte) ' ');
+						continue;
+					}
+					//if clang is invoked in windows (e.g. Android NDK)
+					//then it can produce backslashes in regular paths
+					//so keep the backslash as is
+					appendPathByte((byte) '\\');
+					appendPathByte(nc);
+					continue;
+				}
+				if (c == ' ') {
+					//next file is coming up
+					flushPath(pathconsumer);
+					continue;
+				}
+				if (c == ':') {
+					if (i + 1 == lineend) {
+						//: at the end of line. finish the path and continue
+						flushPath(pathconsumer);
+						break;
+					}
+					if (bytes[i + 1] == ' ') {
+						//the end of the rule target
+						flushPath(pathconsumer);
+						++i;
+						continue;
+					}
+					//part of the path, e.g. drive separator
+				}
+				appendPathByte(c);
+			}
+			//reached end of line without any signal to continue
+			//line probably didn't end with \
+			break;
+		}
+		//add the last path of the last line if present
+		flushPath(pathconsumer);
+	}
+
+	private void appendPathByte(byte b) {
+		if (pathLength == pathBuffer.length) {
+			pathBuffer = Arrays.copyOf(pathBuffer, pathLength * 2);
+		}
+		pathBuffer[pathLength++] = b;
+	}
+
+	private void flushPath(Consumer<? super String> pathconsumer) {
+		if (pathLength == 0) {
+			return;
+		}
+		String path = new String(pathBuffer, 0, pathLength, StandardCharsets.UTF_8);
+		pathLength = 0;
+		pathconsumer.accept(path);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		//same as String.trim()
+		return b >= 0 && b <= ' ';
+	}
+
+	private static int indexOf(byte[] bytes, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == c) {
+				return i;
+			}
+		}
+		return end;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.runtime.execution.SakerLog;
+import saker.build.thirdparty.saker.util.ImmutableUtils;
+import saker.clang.impl.util.ClangUtils;
+import saker.clang.impl.util.CollectingProcessIOConsumer;
+
+/**
+ * Caches the <code>-cc1</code> command lines that the clang driver expands the compilation commands to.
+ * <p>
+ * Normally the clang driver is started for each compilation, which then starts the <code>-cc1</code> frontend process.
+ * If enabled with the {@value #ENVIRONMENT_PARAMETER_DIRECT_CC1} environment user parameter, the driver is only invoked
+ * once for each distinct compilation configuration with the <code>-###</code> argument, and the printed frontend
+ * command line is used as a template for the compilation of other source files with the same configuration.
+ * <p>
+ * The template is created by replacing the source, object and dependency file paths in the expanded command line with
+ * placeholders. If the expansion contains other arguments that may depend on these paths (e.g. split debug info
+ * outputs), or it consists of multiple jobs, the configuration is not cached, and the driver is used for it.
+ */
+final class DriverExpansionCache {
+	public static final String ENVIRONMENT_PARAMETER_DIRECT_CC1 = "saker.clang.compile.direct.cc1";
+
+	private static final char PLACEHOLDER_MARKER = '\0';
+	private static final String PLACEHOLDER_SOURCE = PLACEHOLDER_MARKER + "S" + PLACEHOLDER_MARKER;
+	private static final String PLACEHOLDER_OBJECT = PLACEHOLDER_MARKER + "O" + PLACEHOLDER_MARKER;
+	private static final String PLACEHOLDER_DEPENDENCY_FILE = PLACEHOLDER_MARKER + "D" + PLACEHOLDER_MARKER;
+	private static final String PLACEHOLDER_MAIN_FILE_NAME = PLACEHOLDER_MARKER + "N" + PLACEHOLDER_MARKER;
+
+	/**
+	 * Maps the compilation commands with placeholders to the <code>-cc1</code> command templates, or empty if the
+	 * driver needs to be used.
+	 */
+	private final ConcurrentHashMap<List<String>, Optional<List<String>>> templates = new ConcurrentHashMap<>();
+
+	public static boolean isEnabled(SakerEnvironment environment) {
+		return Boolean.parseBoolean(environment.getUserParameters().get(ENVIRONMENT_PARAMETER_DIRECT_CC1));
+	}
+
+	/**
+	 * Gets the frontend command line for the given compilation commands.
+	 *
+	 * @param environment
+	 *            The environment.
+	 * @param commands
+	 *            The driver commands.
+	 * @param workingdir
+	 *            The working directory of the compilation.
+	 * @param sourcepath
+	 *            The path of the compiled source file, as it is present in the commands.
+	 * @param objectpath
+	 *            The path of the output object file, as it is present in the commands.
+	 * @param depfilepath
+	 *            The path of the output dependency file, as it is present in the commands.
+	 * @return The frontend commands, or <code>null</code> if the driver should be used.
+	 * @throws InterruptedException
+	 *             If the current thread was interrupted.
+	 */
+	public List<String> getFrontendCommands(SakerEnvironment environment, List<String> commands, SakerPath workingdir,
+			String sourcepath, String objectpath, String depfilepath) throws InterruptedException {
+		List<String> key = new ArrayList<>(commands.size());
+		for (String cmd : commands) {
+			if (cmd.equals(sourcepath)) {
+				key.add(PLACEHOLDER_SOURCE);
+			} else if (cmd.equals(objectpath)) {
+				key.add(PLACEHOLDER_OBJECT);
+			} else if (cmd.equals(depfilepath)) {
+				key.add(PLACEHOLDER_DEPENDENCY_FILE);
+			} else {
+				key.add(cmd);
+			}
+		}
+		Optional<List<String>> template = templates.get(key);
+		if (template == null) {
+			template = Optional.ofNullable(
+					createTemplate(environment, commands, workingdir, sourcepath, objectpath, depfilepath));
+			templates.putIfAbsent(key, template);
+		}
+		if (!template.isPresent()) {
+			return null;
+		}
+		String mainfilename = getFileName(sourcepath);
+		List<String> result = new ArrayList<>(template.get().size());
+		for (String arg : template.get()) {
+			if (arg.indexOf(PLACEHOLDER_MARKER) < 0) {
+				result.add(arg);
+				continue;
+			}
+			result.add(arg.replace(PLACEHOLDER_SOURCE, sourcepath).replace(PLACEHOLDER_OBJECT, objectpath)
+					.replace(PLACEHOLDER_DEPENDENCY_FILE, depfilepath)
+					.replace(PLACEHOLDER_MAIN_FILE_NAME, mainfilename));
+		}
+		return result;
+	}
+
+	private static List<String> createTemplate(SakerEnvironment environment, List<String> commands,
+			SakerPath workingdir, String sourcepath, String objectpath, String depfilepath)
+			throws InterruptedException {
+		List<String> expandcommands = new ArrayList<>(commands.size() + 1);
+		expandcommands.add(commands.get(0));
+		expandcommands.add("-###");
+		expandcommands.addAll(commands.subList(1, commands.size()));
+		CollectingProcessIOConsumer outputconsumer = new CollectingProcessIOConsumer();
+		int procresult;
+		try {
+			procresult = ClangUtils.runClangProcess(environment, expandcommands, workingdir, outputconsumer, null,
+					true);
+		} catch (IOException e) {
+			SakerLog.error().verbose().println("Failed to expand clang driver commands: " + e);
+			return null;
+		}
+		if (procresult != 0) {
+			return null;
+		}
+		List<List<String>> jobs = parseJobs(outputconsumer.getOutputString());
+		if (jobs.size() != 1) {
+			//no jobs, or additional jobs, e.g. separate assembler invocation
+			return null;
+		}
+		List<String> job = jobs.get(0);
+		if (job.size() < 2 || !"-cc1".equals(job.get(1))) {
+			return null;
+		}
+		String mainfilename = getFileName(sourcepath);
+		String objectfilename = getFileName(objectpath);
+		List<String> template = new ArrayList<>(job.size());
+		for (int i = 0; i < job.size(); i++) {
+			String arg = job.get(i);
+			if (i > 0 && "-main-file-name".equals(job.get(i - 1)) && arg.equals(mainfilename)) {
+				template.add(PLACEHOLDER_MAIN_FILE_NAME);
+				continue;
+			}
+			String templatearg = arg.replace(sourcepath, PLACEHOLDER_SOURCE).replace(objectpath, PLACEHOLDER_OBJECT)
+					.replace(depfilepath, PLACEHOLDER_DEPENDENCY_FILE);
+			String remaining = templatearg.replace(PLACEHOLDER_SOURCE, "").replace(PLACEHOLDER_OBJECT, "")
+					.replace(PLACEHOLDER_DEPENDENCY_FILE, "");
+			if (remaining.contains(mainfilename) || remaining.contains(objectfilename)) {
+				//an argument that is derived from the compiled file, but we can't substitute it reliably
+				return null;
+			}
+			template.add(templatearg);
+		}
+		return ImmutableUtils.unmodifiableList(template);
+	}
+
+	/**
+	 * Parses the jobs printed by the clang driver when invoked with <code>-###</code>.
+	 * <p>
+	 * The jobs are printed on separate lines, each argument enclosed in double quotes. The <code>"</code>,
+	 * <code>\</code> and <code>$</code> characters are escaped with a backslash.
+	 */
+	static List<List<String>> parseJobs(String output) {
+		List<List<String>> result = new ArrayList<>();
+		for (String line : output.split("\n")) {
+			String trimmed = line.trim();
+			if (!trimmed.startsWith("\"")) {
+				//other information printed by the driver
+				continue;
+			}
+			List<String> args = new ArrayList<>();
+			StringBuilder sb = new StringBuilder();
+			int len = trimmed.length();
+			int i = 0;
+			while (i < len) {
+				char c = trimmed.charAt(i);
+				if (c != '"') {
+					//separator whitespace
+					++i;
+					continue;
+				}
+				sb.setLength(0);
+				++i;
+				while (i < len) {
+					char ac = trimmed.charAt(i);
+					if (ac == '\\' && i + 1 < len) {
+						sb.append(trimmed.charAt(i + 1));
+						i += 2;
+						continue;
+					}
+					if (ac == '"') {
+						break;
+					}
+					sb.append(ac);
+					++i;
+				}
+				//skip the closing quote
+				++i;
+				args.add(sb.toString());
+			}
+			result.add(args);
+		}
+		return result;
+	}
+
+	private static String getFileName(String path) {
+		int idx = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+		return path.substring(idx + 1);
+	}
+}
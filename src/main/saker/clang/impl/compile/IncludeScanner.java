@@ -0,0 +1,705 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import saker.build.file.path.SakerPath;
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+
+/**
+ * Scans the <code>#include</code> directives of source files to predict their include dependencies without running
+ * the compiler.
+ * <p>
+ * The scanner only looks at the preprocessor directives, it doesn't evaluate the conditions. The includes in
+ * conditional blocks are considered to be included, in which case the prediction is not {@linkplain ScanResult#isExact()
+ * exact}. As the conditions are not evaluated, each header is descended into only once per translation unit, the same
+ * way as if it had <code>#pragma once</code>. Include guards are recognized, and the headers whose guard macro is
+ * already defined (e.g. by a macro definition of the compilation) are not descended into.
+ * <p>
+ * If an include directive is undecidable (e.g. its path is specified by a macro, or <code>#include_next</code> is
+ * used), the scanner gives up, and the dependencies of the translation unit can only be determined by the dependency
+ * file that clang generates.
+ * <p>
+ * The includes are only resolved against execution paths. The ones that can't be found are considered to be system
+ * headers, which are not tracked.
+ * <p>
+ * The scan results of the files are cached in the scanner, so the headers shared by the translation units are only
+ * scanned once. The class is thread safe.
+ * <p>
+ * The number of files visited for a translation unit is limited, the translation units with more includes are handled
+ * the same way as the ones with undecidable includes.
+ */
+final class IncludeScanner {
+	public interface ContentsResolver {
+		/**
+		 * Gets the contents of the file at the given path.
+		 *
+		 * @param path
+		 *            The path.
+		 * @return The contents or <code>null</code> if the file doesn't exist or cannot be read.
+		 */
+		public ByteArrayRegion getContents(SakerPath path);
+	}
+
+	public static final class ScanResult {
+		private final NavigableSet<SakerPath> includes;
+		private final boolean exact;
+
+		ScanResult(NavigableSet<SakerPath> includes, boolean exact) {
+			this.includes = includes;
+			this.exact = exact;
+		}
+
+		/**
+		 * Gets the absolute execution paths of the included files, the same way as they are reported in the dependency
+		 * file by clang.
+		 */
+		public NavigableSet<SakerPath> getIncludes() {
+			return includes;
+		}
+
+		/**
+		 * Checks if the result contains no include directives from conditional blocks.
+		 * <p>
+		 * If the result is exact, it is expected to be the same as the includes reported by clang.
+		 */
+		public boolean isExact() {
+			return exact;
+		}
+	}
+
+	private static final class IncludeDirective {
+		protected final String path;
+		protected final boolean angled;
+		protected final int depth;
+
+		public IncludeDirective(String path, boolean angled, int depth) {
+			this.path = path;
+			this.angled = angled;
+			this.depth = depth;
+		}
+	}
+
+	private static final class FileScanResult {
+		protected final List<IncludeDirective> includes;
+		protected final Set<String> definedMacros;
+		protected final String guardMacro;
+		protected final boolean pragmaOnce;
+		protected final boolean undecidable;
+		/**
+		 * The number of include directives at the start of the file, before any other directives or code.
+		 */
+		protected final int leadingIncludeCount;
+
+		public FileScanResult(List<IncludeDirective> includes, Set<String> definedMacros, String guardMacro,
+				boolean pragmaOnce, boolean undecidable, int leadingIncludeCount) {
+			this.includes = includes;
+			this.definedMacros = definedMacros;
+			this.guardMacro = guardMacro;
+			this.pragmaOnce = pragmaOnce;
+			this.undecidable = undecidable;
+			this.leadingIncludeCount = leadingIncludeCount;
+		}
+
+		public boolean isConditional(IncludeDirective include) {
+			return include.depth > (guardMacro == null ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The maximum number of files that are visited when scanning a translation unit.
+	 */
+	private static final int MAX_TRANSLATION_UNIT_FILE_COUNT = 2048;
+
+	private final ContentsResolver contentsResolver;
+	private final ConcurrentHashMap<SakerPath, Optional<FileScanResult>> fileResults = new ConcurrentHashMap<>();
+
+	public IncludeScanner(ContentsResolver contentsResolver) {
+		this.contentsResolver = contentsResolver;
+	}
+
+	/**
+	 * Scans the include dependencies of a translation unit.
+	 *
+	 * @param sourcefile
+	 *            The path of the source file.
+	 * @param forceincludes
+	 *            The paths of the force included files.
+	 * @param includedirectories
+	 *            The include directories in the order they're passed to the compiler.
+	 * @param macros
+	 *            The names of the macros defined for the compilation.
+	 * @return The result or <code>null</code> if the source file is not found, it contains undecidable include
+	 *             directives, or it includes too many files.
+	 */
+	public ScanResult scan(SakerPath sourcefile, List<SakerPath> forceincludes, List<SakerPath> includedirectories,
+			Collection<String> macros) {
+		if (getFileScanResult(sourcefile) == null) {
+			return null;
+		}
+		TranslationUnitScan tuscan = new TranslationUnitScan(includedirectories, macros);
+		for (SakerPath forceinclude : forceincludes) {
+			if (getFileScanResult(forceinclude) == null) {
+				continue;
+			}
+			tuscan.includes.add(forceinclude);
+			if (!tuscan.visit(forceinclude)) {
+				return null;
+			}
+		}
+		if (!tuscan.visit(sourcefile)) {
+			return null;
+		}
+		//the source file itself is not an include
+		tuscan.includes.remove(sourcefile);
+		return new ScanResult(tuscan.includes, tuscan.exact);
+	}
+
+	/**
+	 * Checks if a header is protected against multiple inclusion by an include guard or <code>#pragma once</code>.
+	 */
+	public boolean isIncludeGuarded(SakerPath header) {
+		FileScanResult scanresult = getFileScanResult(header);
+		return scanresult != null && (scanresult.guardMacro != null || scanresult.pragmaOnce);
+	}
+
+	/**
+	 * Gets the files that are included by the leading include directives of a file.
+	 * <p>
+	 * The leading include directives are the unconditional <code>#include</code> directives at the start of the file
+	 * that are only preceded by other include directives, whitespace and comments.
+	 *
+	 * @param file
+	 *            The path of the file.
+	 * @param includedirectories
+	 *            The include directories in the order they're passed to the compiler.
+	 * @return The included files in the order of the directives, or <code>null</code> if the file is not found. The
+	 *             list ends at the first directive that is not resolved against the execution paths.
+	 */
+	public List<SakerPath> getLeadingIncludes(SakerPath file, List<SakerPath> includedirectories) {
+		FileScanResult scanresult = getFileScanResult(file);
+		if (scanresult == null) {
+			return null;
+		}
+		TranslationUnitScan tuscan = new TranslationUnitScan(includedirectories, Collections.emptySet());
+		List<SakerPath> result = new ArrayList<>();
+		for (int i = 0; i < scanresult.leadingIncludeCount; i++) {
+			SakerPath resolved = tuscan.resolveInclude(scanresult.includes.get(i), file);
+			if (resolved == null) {
+				break;
+			}
+			result.add(resolved);
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the path that includes the given file when used in an angled include directive.
+	 *
+	 * @param file
+	 *            The path of the file.
+	 * @param includedirectories
+	 *            The include directories in the order they're passed to the compiler.
+	 * @return The path relative to one of the include directories, or <code>null</code> if the file is not in the
+	 *             include directories, or a different file is found with the path.
+	 */
+	public String getIncludeDirectivePath(SakerPath file, List<SakerPath> includedirectories) {
+		TranslationUnitScan tuscan = null;
+		for (SakerPath includedir : includedirectories) {
+			if (!file.startsWith(includedir) || file.equals(includedir)) {
+				continue;
+			}
+			if (tuscan == null) {
+				tuscan = new TranslationUnitScan(includedirectories, Collections.emptySet());
+			}
+			String path = includedir.relativize(file).toString();
+			if (file.equals(tuscan.resolveInclude(new IncludeDirective(path, true, 0), file))) {
+				return path;
+			}
+		}
+		return null;
+	}
+
+	private final class TranslationUnitScan {
+		private final List<SakerPath> includeDirectories;
+		private final Set<String> definedMacros;
+		protected final NavigableSet<SakerPath> includes = new TreeSet<>();
+		protected final Set<SakerPath> processed = new HashSet<>();
+		protected boolean exact = true;
+
+		public TranslationUnitScan(List<SakerPath> includeDirectories, Collection<String> macros) {
+			this.includeDirectories = includeDirectories;
+			this.definedMacros = new HashSet<>(macros);
+		}
+
+		/**
+		 * @return <code>false</code> if an undecidable include was found, or the file count limit is exceeded.
+		 */
+		public boolean visit(SakerPath file) {
+			FileScanResult scanresult = getFileScanResult(file);
+			if (scanresult == null) {
+				return true;
+			}
+			if (!processed.add(file)) {
+				//already processed. the includes of non-guarded headers can differ based on the defined macros
+				//but those are already taken into account as the conditions are not evaluated
+				return true;
+			}
+			if (processed.size() > MAX_TRANSLATION_UNIT_FILE_COUNT) {
+				//too expensive to scan, the includes are determined by the compilation
+				return false;
+			}
+			if (scanresult.guardMacro != null && !definedMacros.add(scanresult.guardMacro)) {
+				//the guard macro was defined by someone else, the contents of the header is skipped
+				return true;
+			}
+			if (scanresult.undecidable) {
+				return false;
+			}
+			for (IncludeDirective include : scanresult.includes) {
+				SakerPath resolved = resolveInclude(include, file);
+				if (resolved == null) {
+					//not found in the execution include directories, consider it as a system header
+					continue;
+				}
+				if (scanresult.isConditional(include)) {
+					exact = false;
+				}
+				includes.add(resolved);
+				if (!visit(resolved)) {
+					return false;
+				}
+			}
+			definedMacros.addAll(scanresult.definedMacros);
+			return true;
+		}
+
+		private SakerPath resolveInclude(IncludeDirective include, SakerPath includingfile) {
+			String path = include.path;
+			if (path.isEmpty() || path.startsWith("/") || path.startsWith("\\") || path.indexOf(':') >= 0) {
+				//absolute paths are not execution paths
+				return null;
+			}
+			try {
+				if (!include.angled) {
+					SakerPath parent = includingfile.getParent();
+					if (parent != null) {
+						SakerPath candidate = parent.resolve(path);
+						if (getFileScanResult(candidate) != null) {
+							return candidate;
+						}
+					}
+				}
+				for (SakerPath includedir : includeDirectories) {
+					SakerPath candidate = includedir.resolve(path);
+					if (getFileScanResult(candidate) != null) {
+						return candidate;
+					}
+				}
+			} catch (IllegalArgumentException e) {
+				//invalid path format
+			}
+			return null;
+		}
+	}
+
+	private FileScanResult getFileScanResult(SakerPath path) {
+		Optional<FileScanResult> result = fileResults.get(path);
+		if (result == null) {
+			ByteArrayRegion contents = contentsResolver.getContents(path);
+			result = Optional.ofNullable(contents == null ? null : scanContents(contents));
+			fileResults.putIfAbsent(path, result);
+		}
+		return result.orElse(null);
+	}
+
+	private static FileScanResult scanContents(ByteArrayRegion contents) {
+		return new DirectiveLexer(contents.getArray(), contents.getOffset(),
+				contents.getOffset() + contents.getLength()).scan();
+	}
+
+	private static final class DirectiveLexer {
+		private final byte[] bytes;
+		private final int end;
+		private int index;
+		private final StringBuilder lineBuffer = new StringBuilder();
+
+		private final List<IncludeDirective> includes = new ArrayList<>();
+		private final Set<String> definedMacros = new HashSet<>();
+		private boolean pragmaOnce;
+		private boolean undecidable;
+		private int leadingIncludeCount;
+		private boolean leadingEnded;
+
+		private int depth;
+		private int directiveCount;
+		/**
+		 * The macro in the first directive if it was an <code>#ifndef</code>.
+		 */
+		private String guardCandidate;
+		/**
+		 * The directive count when the first conditional block ended.
+		 */
+		private int guardEndDirectiveCount = -1;
+		private boolean guardBroken;
+
+		public DirectiveLexer(byte[] bytes, int offset, int end) {
+			this.bytes = bytes;
+			this.index = offset;
+			this.end = end;
+		}
+
+		public FileScanResult scan() {
+			if (end - index >= 3 && bytes[index] == (byte) 0xEF && bytes[index + 1] == (byte) 0xBB
+					&& bytes[index + 2] == (byte) 0xBF) {
+				//UTF-8 byte order mark
+				index += 3;
+			}
+			while (index < end) {
+				skipLineWhitespace();
+				if (index < end && bytes[index] == '#') {
+					++index;
+					lineBuffer.setLength(0);
+					readLine(lineBuffer);
+					handleDirective(lineBuffer.toString().trim());
+				} else {
+					if (!isLineEnd()) {
+						//code before the directives
+						leadingEnded = true;
+					}
+					readLine(null);
+				}
+			}
+			String guard = null;
+			if (guardCandidate != null && !guardBroken && guardEndDirectiveCount == directiveCount) {
+				guard = guardCandidate;
+			}
+			return new FileScanResult(includes.isEmpty() ? Collections.emptyList() : includes,
+					definedMacros.isEmpty() ? Collections.emptySet() : definedMacros, guard, pragmaOnce, undecidable,
+					leadingIncludeCount);
+		}
+
+		private void handleDirective(String line) {
+			++directiveCount;
+			int includecount = includes.size();
+			int nameend = getIdentifierEnd(line, 0);
+			String name = line.substring(0, nameend);
+			String rest = line.substring(nameend).trim();
+			switch (name) {
+				case "include":
+				case "import": {
+					if (rest.length() < 2) {
+						undecidable = true;
+						break;
+					}
+					char first = rest.charAt(0);
+					int closeidx;
+					if (first == '"') {
+						closeidx = rest.indexOf('"', 1);
+					} else if (first == '<') {
+						closeidx = rest.indexOf('>', 1);
+					} else {
+						//computed include, e.g. #include MY_HEADER
+						closeidx = -1;
+					}
+					if (closeidx < 0) {
+						undecidable = true;
+						break;
+					}
+					includes.add(new IncludeDirective(rest.substring(1, closeidx), first == '<', depth));
+					break;
+				}
+				case "include_next": {
+					//the resolution depends on the include directory the current file was found in
+					undecidable = true;
+					break;
+				}
+				case "ifndef": {
+					if (directiveCount == 1) {
+						guardCandidate = getFirstIdentifier(rest);
+					}
+					++depth;
+					break;
+				}
+				case "if": {
+					if (directiveCount == 1) {
+						guardCandidate = getNotDefinedMacro(rest);
+					}
+					++depth;
+					break;
+				}
+				case "ifdef": {
+					++depth;
+					break;
+				}
+				case "elif":
+				case "elifdef":
+				case "elifndef":
+				case "else": {
+					if (depth == 1) {
+						guardBroken = true;
+					}
+					break;
+				}
+				case "endif": {
+					if (depth > 0) {
+						--depth;
+						if (depth == 0 && guardEndDirectiveCount < 0) {
+							guardEndDirectiveCount = directiveCount;
+						}
+					}
+					break;
+				}
+				case "pragma": {
+					if ("once".equals(rest)) {
+						pragmaOnce = true;
+					}
+					break;
+				}
+				case "define": {
+					String macro = getFirstIdentifier(rest);
+					if (macro != null) {
+						if (directiveCount == 2 && !macro.equals(guardCandidate)) {
+							guardBroken = true;
+						}
+						definedMacros.add(macro);
+					}
+					break;
+				}
+				default: {
+					break;
+				}
+			}
+			if (directiveCount == 2 && !"define".equals(name)) {
+				guardBroken = true;
+			}
+			if (!leadingEnded) {
+				if ("include".equals(name) && depth == 0 && includes.size() > includecount) {
+					++leadingIncludeCount;
+				} else {
+					leadingEnded = true;
+				}
+			}
+		}
+
+		private boolean isLineEnd() {
+			return index >= end || bytes[index] == '\n'
+					|| (bytes[index] == '/' && index + 1 < end && bytes[index + 1] == '/');
+		}
+
+		/**
+		 * Skips the whitespace and comments at the start of a line.
+		 */
+		private void skipLineWhitespace() {
+			while (index < end) {
+				byte b = bytes[index];
+				if (b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b) {
+					++index;
+				} else if (b == '\\' && isLineContinuation(index)) {
+					index = skipLineContinuation(index);
+				} else if (b == '/' && index + 1 < end && bytes[index + 1] == '*') {
+					skipBlockComment();
+				} else {
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Reads until the end of the logical line.
+		 * <p>
+		 * The comments are replaced by a space, the line continuations are removed.
+		 *
+		 * @param sb
+		 *            The output or <code>null</code> if the line is only skipped.
+		 */
+		private void readLine(StringBuilder sb) {
+			int segmentstart = index;
+			while (index < end) {
+				byte b = bytes[index];
+				switch (b) {
+					case '\n': {
+						appendSegment(sb, segmentstart, index);
+						++index;
+						return;
+					}
+					case '\\': {
+						if (isLineContinuation(index)) {
+							appendSegment(sb, segmentstart, index);
+							index = skipLineContinuation(index);
+							segmentstart = index;
+						} else {
+							++index;
+						}
+						break;
+					}
+					case '/': {
+						if (index + 1 < end) {
+							byte next = bytes[index + 1];
+							if (next == '/') {
+								appendSegment(sb, segmentstart, index);
+								while (index < end && bytes[index] != '\n') {
+									++index;
+								}
+								segmentstart = index;
+								break;
+							}
+							if (next == '*') {
+								appendSegment(sb, segmentstart, index);
+								skipBlockComment();
+								if (sb != null) {
+									sb.append(' ');
+								}
+								segmentstart = index;
+								break;
+							}
+						}
+						++index;
+						break;
+					}
+					case '"':
+					case '\'': {
+						skipLiteral(b);
+						break;
+					}
+					default: {
+						++index;
+						break;
+					}
+				}
+			}
+			appendSegment(sb, segmentstart, index);
+		}
+
+		private void skipLiteral(byte quote) {
+			++index;
+			while (index < end) {
+				byte b = bytes[index];
+				if (b == quote) {
+					++index;
+					return;
+				}
+				if (b == '\n') {
+					//unterminated, the newline is handled by the caller
+					return;
+				}
+				if (b == '\\') {
+					index += 2;
+					continue;
+				}
+				++index;
+			}
+			if (index > end) {
+				index = end;
+			}
+		}
+
+		private void skipBlockComment() {
+			index += 2;
+			while (index + 1 < end) {
+				if (bytes[index] == '*' && bytes[index + 1] == '/') {
+					index += 2;
+					return;
+				}
+				++index;
+			}
+			index = end;
+		}
+
+		private boolean isLineContinuation(int backslashidx) {
+			int idx = backslashidx + 1;
+			if (idx < end && bytes[idx] == '\r') {
+				++idx;
+			}
+			return idx < end && bytes[idx] == '\n';
+		}
+
+		private int skipLineContinuation(int backslashidx) {
+			int idx = backslashidx + 1;
+			if (bytes[idx] == '\r') {
+				++idx;
+			}
+			return idx + 1;
+		}
+
+		private void appendSegment(StringBuilder sb, int start, int segmentend) {
+			if (sb != null && segmentend > start) {
+				sb.append(new String(bytes, start, segmentend - start, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * Gets the macro name from an <code>#if</code> condition in the format of <code>!defined(MACRO)</code> or
+	 * <code>!defined MACRO</code>.
+	 */
+	private static String getNotDefinedMacro(String condition) {
+		if (!condition.startsWith("!")) {
+			return null;
+		}
+		String rest = condition.substring(1).trim();
+		if (!rest.startsWith("defined")) {
+			return null;
+		}
+		rest = rest.substring(7).trim();
+		boolean parenthesized = rest.startsWith("(");
+		if (parenthesized) {
+			rest = rest.substring(1).trim();
+		}
+		int idend = getIdentifierEnd(rest, 0);
+		if (idend == 0) {
+			return null;
+		}
+		String remaining = rest.substring(idend).trim();
+		if (parenthesized ? !")".equals(remaining) : !remaining.isEmpty()) {
+			return null;
+		}
+		return rest.substring(0, idend);
+	}
+
+	private static String getFirstIdentifier(String str) {
+		int idend = getIdentifierEnd(str, 0);
+		if (idend == 0) {
+			return null;
+		}
+		return str.substring(0, idend);
+	}
+
+	private static int getIdentifierEnd(String str, int start) {
+		int len = str.length();
+		int i = start;
+		while (i < len) {
+			char c = str.charAt(i);
+			if (c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (i > start && c >= '0' && c <= '9')) {
+				++i;
+				continue;
+			}
+			break;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.runtime.execution.SakerLog;
+import saker.build.thirdparty.saker.util.StringUtils;
+import saker.clang.impl.compile.ClangCompileWorkerTaskFactory.PrecompiledHeaderSource;
+import saker.clang.impl.util.ClangVersionInformation;
+import saker.clang.impl.util.ClangVersionInformationEnvironmentProperty;
+
+/**
+ * Keeps track of the precompiled headers that are shared between the machines of a clustered compilation.
+ * <p>
+ * A precompiled header is only compiled by the first machine that needs it. The other machines wait for it, and fetch
+ * it from the compiling machine instead of compiling it themselves. The headers are identified by a toolchain key that
+ * consists of the clang version and the full command line of the header compilation. The command line contains the
+ * mirror paths of the inputs and outputs, so a header is only shared between machines that have the same clang version
+ * and mirror directory layout. The other machines compile the header locally.
+ * <p>
+ * The waiting is limited by {@link #ACQUIRE_TIMEOUT_MILLIS}, after that the waiting machine compiles the header
+ * locally as well.
+ * <p>
+ * The headers are transferred in compressed chunks, and the checksum of the uncompressed contents is verified by the
+ * receiving machine.
+ * <p>
+ * An instance of this class is used by the coordinator of the compilation.
+ */
+final class PrecompiledHeaderDistribution {
+	private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * The maximum time to wait for another machine to compile a precompiled header.
+	 * <p>
+	 * If the compilation takes longer, the waiting machine compiles the header itself, so a stalled machine doesn't
+	 * block the others.
+	 */
+	static final long ACQUIRE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+	private static final class Publication {
+		protected PrecompiledHeaderSource source;
+		protected boolean failed;
+	}
+
+	private final Map<String, Publication> publications = new HashMap<>();
+	private boolean aborted;
+
+	public PrecompiledHeaderDistribution() {
+	}
+
+	/**
+	 * Acquires the precompiled header with the given toolchain key.
+	 * <p>
+	 * If the header is being compiled by another machine, the method waits until it is done, but at most
+	 * {@link #ACQUIRE_TIMEOUT_MILLIS} milliseconds.
+	 *
+	 * @return The source of the header, or <code>null</code> if the caller should compile it. In this case the caller
+	 *             must call {@link #publish(String, PrecompiledHeaderSource)} or {@link #failed(String)} afterwards.
+	 */
+	public synchronized PrecompiledHeaderSource acquire(String toolchainkey) {
+		long deadline = System.nanoTime() + ACQUIRE_TIMEOUT_MILLIS * 1_000_000;
+		while (true) {
+			Publication publication = publications.get(toolchainkey);
+			if (publication == null) {
+				publications.put(toolchainkey, new Publication());
+				return null;
+			}
+			if (publication.source != null) {
+				return publication.source;
+			}
+			if (publication.failed || aborted) {
+				return null;
+			}
+			long remainingmillis = (deadline - System.nanoTime()) / 1_000_000;
+			if (remainingmillis <= 0) {
+				//compile locally. the header may still be published by the other machine for the later callers
+				SakerLog.error().verbose().println("Timed out waiting for precompiled header: " + toolchainkey);
+				return null;
+			}
+			try {
+				this.wait(remainingmillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	public synchronized void publish(String toolchainkey, PrecompiledHeaderSource source) {
+		publications.computeIfAbsent(toolchainkey, x -> new Publication()).source = source;
+		this.notifyAll();
+	}
+
+	/**
+	 * Signals that the header couldn't be compiled, so the waiting machines should compile it themselves.
+	 */
+	public synchronized void failed(String toolchainkey) {
+		publications.computeIfAbsent(toolchainkey, x -> new Publication()).failed = true;
+		this.notifyAll();
+	}
+
+	public synchronized void abort() {
+		aborted = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Gets the toolchain key of a precompiled header compilation.
+	 *
+	 * @param environment
+	 *            The environment of the compiling machine.
+	 * @param executable
+	 *            The clang executable.
+	 * @param commands
+	 *            The command line of the compilation.
+	 * @return The key or <code>null</code> if the clang version couldn't be determined.
+	 */
+	public static String getToolchainKey(SakerEnvironment environment, String executable, List<String> commands) {
+		ClangVersionInformation versioninfo;
+		try {
+			versioninfo = environment
+					.getEnvironmentPropertyCurrentValue(new ClangVersionInformationEnvironmentProperty(executable));
+		} catch (Exception e) {
+			SakerLog.error().verbose().println("Failed to determine clang version of: " + executable + " (" + e + ")");
+			return null;
+		}
+		if (versioninfo == null) {
+			return null;
+		}
+		MessageDigest digest = createDigest();
+		updateDigest(digest, versioninfo.getVersion());
+		updateDigest(digest, versioninfo.getTarget());
+		updateDigest(digest, versioninfo.getThreadModel());
+		for (String cmd : commands) {
+			updateDigest(digest, cmd);
+		}
+		return StringUtils.toHexString(digest.digest());
+	}
+
+	/**
+	 * Fetches a precompiled header from another machine.
+	 *
+	 * @param source
+	 *            The source of the header.
+	 * @param outputpath
+	 *            The path to write the header to.
+	 * @return <code>true</code> if the header was fetched and verified successfully.
+	 */
+	public static boolean fetch(PrecompiledHeaderSource source, Path outputpath) {
+		Path temppath = outputpath.resolveSibling(outputpath.getFileName() + ".part");
+		try {
+			byte[] checksum = source.getChecksum();
+			int chunkcount = source.getChunkCount();
+			MessageDigest digest = createDigest();
+			try (InputStream in = new GZIPInputStream(new SequenceInputStream(new Enumeration<InputStream>() {
+				private int index;
+
+				@Override
+				public boolean hasMoreElements() {
+					return index < chunkcount;
+				}
+
+				@Override
+				public InputStream nextElement() {
+					try {
+						return new ByteArrayInputStream(source.readChunk(index++));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			}), BUFFER_SIZE);
+					OutputStream out = Files.newOutputStream(temppath)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				for (int read; (read = in.read(buffer)) > 0;) {
+					digest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+				}
+			}
+			if (!MessageDigest.isEqual(checksum, digest.digest())) {
+				SakerLog.error().verbose().println("Checksum mismatch of fetched precompiled header: " + outputpath);
+				return false;
+			}
+			try {
+				Files.move(temppath, outputpath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temppath, outputpath, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			//RMI failures are reported as runtime exceptions
+			SakerLog.error().verbose()
+					.println("Failed to fetch precompiled header: " + outputpath + " (" + e + ")");
+			return false;
+		} finally {
+			try {
+				Files.deleteIfExists(temppath);
+			} catch (IOException e) {
+				//ignore, the file is overwritten next time
+			}
+		}
+	}
+
+	private static void updateDigest(MessageDigest digest, String str) {
+		if (str != null) {
+			digest.update(str.getBytes(StandardCharsets.UTF_8));
+		}
+		digest.update((byte) 0);
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError("SHA-256 is not available.", e);
+		}
+	}
+
+	/**
+	 * Serves a precompiled header compiled on the local machine to the other machines.
+	 * <p>
+	 * The header is compressed when it is first requested. The compressed file is placed next to the header.
+	 */
+	static final class FileSource implements PrecompiledHeaderSource {
+		private final Path path;
+		private final NavigableSet<SakerPath> includes;
+
+		private Path compressedPath;
+		private long compressedSize;
+		private byte[] checksum;
+
+		public FileSource(Path path, NavigableSet<SakerPath> includes) {
+			this.path = path;
+			this.includes = includes;
+		}
+
+		@Override
+		public byte[] getChecksum() throws IOException {
+			compress();
+			return checksum.clone();
+		}
+
+		@Override
+		public int getChunkCount() throws IOException {
+			compress();
+			return (int) ((compressedSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		}
+
+		@Override
+		public byte[] readChunk(int index) throws IOException {
+			compress();
+			long offset = (long) index * CHUNK_SIZE;
+			if (index < 0 || offset >= compressedSize) {
+				throw new IOException("Chunk index out of range: " + index);
+			}
+			byte[] result = new byte[(int) Math.min(CHUNK_SIZE, compressedSize - offset)];
+			ByteBuffer buffer = ByteBuffer.wrap(result);
+			try (FileChannel channel = FileChannel.open(compressedPath, StandardOpenOption.READ)) {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0) {
+						throw new EOFException("Compressed precompiled header is truncated: " + compressedPath);
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public NavigableSet<SakerPath> getIncludes() {
+			return includes;
+		}
+
+		private synchronized void compress() throws IOException {
+			if (compressedPath != null) {
+				return;
+			}
+			Path gzpath = path.resolveSibling(path.getFileName() + ".gz");
+			MessageDigest digest = createDigest();
+			try (InputStream in = Files.newInputStream(path);
+					OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzpath), BUFFER_SIZE)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				for (int read; (read = in.read(buffer)) > 0;) {
+					digest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+				}
+			}
+			checksum = digest.digest();
+			compressedSize = Files.size(gzpath);
+			compressedPath = gzpath;
+		}
+	}
+}
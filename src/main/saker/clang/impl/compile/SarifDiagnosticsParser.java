@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import saker.clang.impl.util.JsonReader;
+
+/**
+ * Parses the diagnostics from the SARIF output of clang.
+ * <p>
+ * The output is generated when clang is invoked with the <code>-fdiagnostics-format=sarif</code> argument. Only the
+ * results of the runs are parsed, everything else is skipped. The parsing is done in a streaming manner, the document
+ * is not built in memory.
+ */
+final class SarifDiagnosticsParser {
+	public interface ResultHandler {
+		/**
+		 * Handles a result in the SARIF output.
+		 *
+		 * @param uri
+		 *            The URI of the artifact location, or <code>null</code> if not present.
+		 * @param line
+		 *            The start line or 0 if not present.
+		 * @param column
+		 *            The start column or 0 if not present.
+		 * @param level
+		 *            The level of the result, <code>"warning"</code> if not present.
+		 * @param message
+		 *            The message text.
+		 */
+		public void handleResult(String uri, int line, int column, String level, String message);
+	}
+
+	private SarifDiagnosticsParser() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Gets the start offset of the SARIF document in the output of clang.
+	 * <p>
+	 * The document is on a line that starts with <code>{</code>. Clang may print other lines before it.
+	 *
+	 * @return The offset or -1 if not found.
+	 */
+	public static int getDocumentStart(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		boolean linestart = true;
+		for (int i = offset; i < end; i++) {
+			byte b = bytes[i];
+			if (linestart && b == '{') {
+				return i;
+			}
+			linestart = b == '\n';
+		}
+		return -1;
+	}
+
+	public static void parse(byte[] bytes, int offset, int length, ResultHandler handler)
+			throws IllegalArgumentException {
+		JsonReader reader = new JsonReader(bytes, offset, length);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (!"runs".equals(name)) {
+				reader.skipValue();
+				continue;
+			}
+			reader.beginArray();
+			while (reader.hasNext()) {
+				parseRun(reader, handler);
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+	}
+
+	private static void parseRun(JsonReader reader, ResultHandler handler) {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (!"results".equals(name)) {
+				reader.skipValue();
+				continue;
+			}
+			reader.beginArray();
+			while (reader.hasNext()) {
+				parseResult(reader, handler);
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+	}
+
+	private static void parseResult(JsonReader reader, ResultHandler handler) {
+		String level = "warning";
+		String message = "";
+		String[] uri = { null };
+		int[] region = { 0, 0 };
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			switch (name) {
+				case "level": {
+					level = reader.nextString();
+					break;
+				}
+				case "message": {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						if ("text".equals(reader.nextName())) {
+							message = reader.nextString();
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+					break;
+				}
+				case "locations": {
+					reader.beginArray();
+					boolean first = true;
+					while (reader.hasNext()) {
+						if (first) {
+							parseLocation(reader, uri, region);
+							first = false;
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endArray();
+					break;
+				}
+				default: {
+					reader.skipValue();
+					break;
+				}
+			}
+		}
+		reader.endObject();
+		handler.handleResult(uri[0], region[0], region[1], level, message);
+	}
+
+	private static void parseLocation(JsonReader reader, String[] uri, int[] region) {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (!"physicalLocation".equals(reader.nextName())) {
+				reader.skipValue();
+				continue;
+			}
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+					case "artifactLocation": {
+						reader.beginObject();
+						while (reader.hasNext()) {
+							if ("uri".equals(reader.nextName())) {
+								uri[0] = reader.nextString();
+							} else {
+								reader.skipValue();
+							}
+						}
+						reader.endObject();
+						break;
+					}
+					case "region": {
+						reader.beginObject();
+						while (reader.hasNext()) {
+							switch (reader.nextName()) {
+								case "startLine": {
+									region[0] = reader.nextInt();
+									break;
+								}
+								case "startColumn": {
+									region[1] = reader.nextInt();
+									break;
+								}
+								default: {
+									reader.skipValue();
+									break;
+								}
+							}
+						}
+						reader.endObject();
+						break;
+					}
+					default: {
+						reader.skipValue();
+						break;
+					}
+				}
+			}
+			reader.endObject();
+		}
+		reader.endObject();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import saker.clang.impl.util.JsonReader;
+
+/**
+ * Parses the time trace files generated by clang.
+ * <p>
+ * The trace is generated when clang is invoked with the <code>-ftime-trace</code> argument. It is in the Chrome trace
+ * event format. Only the complete events (<code>"ph": "X"</code>) in the <code>traceEvents</code> array are reported,
+ * everything else is skipped. The parsing is done in a streaming manner, the document is not built in memory.
+ */
+final class TimeTraceParser {
+	public interface EventHandler {
+		/**
+		 * Handles a complete event in the time trace.
+		 *
+		 * @param name
+		 *            The name of the event. E.g. <code>"Source"</code> or <code>"InstantiateFunction"</code>.
+		 * @param detail
+		 *            The <code>detail</code> argument of the event, or <code>null</code> if not present.
+		 * @param durationmicros
+		 *            The duration of the event in microseconds.
+		 */
+		public void handleEvent(String name, String detail, long durationmicros);
+	}
+
+	private TimeTraceParser() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void parse(byte[] bytes, int offset, int length, EventHandler handler)
+			throws IllegalArgumentException {
+		JsonReader reader = new JsonReader(bytes, offset, length);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (!"traceEvents".equals(name)) {
+				reader.skipValue();
+				continue;
+			}
+			reader.beginArray();
+			while (reader.hasNext()) {
+				parseEvent(reader, handler);
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+	}
+
+	private static void parseEvent(JsonReader reader, EventHandler handler) {
+		String phase = null;
+		String eventname = null;
+		String detail = null;
+		long duration = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			switch (name) {
+				case "ph": {
+					phase = reader.nextString();
+					break;
+				}
+				case "name": {
+					eventname = reader.nextString();
+					break;
+				}
+				case "dur": {
+					duration = reader.nextLong();
+					break;
+				}
+				case "args": {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String argname = reader.nextName();
+						if ("detail".equals(argname) && reader.peek() == JsonReader.TOKEN_STRING) {
+							detail = reader.nextString();
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+					break;
+				}
+				default: {
+					reader.skipValue();
+					break;
+				}
+			}
+		}
+		reader.endObject();
+		if ("X".equals(phase) && eventname != null) {
+			handler.handleEvent(eventname, detail, duration);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import saker.build.file.ByteArraySakerFile;
+import saker.build.file.SakerDirectory;
+import saker.build.trace.BuildTrace;
+import saker.clang.impl.util.JsonWriter;
+
+/**
+ * Aggregates the time trace summaries of the translation units of a compilation pass into a ranked report.
+ * <p>
+ * The report is written as a JSON file to the output directory of the pass, and the most expensive entries are
+ * reported to the build trace. The report is in the following format:
+ *
+ * <pre>
+ * {
+ *   "pass": "&lt;pass identifier&gt;",
+ *   "total": { "files": 0, "frontendNanos": 0, "backendNanos": 0 },
+ *   "headers": [ { "name": "/include/header.h", "totalNanos": 0, "count": 0 } ],
+ *   "instantiations": [ { "name": "std::vector&lt;int&gt;", "totalNanos": 0, "count": 0 } ],
+ *   "files": [ { "name": "main.cpp", "frontendNanos": 0, "backendNanos": 0 } ]
+ * }
+ * </pre>
+ *
+ * The lists are in descending order of cost. The <code>count</code> is the number of translation units that the
+ * header or instantiation was encountered in.
+ */
+final class TimeTraceReport {
+	public static final String REPORT_FILE_NAME = "time-trace-report.json";
+
+	/**
+	 * The maximum number of entries in the lists of the report.
+	 */
+	private static final int MAX_REPORT_ENTRY_COUNT = 100;
+	/**
+	 * The number of entries that are reported to the build trace.
+	 */
+	private static final int MAX_BUILD_TRACE_ENTRY_COUNT = 10;
+
+	private static final class Cost {
+		protected long totalNanos;
+		protected int count;
+
+		protected void add(long nanos) {
+			totalNanos += nanos;
+			++count;
+		}
+	}
+
+	private final String pass;
+	private final Map<String, Cost> headers = new HashMap<>();
+	private final Map<String, Cost> instantiations = new HashMap<>();
+	private final Map<String, TimeTraceSummary> files = new LinkedHashMap<>();
+	private long totalFrontendNanos;
+	private long totalBackendNanos;
+
+	public TimeTraceReport(String pass) {
+		this.pass = pass;
+	}
+
+	/**
+	 * Adds the summary of a translation unit to the report.
+	 *
+	 * @param name
+	 *            The display name of the translation unit.
+	 * @param summary
+	 *            The summary.
+	 */
+	public void add(String name, TimeTraceSummary summary) {
+		files.put(name, summary);
+		totalFrontendNanos += summary.getFrontendNanos();
+		totalBackendNanos += summary.getBackendNanos();
+		for (Entry<String, Long> entry : summary.getHeaderParseNanos().entrySet()) {
+			headers.computeIfAbsent(entry.getKey(), x -> new Cost()).add(entry.getValue());
+		}
+		for (Entry<String, Long> entry : summary.getInstantiationNanos().entrySet()) {
+			instantiations.computeIfAbsent(entry.getKey(), x -> new Cost()).add(entry.getValue());
+		}
+	}
+
+	public boolean isEmpty() {
+		return files.isEmpty();
+	}
+
+	public byte[] toJson() {
+		JsonWriter writer = new JsonWriter();
+		writer.beginObject();
+		writer.name("pass").value(pass);
+		writer.name("total").beginObject();
+		writer.name("files").value(files.size());
+		writer.name("frontendNanos").value(totalFrontendNanos);
+		writer.name("backendNanos").value(totalBackendNanos);
+		writer.endObject();
+		writeCosts(writer, "headers", headers);
+		writeCosts(writer, "instantiations", instantiations);
+
+		List<Entry<String, TimeTraceSummary>> fileentries = new ArrayList<>(files.entrySet());
+		fileentries.sort((l, r) -> Long.compare(getTotalNanos(r.getValue()), getTotalNanos(l.getValue())));
+		writer.name("files").beginArray();
+		for (Entry<String, TimeTraceSummary> entry : limit(fileentries, MAX_REPORT_ENTRY_COUNT)) {
+			writer.beginObject();
+			writer.name("name").value(entry.getKey());
+			writer.name("frontendNanos").value(entry.getValue().getFrontendNanos());
+			writer.name("backendNanos").value(entry.getValue().getBackendNanos());
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.endObject();
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Writes the report file to the given directory.
+	 */
+	public void write(SakerDirectory directory) throws IOException {
+		ByteArraySakerFile file = new ByteArraySakerFile(REPORT_FILE_NAME, toJson());
+		directory.add(file);
+		file.synchronize();
+	}
+
+	public void reportBuildTrace() {
+		if (saker.build.meta.Versions.VERSION_FULL_COMPOUND < 8_014) {
+			return;
+		}
+		Map<Object, Object> values = new LinkedHashMap<>();
+		values.put("Frontend time (ms)", totalFrontendNanos / 1_000_000);
+		values.put("Backend time (ms)", totalBackendNanos / 1_000_000);
+		values.put("Most expensive headers (ms)", toBuildTraceValue(headers));
+		values.put("Most expensive instantiations (ms)", toBuildTraceValue(instantiations));
+		BuildTrace.addValues(values, BuildTrace.VALUE_CATEGORY_TASK);
+	}
+
+	private static Map<String, Long> toBuildTraceValue(Map<String, Cost> costs) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (Entry<String, Cost> entry : limit(getRanked(costs), MAX_BUILD_TRACE_ENTRY_COUNT)) {
+			result.put(entry.getKey(), entry.getValue().totalNanos / 1_000_000);
+		}
+		return result;
+	}
+
+	private static void writeCosts(JsonWriter writer, String name, Map<String, Cost> costs) {
+		writer.name(name).beginArray();
+		for (Entry<String, Cost> entry : limit(getRanked(costs), MAX_REPORT_ENTRY_COUNT)) {
+			writer.beginObject();
+			writer.name("name").value(entry.getKey());
+			writer.name("totalNanos").value(entry.getValue().totalNanos);
+			writer.name("count").value(entry.getValue().count);
+			writer.endObject();
+		}
+		writer.endArray();
+	}
+
+	private static List<Entry<String, Cost>> getRanked(Map<String, Cost> costs) {
+		List<Entry<String, Cost>> result = new ArrayList<>(costs.entrySet());
+		result.sort((l, r) -> {
+			int cmp = Long.compare(r.getValue().totalNanos, l.getValue().totalNanos);
+			if (cmp != 0) {
+				return cmp;
+			}
+			return l.getKey().compareTo(r.getKey());
+		});
+		return result;
+	}
+
+	private static long getTotalNanos(TimeTraceSummary summary) {
+		return summary.getFrontendNanos() + summary.getBackendNanos();
+	}
+
+	private static <T> List<T> limit(List<T> list, int count) {
+		if (list.size() <= count) {
+			return list;
+		}
+		return list.subList(0, count);
+	}
+}
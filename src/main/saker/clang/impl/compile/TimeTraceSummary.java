@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.compile;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import saker.build.thirdparty.saker.util.ImmutableUtils;
+import saker.build.thirdparty.saker.util.io.SerialUtils;
+
+/**
+ * The aggregated costs of the compilation of a translation unit, based on the time trace generated by clang.
+ * <p>
+ * Only the most expensive headers and template instantiations are kept, so the size of the summary is bounded
+ * regardless of the size of the trace. The header parse times are inclusive, i.e. they contain the parse times of the
+ * headers included by them.
+ */
+public class TimeTraceSummary implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The maximum number of headers and template instantiations that are kept.
+	 */
+	static final int MAX_ENTRY_COUNT = 64;
+
+	private long frontendNanos;
+	private long backendNanos;
+	/**
+	 * Maps the paths of the included headers to their parse times.
+	 */
+	private NavigableMap<String, Long> headerParseNanos;
+	/**
+	 * Maps the names of the instantiated templates to their instantiation times.
+	 */
+	private NavigableMap<String, Long> instantiationNanos;
+
+	/**
+	 * For {@link Externalizable}.
+	 */
+	public TimeTraceSummary() {
+	}
+
+	private TimeTraceSummary(long frontendNanos, long backendNanos, NavigableMap<String, Long> headerParseNanos,
+			NavigableMap<String, Long> instantiationNanos) {
+		this.frontendNanos = frontendNanos;
+		this.backendNanos = backendNanos;
+		this.headerParseNanos = headerParseNanos;
+		this.instantiationNanos = instantiationNanos;
+	}
+
+	/**
+	 * Gets the time spent in the frontend, including the parsing, template instantiations, and IR generation.
+	 */
+	public long getFrontendNanos() {
+		return frontendNanos;
+	}
+
+	/**
+	 * Gets the time spent in the backend, i.e. the optimization and code generation.
+	 */
+	public long getBackendNanos() {
+		return backendNanos;
+	}
+
+	public NavigableMap<String, Long> getHeaderParseNanos() {
+		return headerParseNanos;
+	}
+
+	public NavigableMap<String, Long> getInstantiationNanos() {
+		return instantiationNanos;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(frontendNanos);
+		out.writeLong(backendNanos);
+		SerialUtils.writeExternalMap(out, headerParseNanos);
+		SerialUtils.writeExternalMap(out, instantiationNanos);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		frontendNanos = in.readLong();
+		backendNanos = in.readLong();
+		headerParseNanos = SerialUtils.readExternalSortedImmutableNavigableMap(in);
+		instantiationNanos = SerialUtils.readExternalSortedImmutableNavigableMap(in);
+	}
+
+	void writeCompact(CompactStateSerialization.Writer writer) throws IOException {
+		writer.writeVarLong(frontendNanos);
+		writer.writeVarLong(backendNanos);
+		writeCompactCosts(writer, headerParseNanos);
+		writeCompactCosts(writer, instantiationNanos);
+	}
+
+	static TimeTraceSummary readCompact(CompactStateSerialization.Reader reader) throws IOException {
+		long frontend = reader.readVarLong();
+		long backend = reader.readVarLong();
+		NavigableMap<String, Long> headers = readCompactCosts(reader);
+		NavigableMap<String, Long> instantiations = readCompactCosts(reader);
+		return new TimeTraceSummary(frontend, backend, headers, instantiations);
+	}
+
+	private static void writeCompactCosts(CompactStateSerialization.Writer writer, Map<String, Long> costs)
+			throws IOException {
+		writer.writeVarInt(costs.size());
+		for (Entry<String, Long> entry : costs.entrySet()) {
+			writer.writeString(entry.getKey());
+			writer.writeVarLong(entry.getValue());
+		}
+	}
+
+	private static NavigableMap<String, Long> readCompactCosts(CompactStateSerialization.Reader reader)
+			throws IOException {
+		int count = reader.readVarInt();
+		NavigableMap<String, Long> result = new TreeMap<>();
+		for (int i = 0; i < count; i++) {
+			String name = reader.readString();
+			result.put(name, reader.readVarLong());
+		}
+		return ImmutableUtils.unmodifiableNavigableMap(result);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[frontendNanos=" + frontendNanos + ", backendNanos=" + backendNanos
+				+ ", headers=" + headerParseNanos.size() + ", instantiations=" + instantiationNanos.size() + "]";
+	}
+
+	/**
+	 * Collects the events of a time trace into a summary.
+	 */
+	static final class Collector implements TimeTraceParser.EventHandler {
+		private final Function<String, String> sourcePathTranslator;
+
+		private long frontendNanos;
+		private long backendNanos;
+		private final Map<String, Long> headerParseNanos = new HashMap<>();
+		private final Map<String, Long> instantiationNanos = new HashMap<>();
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param sourcePathTranslator
+		 *            Translates the paths of the source files in the trace to the form they are reported in.
+		 */
+		public Collector(Function<String, String> sourcePathTranslator) {
+			this.sourcePathTranslator = sourcePathTranslator;
+		}
+
+		@Override
+		public void handleEvent(String name, String detail, long durationmicros) {
+			long nanos = durationmicros * 1000;
+			switch (name) {
+				case "Source": {
+					if (detail != null) {
+						headerParseNanos.merge(sourcePathTranslator.apply(detail), nanos, Long::sum);
+					}
+					break;
+				}
+				case "InstantiateClass":
+				case "InstantiateFunction": {
+					if (detail != null) {
+						instantiationNanos.merge(detail, nanos, Long::sum);
+					}
+					break;
+				}
+				case "Total Frontend": {
+					frontendNanos += nanos;
+					break;
+				}
+				case "Total Backend": {
+					backendNanos += nanos;
+					break;
+				}
+				default: {
+					break;
+				}
+			}
+		}
+
+		public TimeTraceSummary create() {
+			return new TimeTraceSummary(frontendNanos, backendNanos, getMostExpensive(headerParseNanos),
+					getMostExpensive(instantiationNanos));
+		}
+
+		private static NavigableMap<String, Long> getMostExpensive(Map<String, Long> costs) {
+			if (costs.isEmpty()) {
+				return Collections.emptyNavigableMap();
+			}
+			List<Entry<String, Long>> entries = new ArrayList<>(costs.entrySet());
+			if (entries.size() > MAX_ENTRY_COUNT) {
+				entries.sort((l, r) -> Long.compare(r.getValue(), l.getValue()));
+				entries = entries.subList(0, MAX_ENTRY_COUNT);
+			}
+			NavigableMap<String, Long> result = new TreeMap<>();
+			for (Entry<String, Long> entry : entries) {
+				result.put(entry.getKey(), entry.getValue());
+			}
+			return ImmutableUtils.unmodifiableNavigableMap(result);
+		}
+	}
+}
@@ -46,7 +46,10 @@ import saker.clang.impl.option.CompilationPathOption;
 import saker.clang.impl.option.FileCompilationPathOption;
 import saker.clang.impl.option.SimpleParameterOption;
 import saker.clang.impl.util.ClangUtils;
-import saker.clang.impl.util.CollectingProcessIOConsumer;
+import saker.clang.impl.util.ProcessResourceUsage;
+import saker.clang.impl.util.ProcessWatchdog;
+import saker.clang.impl.util.ResourceUsageSummary;
+import saker.clang.impl.util.SpillingProcessIOConsumer;
 import saker.clang.main.link.ClangLinkTaskFactory;
 import saker.compiler.utils.api.CompilationIdentifier;
 import saker.sdk.support.api.SDKDescription;
@@ -68,6 +71,14 @@ public class ClangLinkWorkerTaskFactory
 	private static final NavigableSet<String> WORKER_TASK_CAPABILITIES = ImmutableUtils
 			.makeImmutableNavigableSet(new String[] { CAPABILITY_INNER_TASKS_COMPUTATIONAL });
 
+	/**
+	 * Environment user parameter for the time limit of the linker process.
+	 * <p>
+	 * The value is in seconds, or a number with a <code>ms</code>, <code>s</code>, <code>min</code>, or
+	 * <code>h</code> unit suffix. The linker is terminated if it runs longer, and the linking fails.
+	 */
+	public static final String ENVIRONMENT_PARAMETER_LINK_TIMEOUT = "saker.clang.link.timeout";
+
 	private Set<CompilationPathOption> inputs;
 	private Set<CompilationPathOption> libraryPath;
 	private NavigableMap<String, SDKDescription> sdkDescriptions;
@@ -169,8 +180,17 @@ public class ClangLinkWorkerTaskFactory
 		}
 		LinkerInnerTaskFactoryResult innertaskresult = nextres.getResult();
 
-		return new ClangLinkerWorkerTaskOutputImpl(passcompilationidentifier, innertaskresult.getOutputPath(),
-				linkerinnertasksdkdescriptions);
+		ResourceUsageSummary resourceusage = new ResourceUsageSummary(passidstr);
+		resourceusage.add(ResourceUsageSummary.KIND_LINK, innertaskresult.getOutputPath().toString(),
+				innertaskresult.getLinkDurationNanos(), innertaskresult.getUserCpuNanos(),
+				innertaskresult.getSystemCpuNanos(), innertaskresult.getPeakMemoryBytes());
+		resourceusage.write(outdir);
+		resourceusage.reportBuildTrace("Linker");
+
+		ClangLinkerWorkerTaskOutputImpl result = new ClangLinkerWorkerTaskOutputImpl(passcompilationidentifier,
+				innertaskresult.getOutputPath(), linkerinnertasksdkdescriptions);
+		result.setProcessMeasurements(innertaskresult);
+		return result;
 	}
 
 	@Override
@@ -257,6 +277,12 @@ public class ClangLinkWorkerTaskFactory
 		private CompilationIdentifier compilationIdentifier;
 		private SakerPath outputPath;
 		private NavigableMap<String, SDKDescription> sdkDescriptions;
+		//the measurements of the linker process
+		//not part of equality, as they differ between otherwise equal builds
+		private long linkDurationNanos;
+		private long userCpuNanos;
+		private long systemCpuNanos;
+		private long peakMemoryBytes;
 
 		/**
 		 * For {@link Externalizable}.
@@ -286,11 +312,38 @@ public class ClangLinkWorkerTaskFactory
 			return sdkDescriptions;
 		}
 
+		public long getLinkDurationNanos() {
+			return linkDurationNanos;
+		}
+
+		public long getUserCpuNanos() {
+			return userCpuNanos;
+		}
+
+		public long getSystemCpuNanos() {
+			return systemCpuNanos;
+		}
+
+		public long getPeakMemoryBytes() {
+			return peakMemoryBytes;
+		}
+
+		private void setProcessMeasurements(LinkerInnerTaskFactoryResult result) {
+			this.linkDurationNanos = result.getLinkDurationNanos();
+			this.userCpuNanos = result.getUserCpuNanos();
+			this.systemCpuNanos = result.getSystemCpuNanos();
+			this.peakMemoryBytes = result.getPeakMemoryBytes();
+		}
+
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
 			out.writeObject(compilationIdentifier);
 			out.writeObject(outputPath);
 			SerialUtils.writeExternalMap(out, sdkDescriptions);
+			out.writeLong(linkDurationNanos);
+			out.writeLong(userCpuNanos);
+			out.writeLong(systemCpuNanos);
+			out.writeLong(peakMemoryBytes);
 		}
 
 		@Override
@@ -299,6 +352,10 @@ public class ClangLinkWorkerTaskFactory
 			outputPath = (SakerPath) in.readObject();
 			sdkDescriptions = SerialUtils.readExternalSortedImmutableNavigableMap(in,
 					SDKSupportUtils.getSDKNameComparator());
+			linkDurationNanos = in.readLong();
+			userCpuNanos = in.readLong();
+			systemCpuNanos = in.readLong();
+			peakMemoryBytes = in.readLong();
 		}
 
 		@Override
@@ -345,6 +402,10 @@ public class ClangLinkWorkerTaskFactory
 		private static final long serialVersionUID = 1L;
 
 		private SakerPath outputPath;
+		private long linkDurationNanos;
+		private long userCpuNanos;
+		private long systemCpuNanos;
+		private long peakMemoryBytes;
 
 		/**
 		 * For {@link Externalizable}.
@@ -360,14 +421,45 @@ public class ClangLinkWorkerTaskFactory
 			return outputPath;
 		}
 
+		public long getLinkDurationNanos() {
+			return linkDurationNanos;
+		}
+
+		public long getUserCpuNanos() {
+			return userCpuNanos;
+		}
+
+		public long getSystemCpuNanos() {
+			return systemCpuNanos;
+		}
+
+		public long getPeakMemoryBytes() {
+			return peakMemoryBytes;
+		}
+
+		public void setProcessMeasurements(long durationnanos, ProcessResourceUsage usage) {
+			this.linkDurationNanos = durationnanos;
+			this.userCpuNanos = usage.getUserCpuNanos();
+			this.systemCpuNanos = usage.getSystemCpuNanos();
+			this.peakMemoryBytes = usage.getPeakResidentSetSizeBytes();
+		}
+
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
 			out.writeObject(outputPath);
+			out.writeLong(linkDurationNanos);
+			out.writeLong(userCpuNanos);
+			out.writeLong(systemCpuNanos);
+			out.writeLong(peakMemoryBytes);
 		}
 
 		@Override
 		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
 			outputPath = (SakerPath) in.readObject();
+			linkDurationNanos = in.readLong();
+			userCpuNanos = in.readLong();
+			systemCpuNanos = in.readLong();
+			peakMemoryBytes = in.readLong();
 		}
 	}
 
@@ -544,10 +636,21 @@ public class ClangLinkWorkerTaskFactory
 
 			//use the output parent path as the working directory
 			SakerPath workingdir = SakerPath.valueOf(outputmirrorpath.getParent());
-			CollectingProcessIOConsumer stdoutcollector = new CollectingProcessIOConsumer();
-
-			int procresult = ClangUtils.runClangProcess(environment, commands, workingdir, stdoutcollector, null, true);
-			taskcontext.getStandardOut().write(stdoutcollector.getOutputBytes());
+			//forward the output lines as they arrive, there's no need to keep them
+			int procresult;
+			ProcessResourceUsage resourceusage = new ProcessResourceUsage();
+			ProcessWatchdog watchdog = ProcessWatchdog.create(environment, ENVIRONMENT_PARAMETER_LINK_TIMEOUT, 1);
+			long linkstartnanos = System.nanoTime();
+			try (SpillingProcessIOConsumer stdoutconsumer = new SpillingProcessIOConsumer(0, null,
+					taskcontext.getStandardOut())) {
+				procresult = ClangUtils.runClangProcess(environment, commands, workingdir, stdoutconsumer, null, true,
+						resourceusage, null, watchdog);
+			}
+			long linkdurationnanos = System.nanoTime() - linkstartnanos;
+			if (watchdog != null && watchdog.isTimedOut()) {
+				taskcontext.println(watchdog.getHangDiagnostics());
+				throw new IOException("Linking timed out after " + watchdog.getTimeoutMillis() + " ms.");
+			}
 			if (procresult != 0) {
 				throw new IOException("Failed to link: " + procresult + " (0x" + Integer.toHexString(procresult) + ")");
 			}
@@ -571,6 +674,7 @@ public class ClangLinkWorkerTaskFactory
 					outputsakerfile.getContentDescriptor());
 
 			LinkerInnerTaskFactoryResult result = new LinkerInnerTaskFactoryResult(outputexecpath);
+			result.setProcessMeasurements(linkdurationnanos, resourceusage);
 
 			if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
 				BuildTrace.reportOutputArtifact(outputexecpath, BuildTrace.ARTIFACT_EMBED_DEFAULT);
@@ -1,205 +1,439 @@
-package saker.clang.impl.util;
-
-import java.io.IOException;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-
-import saker.build.file.path.SakerPath;
-import saker.build.runtime.environment.SakerEnvironment;
-import saker.build.thirdparty.saker.util.ArrayUtils;
-import saker.build.thirdparty.saker.util.ImmutableUtils;
-import saker.build.thirdparty.saker.util.ObjectUtils;
-import saker.build.thirdparty.saker.util.StringUtils;
-import saker.clang.impl.option.SimpleParameterOption;
-import saker.clang.impl.sdk.DefaultClangSDKDescription;
-import saker.process.api.ProcessIOConsumer;
-import saker.process.api.SakerProcess;
-import saker.process.api.SakerProcessBuilder;
-import saker.sdk.support.api.SDKDescription;
-import saker.sdk.support.api.SDKPathCollectionReference;
-import saker.sdk.support.api.SDKPathReference;
-import saker.sdk.support.api.SDKPropertyCollectionReference;
-import saker.sdk.support.api.SDKPropertyReference;
-import saker.sdk.support.api.SDKReference;
-import saker.sdk.support.api.exc.SDKPathNotFoundException;
-import saker.std.api.file.location.FileLocation;
-import saker.std.api.util.SakerStandardUtils;
-import testing.saker.clang.TestFlag;
-
-public class ClangUtils {
-	public static final String SDK_NAME_CLANG = "Clang";
-
-	public static final SDKDescription DEFAULT_CLANG_SDK = new DefaultClangSDKDescription();
-
-	public static final String ENVIRONMENT_PARAMETER_CLANG_EXECUTABLES = "saker.clang.executables";
-	public static final String ENVIRONMENT_PARAMETER_CLANGXX_EXECUTABLES = "saker.clang++.executables";
-
-	public static final String SDK_CLANG_PATH_EXECUTABLE = "exe";
-
-	private ClangUtils() {
-		throw new UnsupportedOperationException();
-	}
-
-	public static String getClangExecutable(SDKReference sdk) {
-		Exception[] causes = {};
-		try {
-			SakerPath path = sdk.getPath(SDK_CLANG_PATH_EXECUTABLE);
-			if (path != null) {
-				return path.toString();
-			}
-		} catch (Exception e) {
-			causes = ArrayUtils.appended(causes, e);
-		}
-		try {
-			String prop = sdk.getProperty(SDK_CLANG_PATH_EXECUTABLE);
-			if (prop != null) {
-				return prop;
-			}
-		} catch (Exception e) {
-			causes = ArrayUtils.appended(causes, e);
-		}
-		SDKPathNotFoundException exc = new SDKPathNotFoundException(
-				"Clang executable path not found in SDK for identifier: " + SDK_CLANG_PATH_EXECUTABLE);
-		for (Exception ex : causes) {
-			exc.addSuppressed(ex);
-		}
-		throw exc;
-	}
-
-	public static void removeClangEnvironmentVariables(Map<String, String> env) {
-		//based on https://clang.llvm.org/docs/CommandGuide/clang.html#environment
-		env.remove("CPATH");
-		env.remove("C_INCLUDE_PATH");
-		env.remove("OBJC_INCLUDE_PATH");
-		env.remove("CPLUS_INCLUDE_PATH");
-		env.remove("OBJCPLUS_INCLUDE_PATH");
-		env.remove("MACOSX_DEPLOYMENT_TARGET");
-
-		//based on http://releases.llvm.org/2.5/docs/CommandGuide/html/llvm-ld.html
-		env.remove("LLVM_LIB_SEARCH_PATH");
-	}
-
-	public static ClangVersionInformation getClangVersionInformation(String executable)
-			throws IOException, InterruptedException {
-		List<String> cmd = ImmutableUtils.asUnmodifiableArrayList(executable, "--version");
-		SakerProcessBuilder pb = SakerProcessBuilder.create().setCommand(cmd);
-		pb.setStandardErrorMerge(true);
-		CollectingProcessIOConsumer stdoutconsumer = new CollectingProcessIOConsumer();
-		pb.setStandardOutputConsumer(stdoutconsumer);
-		try (SakerProcess proc = pb.start()) {
-			proc.processIO();
-			int exitcode = proc.waitFor();
-			if (exitcode != 0) {
-				throw new RuntimeException(
-						"Failed to determine clang version, exit code: " + exitcode + " for " + executable);
-			}
-		} catch (IOException e) {
-			throw new IOException("Failed to run command: " + StringUtils.toStringJoin(" ", cmd), e);
-		}
-
-		String output = stdoutconsumer.getOutputString();
-
-		return ClangVersionInformation.createFromVersionOutput(output);
-	}
-
-	public static int runClangProcess(SakerEnvironment environment, List<String> commands, SakerPath workingdir,
-			ProcessIOConsumer stdoutconsumer, ProcessIOConsumer stderrconsumer, boolean mergestderr)
-			throws IllegalStateException, IOException, InterruptedException {
-		if (TestFlag.ENABLED) {
-			return TestFlag.metric().runProcess(environment, commands, mergestderr,
-					stdoutconsumer == null ? null : stdoutconsumer::handleOutput,
-					stderrconsumer == null ? null : stderrconsumer::handleOutput);
-		}
-		SakerProcessBuilder pb = SakerProcessBuilder.create();
-		pb.setCommand(commands);
-		pb.setStandardOutputConsumer(stdoutconsumer);
-		if (mergestderr) {
-			pb.setStandardErrorMerge(true);
-		} else {
-			pb.setStandardErrorConsumer(stderrconsumer);
-		}
-		pb.setWorkingDirectory(workingdir);
-		removeClangEnvironmentVariables(pb.getEnvironment());
-
-		try (SakerProcess proc = pb.start()) {
-			proc.processIO();
-			return proc.waitFor();
-		}
-	}
-
-	public static String getFileName(FileLocation fl) {
-		return SakerStandardUtils.getFileLocationFileName(fl);
-	}
-
-	public static void evaluateSimpleParameters(List<String> result, List<? extends SimpleParameterOption> params,
-			Map<String, ? extends SDKReference> sdks) throws Exception {
-		if (params == null) {
-			return;
-		}
-		SimpleParameterOption.Visitor visitor = new SimpleParameterOption.Visitor() {
-			@Override
-			public void visit(String value) {
-				result.add(value);
-			}
-
-			@Override
-			public void visit(SDKPathCollectionReference value) {
-				try {
-					Collection<SakerPath> paths = value.getValue(sdks);
-					if (paths == null) {
-						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
-					}
-					for (SakerPath p : paths) {
-						result.add(p.toString());
-					}
-				} catch (Exception e) {
-					throw ObjectUtils.sneakyThrow(e);
-				}
-			}
-
-			@Override
-			public void visit(SDKPropertyCollectionReference value) {
-				try {
-					Collection<String> props = value.getValue(sdks);
-					if (props == null) {
-						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
-					}
-					result.addAll(props);
-				} catch (Exception e) {
-					throw ObjectUtils.sneakyThrow(e);
-				}
-			}
-
-			@Override
-			public void visit(SDKPathReference value) {
-				try {
-					SakerPath p = value.getValue(sdks);
-					if (p == null) {
-						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
-					}
-					result.add(p.toString());
-				} catch (Exception e) {
-					throw ObjectUtils.sneakyThrow(e);
-				}
-			}
-
-			@Override
-			public void visit(SDKPropertyReference value) {
-				try {
-					String prop = value.getValue(sdks);
-					if (prop == null) {
-						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
-					}
-					result.add(prop);
-				} catch (Exception e) {
-					throw ObjectUtils.sneakyThrow(e);
-				}
-			}
-
-		};
-		for (SimpleParameterOption p : params) {
-			p.accept(visitor);
-		}
-	}
-}
+package saker.clang.impl.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.thirdparty.saker.util.ArrayUtils;
+import saker.build.thirdparty.saker.util.ImmutableUtils;
+import saker.build.thirdparty.saker.util.ObjectUtils;
+import saker.build.thirdparty.saker.util.StringUtils;
+import saker.clang.impl.option.SimpleParameterOption;
+import saker.clang.impl.sdk.DefaultClangSDKDescription;
+import saker.process.api.ProcessIOConsumer;
+import saker.process.api.SakerProcess;
+import saker.process.api.SakerProcessBuilder;
+import saker.sdk.support.api.SDKDescription;
+import saker.sdk.support.api.SDKPathCollectionReference;
+import saker.sdk.support.api.SDKPathReference;
+import saker.sdk.support.api.SDKPropertyCollectionReference;
+import saker.sdk.support.api.SDKPropertyReference;
+import saker.sdk.support.api.SDKReference;
+import saker.sdk.support.api.exc.SDKPathNotFoundException;
+import saker.std.api.file.location.FileLocation;
+import saker.std.api.util.SakerStandardUtils;
+import testing.saker.clang.TestFlag;
+
+public class ClangUtils {
+	public static final String SDK_NAME_CLANG = "Clang";
+
+	public static final SDKDescription DEFAULT_CLANG_SDK = new DefaultClangSDKDescription();
+
+	public static final String ENVIRONMENT_PARAMETER_CLANG_EXECUTABLES = "saker.clang.executables";
+	public static final String ENVIRONMENT_PARAMETER_CLANGXX_EXECUTABLES = "saker.clang++.executables";
+
+	public static final String SDK_CLANG_PATH_EXECUTABLE = "exe";
+
+	private static final String[] BYTE_SIZE_UNITS = { "k", "m", "g" };
+	private static final long[] BYTE_SIZE_UNIT_MULTIPLIERS = { 1024L, 1024L * 1024, 1024L * 1024 * 1024 };
+	//minutes are "min", as "m" is mebibytes for the sizes
+	private static final String[] DURATION_UNITS = { "ms", "s", "min", "h" };
+	private static final long[] DURATION_UNIT_MULTIPLIERS = { 1L, 1000L, 60L * 1000, 60L * 60 * 1000 };
+
+	private ClangUtils() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static String getClangExecutable(SDKReference sdk) {
+		Exception[] causes = {};
+		try {
+			SakerPath path = sdk.getPath(SDK_CLANG_PATH_EXECUTABLE);
+			if (path != null) {
+				return path.toString();
+			}
+		} catch (Exception e) {
+			causes = ArrayUtils.appended(causes, e);
+		}
+		try {
+			String prop = sdk.getProperty(SDK_CLANG_PATH_EXECUTABLE);
+			if (prop != null) {
+				return prop;
+			}
+		} catch (Exception e) {
+			causes = ArrayUtils.appended(causes, e);
+		}
+		SDKPathNotFoundException exc = new SDKPathNotFoundException(
+				"Clang executable path not found in SDK for identifier: " + SDK_CLANG_PATH_EXECUTABLE);
+		for (Exception ex : causes) {
+			exc.addSuppressed(ex);
+		}
+		throw exc;
+	}
+
+	public static void removeClangEnvironmentVariables(Map<String, String> env) {
+		//based on https://clang.llvm.org/docs/CommandGuide/clang.html#environment
+		env.remove("CPATH");
+		env.remove("C_INCLUDE_PATH");
+		env.remove("OBJC_INCLUDE_PATH");
+		env.remove("CPLUS_INCLUDE_PATH");
+		env.remove("OBJCPLUS_INCLUDE_PATH");
+		env.remove("MACOSX_DEPLOYMENT_TARGET");
+
+		//based on http://releases.llvm.org/2.5/docs/CommandGuide/html/llvm-ld.html
+		env.remove("LLVM_LIB_SEARCH_PATH");
+	}
+
+	public static ClangVersionInformation getClangVersionInformation(String executable)
+			throws IOException, InterruptedException {
+		List<String> cmd = ImmutableUtils.asUnmodifiableArrayList(executable, "--version");
+		SakerProcessBuilder pb = SakerProcessBuilder.create().setCommand(cmd);
+		pb.setStandardErrorMerge(true);
+		CollectingProcessIOConsumer stdoutconsumer = new CollectingProcessIOConsumer();
+		pb.setStandardOutputConsumer(stdoutconsumer);
+		try (SakerProcess proc = pb.start()) {
+			proc.processIO();
+			int exitcode = proc.waitFor();
+			if (exitcode != 0) {
+				throw new RuntimeException(
+						"Failed to determine clang version, exit code: " + exitcode + " for " + executable);
+			}
+		} catch (IOException e) {
+			throw new IOException("Failed to run command: " + StringUtils.toStringJoin(" ", cmd), e);
+		}
+
+		String output = stdoutconsumer.getOutputString();
+
+		return ClangVersionInformation.createFromVersionOutput(output);
+	}
+
+	public static int runClangProcess(SakerEnvironment environment, List<String> commands, SakerPath workingdir,
+			ProcessIOConsumer stdoutconsumer, ProcessIOConsumer stderrconsumer, boolean mergestderr)
+			throws IllegalStateException, IOException, InterruptedException {
+		return runClangProcess(environment, commands, workingdir, stdoutconsumer, stderrconsumer, mergestderr, null);
+	}
+
+	/**
+	 * Runs a clang process and measures its resource usage.
+	 * <p>
+	 * The resource usage is only measured on platforms where it is supported. The fields of the usage argument are left
+	 * as is otherwise.
+	 *
+	 * @param usage
+	 *            The resource usage to update, or <code>null</code> to not measure it.
+	 */
+	public static int runClangProcess(SakerEnvironment environment, List<String> commands, SakerPath workingdir,
+			ProcessIOConsumer stdoutconsumer, ProcessIOConsumer stderrconsumer, boolean mergestderr,
+			ProcessResourceUsage usage) throws IllegalStateException, IOException, InterruptedException {
+		return runClangProcess(environment, commands, workingdir, stdoutconsumer, stderrconsumer, mergestderr, usage,
+				null);
+	}
+
+	/**
+	 * Runs a clang process that is terminated if the argument registry is cancelled.
+	 *
+	 * @param usage
+	 *            The resource usage to update, or <code>null</code> to not measure it.
+	 * @param registry
+	 *            The registry to register the process in, or <code>null</code>.
+	 * @throws CancellationException
+	 *             If the registry was cancelled before or while the process was running.
+	 */
+	public static int runClangProcess(SakerEnvironment environment, List<String> commands, SakerPath workingdir,
+			ProcessIOConsumer stdoutconsumer, ProcessIOConsumer stderrconsumer, boolean mergestderr,
+			ProcessResourceUsage usage, RunningProcessRegistry registry)
+			throws IllegalStateException, IOException, InterruptedException, CancellationException {
+		return runClangProcess(environment, commands, workingdir, stdoutconsumer, stderrconsumer, mergestderr, usage,
+				registry, null);
+	}
+
+	/**
+	 * Runs a clang process that is terminated if it doesn't finish in time.
+	 * <p>
+	 * If the process times out, the output it produced until that point is still passed to the consumers, and the
+	 * exit code of the terminated process is returned. The timeout can be checked using
+	 * {@link ProcessWatchdog#isTimedOut()}.
+	 *
+	 * @param usage
+	 *            The resource usage to update, or <code>null</code> to not measure it.
+	 * @param registry
+	 *            The registry to register the process in, or <code>null</code>.
+	 * @param watchdog
+	 *            The watchdog for the process, or <code>null</code> to wait for it without a limit.
+	 * @throws CancellationException
+	 *             If the registry was cancelled before or while the process was running.
+	 */
+	public static int runClangProcess(SakerEnvironment environment, List<String> commands, SakerPath workingdir,
+			ProcessIOConsumer stdoutconsumer, ProcessIOConsumer stderrconsumer, boolean mergestderr,
+			ProcessResourceUsage usage, RunningProcessRegistry registry, ProcessWatchdog watchdog)
+			throws IllegalStateException, IOException, InterruptedException, CancellationException {
+		if (registry != null && registry.isCancelled()) {
+			throw new CancellationException("Process execution cancelled.");
+		}
+		if (TestFlag.ENABLED) {
+			//the mocked process runs on the current thread, it is monitored the same way as a real one
+			MockProcessHandle handle = new MockProcessHandle(Thread.currentThread());
+			try {
+				return runMonitoredProcess(handle, commands, usage, registry, watchdog,
+						sampler -> TestFlag.metric().runProcess(environment, commands, workingdir, mergestderr,
+								stdoutconsumer == null ? null : stdoutconsumer::handleOutput,
+								stderrconsumer == null ? null : stderrconsumer::handleOutput));
+			} finally {
+				handle.finish();
+			}
+		}
+		SakerProcessBuilder pb = SakerProcessBuilder.create();
+		pb.setCommand(commands);
+		pb.setStandardOutputConsumer(stdoutconsumer);
+		if (mergestderr) {
+			pb.setStandardErrorMerge(true);
+		} else {
+			pb.setStandardErrorConsumer(stderrconsumer);
+		}
+		pb.setWorkingDirectory(workingdir);
+		removeClangEnvironmentVariables(pb.getEnvironment());
+
+		try (SakerProcess proc = pb.start()) {
+			return runMonitoredProcess(proc, commands, usage, registry, watchdog, sampler -> {
+				proc.processIO();
+				if (sampler != null) {
+					//the output is closed, the process exited or is about to exit
+					sampler.finish();
+				}
+				return proc.waitFor();
+			});
+		}
+	}
+
+	@FunctionalInterface
+	private interface MonitoredProcessRunner {
+		/**
+		 * Processes the output of the process, and waits for it to exit.
+		 *
+		 * @return The exit code.
+		 */
+		public int run(ProcessResourceSampler sampler) throws IOException, InterruptedException;
+	}
+
+	private static int runMonitoredProcess(Closeable process, List<String> commands, ProcessResourceUsage usage,
+			RunningProcessRegistry registry, ProcessWatchdog watchdog, MonitoredProcessRunner runner)
+			throws IOException, InterruptedException, CancellationException {
+		if (registry != null && !registry.register(process)) {
+			throw new CancellationException("Process execution cancelled.");
+		}
+		ProcessResourceSampler sampler = null;
+		if (usage != null) {
+			sampler = ProcessResourceSampler.start(commands, usage);
+		} else if (watchdog != null) {
+			//for looking up the process if it times out
+			sampler = ProcessResourceSampler.start(commands, new ProcessResourceUsage());
+		}
+		if (watchdog != null) {
+			watchdog.start(process, sampler);
+		}
+		int result = -1;
+		//the output processing may fail if the process is destroyed meanwhile
+		IOException ioexception = null;
+		boolean destroyed = false;
+		try {
+			result = runner.run(sampler);
+		} catch (IOException e) {
+			ioexception = e;
+		} finally {
+			if (watchdog != null) {
+				watchdog.finish();
+			}
+			if (sampler != null) {
+				sampler.finish();
+			}
+			if (registry != null) {
+				destroyed = !registry.unregister(process);
+			}
+		}
+		if (destroyed) {
+			throw new CancellationException("Process execution cancelled.");
+		}
+		if (ioexception != null) {
+			throw ioexception;
+		}
+		return result;
+	}
+
+	/**
+	 * Parses a byte size that may have a <code>k</code>, <code>m</code>, or <code>g</code> binary unit suffix.
+	 *
+	 * @param param
+	 *            The size to parse.
+	 * @return The size in bytes.
+	 * @throws IllegalArgumentException
+	 *             If the format or the unit is invalid, the size is not positive, or it overflows.
+	 */
+	public static long parseByteSize(String param) throws IllegalArgumentException {
+		return parseQuantity(param, "size", BYTE_SIZE_UNITS, BYTE_SIZE_UNIT_MULTIPLIERS, 1);
+	}
+
+	/**
+	 * Parses a duration that may have a <code>ms</code>, <code>s</code>, <code>min</code>, or <code>h</code> unit
+	 * suffix. The duration is in seconds if there's no suffix.
+	 *
+	 * @param param
+	 *            The duration to parse.
+	 * @return The duration in milliseconds.
+	 * @throws IllegalArgumentException
+	 *             If the format or the unit is invalid, the duration is not positive, or it overflows.
+	 */
+	public static long parseDurationMillis(String param) throws IllegalArgumentException {
+		return parseQuantity(param, "duration", DURATION_UNITS, DURATION_UNIT_MULTIPLIERS, 1000);
+	}
+
+	/**
+	 * Parses a positive decimal number that is optionally followed by one of the given case-insensitive units.
+	 */
+	private static long parseQuantity(String param, String kind, String[] units, long[] multipliers,
+			long defaultmultiplier) throws IllegalArgumentException {
+		String lower = param == null ? "" : param.trim().toLowerCase(Locale.ENGLISH);
+		int unitidx = 0;
+		while (unitidx < lower.length() && lower.charAt(unitidx) >= '0' && lower.charAt(unitidx) <= '9') {
+			++unitidx;
+		}
+		if (unitidx == 0) {
+			throw new IllegalArgumentException("Invalid " + kind + ": " + param);
+		}
+		String unit = lower.substring(unitidx).trim();
+		long multiplier = defaultmultiplier;
+		if (!unit.isEmpty()) {
+			int idx = Arrays.asList(units).indexOf(unit);
+			if (idx < 0) {
+				throw new IllegalArgumentException("Invalid " + kind + " unit: " + param + " (expected one of "
+						+ StringUtils.toStringJoin(", ", Arrays.asList(units)) + ")");
+			}
+			multiplier = multipliers[idx];
+		}
+		long result;
+		try {
+			result = Math.multiplyExact(Long.parseLong(lower.substring(0, unitidx)), multiplier);
+		} catch (NumberFormatException | ArithmeticException e) {
+			throw new IllegalArgumentException("Too large " + kind + ": " + param, e);
+		}
+		if (result <= 0) {
+			throw new IllegalArgumentException("Invalid " + kind + ": " + param);
+		}
+		return result;
+	}
+
+	public static String getFileName(FileLocation fl) {
+		return SakerStandardUtils.getFileLocationFileName(fl);
+	}
+
+	public static void evaluateSimpleParameters(List<String> result, List<? extends SimpleParameterOption> params,
+			Map<String, ? extends SDKReference> sdks) throws Exception {
+		if (params == null) {
+			return;
+		}
+		SimpleParameterOption.Visitor visitor = new SimpleParameterOption.Visitor() {
+			@Override
+			public void visit(String value) {
+				result.add(value);
+			}
+
+			@Override
+			public void visit(SDKPathCollectionReference value) {
+				try {
+					Collection<SakerPath> paths = value.getValue(sdks);
+					if (paths == null) {
+						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
+					}
+					for (SakerPath p : paths) {
+						result.add(p.toString());
+					}
+				} catch (Exception e) {
+					throw ObjectUtils.sneakyThrow(e);
+				}
+			}
+
+			@Override
+			public void visit(SDKPropertyCollectionReference value) {
+				try {
+					Collection<String> props = value.getValue(sdks);
+					if (props == null) {
+						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
+					}
+					result.addAll(props);
+				} catch (Exception e) {
+					throw ObjectUtils.sneakyThrow(e);
+				}
+			}
+
+			@Override
+			public void visit(SDKPathReference value) {
+				try {
+					SakerPath p = value.getValue(sdks);
+					if (p == null) {
+						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
+					}
+					result.add(p.toString());
+				} catch (Exception e) {
+					throw ObjectUtils.sneakyThrow(e);
+				}
+			}
+
+			@Override
+			public void visit(SDKPropertyReference value) {
+				try {
+					String prop = value.getValue(sdks);
+					if (prop == null) {
+						throw new SDKPathNotFoundException("No SDK paths found for: " + value);
+					}
+					result.add(prop);
+				} catch (Exception e) {
+					throw ObjectUtils.sneakyThrow(e);
+				}
+			}
+
+		};
+		for (SimpleParameterOption p : params) {
+			p.accept(visitor);
+		}
+	}
+
+	/**
+	 * Handle of a mocked process that runs on the thread that started it.
+	 * <p>
+	 * Destroying the process interrupts the thread, the same way as the output processing of a real process is
+	 * interrupted when it is destroyed.
+	 */
+	private static final class MockProcessHandle implements Closeable {
+		private final Thread thread;
+		private boolean finished;
+		private boolean interrupted;
+
+		public MockProcessHandle(Thread thread) {
+			this.thread = thread;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!finished && !interrupted) {
+				interrupted = true;
+				thread.interrupt();
+			}
+		}
+
+		public void finish() {
+			synchronized (this) {
+				finished = true;
+				if (!interrupted) {
+					return;
+				}
+			}
+			//clear the interrupt flag that was set by the destruction
+			Thread.interrupted();
+		}
+	}
+}
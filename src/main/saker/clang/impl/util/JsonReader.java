@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal pull parser for JSON documents that are in memory as UTF-8 encoded bytes.
+ * <p>
+ * The reader doesn't build an object model of the document. The caller walks the document with the
+ * <code>begin</code>/<code>end</code> and <code>next</code> methods, and can skip the values it is not interested in.
+ * Only the string values that are actually requested are decoded.
+ * <p>
+ * The commas and colons between the elements are treated the same way as whitespace.
+ */
+public class JsonReader {
+	public static final int TOKEN_END_OF_DOCUMENT = 0;
+	public static final int TOKEN_BEGIN_OBJECT = 1;
+	public static final int TOKEN_END_OBJECT = 2;
+	public static final int TOKEN_BEGIN_ARRAY = 3;
+	public static final int TOKEN_END_ARRAY = 4;
+	public static final int TOKEN_STRING = 5;
+	public static final int TOKEN_NUMBER = 6;
+	public static final int TOKEN_LITERAL = 7;
+
+	private final byte[] bytes;
+	private final int end;
+	private int index;
+
+	private StringBuilder stringBuffer;
+
+	public JsonReader(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.index = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Gets the type of the next token without consuming it.
+	 *
+	 * @return One of the <code>TOKEN_*</code> constants.
+	 * @throws IllegalArgumentException
+	 *             If the input is malformed.
+	 */
+	public int peek() throws IllegalArgumentException {
+		skipSeparators();
+		if (index >= end) {
+			return TOKEN_END_OF_DOCUMENT;
+		}
+		byte b = bytes[index];
+		switch (b) {
+			case '{':
+				return TOKEN_BEGIN_OBJECT;
+			case '}':
+				return TOKEN_END_OBJECT;
+			case '[':
+				return TOKEN_BEGIN_ARRAY;
+			case ']':
+				return TOKEN_END_ARRAY;
+			case '"':
+				return TOKEN_STRING;
+			case 't':
+			case 'f':
+			case 'n':
+				return TOKEN_LITERAL;
+			default: {
+				if (b == '-' || (b >= '0' && b <= '9')) {
+					return TOKEN_NUMBER;
+				}
+				throw new IllegalArgumentException("Unexpected character in JSON at index: " + index);
+			}
+		}
+	}
+
+	public void beginObject() throws IllegalArgumentException {
+		expect(TOKEN_BEGIN_OBJECT);
+		++index;
+	}
+
+	public void endObject() throws IllegalArgumentException {
+		expect(TOKEN_END_OBJECT);
+		++index;
+	}
+
+	public void beginArray() throws IllegalArgumentException {
+		expect(TOKEN_BEGIN_ARRAY);
+		++index;
+	}
+
+	public void endArray() throws IllegalArgumentException {
+		expect(TOKEN_END_ARRAY);
+		++index;
+	}
+
+	/**
+	 * Checks if the current object or array has more elements.
+	 */
+	public boolean hasNext() throws IllegalArgumentException {
+		int token = peek();
+		return token != TOKEN_END_OBJECT && token != TOKEN_END_ARRAY && token != TOKEN_END_OF_DOCUMENT;
+	}
+
+	/**
+	 * Reads the name of the next field in an object.
+	 */
+	public String nextName() throws IllegalArgumentException {
+		return nextString();
+	}
+
+	public String nextString() throws IllegalArgumentException {
+		expect(TOKEN_STRING);
+		int start = ++index;
+		//fast path for strings without escapes
+		while (index < end) {
+			byte b = bytes[index];
+			if (b == '"') {
+				String result = new String(bytes, start, index - start, StandardCharsets.UTF_8);
+				++index;
+				return result;
+			}
+			if (b == '\\') {
+				break;
+			}
+			++index;
+		}
+		StringBuilder sb = stringBuffer;
+		if (sb == null) {
+			sb = new StringBuilder();
+			stringBuffer = sb;
+		} else {
+			sb.setLength(0);
+		}
+		sb.append(new String(bytes, start, index - start, StandardCharsets.UTF_8));
+		while (index < end) {
+			byte b = bytes[index];
+			if (b == '"') {
+				++index;
+				return sb.toString();
+			}
+			if (b == '\\') {
+				if (index + 1 >= end) {
+					break;
+				}
+				byte esc = bytes[index + 1];
+				index += 2;
+				switch (esc) {
+					case 'n':
+						sb.append('\n');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					case 'b':
+						sb.append('\b');
+						break;
+					case 'f':
+						sb.append('\f');
+						break;
+					case 'u': {
+						if (index + 4 > end) {
+							throw new IllegalArgumentException("Malformed unicode escape in JSON at index: " + index);
+						}
+						sb.append((char) Integer.parseInt(new String(bytes, index, 4, StandardCharsets.US_ASCII), 16));
+						index += 4;
+						break;
+					}
+					default:
+						//\" \\ \/
+						sb.append((char) esc);
+						break;
+				}
+				continue;
+			}
+			int segmentstart = index;
+			while (index < end && bytes[index] != '"' && bytes[index] != '\\') {
+				++index;
+			}
+			sb.append(new String(bytes, segmentstart, index - segmentstart, StandardCharsets.UTF_8));
+		}
+		throw new IllegalArgumentException("Unterminated string in JSON.");
+	}
+
+	public long nextLong() throws IllegalArgumentException {
+		expect(TOKEN_NUMBER);
+		int start = index;
+		skipNumber();
+		String numstr = new String(bytes, start, index - start, StandardCharsets.US_ASCII);
+		try {
+			return Long.parseLong(numstr);
+		} catch (NumberFormatException e) {
+			return (long) Double.parseDouble(numstr);
+		}
+	}
+
+	public int nextInt() throws IllegalArgumentException {
+		return (int) nextLong();
+	}
+
+	/**
+	 * Skips the next value, including all of its nested elements.
+	 */
+	public void skipValue() throws IllegalArgumentException {
+		int depth = 0;
+		do {
+			int token = peek();
+			switch (token) {
+				case TOKEN_BEGIN_OBJECT:
+				case TOKEN_BEGIN_ARRAY: {
+					++depth;
+					++index;
+					break;
+				}
+				case TOKEN_END_OBJECT:
+				case TOKEN_END_ARRAY: {
+					--depth;
+					++index;
+					break;
+				}
+				case TOKEN_STRING: {
+					skipString();
+					break;
+				}
+				case TOKEN_NUMBER: {
+					skipNumber();
+					break;
+				}
+				case TOKEN_LITERAL: {
+					while (index < end && bytes[index] >= 'a' && bytes[index] <= 'z') {
+						++index;
+					}
+					break;
+				}
+				default: {
+					throw new IllegalArgumentException("Unexpected end of JSON.");
+				}
+			}
+		} while (depth > 0);
+	}
+
+	private void skipString() {
+		++index;
+		while (index < end) {
+			byte b = bytes[index];
+			if (b == '"') {
+				++index;
+				return;
+			}
+			if (b == '\\') {
+				index += 2;
+				continue;
+			}
+			++index;
+		}
+		throw new IllegalArgumentException("Unterminated string in JSON.");
+	}
+
+	private void skipNumber() {
+		while (index < end) {
+			byte b = bytes[index];
+			if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+				++index;
+				continue;
+			}
+			break;
+		}
+	}
+
+	private void expect(int token) throws IllegalArgumentException {
+		int next = peek();
+		if (next != token) {
+			throw new IllegalArgumentException(
+					"Unexpected JSON token: " + next + " expected: " + token + " at index: " + index);
+		}
+	}
+
+	private void skipSeparators() {
+		while (index < end) {
+			byte b = bytes[index];
+			if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ',' || b == ':') {
+				++index;
+				continue;
+			}
+			break;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal writer for JSON documents.
+ * <p>
+ * The separators between the elements are inserted automatically. The writer doesn't validate the structure of the
+ * document, the caller is responsible for the proper pairing of the <code>begin</code> and <code>end</code> calls.
+ */
+public class JsonWriter {
+	private final StringBuilder sb = new StringBuilder();
+	/**
+	 * Whether the next element needs to be preceded by a comma.
+	 */
+	private boolean separate;
+
+	public JsonWriter() {
+	}
+
+	public JsonWriter beginObject() {
+		startValue();
+		sb.append('{');
+		separate = false;
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		sb.append('}');
+		separate = true;
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		startValue();
+		sb.append('[');
+		separate = false;
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		sb.append(']');
+		separate = true;
+		return this;
+	}
+
+	public JsonWriter name(String name) {
+		startValue();
+		appendString(sb, name);
+		sb.append(':');
+		//the value doesn't need a separator
+		separate = false;
+		return this;
+	}
+
+	public JsonWriter value(String value) {
+		startValue();
+		if (value == null) {
+			sb.append("null");
+		} else {
+			appendString(sb, value);
+		}
+		separate = true;
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		startValue();
+		sb.append(value);
+		separate = true;
+		return this;
+	}
+
+	public JsonWriter value(double value) {
+		startValue();
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			sb.append("null");
+		} else {
+			sb.append(value);
+		}
+		separate = true;
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		startValue();
+		sb.append(value);
+		separate = true;
+		return this;
+	}
+
+	public byte[] toByteArray() {
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return sb.toString();
+	}
+
+	/**
+	 * Appends a JSON string literal to the argument string builder.
+	 */
+	public static void appendString(StringBuilder sb, String str) {
+		sb.append('"');
+		int len = str.length();
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						sb.append(String.format("\\u%04x", (int) c));
+					} else {
+						sb.append(c);
+					}
+					break;
+			}
+		}
+		sb.append('"');
+	}
+
+	private void startValue() {
+		if (separate) {
+			sb.append(',');
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the resource usage of a child process using the <code>/proc</code> file system on Linux.
+ * <p>
+ * The process API doesn't expose the identifier of the started process, so it is looked up among the children of the
+ * thread that started it, based on the command line. The accounting of the process is read periodically while it is
+ * running, as it is no longer available after the process is waited for. The CPU times are read once more after the
+ * process exited, as they are still available until the process is reaped.
+ * <p>
+ * The descendants of the process are sampled as well, as the clang driver runs the frontend in a child process. The
+ * CPU times of a process include the times of its children that it already waited for. The peak resident set size is
+ * the sum of the peaks of the processes that are running at the same time.
+ */
+final class ProcessResourceSampler implements Runnable {
+	private static final long SAMPLING_INTERVAL_MILLIS = 50;
+	/**
+	 * The number of samplings after which the lookup of the process is abandoned.
+	 */
+	private static final int MAX_LOOKUP_ATTEMPTS = 10;
+	/**
+	 * The maximum depth of the process tree that is inspected. The clang driver runs the frontend as a child process.
+	 */
+	private static final int MAX_DESCENDANT_DEPTH = 4;
+	/**
+	 * The type of the auxiliary vector entry that contains the <code>USER_HZ</code> value.
+	 */
+	private static final long AT_CLKTCK = 17;
+	private static final long AT_NULL = 0;
+	private static final long DEFAULT_CLOCK_TICK_NANOS = 10_000_000;
+
+	static final Path PROC_PATH = Paths.get("/proc");
+	private static final boolean AVAILABLE = Files.isDirectory(PROC_PATH.resolve("self").resolve("task"));
+	/**
+	 * The duration of a clock tick that the CPU times are reported in.
+	 */
+	private static final long CLOCK_TICK_NANOS = AVAILABLE ? readClockTickNanos() : DEFAULT_CLOCK_TICK_NANOS;
+
+	private static final Set<Integer> CLAIMED_PIDS = ConcurrentHashMap.newKeySet();
+
+	private static volatile ScheduledThreadPoolExecutor executor;
+
+	private final List<String> commands;
+	private final Path childrenFile;
+	private final ProcessResourceUsage usage;
+
+	private int pid = -1;
+	private int lookupAttempts;
+	private boolean finished;
+	private ScheduledFuture<?> future;
+
+	private ProcessResourceSampler(List<String> commands, Path childrenFile, ProcessResourceUsage usage) {
+		this.commands = commands;
+		this.childrenFile = childrenFile;
+		this.usage = usage;
+	}
+
+	/**
+	 * Starts sampling the resource usage of a process.
+	 * <p>
+	 * Must be called on the thread that started the process.
+	 *
+	 * @param commands
+	 *            The command line of the process.
+	 * @param usage
+	 *            The usage to update.
+	 * @return The sampler or <code>null</code> if the sampling is not supported.
+	 */
+	public static ProcessResourceSampler start(List<String> commands, ProcessResourceUsage usage) {
+		if (!AVAILABLE) {
+			return null;
+		}
+		Path childrenfile = null;
+		try {
+			//in the format of <pid>/task/<tid>
+			Path threadself = Files.readSymbolicLink(PROC_PATH.resolve("thread-self"));
+			childrenfile = PROC_PATH.resolve(threadself).resolve("children");
+			if (!Files.isRegularFile(childrenfile)) {
+				childrenfile = null;
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			//older kernel, the children of all threads are searched
+		}
+		ProcessResourceSampler sampler = new ProcessResourceSampler(commands, childrenfile, usage);
+		synchronized (sampler) {
+			sampler.sample();
+			if (sampler.lookupAttempts < MAX_LOOKUP_ATTEMPTS) {
+				sampler.future = getExecutor().scheduleWithFixedDelay(sampler, SAMPLING_INTERVAL_MILLIS,
+						SAMPLING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+		return sampler;
+	}
+
+	@Override
+	public synchronized void run() {
+		if (finished) {
+			return;
+		}
+		sample();
+		if (pid < 0 && lookupAttempts >= MAX_LOOKUP_ATTEMPTS) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Gets the identifier of the sampled process.
+	 *
+	 * @return The process identifier or -1 if it was not found.
+	 */
+	public synchronized int getPid() {
+		return pid;
+	}
+
+	/**
+	 * Takes the last sample and stops the sampling.
+	 * <p>
+	 * Should be called after the process exited, but before it is waited for.
+	 */
+	public synchronized void finish() {
+		if (finished) {
+			return;
+		}
+		if (future != null) {
+			future.cancel(false);
+		}
+		if (pid >= 0) {
+			sample();
+			CLAIMED_PIDS.remove(pid);
+		}
+		finished = true;
+	}
+
+	private void sample() {
+		if (pid < 0) {
+			if (lookupAttempts >= MAX_LOOKUP_ATTEMPTS) {
+				return;
+			}
+			++lookupAttempts;
+			pid = findProcess();
+			if (pid < 0) {
+				return;
+			}
+		}
+		List<Integer> pids = new ArrayList<>();
+		collectProcessTree(pid, 0, pids);
+		long rss = 0;
+		long[] cputicks = { 0, 0 };
+		//the parents are read before their children. if a child is waited for in the meantime, its times are missing
+		//from this sample instead of being counted twice
+		for (int i = pids.size() - 1; i >= 0; i--) {
+			Path procdir = PROC_PATH.resolve(Integer.toString(pids.get(i)));
+			rss += readPeakResidentSetSizeBytes(procdir);
+			addCpuTicks(procdir, cputicks);
+		}
+		usage.updatePeakResidentSetSizeBytes(rss);
+		usage.updateCpuNanos(cputicks[0] * CLOCK_TICK_NANOS, cputicks[1] * CLOCK_TICK_NANOS);
+	}
+
+	private static long readPeakResidentSetSizeBytes(Path procdir) {
+		try {
+			for (String line : readLines(procdir.resolve("status"))) {
+				if (line.startsWith("VmHWM:")) {
+					return parseKiloBytes(line.substring(6));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			//the process exited, or the format is unrecognized
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds the user and system CPU times of the process and its waited for children to the argument array.
+	 */
+	private static void addCpuTicks(Path procdir, long[] cputicks) {
+		try {
+			String stat = new String(Files.readAllBytes(procdir.resolve("stat")), StandardCharsets.US_ASCII);
+			//the fields after the executable name, which is enclosed in parentheses and may contain spaces
+			//the first field is the state, utime, stime, cutime and cstime are the 14th-17th fields of the whole line
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+			long user = Long.parseLong(fields[11]) + Long.parseLong(fields[13]);
+			long system = Long.parseLong(fields[12]) + Long.parseLong(fields[14]);
+			cputicks[0] += user;
+			cputicks[1] += system;
+		} catch (IOException | RuntimeException e) {
+			//the process was reaped, or the format is unrecognized
+		}
+	}
+
+	/**
+	 * Collects the process and its descendants, the descendants first, so they are signaled before their parents
+	 * could restart them.
+	 */
+	static void collectProcessTree(int pid, int depth, List<Integer> result) {
+		if (depth < MAX_DESCENDANT_DEPTH) {
+			List<Integer> children = new ArrayList<>();
+			Path tasksdir = PROC_PATH.resolve(Integer.toString(pid)).resolve("task");
+			try (DirectoryStream<Path> tasks = Files.newDirectoryStream(tasksdir)) {
+				for (Path task : tasks) {
+					addChildren(task.resolve("children"), children);
+				}
+			} catch (IOException e) {
+				//the process exited, or the children are not available
+			}
+			for (Integer child : children) {
+				collectProcessTree(child, depth + 1, result);
+			}
+		}
+		result.add(pid);
+	}
+
+	/**
+	 * Reads the <code>USER_HZ</code> value from the <code>AT_CLKTCK</code> entry of the auxiliary vector of the current
+	 * process, as it cannot be queried otherwise without native code.
+	 * <p>
+	 * If it can't be read, 100 is assumed, which is the value on all common architectures. If the kernel uses a
+	 * different value in this case, the reported CPU times are off by a factor of <code>USER_HZ</code> / 100.
+	 */
+	private static long readClockTickNanos() {
+		try {
+			ByteBuffer auxv = ByteBuffer.wrap(Files.readAllBytes(PROC_PATH.resolve("self").resolve("auxv")))
+					.order(ByteOrder.nativeOrder());
+			//the entries are pairs of native words
+			boolean words64 = !"32".equals(System.getProperty("sun.arch.data.model"));
+			while (auxv.remaining() >= (words64 ? 16 : 8)) {
+				long type = words64 ? auxv.getLong() : auxv.getInt() & 0xFFFFFFFFL;
+				long value = words64 ? auxv.getLong() : auxv.getInt() & 0xFFFFFFFFL;
+				if (type == AT_CLKTCK) {
+					if (value > 0 && value <= 1_000_000_000L) {
+						return 1_000_000_000L / value;
+					}
+					break;
+				}
+				if (type == AT_NULL) {
+					break;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			//not available, use the default
+		}
+		return DEFAULT_CLOCK_TICK_NANOS;
+	}
+
+	private int findProcess() {
+		List<Integer> candidates = new ArrayList<>();
+		try {
+			if (childrenFile != null) {
+				addChildren(childrenFile, candidates);
+			} else {
+				try (DirectoryStream<Path> tasks = Files
+						.newDirectoryStream(PROC_PATH.resolve("self").resolve("task"))) {
+					for (Path task : tasks) {
+						addChildren(task.resolve("children"), candidates);
+					}
+				}
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+		for (Integer candidate : candidates) {
+			if (!isCommandLineMatches(candidate)) {
+				continue;
+			}
+			if (CLAIMED_PIDS.add(candidate)) {
+				return candidate;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isCommandLineMatches(int candidatepid) {
+		byte[] cmdline;
+		try {
+			cmdline = Files.readAllBytes(PROC_PATH.resolve(Integer.toString(candidatepid)).resolve("cmdline"));
+		} catch (IOException e) {
+			return false;
+		}
+		//the arguments are separated and terminated by null characters
+		int start = 0;
+		for (String cmd : commands) {
+			byte[] cmdbytes = cmd.getBytes(StandardCharsets.UTF_8);
+			int end = start + cmdbytes.length;
+			if (end >= cmdline.length || cmdline[end] != 0) {
+				return false;
+			}
+			for (int i = 0; i < cmdbytes.length; i++) {
+				if (cmdline[start + i] != cmdbytes[i]) {
+					return false;
+				}
+			}
+			start = end + 1;
+		}
+		return start == cmdline.length;
+	}
+
+	private static void addChildren(Path childrenfile, List<Integer> result) throws IOException {
+		String content = new String(Files.readAllBytes(childrenfile), StandardCharsets.US_ASCII);
+		for (String pidstr : content.trim().split(" ")) {
+			if (pidstr.isEmpty()) {
+				continue;
+			}
+			try {
+				result.add(Integer.valueOf(pidstr));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+	}
+
+	private static List<String> readLines(Path path) throws IOException {
+		//the files in /proc report 0 size, so read them fully instead of relying on it
+		return Files.readAllLines(path, StandardCharsets.US_ASCII);
+	}
+
+	private static long parseKiloBytes(String value) throws NumberFormatException {
+		String trimmed = value.trim();
+		if (trimmed.endsWith("kB")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 2).trim();
+		}
+		return Long.parseLong(trimmed) * 1024;
+	}
+
+	/**
+	 * Gets the executor that is used to monitor the running processes.
+	 */
+	static ScheduledThreadPoolExecutor getExecutor() {
+		ScheduledThreadPoolExecutor result = executor;
+		if (result == null) {
+			synchronized (ProcessResourceSampler.class) {
+				result = executor;
+				if (result == null) {
+					result = new ScheduledThreadPoolExecutor(1, r -> {
+						Thread thread = new Thread(r, "clang-process-monitor");
+						thread.setDaemon(true);
+						return thread;
+					});
+					result.setRemoveOnCancelPolicy(true);
+					executor = result;
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+/**
+ * Holds the resource usage of a process that was measured during its execution.
+ * <p>
+ * The values are 0 if they couldn't be determined.
+ */
+public final class ProcessResourceUsage {
+	private volatile long peakResidentSetSizeBytes;
+	private volatile long userCpuNanos;
+	private volatile long systemCpuNanos;
+
+	public ProcessResourceUsage() {
+	}
+
+	/**
+	 * Gets the peak resident set size of the process in bytes.
+	 */
+	public long getPeakResidentSetSizeBytes() {
+		return peakResidentSetSizeBytes;
+	}
+
+	/**
+	 * Gets the CPU time that the process spent in user mode in nanoseconds.
+	 */
+	public long getUserCpuNanos() {
+		return userCpuNanos;
+	}
+
+	/**
+	 * Gets the CPU time that the process spent in kernel mode in nanoseconds.
+	 */
+	public long getSystemCpuNanos() {
+		return systemCpuNanos;
+	}
+
+	void updatePeakResidentSetSizeBytes(long bytes) {
+		if (bytes > peakResidentSetSizeBytes) {
+			this.peakResidentSetSizeBytes = bytes;
+		}
+	}
+
+	void updateCpuNanos(long user, long system) {
+		//the times are cumulative
+		if (user > userCpuNanos) {
+			this.userCpuNanos = user;
+		}
+		if (system > systemCpuNanos) {
+			this.systemCpuNanos = system;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[peakResidentSetSizeBytes=" + peakResidentSetSizeBytes
+				+ ", userCpuNanos=" + userCpuNanos + ", systemCpuNanos=" + systemCpuNanos + "]";
+	}
+}
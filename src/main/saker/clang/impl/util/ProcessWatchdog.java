@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.runtime.execution.SakerLog;
+
+/**
+ * Terminates a process if it doesn't finish in time.
+ * <p>
+ * When the timeout elapses, a snapshot of the state of the process and its descendants is taken, and they are asked
+ * to terminate. If they are still running after a grace period, they are killed. The state and the signals are only
+ * available on Linux, where the processes are looked up through the <code>/proc</code> file system. On other platforms
+ * the process is destroyed using the process API right away.
+ * <p>
+ * The timeouts are handled on a separate thread than the resource sampling, and the signals are sent without waiting
+ * for the processes to exit.
+ * <p>
+ * A watchdog instance may only be used for a single process.
+ */
+public final class ProcessWatchdog {
+	private static final long TERMINATE_GRACE_PERIOD_MILLIS = 5_000;
+
+	/**
+	 * The methods of <code>java.lang.ProcessHandle</code>, or <code>null</code> if not available (Java 8).
+	 */
+	private static final Method PROCESS_HANDLE_OF;
+	private static final Method PROCESS_HANDLE_DESTROY;
+	private static final Method PROCESS_HANDLE_DESTROY_FORCIBLY;
+	static {
+		Method of = null;
+		Method destroy = null;
+		Method destroyforcibly = null;
+		try {
+			Class<?> handleclass = Class.forName("java.lang.ProcessHandle", false, null);
+			of = handleclass.getMethod("of", long.class);
+			destroy = handleclass.getMethod("destroy");
+			destroyforcibly = handleclass.getMethod("destroyForcibly");
+		} catch (ReflectiveOperationException | LinkageError e) {
+			of = null;
+		}
+		PROCESS_HANDLE_OF = of;
+		PROCESS_HANDLE_DESTROY = destroy;
+		PROCESS_HANDLE_DESTROY_FORCIBLY = destroyforcibly;
+	}
+
+	private static volatile ScheduledThreadPoolExecutor executor;
+
+	private final long timeoutMillis;
+
+	private Closeable process;
+	private ProcessResourceSampler sampler;
+	private ScheduledFuture<?> future;
+	private boolean finished;
+	private volatile boolean timedOut;
+	private volatile String hangDiagnostics;
+
+	public ProcessWatchdog(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Creates a watchdog based on the timeout specified in the environment user parameters.
+	 *
+	 * @param environment
+	 *            The environment.
+	 * @param parametername
+	 *            The name of the environment user parameter.
+	 * @param multiplier
+	 *            The multiplier of the timeout. E.g. the number of files processed by the process.
+	 * @return The watchdog or <code>null</code> if no timeout is specified.
+	 */
+	public static ProcessWatchdog create(SakerEnvironment environment, String parametername, int multiplier) {
+		String param = environment.getUserParameters().get(parametername);
+		if (param == null || param.isEmpty()) {
+			return null;
+		}
+		long timeout;
+		try {
+			timeout = ClangUtils.parseDurationMillis(param);
+		} catch (IllegalArgumentException e) {
+			SakerLog.error().verbose().println("Invalid process timeout: " + parametername + " (" + e + ")");
+			return null;
+		}
+		return new ProcessWatchdog(timeout * multiplier);
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Gets if the process was terminated because it didn't finish in time.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Gets the description of the state of the process at the time of the timeout.
+	 *
+	 * @return The description or <code>null</code> if the process didn't time out.
+	 */
+	public String getHangDiagnostics() {
+		return hangDiagnostics;
+	}
+
+	synchronized void start(Closeable process, ProcessResourceSampler sampler) {
+		this.process = process;
+		this.sampler = sampler;
+		this.future = getExecutor().schedule(this::timeout, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void finish() {
+		finished = true;
+		if (future != null) {
+			future.cancel(false);
+		}
+	}
+
+	private void timeout() {
+		int pid;
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			timedOut = true;
+			pid = sampler == null ? -1 : sampler.getPid();
+		}
+		List<Integer> pids = new ArrayList<>();
+		if (pid >= 0) {
+			ProcessResourceSampler.collectProcessTree(pid, 0, pids);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("Process timed out after ").append(timeoutMillis).append(" ms.\n");
+		for (Integer p : pids) {
+			appendProcessState(sb, p);
+		}
+		hangDiagnostics = sb.toString();
+
+		if (pids.isEmpty() || !signal(false, pids)) {
+			destroy();
+			return;
+		}
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			future = getExecutor().schedule(() -> kill(pids), TERMINATE_GRACE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void kill(List<Integer> pids) {
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+		}
+		signal(true, pids);
+		destroy();
+	}
+
+	private void destroy() {
+		try {
+			process.close();
+		} catch (IOException e) {
+			SakerLog.error().verbose().println("Failed to destroy timed out process: " + e);
+		}
+	}
+
+	/**
+	 * Asks the processes to terminate, or kills them, without waiting for them to exit.
+	 * <p>
+	 * The process handle API is used if available, else the <code>kill</code> command is started.
+	 *
+	 * @return <code>false</code> if the processes couldn't be signaled.
+	 */
+	private static boolean signal(boolean forcibly, List<Integer> pids) {
+		if (PROCESS_HANDLE_OF != null) {
+			try {
+				Method destroymethod = forcibly ? PROCESS_HANDLE_DESTROY_FORCIBLY : PROCESS_HANDLE_DESTROY;
+				for (Integer p : pids) {
+					//empty if the process already exited, which is fine
+					Optional<?> handle = (Optional<?>) PROCESS_HANDLE_OF.invoke(null, p.longValue());
+					if (handle.isPresent()) {
+						destroymethod.invoke(handle.get());
+					}
+				}
+				return true;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				SakerLog.error().verbose().println("Failed to signal timed out process: " + e);
+			}
+		}
+		List<String> commands = new ArrayList<>();
+		commands.add("kill");
+		commands.add(forcibly ? "-KILL" : "-TERM");
+		for (Integer p : pids) {
+			commands.add(p.toString());
+		}
+		try {
+			//some of the processes may've already exited, so the errors are discarded as well
+			Process proc = new ProcessBuilder(commands).redirectErrorStream(true)
+					.redirectOutput(new File("/dev/null")).start();
+			proc.getOutputStream().close();
+			return true;
+		} catch (IOException e) {
+			SakerLog.error().verbose().println("Failed to signal timed out process: " + e);
+			return false;
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor getExecutor() {
+		ScheduledThreadPoolExecutor result = executor;
+		if (result == null) {
+			synchronized (ProcessWatchdog.class) {
+				result = executor;
+				if (result == null) {
+					result = new ScheduledThreadPoolExecutor(1, r -> {
+						Thread thread = new Thread(r, "clang-process-watchdog");
+						thread.setDaemon(true);
+						return thread;
+					});
+					result.setRemoveOnCancelPolicy(true);
+					executor = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void appendProcessState(StringBuilder sb, int pid) {
+		Path procdir = ProcessResourceSampler.PROC_PATH.resolve(Integer.toString(pid));
+		sb.append("Process ").append(pid).append(":\n");
+		String cmdline = readProcFile(procdir.resolve("cmdline"));
+		if (cmdline != null) {
+			sb.append("  Command: ").append(cmdline.replace('\0', ' ').trim()).append('\n');
+		}
+		String status = readProcFile(procdir.resolve("status"));
+		if (status != null) {
+			for (String line : status.split("\n")) {
+				if (line.startsWith("State:") || line.startsWith("VmRSS:")) {
+					sb.append("  ").append(line).append('\n');
+				}
+			}
+		}
+		String wchan = readProcFile(procdir.resolve("wchan"));
+		if (wchan != null && !wchan.isEmpty()) {
+			sb.append("  Waiting in: ").append(wchan.trim()).append('\n');
+		}
+		//the kernel stack is usually only readable with elevated privileges
+		String stack = readProcFile(procdir.resolve("stack"));
+		if (stack != null && !stack.isEmpty()) {
+			sb.append("  Kernel stack:\n");
+			for (String line : stack.split("\n")) {
+				sb.append("    ").append(line).append('\n');
+			}
+		}
+	}
+
+	private static String readProcFile(Path path) {
+		try {
+			return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import saker.build.file.ByteArraySakerFile;
+import saker.build.file.SakerDirectory;
+import saker.build.trace.BuildTrace;
+
+/**
+ * Collects the resource usage of the processes that were run by a compilation or linking pass.
+ * <p>
+ * The summary is written as a JSON file to the output directory of the pass, and the totals are reported to the build
+ * trace. Only the processes that were run during the build are included. The summary is in the following format:
+ *
+ * <pre>
+ * {
+ *   "pass": "&lt;pass identifier&gt;",
+ *   "processes": [
+ *     { "kind": "source", "path": "/src/main.cpp", "wallNanos": 0, "userCpuNanos": 0, "systemCpuNanos": 0,
+ *       "peakMemoryBytes": 0 }
+ *   ],
+ *   "total": { "count": 0, "wallNanos": 0, "userCpuNanos": 0, "systemCpuNanos": 0, "peakMemoryBytes": 0 }
+ * }
+ * </pre>
+ *
+ * The values are 0 if they couldn't be measured. The total peak memory is the maximum of the processes.
+ */
+public class ResourceUsageSummary {
+	public static final String SUMMARY_FILE_NAME = "resource-usage.json";
+
+	public static final String KIND_SOURCE = "source";
+	public static final String KIND_PRECOMPILED_HEADER = "pch";
+	public static final String KIND_LINK = "link";
+
+	private static final class Entry {
+		protected final String kind;
+		protected final String path;
+		protected final long wallNanos;
+		protected final long userCpuNanos;
+		protected final long systemCpuNanos;
+		protected final long peakMemoryBytes;
+
+		public Entry(String kind, String path, long wallNanos, long userCpuNanos, long systemCpuNanos,
+				long peakMemoryBytes) {
+			this.kind = kind;
+			this.path = path;
+			this.wallNanos = wallNanos;
+			this.userCpuNanos = userCpuNanos;
+			this.systemCpuNanos = systemCpuNanos;
+			this.peakMemoryBytes = peakMemoryBytes;
+		}
+	}
+
+	private final String pass;
+	private final List<Entry> entries = new ArrayList<>();
+
+	private long totalWallNanos;
+	private long totalUserCpuNanos;
+	private long totalSystemCpuNanos;
+	private long maxPeakMemoryBytes;
+
+	public ResourceUsageSummary(String pass) {
+		this.pass = pass;
+	}
+
+	public synchronized void add(String kind, String path, long wallnanos, long usercpunanos, long systemcpunanos,
+			long peakmemorybytes) {
+		entries.add(new Entry(kind, path, wallnanos, usercpunanos, systemcpunanos, peakmemorybytes));
+		totalWallNanos += wallnanos;
+		totalUserCpuNanos += usercpunanos;
+		totalSystemCpuNanos += systemcpunanos;
+		maxPeakMemoryBytes = Math.max(maxPeakMemoryBytes, peakmemorybytes);
+	}
+
+	public synchronized byte[] toJson() {
+		JsonWriter writer = new JsonWriter();
+		writer.beginObject();
+		writer.name("pass").value(pass);
+		writer.name("processes").beginArray();
+		for (Entry entry : entries) {
+			writer.beginObject();
+			writer.name("kind").value(entry.kind);
+			writer.name("path").value(entry.path);
+			writer.name("wallNanos").value(entry.wallNanos);
+			writer.name("userCpuNanos").value(entry.userCpuNanos);
+			writer.name("systemCpuNanos").value(entry.systemCpuNanos);
+			writer.name("peakMemoryBytes").value(entry.peakMemoryBytes);
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.name("total").beginObject();
+		writer.name("count").value(entries.size());
+		writer.name("wallNanos").value(totalWallNanos);
+		writer.name("userCpuNanos").value(totalUserCpuNanos);
+		writer.name("systemCpuNanos").value(totalSystemCpuNanos);
+		writer.name("peakMemoryBytes").value(maxPeakMemoryBytes);
+		writer.endObject();
+		writer.endObject();
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Writes the summary file to the given directory.
+	 */
+	public void write(SakerDirectory directory) throws IOException {
+		ByteArraySakerFile file = new ByteArraySakerFile(SUMMARY_FILE_NAME, toJson());
+		directory.add(file);
+		file.synchronize();
+	}
+
+	/**
+	 * Reports the totals to the build trace.
+	 *
+	 * @param processname
+	 *            The display name of the processes. E.g. <code>"Compiler"</code>.
+	 */
+	public synchronized void reportBuildTrace(String processname) {
+		if (saker.build.meta.Versions.VERSION_FULL_COMPOUND < 8_014) {
+			return;
+		}
+		Map<Object, Object> values = new LinkedHashMap<>();
+		values.put(processname + " invocations", entries.size());
+		values.put(processname + " user CPU time (ms)", totalUserCpuNanos / 1_000_000);
+		values.put(processname + " system CPU time (ms)", totalSystemCpuNanos / 1_000_000);
+		values.put(processname + " peak memory (MiB)", maxPeakMemoryBytes / (1024 * 1024));
+		BuildTrace.addValues(values, BuildTrace.VALUE_CATEGORY_TASK);
+	}
+}
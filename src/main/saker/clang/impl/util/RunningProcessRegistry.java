@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import saker.build.runtime.execution.SakerLog;
+
+/**
+ * Keeps track of the running processes so they can be terminated when the operation they are part of is cancelled.
+ * <p>
+ * Once cancelled, the currently running processes are destroyed, and the processes registered afterwards are
+ * destroyed right away. The processes are destroyed by closing them.
+ */
+public final class RunningProcessRegistry {
+	private final Set<Closeable> processes = new HashSet<>();
+	private boolean cancelled;
+
+	public RunningProcessRegistry() {
+	}
+
+	/**
+	 * Registers a started process.
+	 *
+	 * @return <code>false</code> if the registry is already cancelled, and the process should be destroyed.
+	 */
+	public synchronized boolean register(Closeable process) {
+		if (cancelled) {
+			return false;
+		}
+		processes.add(process);
+		return true;
+	}
+
+	/**
+	 * Unregisters a process after it exited.
+	 *
+	 * @return <code>false</code> if the process was destroyed because the registry was cancelled.
+	 */
+	public synchronized boolean unregister(Closeable process) {
+		return processes.remove(process);
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Cancels the registry and destroys the running processes.
+	 */
+	public void cancel() {
+		List<Closeable> running;
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			running = new ArrayList<>(processes);
+			processes.clear();
+		}
+		for (Closeable proc : running) {
+			try {
+				proc.close();
+			} catch (IOException e) {
+				SakerLog.error().verbose().println("Failed to destroy cancelled process: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+import saker.build.thirdparty.saker.util.io.ByteSink;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.process.api.ProcessIOConsumer;
+
+/**
+ * Process output consumer that keeps only a limited prefix of the output in memory.
+ * <p>
+ * The output that doesn't fit in the memory limit is written to a spill file, if one was specified. Otherwise it is
+ * discarded. The complete lines of the output can be forwarded to a {@link ByteSink} as they arrive.
+ * <p>
+ * The whole output can be read back line by line using {@link #readLines(LineRegionHandler)}, without loading the spill
+ * file in memory.
+ */
+public class SpillingProcessIOConsumer implements ProcessIOConsumer, Closeable {
+	/**
+	 * The default number of bytes that are kept in memory.
+	 */
+	public static final int DEFAULT_MEMORY_LIMIT = 256 * 1024;
+
+	private static final int SPILL_READ_BUFFER_SIZE = 64 * 1024;
+
+	public interface LineRegionHandler {
+		/**
+		 * Handles a region of the output.
+		 * <p>
+		 * The region contains one or more complete lines, including the line terminators. The last line of the output
+		 * may not have a line terminator.
+		 *
+		 * @param lines
+		 *            The output region.
+		 */
+		public void handleLines(ByteArrayRegion lines) throws IOException;
+	}
+
+	private final int memoryLimit;
+	private final Path spillFile;
+	private final ByteSink forwardOutput;
+
+	private final UnsyncByteArrayOutputStream memoryOutput = new UnsyncByteArrayOutputStream();
+	private UnsyncByteArrayOutputStream forwardLineBuffer;
+	private FileChannel spillChannel;
+	private long totalLength;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param memoryLimit
+	 *            The maximum number of bytes to keep in memory.
+	 * @param spillFile
+	 *            The file to write the overflowing output to, or <code>null</code> to discard it. The file is deleted
+	 *            when the consumer is created, so no leftovers remain from a previous process. Its parent directory
+	 *            is created if necessary.
+	 * @param forwardOutput
+	 *            The sink to forward the output lines to, or <code>null</code>.
+	 * @throws IOException
+	 *             If the previous spill file failed to be deleted.
+	 */
+	public SpillingProcessIOConsumer(int memoryLimit, Path spillFile, ByteSink forwardOutput) throws IOException {
+		this.memoryLimit = memoryLimit;
+		this.spillFile = spillFile;
+		this.forwardOutput = forwardOutput;
+		if (spillFile != null) {
+			Files.deleteIfExists(spillFile);
+		}
+	}
+
+	@Override
+	public void handleOutput(ByteBuffer bytes) throws IOException {
+		int len = bytes.remaining();
+		if (len == 0) {
+			return;
+		}
+		totalLength += len;
+		if (forwardOutput != null) {
+			forward(bytes.duplicate());
+		}
+		int memoryremaining = memoryLimit - memoryOutput.size();
+		if (memoryremaining > 0) {
+			if (len <= memoryremaining) {
+				memoryOutput.write(bytes);
+				return;
+			}
+			ByteBuffer head = bytes.duplicate();
+			head.limit(head.position() + memoryremaining);
+			memoryOutput.write(head);
+			bytes.position(bytes.position() + memoryremaining);
+		}
+		if (spillFile == null) {
+			bytes.position(bytes.limit());
+			return;
+		}
+		if (spillChannel == null) {
+			//the directory is only created when the output is large enough to be spilled
+			Files.createDirectories(spillFile.getParent());
+			spillChannel = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		while (bytes.hasRemaining()) {
+			spillChannel.write(bytes);
+		}
+	}
+
+	/**
+	 * Gets the prefix of the output that is kept in memory.
+	 */
+	public ByteArrayRegion getOutputBytes() {
+		return memoryOutput.toByteArrayRegion();
+	}
+
+	/**
+	 * Gets the number of bytes that the process printed.
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	public boolean isEmpty() {
+		return totalLength == 0;
+	}
+
+	/**
+	 * Checks if the whole output is available in memory.
+	 */
+	public boolean isComplete() {
+		return totalLength == memoryOutput.size();
+	}
+
+	/**
+	 * Gets the spill file if any output was written to it.
+	 *
+	 * @return The path or <code>null</code> if the output wasn't spilled.
+	 */
+	public Path getSpilledFile() {
+		if (spillChannel == null) {
+			return null;
+		}
+		return spillFile;
+	}
+
+	/**
+	 * Reads the output in regions of complete lines.
+	 * <p>
+	 * The spill file is read in chunks, the lines that span across chunk boundaries are joined. If the output wasn't
+	 * spilled, but exceeded the memory limit, only the in memory prefix is read.
+	 * <p>
+	 * The consumer should be closed before calling this method.
+	 *
+	 * @param handler
+	 *            The handler.
+	 * @throws IOException
+	 *             In case of I/O error or if the handler throws.
+	 */
+	public void readLines(LineRegionHandler handler) throws IOException {
+		UnsyncByteArrayOutputStream carry = new UnsyncByteArrayOutputStream();
+		ByteArrayRegion inmemory = memoryOutput.toByteArrayRegion();
+		feedLines(inmemory.getArray(), inmemory.getOffset(), inmemory.getLength(), carry, handler);
+		Path spilled = getSpilledFile();
+		if (spilled != null) {
+			try (FileChannel channel = FileChannel.open(spilled, StandardOpenOption.READ)) {
+				byte[] buf = new byte[SPILL_READ_BUFFER_SIZE];
+				ByteBuffer bb = ByteBuffer.wrap(buf);
+				while (true) {
+					bb.clear();
+					int read = channel.read(bb);
+					if (read < 0) {
+						break;
+					}
+					feedLines(buf, 0, read, carry, handler);
+				}
+			}
+		}
+		if (carry.size() > 0) {
+			handler.handleLines(carry.toByteArrayRegion());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		FileChannel channel = spillChannel;
+		if (channel != null) {
+			channel.close();
+		}
+		UnsyncByteArrayOutputStream linebuf = forwardLineBuffer;
+		if (linebuf != null && linebuf.size() > 0) {
+			//the last line of the output didn't have a line terminator
+			forwardOutput.write(linebuf.toByteArrayRegion());
+			linebuf.reset();
+		}
+	}
+
+	private void forward(ByteBuffer bytes) throws IOException {
+		byte[] array;
+		int offset;
+		int length = bytes.remaining();
+		if (bytes.hasArray()) {
+			array = bytes.array();
+			offset = bytes.arrayOffset() + bytes.position();
+		} else {
+			array = new byte[length];
+			offset = 0;
+			bytes.get(array);
+		}
+		int lastnl = lastIndexOfNewLine(array, offset, offset + length);
+		UnsyncByteArrayOutputStream linebuf = forwardLineBuffer;
+		if (lastnl < 0) {
+			if (linebuf == null) {
+				linebuf = new UnsyncByteArrayOutputStream();
+				forwardLineBuffer = linebuf;
+			}
+			linebuf.write(array, offset, length);
+			return;
+		}
+		int linesend = lastnl + 1;
+		if (linebuf != null && linebuf.size() > 0) {
+			linebuf.write(array, offset, linesend - offset);
+			forwardOutput.write(linebuf.toByteArrayRegion());
+			linebuf.reset();
+		} else {
+			forwardOutput.write(ByteArrayRegion.wrap(array, offset, linesend - offset));
+		}
+		int end = offset + length;
+		if (linesend < end) {
+			if (linebuf == null) {
+				linebuf = new UnsyncByteArrayOutputStream();
+				forwardLineBuffer = linebuf;
+			}
+			linebuf.write(array, linesend, end - linesend);
+		}
+	}
+
+	private static void feedLines(byte[] bytes, int offset, int length, UnsyncByteArrayOutputStream carry,
+			LineRegionHandler handler) throws IOException {
+		if (length == 0) {
+			return;
+		}
+		int end = offset + length;
+		int lastnl = lastIndexOfNewLine(bytes, offset, end);
+		if (lastnl < 0) {
+			carry.write(bytes, offset, length);
+			return;
+		}
+		int linesend = lastnl + 1;
+		if (carry.size() > 0) {
+			carry.write(bytes, offset, linesend - offset);
+			handler.handleLines(carry.toByteArrayRegion());
+			carry.reset();
+		} else {
+			handler.handleLines(ByteArrayRegion.wrap(bytes, offset, linesend - offset));
+		}
+		if (linesend < end) {
+			carry.write(bytes, linesend, end - linesend);
+		}
+	}
+
+	private static int lastIndexOfNewLine(byte[] bytes, int start, int end) {
+		for (int i = end - 1; i >= start; i--) {
+			if (bytes[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.clang.impl.util;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.execution.ExecutionContext;
+
+/**
+ * Translates local file system paths to execution paths, the same way as {@link ExecutionContext#toUnmirrorPath(Path)}
+ * does.
+ * <p>
+ * The class keeps a trie of the known mirror directories and their corresponding execution paths, and caches the
+ * translation results for the parent directories of the looked up paths. The paths in the same directory only need
+ * one lookup this way, and the mirrored directories don't need to be translated by the execution context at all.
+ * <p>
+ * Serves as a common cache for inner tasks invoked on a given cluster.
+ */
+public class UnmirrorPathResolver {
+	private static final boolean WINDOWS_SEPARATORS = File.separatorChar == '\\';
+
+	private static final class TrieNode {
+		protected final ConcurrentHashMap<String, TrieNode> children = new ConcurrentHashMap<>();
+		protected volatile SakerPath executionPath;
+	}
+
+	private final TrieNode root = new TrieNode();
+	private final ConcurrentHashMap<String, Optional<SakerPath>> directoryResults = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds a local directory that is known to be the mirror of the given execution directory.
+	 *
+	 * @param localpath
+	 *            The local path of the directory.
+	 * @param executionpath
+	 *            The execution path of the directory.
+	 */
+	public void addMirrorDirectory(Path localpath, SakerPath executionpath) {
+		String pathstr = localpath.toString();
+		TrieNode node = root;
+		int len = pathstr.length();
+		int start = 0;
+		while (start <= len) {
+			int end = indexOfSeparator(pathstr, start);
+			if (end > start || start == 0) {
+				node = node.children.computeIfAbsent(getNameKey(pathstr, start, end), x -> new TrieNode());
+			}
+			start = end + 1;
+		}
+		node.executionPath = executionpath;
+	}
+
+	/**
+	 * Translates the argument local path to an execution path.
+	 *
+	 * @param executioncontext
+	 *            The execution context to fall back to.
+	 * @param localpath
+	 *            The local path to translate.
+	 * @return The execution path or <code>null</code> if the argument doesn't have a corresponding execution path.
+	 * @throws IllegalArgumentException
+	 *             If the argument is not a valid path.
+	 */
+	public SakerPath unmirror(ExecutionContext executioncontext, String localpath) throws IllegalArgumentException {
+		int lastsep = lastIndexOfSeparator(localpath);
+		if (lastsep <= 0 || lastsep == localpath.length() - 1) {
+			//no parent directory, or root path, or ends with a separator
+			return executioncontext.toUnmirrorPath(Paths.get(localpath));
+		}
+		String filename = localpath.substring(lastsep + 1);
+		if (".".equals(filename) || "..".equals(filename)) {
+			return executioncontext.toUnmirrorPath(Paths.get(localpath));
+		}
+		String dir = localpath.substring(0, lastsep);
+		Optional<SakerPath> dirresult = directoryResults.get(dir);
+		if (dirresult == null) {
+			SakerPath execdir = lookupTrie(dir);
+			if (execdir == null) {
+				execdir = executioncontext.toUnmirrorPath(Paths.get(dir));
+			}
+			dirresult = Optional.ofNullable(execdir);
+			directoryResults.putIfAbsent(dir, dirresult);
+		}
+		if (!dirresult.isPresent()) {
+			return null;
+		}
+		return dirresult.get().resolve(filename);
+	}
+
+	/**
+	 * Translates the argument local path to an execution path.
+	 *
+	 * @param executioncontext
+	 *            The execution context to fall back to.
+	 * @param localpath
+	 *            The local path to translate.
+	 * @return The execution path or <code>null</code> if the argument doesn't have a corresponding execution path.
+	 * @see #unmirror(ExecutionContext, String)
+	 */
+	public SakerPath unmirror(ExecutionContext executioncontext, Path localpath) {
+		return unmirror(executioncontext, localpath.toString());
+	}
+
+	private SakerPath lookupTrie(String dir) {
+		TrieNode node = root;
+		SakerPath matchpath = null;
+		int matchend = -1;
+		int len = dir.length();
+		int start = 0;
+		while (start <= len) {
+			int end = indexOfSeparator(dir, start);
+			if (end > start || start == 0) {
+				String name = dir.substring(start, end);
+				if (".".equals(name) || "..".equals(name)) {
+					//not normalized, let the execution context handle it
+					return null;
+				}
+				node = node.children.get(getNameKey(dir, start, end));
+				if (node == null) {
+					break;
+				}
+				SakerPath nodeexecpath = node.executionPath;
+				if (nodeexecpath != null) {
+					matchpath = nodeexecpath;
+					matchend = end;
+				}
+			}
+			start = end + 1;
+		}
+		if (matchpath == null) {
+			return null;
+		}
+		//resolve the remaining names against the deepest matching mirror directory
+		for (int i = matchend + 1; i <= len;) {
+			int end = indexOfSeparator(dir, i);
+			if (end > i) {
+				String name = dir.substring(i, end);
+				if (".".equals(name) || "..".equals(name)) {
+					return null;
+				}
+				matchpath = matchpath.resolve(name);
+			}
+			i = end + 1;
+		}
+		return matchpath;
+	}
+
+	private static String getNameKey(String path, int start, int end) {
+		String name = path.substring(start, end);
+		if (WINDOWS_SEPARATORS) {
+			//the file system is case insensitive on windows, e.g. drive letters can have different case
+			return name.toLowerCase(Locale.ENGLISH);
+		}
+		return name;
+	}
+
+	private static int indexOfSeparator(String path, int start) {
+		int len = path.length();
+		for (int i = start; i < len; i++) {
+			if (isSeparator(path.charAt(i))) {
+				return i;
+			}
+		}
+		return len;
+	}
+
+	private static int lastIndexOfSeparator(String path) {
+		for (int i = path.length() - 1; i >= 0; i--) {
+			if (isSeparator(path.charAt(i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isSeparator(char c) {
+		return c == '/' || (WINDOWS_SEPARATORS && c == '\\');
+	}
+}
@@ -41,7 +41,13 @@ public class TaskDocs {
 			+ "Precompiled headers files can be preprocessed by the compiler and included in multiple source files. "
 			+ "Using them can result in faster builds as the compiler can reuse the result of the precompilation.\n"
 			+ "It is recommended that the precompiled headers contains infrequently changing source files.\n"
-			+ "The precompiled header will be automatically force included in the compiled source files.";
+			+ "The precompiled header will be automatically force included in the compiled source files.\n"
+			+ "When the compilation is distributed using build clusters, the header is only compiled by the first "
+			+ "machine that needs it. The other machines with the same clang version and mirror directory layout "
+			+ "fetch it from there, or compile it themselves if it isn't available in 5 minutes. The fetched headers "
+			+ "are loaded with the -Xclang -fno-validate-pch arguments, as the modification times of their input files "
+			+ "differ on the machines. No incremental state is recorded for them, so they are compiled or fetched "
+			+ "again when they are needed in a later build.";
 
 	public static final String COMPILE_FORCE_INCLUDE = "Specifies the files that should be force included in the compiled source files.\n"
 			+ "The option corresponds to the -include argument of clang. The option acts as if the specified file was included with the #include directive "
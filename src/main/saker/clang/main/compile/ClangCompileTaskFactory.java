@@ -103,6 +103,33 @@ import saker.std.main.file.utils.TaskOptionUtils;
 				+ "An option is considered to be applicable to merging if all of the Identifier parts are contained in the compilation task Identifier, "
 				+ "and the Language arguments can be matched.\n"
 				+ "In case of unresolveable merge conflicts, the task will throw an appropriate exception."))
+@NestParameterInformation(value = "DiagnosticsFormat",
+		type = @NestTypeUsage(String.class),
+		info = @NestInformation("Specifies the format in which the compiler reports its diagnostics.\n"
+				+ "The value may be \"text\" or \"sarif\". If not specified, \"text\" is used.\n"
+				+ "If set to \"sarif\", clang is invoked with the -fdiagnostics-format=sarif argument, and the task "
+				+ "parses the reported diagnostics into a structured form. The diagnostics are stored in a compact way "
+				+ "and are only converted to their textual representation when they are displayed."))
+@NestParameterInformation(value = "TimeTrace",
+		type = @NestTypeUsage(boolean.class),
+		info = @NestInformation("Specifies whether the compilation costs should be analyzed using clang time traces.\n"
+				+ "If set to true, clang is invoked with the -ftime-trace argument. The generated traces are "
+				+ "summarized per source file, and only the summaries are kept. The parse times of the headers, the "
+				+ "instantiation times of the templates, and the frontend and backend times of the source files are "
+				+ "aggregated into a ranked report in the time-trace-report.json file of the output directory.\n"
+				+ "The time traces are supported by clang 9 and later. The default is false."))
+@NestParameterInformation(value = "AutoPrecompiledHeader",
+		type = @NestTypeUsage(boolean.class),
+		info = @NestInformation("Specifies whether precompiled headers should be synthesized automatically.\n"
+				+ "If set to true, the source files with the same compilation options are grouped, and the headers "
+				+ "that are included by most of the files in a group are collected into a generated header. The "
+				+ "generated header is precompiled, and used by the source files of the group that include all of "
+				+ "its headers. The headers are selected based on the includes reported by clang in the previous "
+				+ "builds, so the precompiled headers are only used from the second build on. Only the headers found "
+				+ "in the include directories are considered, the system headers are not.\n"
+				+ "The source files that have a PrecompiledHeader specified are not affected. The generated headers "
+				+ "are shared between the build cluster machines the same way as the specified ones. The default is "
+				+ "false."))
 public class ClangCompileTaskFactory extends FrontendTaskFactory<Object> {
 	private static final long serialVersionUID = 1L;
 
@@ -124,12 +151,32 @@ public class ClangCompileTaskFactory extends FrontendTaskFactory<Object> {
 			@SakerInput(value = { "CompilerOptions" })
 			public Collection<ClangCompilerOptions> compilerOptionsOption;
 
+			@SakerInput(value = { "DiagnosticsFormat" })
+			public String diagnosticsFormatOption;
+
+			@SakerInput(value = { "TimeTrace" })
+			public Boolean timeTraceOption;
+
+			@SakerInput(value = { "AutoPrecompiledHeader" })
+			public Boolean autoPrecompiledHeaderOption;
+
 			@Override
 			public Object run(TaskContext taskcontext) throws Exception {
 				if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
 					BuildTrace.classifyTask(BuildTrace.CLASSIFICATION_FRONTEND);
 				}
 
+				String diagnosticsformat = null;
+				if (diagnosticsFormatOption != null && !"text".equalsIgnoreCase(diagnosticsFormatOption)) {
+					if (!ClangCompileWorkerTaskFactory.DIAGNOSTICS_FORMAT_SARIF
+							.equalsIgnoreCase(diagnosticsFormatOption)) {
+						taskcontext.abortExecution(
+								new IllegalArgumentException("Unknown diagnostics format: " + diagnosticsFormatOption));
+						return null;
+					}
+					diagnosticsformat = ClangCompileWorkerTaskFactory.DIAGNOSTICS_FORMAT_SARIF;
+				}
+
 				List<CompilationInputPassTaskOption> inputpasses = new ArrayList<>();
 				Collection<ClangCompilerOptions> compileroptions = new ArrayList<>();
 				Map<String, SDKDescriptionTaskOption> sdkoptions = new TreeMap<>(
@@ -375,6 +422,9 @@ public class ClangCompileTaskFactory extends FrontendTaskFactory<Object> {
 				ClangCompileWorkerTaskFactory workertask = new ClangCompileWorkerTaskFactory();
 				workertask.setSdkDescriptions(sdkdescriptions);
 				workertask.setFiles(files);
+				workertask.setDiagnosticsFormat(diagnosticsformat);
+				workertask.setTimeTrace(Boolean.TRUE.equals(timeTraceOption));
+				workertask.setAutoPrecompiledHeader(Boolean.TRUE.equals(autoPrecompiledHeaderOption));
 
 				taskcontext.startTask(workertaskid, workertask, null);
 
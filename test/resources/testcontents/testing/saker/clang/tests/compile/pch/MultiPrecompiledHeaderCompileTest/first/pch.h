@@ -0,0 +1 @@
+100
\ No newline at end of file
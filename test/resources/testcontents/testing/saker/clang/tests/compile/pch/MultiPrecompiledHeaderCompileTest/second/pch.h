@@ -0,0 +1 @@
+200
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.io.IOException;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+
+/**
+ * Tests that the running compilations are terminated when another file fails to compile, and that the terminated
+ * files are not reported or recorded as failed.
+ */
+@SakerTest
+public class AbortRunningCompilationTest extends ClangTestCase {
+	private static final SakerPath PATH_BASEOBJ = PATH_BUILD_DIRECTORY.resolve("saker.clang.compile/default/");
+
+	private static final long SLOW_COMPILATION_MILLIS = 5000;
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath pslow = PATH_WORKING_DIRECTORY.resolve("slow.c");
+		SakerPath pfailer = PATH_WORKING_DIRECTORY.resolve("failer.c");
+		files.putFile(pslow, src("#sleep " + SLOW_COMPILATION_MILLIS, "1"));
+		//fail after the slow file is started
+		files.putFile(pfailer, src("#sleep 500", "#error"));
+
+		long start = System.nanoTime();
+		assertTaskException(Exception.class, () -> runScriptTask("build"));
+		long elapsedmillis = (System.nanoTime() - start) / 1_000_000;
+		assertTrue(elapsedmillis < SLOW_COMPILATION_MILLIS);
+		assertTrue(getMetric().getCompiledFileClusterNames().containsKey(pslow));
+		//the output of the terminated file is not printed
+		assertEquals(getMetric().getCompilerOutputs().keySet(), setOf(pfailer));
+		assertException(IOException.class, () -> files.getAllBytes(PATH_BASEOBJ.resolve("slow.c.o")));
+
+		//the unchanged slow file is compiled again, as no state was recorded for it
+		files.putFile(pfailer, "2");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pslow, pfailer));
+		assertEquals(files.getAllBytes(PATH_BASEOBJ.resolve("slow.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 1));
+		assertEquals(files.getAllBytes(PATH_BASEOBJ.resolve("failer.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 2));
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+@SakerTest
+public class BatchedCompilationTest extends ClangTestCase {
+	private static final SakerPath PATH_FIRSTC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/first.c.o");
+	private static final SakerPath PATH_SECONDC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/second.c.o");
+	private static final SakerPath PATH_THIRDC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/third.c.o");
+	private static final SakerPath PATH_FOURTHC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/fourth.c.o");
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		userparams.put("saker.clang.compile.batch.size", "4");
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath pfirst = PATH_WORKING_DIRECTORY.resolve("first.c");
+		SakerPath psecond = PATH_WORKING_DIRECTORY.resolve("second.c");
+		SakerPath pthird = PATH_WORKING_DIRECTORY.resolve("third.c");
+		SakerPath pfourth = PATH_WORKING_DIRECTORY.resolve("fourth.c");
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/common.h"), src("#warning common header", "1"));
+		files.putFile(pfirst, src("#include <common.h>", "#warning first", "10"));
+		files.putFile(psecond, src("#include <common.h>", "20"));
+		files.putFile(pthird, src("30"));
+		files.putFile(pfourth, src("#include <common.h>", "#warning fourth", "40"));
+
+		runScriptTask("build");
+		//the small files are compiled together
+		assertNotEmpty(getCompileCommands(true));
+		//the objects are moved to the output directory from the batch directory
+		assertEquals(files.getAllBytes(PATH_FIRSTC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 10));
+		assertEquals(files.getAllBytes(PATH_SECONDC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 20));
+		assertEquals(files.getAllBytes(PATH_THIRDC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 30));
+		assertEquals(files.getAllBytes(PATH_FOURTHC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 40));
+		//each file only gets the diagnostics of its own compilation
+		assertEquals(getMetric().getCompilerOutputs().get(pfirst), commonHeaderWarning("first.c")
+				+ "first.c:1:2: warning: first [-W#warnings]\n" + "#warning first\n" + " ^\n");
+		assertEquals(getMetric().getCompilerOutputs().get(psecond), commonHeaderWarning("second.c"));
+		assertEquals(getMetric().getCompilerOutputs().get(pthird), "");
+		assertEquals(getMetric().getCompilerOutputs().get(pfourth), commonHeaderWarning("fourth.c")
+				+ "fourth.c:1:2: warning: fourth [-W#warnings]\n" + "#warning fourth\n" + " ^\n");
+
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunCommands());
+
+		//the dependencies of the batched files are tracked separately
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/common.h"), src("2"));
+		files.putFile(psecond, src("#include <missing.h>", "20"));
+		assertTaskException(Exception.class, () -> runScriptTask("build"));
+		//if the batch fails, its files are compiled one by one, so the failed file always has its own compilation
+		List<List<String>> secondcommands = getCompileCommands(false);
+		secondcommands.removeIf(cmd -> !containsInputFile(cmd, "second.c"));
+		assertNotEmpty(secondcommands);
+		//the error is reported once, only from the single file compilation
+		assertEquals(getMetric().getCompilerOutputs().get(psecond),
+				"second.c:1:10: fatal error: 'missing.h' file not found\n");
+		assertFalse(getMetric().getCompiledFileClusterNames().containsKey(pthird));
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/missing.h"), src("5"));
+		runScriptTask("build");
+		assertTrue(getMetric().getCompiledFileClusterNames().containsKey(psecond));
+		assertFalse(getMetric().getCompiledFileClusterNames().containsKey(pthird));
+		assertEquals(files.getAllBytes(PATH_FIRSTC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 2, 10));
+		assertEquals(files.getAllBytes(PATH_SECONDC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 5, 20));
+		assertEquals(files.getAllBytes(PATH_THIRDC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 30));
+		assertEquals(files.getAllBytes(PATH_FOURTHC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 2, 40));
+		assertEquals(getMetric().getCompilerOutputs().get(psecond), "");
+
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunCommands());
+	}
+
+	private static String commonHeaderWarning(String includer) {
+		return "In file included from " + includer + ":1:\n"
+				+ "include/common.h:1:2: warning: common header [-W#warnings]\n" + "#warning common header\n"
+				+ " ^\n";
+	}
+
+	/**
+	 * Gets the compilation commands of the last build that compiled multiple files, or a single file.
+	 */
+	private List<List<String>> getCompileCommands(boolean batched) {
+		List<List<String>> result = new ArrayList<>();
+		for (List<String> cmd : getMetric().getRunCommands().keySet()) {
+			if (cmd.contains("-c") && cmd.contains("-o") != batched) {
+				result.add(cmd);
+			}
+		}
+		return result;
+	}
+
+	private static boolean containsInputFile(List<String> cmd, String filename) {
+		for (String arg : cmd) {
+			if (arg.endsWith("/" + filename)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+
+@SakerTest
+public class CaseInsensitiveIncludeAdditionTest extends ClangTestCase {
+	private static final SakerPath PATH_BASEOBJ = PATH_BUILD_DIRECTORY.resolve("saker.clang.compile/default/");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("main.c");
+		SakerPath pother = PATH_WORKING_DIRECTORY.resolve("other.c");
+		SakerPath pplain = PATH_WORKING_DIRECTORY.resolve("plain.c");
+
+		SakerPath mainobj = PATH_BASEOBJ.resolve("main.c.o");
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/sub/HEADER.h"), "1");
+		files.putFile(pmain, "10");
+		files.putFile(pother, src("#include <sub/HEADER.h>", "20"));
+		files.putFile(pplain, "30");
+
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain, pother, pplain));
+
+		files.putFile(pmain, src("#include <header.h>", "10"));
+		assertTaskException(Exception.class, () -> runScriptTask("build"));
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+
+		//no changes, so nothing should be reinvoked
+		assertTaskException(Exception.class, () -> runScriptTask("build"));
+		assertEmpty(getMetric().getRunTaskIdDeltas());
+
+		//the added file name only differs in casing from the not found include
+		//the main file needs to be recompiled, as the include may be resolved to it
+		//the other file is recompiled as well, as its include has the same file name
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/HEADER.h"), "2");
+		if (isCaseSensitiveFileSystem()) {
+			assertTaskException(Exception.class, () -> runScriptTask("build"));
+			//the other file may be cancelled due to the failure of the main file, so only check the main file
+			assertTrue(getMetric().getCompiledFileClusterNames().containsKey(pmain));
+			assertFalse(getMetric().getCompiledFileClusterNames().containsKey(pplain));
+		} else {
+			runScriptTask("build");
+			assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain, pother));
+			assertEquals(files.getAllBytes(mainobj).toString(), compile(LANG_C, TARGET_DEFAULT, 2, 10));
+		}
+	}
+
+	private boolean isCaseSensitiveFileSystem() throws Exception {
+		//the mock compiler reads the included files from the mirror directory
+		Path mirrordir = getMirrorDirectory();
+		Files.createDirectories(mirrordir);
+		Path probe = mirrordir.resolve("CaseSensitivityProbe");
+		Files.write(probe, new byte[0]);
+		try {
+			return !Files.exists(mirrordir.resolve("casesensitivityprobe"));
+		} finally {
+			Files.deleteIfExists(probe);
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+
+@SakerTest
+public class CompactStateIncrementalTest extends ClangTestCase {
+	private static final SakerPath PATH_BASEOBJ = PATH_BUILD_DIRECTORY.resolve("saker.clang.compile/default/");
+
+	private static final SakerPath PATH_INCLUDE = PATH_WORKING_DIRECTORY.resolve("include");
+	private static final SakerPath PATH_COMMON_H = PATH_INCLUDE.resolve("common.h");
+	private static final SakerPath PATH_LEAF_H = PATH_INCLUDE.resolve("nested/deep/leaf.h");
+	private static final SakerPath PATH_MID_H = PATH_INCLUDE.resolve("nested/deep/mid.h");
+	private static final SakerPath PATH_OTHER_H = PATH_INCLUDE.resolve("nested/other.h");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		//the compiler state is read back from the build database in each build
+		//the assertions check that the includes and configurations of the files are restored correctly
+		SakerPath palpha = PATH_WORKING_DIRECTORY.resolve("src/module/alpha.c");
+		SakerPath pbeta = PATH_WORKING_DIRECTORY.resolve("src/module/beta.c");
+		SakerPath pgamma = PATH_WORKING_DIRECTORY.resolve("src/module/sub/gamma.c");
+		SakerPath pdelta = PATH_WORKING_DIRECTORY.resolve("src/delta.c");
+		SakerPath pepsilon = PATH_WORKING_DIRECTORY.resolve("src/module/sub/epsilon.c");
+
+		SakerPath alphaobj = PATH_BASEOBJ.resolve("alpha.c.o");
+		SakerPath betaobj = PATH_BASEOBJ.resolve("beta.c.o");
+		SakerPath gammaobj = PATH_BASEOBJ.resolve("gamma.c.o");
+		SakerPath deltaobj = PATH_BASEOBJ.resolve("delta.c.o");
+		SakerPath epsilonobj = PATH_BASEOBJ.resolve("epsilon.c.o");
+
+		files.putFile(PATH_COMMON_H, "1");
+		files.putFile(PATH_LEAF_H, "2");
+		files.putFile(PATH_MID_H, src("#include <nested/deep/leaf.h>", "3"));
+		files.putFile(PATH_OTHER_H, "4");
+		files.putFile(palpha, src("#include <common.h>", "#include <nested/deep/mid.h>", "10"));
+		files.putFile(pbeta, src("#include <nested/deep/leaf.h>", "20"));
+		files.putFile(pgamma, src("#include <nested/other.h>", "30"));
+		files.putFile(pdelta, src("#include <common.h>", "VAL"));
+
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(palpha, pbeta, pgamma, pdelta));
+		assertEquals(files.getAllBytes(alphaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 2, 3, 10));
+		assertEquals(files.getAllBytes(betaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 2, 20));
+		assertEquals(files.getAllBytes(gammaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 4, 30));
+		assertEquals(files.getAllBytes(deltaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 40));
+
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunTaskIdFactories());
+
+		files.putFile(PATH_LEAF_H, "5");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(palpha, pbeta));
+		assertEquals(files.getAllBytes(alphaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 5, 3, 10));
+		assertEquals(files.getAllBytes(betaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 5, 20));
+
+		files.putFile(PATH_OTHER_H, "6");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pgamma));
+		assertEquals(files.getAllBytes(gammaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 6, 30));
+
+		files.putFile(PATH_COMMON_H, "7");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(palpha, pdelta));
+		assertEquals(files.getAllBytes(alphaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 7, 5, 3, 10));
+		assertEquals(files.getAllBytes(deltaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 7, 40));
+
+		//the leaf header is no longer included through the mid header
+		files.putFile(PATH_MID_H, "8");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(palpha));
+		assertEquals(files.getAllBytes(alphaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 7, 8, 10));
+
+		files.putFile(PATH_LEAF_H, "9");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pbeta));
+		assertEquals(files.getAllBytes(betaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 9, 20));
+
+		files.putFile(pepsilon, src("#include <nested/deep/mid.h>", "50"));
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pepsilon));
+		assertEquals(files.getAllBytes(epsilonobj).toString(), compile(LANG_C, TARGET_DEFAULT, 8, 50));
+
+		files.putFile(PATH_MID_H, "11");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(palpha, pepsilon));
+		assertEquals(files.getAllBytes(alphaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 7, 11, 10));
+		assertEquals(files.getAllBytes(epsilonobj).toString(), compile(LANG_C, TARGET_DEFAULT, 11, 50));
+		assertEquals(files.getAllBytes(betaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 9, 20));
+		assertEquals(files.getAllBytes(gammaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 6, 30));
+		assertEquals(files.getAllBytes(deltaobj).toString(), compile(LANG_C, TARGET_DEFAULT, 7, 40));
+	}
+
+}
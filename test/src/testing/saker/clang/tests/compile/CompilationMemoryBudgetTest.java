@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+/**
+ * Tests that the compilations are only started if their predicted memory usage fits in the budget.
+ */
+@SakerTest
+public class CompilationMemoryBudgetTest extends ClangTestCase {
+	private static final SakerPath PATH_OUTPUT_DIRECTORY = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default");
+
+	private static final int FILE_COUNT = 4;
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		//two compilations with the default estimate don't fit in the budget
+		userparams.put("saker.clang.compile.memory.budget", "1g");
+		userparams.put("saker.clang.compile.memory.default", "768m");
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		for (int i = 1; i <= FILE_COUNT; i++) {
+			files.putFile(PATH_WORKING_DIRECTORY.resolve("f" + i + ".c"), src("#sleep 200", Integer.toString(i)));
+		}
+
+		runScriptTask("build");
+		assertEquals(getMetric().getRunCommands().size(), FILE_COUNT);
+		assertEquals(getMetric().getMaxRunningProcessCount(), 1);
+		for (int i = 1; i <= FILE_COUNT; i++) {
+			assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("f" + i + ".c.o")).toString(),
+					compile(LANG_C, TARGET_DEFAULT, i));
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import saker.build.file.path.SakerPath;
+import saker.build.file.provider.LocalFileProvider;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+@SakerTest
+public class CompilationObjectCacheEvictionTest extends ClangTestCase {
+	private static final SakerPath PATH_MAINC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/main.c.o");
+
+	private static final Path CACHE_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "saker.clang.tests",
+			CompilationObjectCacheEvictionTest.class.getSimpleName());
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		userparams.put("saker.clang.compile.cache.directory", CACHE_DIRECTORY.toString());
+		//any stored entry exceeds the size of the cache
+		userparams.put("saker.clang.compile.cache.size", "1");
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		LocalFileProvider.getInstance().createDirectories(CACHE_DIRECTORY);
+		LocalFileProvider.getInstance().clearDirectoryRecursively(CACHE_DIRECTORY);
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/header.h"), "1");
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("main.c"), src("#include <header.h>", "10"));
+
+		runScriptTask("build");
+		assertNotEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 10));
+		assertEquals(getCachedFileCount(), 0L);
+
+		//the entry was evicted, so the clean build compiles the file again
+		files.deleteRecursively(PATH_BUILD_DIRECTORY);
+		runScriptTask("build");
+		assertNotEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 10));
+		assertEquals(getCachedFileCount(), 0L);
+	}
+
+	private static long getCachedFileCount() throws Exception {
+		try (Stream<Path> stream = Files.walk(CACHE_DIRECTORY)) {
+			return stream.filter(Files::isRegularFile).count();
+		}
+	}
+
+}
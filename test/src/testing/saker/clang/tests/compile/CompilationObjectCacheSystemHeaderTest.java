@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import saker.build.file.path.SakerPath;
+import saker.build.file.provider.LocalFileProvider;
+import saker.build.thirdparty.saker.util.ObjectUtils;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+/**
+ * Tests that the object cache is keyed on the headers in the system include directories, and that the cached
+ * compiler output is rendered the same way as the output of a compilation.
+ */
+@SakerTest
+public class CompilationObjectCacheSystemHeaderTest extends ClangTestCase {
+	private static final SakerPath PATH_MAINC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/main.c.o");
+
+	private static final Path TEST_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "saker.clang.tests",
+			CompilationObjectCacheSystemHeaderTest.class.getSimpleName());
+	private static final Path CACHE_DIRECTORY = TEST_DIRECTORY.resolve("cache");
+	private static final Path SYSTEM_INCLUDE_DIRECTORY = TEST_DIRECTORY.resolve("sysinclude");
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		userparams.put("saker.clang.compile.cache.directory", CACHE_DIRECTORY.toString());
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected Map<String, ?> getTaskVariables() {
+		TreeMap<String, Object> result = ObjectUtils.newTreeMap(super.getTaskVariables());
+		result.put("test.system.include.dir", SYSTEM_INCLUDE_DIRECTORY.toString());
+		return result;
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		LocalFileProvider.getInstance().createDirectories(TEST_DIRECTORY);
+		LocalFileProvider.getInstance().clearDirectoryRecursively(TEST_DIRECTORY);
+		Files.createDirectories(SYSTEM_INCLUDE_DIRECTORY);
+		Path sysheader = SYSTEM_INCLUDE_DIRECTORY.resolve("sys.h");
+		Files.write(sysheader, "1".getBytes(StandardCharsets.UTF_8));
+
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("main.c");
+		files.putFile(pmain, src("#include <sys.h>", "#warning cached warning", "10"));
+
+		runScriptTask("build");
+		assertNotEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 10));
+		String output = getMetric().getCompilerOutputs().get(pmain);
+		assertEquals(output,
+				"main.c:2:2: warning: cached warning [-W#warnings]\n" + "#warning cached warning\n" + " ^\n");
+
+		//clean build, the object file and the output are retrieved from the cache
+		files.deleteRecursively(PATH_BUILD_DIRECTORY);
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 10));
+		assertEquals(getMetric().getCompilerOutputs().get(pmain), output);
+
+		//the system header is modified outside of the build, the cache entry may not be used
+		Files.write(sysheader, "2".getBytes(StandardCharsets.UTF_8));
+		files.deleteRecursively(PATH_BUILD_DIRECTORY);
+		runScriptTask("build");
+		assertNotEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 2, 10));
+
+		//both header versions are cached
+		Files.write(sysheader, "1".getBytes(StandardCharsets.UTF_8));
+		files.deleteRecursively(PATH_BUILD_DIRECTORY);
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 10));
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+/**
+ * Tests that the compilations that run longer than the specified timeout are terminated and reported.
+ */
+@SakerTest
+public class CompileTimeoutTest extends ClangTestCase {
+	private static final SakerPath PATH_SLOWC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/slow.c.o");
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		userparams.put("saker.clang.compile.timeout", "1500ms");
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath pslow = PATH_WORKING_DIRECTORY.resolve("slow.c");
+		files.putFile(pslow, src("#sleep 60000", "1"));
+
+		assertTaskException(Exception.class, () -> runScriptTask("build"));
+		String output = getMetric().getCompilerOutputs().get(pslow);
+		//the output contains the state of the process when it was terminated
+		assertTrue(output.contains("Process timed out after 1500 ms."));
+
+		files.putFile(pslow, src("#sleep 10", "1"));
+		runScriptTask("build");
+		assertEquals(files.getAllBytes(PATH_SLOWC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1));
+		assertFalse(getMetric().getCompilerOutputs().get(pslow).contains("timed out"));
+	}
+
+}
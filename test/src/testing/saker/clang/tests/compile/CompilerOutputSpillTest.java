@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import saker.build.file.path.SakerPath;
+import saker.build.file.provider.LocalFileProvider;
+import testing.saker.SakerTest;
+
+@SakerTest
+public class CompilerOutputSpillTest extends ClangTestCase {
+	private static final SakerPath PATH_MAINC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/main.c.o");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		LocalFileProvider.getInstance().clearDirectoryRecursively(getMirrorDirectory());
+
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("main.c");
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("other.c"), src("20"));
+
+		//more output than the 256 KiB that is kept in memory
+		String[] lines = new String[4001];
+		for (int i = 0; i < 4000; i++) {
+			lines[i] = "#print " + String.format("%04d", i) + repeat('x', 96);
+		}
+		lines[4000] = "10";
+		files.putFile(pmain, src(lines));
+
+		runScriptTask("build");
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 10));
+		String output = getMetric().getCompilerOutputs().get(pmain);
+		assertTrue(output.startsWith("0000" + repeat('x', 96) + "\n"));
+		assertTrue(output.contains("note: compiler output is truncated, "));
+		Path spillfile = findSpillFile("main.c.output.txt");
+		assertNonNull(spillfile);
+		assertTrue(new String(Files.readAllBytes(spillfile)).endsWith("3999" + repeat('x', 96) + "\n"));
+
+		//the output of the unchanged file is kept, as its state refers to it
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunCommands());
+		assertTrue(Files.isRegularFile(spillfile));
+
+		//the previous output is removed when the file is compiled again
+		files.putFile(pmain, src("11"));
+		runScriptTask("build");
+		assertEquals(getMetric().getCompilerOutputs().get(pmain), "");
+		assertFalse(Files.exists(spillfile));
+
+		files.putFile(pmain, src(lines));
+		runScriptTask("build");
+		assertTrue(Files.isRegularFile(spillfile));
+
+		//the output of a removed file is deleted
+		files.delete(pmain);
+		runScriptTask("build");
+		assertFalse(Files.exists(spillfile));
+	}
+
+	private Path findSpillFile(String filename) throws Exception {
+		try (Stream<Path> stream = Files.walk(getMirrorDirectory())) {
+			return stream.filter(p -> p.getFileName().toString().equals(filename)).findFirst().orElse(null);
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder sb = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.clang.tests.mock.MockingClangTestMetric;
+
+@SakerTest
+public class DependencyFileFormatTest extends ClangTestCase {
+	private static final SakerPath PATH_BASEOBJ = PATH_BUILD_DIRECTORY.resolve("saker.clang.compile/default/");
+
+	private static final SakerPath PATH_SPACED_HEADER = PATH_WORKING_DIRECTORY
+			.resolve("include/with space/spaced header.h");
+	private static final SakerPath PATH_PLAIN_HEADER = PATH_WORKING_DIRECTORY.resolve("include/plain.h");
+
+	private String dependencyFileLineSeparator;
+
+	@Override
+	protected MockingClangTestMetric createMetricImpl() {
+		MockingClangTestMetric result = super.createMetricImpl();
+		result.setDependencyFileLineSeparator(dependencyFileLineSeparator);
+		return result;
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("spaced main.c");
+		SakerPath pother = PATH_WORKING_DIRECTORY.resolve("other.c");
+
+		files.putFile(PATH_SPACED_HEADER, "3");
+		files.putFile(PATH_PLAIN_HEADER, "4");
+		files.putFile(pother, "20");
+
+		//the spaces in the paths are escaped, and each dependency is on its own continuation line
+		dependencyFileLineSeparator = "\n";
+		files.putFile(pmain, src("#include <with space/spaced header.h>", "#include <plain.h>", "10"));
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain, pother));
+		assertMainObject(3, 4, 10);
+		assertIncludesTracked(pmain, 10);
+
+		dependencyFileLineSeparator = "\r\n";
+		files.putFile(pmain, src("#include <with space/spaced header.h>", "#include <plain.h>", "11"));
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertMainObject(3, 4, 11);
+		assertIncludesTracked(pmain, 11);
+
+		assertEquals(files.getAllBytes(PATH_BASEOBJ.resolve("other.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 20));
+	}
+
+	private void assertIncludesTracked(SakerPath pmain, int mainval) throws Throwable {
+		files.putFile(PATH_SPACED_HEADER, "5");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertMainObject(5, 4, mainval);
+
+		files.putFile(PATH_PLAIN_HEADER, "6");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertMainObject(5, 6, mainval);
+
+		//restore the header contents for the next round
+		files.putFile(PATH_SPACED_HEADER, "3");
+		files.putFile(PATH_PLAIN_HEADER, "4");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertMainObject(3, 4, mainval);
+	}
+
+	private void assertMainObject(int... lines) throws Throwable {
+		assertEquals(files.getAllBytes(PATH_BASEOBJ.resolve("spaced main.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, lines));
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+
+@SakerTest
+public class DiagnosticOutputTest extends ClangTestCase {
+	private static final SakerPath PATH_MAINC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/main.c.o");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("main.c");
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/warn.h"), src("#warning deprecated header", "1"));
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/mid.h"), src("#include <warn.h>", "2"));
+		//the paths outside of the mirror directory are kept as is, even if they contain colons
+		files.putFile(pmain, src("#include <mid.h>",
+				"#note declared in 'ns::detail' here",
+				"#print In file included from /opt/sdk:v1/include/sys.h:12:",
+				"#print /opt/sdk:v1/include/sys_impl.h:3:5: note: expanded from macro 'SYS_VALUE'",
+				"#print #define SYS_VALUE 1",
+				"#print         ^",
+				"10"));
+
+		runScriptTask("build");
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 2, 10));
+		//the mirror paths are replaced with the paths relative to the working directory
+		assertEquals(getMetric().getCompilerOutputs().get(pmain),
+				"In file included from main.c:1:\n"
+						+ "In file included from include/mid.h:1:\n"
+						+ "include/warn.h:1:2: warning: deprecated header [-W#warnings]\n"
+						+ "#warning deprecated header\n"
+						+ " ^\n"
+						+ "main.c:1:1: note: declared in 'ns::detail' here\n"
+						+ "#note declared in 'ns::detail' here\n"
+						+ "^\n"
+						+ "In file included from /opt/sdk:v1/include/sys.h:12:\n"
+						+ "/opt/sdk:v1/include/sys_impl.h:3:5: note: expanded from macro 'SYS_VALUE'\n"
+						+ "#define SYS_VALUE 1\n"
+						+ "        ^\n");
+
+		//the not found include is recognized in a file that has a colon in its path
+		String notfoundline = "/opt/sdk:v1/include/sys.h:3:10: fatal error: 'gen/config.h' file not found";
+		files.putFile(pmain, src("#print " + notfoundline, "#error"));
+		assertTaskException(Exception.class, () -> runScriptTask("build"));
+		assertEquals(getMetric().getCompilerOutputs().get(pmain), notfoundline + "\n");
+
+		//adding the not found header recompiles the file
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/gen/config.h"), "3");
+		assertTaskException(Exception.class, () -> runScriptTask("build"));
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import saker.build.file.path.SakerPath;
+import saker.build.thirdparty.saker.util.ObjectUtils;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+/**
+ * Tests that the source files are compiled by invoking the clang frontend directly, using the command line expanded by
+ * the driver with the <code>-###</code> argument.
+ */
+@SakerTest
+public class DirectFrontendCompileTest extends ClangTestCase {
+	private static final SakerPath PATH_OUTPUT_DIRECTORY = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default");
+
+	//contains the characters that are escaped in the output of the driver
+	private static final String QUOTED_MACRO_VALUE = "a\"b\\c$d e";
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		userparams.put("saker.clang.compile.direct.cc1", "true");
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected Map<String, ?> getTaskVariables() {
+		TreeMap<String, Object> result = ObjectUtils.newTreeMap(super.getTaskVariables());
+		result.put("test.quoted.macro", QUOTED_MACRO_VALUE);
+		return result;
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		runScriptTask("build");
+		Set<List<String>> runcommands = getMetric().getRunCommands().keySet();
+
+		for (String filename : new String[] { "first.c", "second.c" }) {
+			List<String> cmd = getCompileCommand(runcommands, filename);
+			assertEquals(cmd.get(1), "-cc1");
+			//the main file name is substituted in the template as well
+			assertEquals(cmd.get(cmd.indexOf("-main-file-name") + 1), filename);
+			//the quoted and escaped argument is parsed back as is
+			assertEquals(cmd.get(cmd.indexOf("-D") + 1), "QUOTED=" + QUOTED_MACRO_VALUE);
+		}
+		//the expansion contains an output path derived from the object file, so the driver is used
+		assertTrue(hasDriverExpansion(runcommands, "third.c"));
+		List<String> thirdcmd = getCompileCommand(runcommands, "third.c");
+		assertFalse(thirdcmd.contains("-cc1"));
+		assertTrue(thirdcmd.contains("-gsplit-dwarf"));
+
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("first.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 1));
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("second.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 2));
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("third.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 3));
+	}
+
+	private static List<String> getCompileCommand(Set<List<String>> runcommands, String filename) {
+		for (List<String> cmd : runcommands) {
+			if (!cmd.contains("-###") && containsInputFile(cmd, filename)) {
+				return cmd;
+			}
+		}
+		throw new AssertionError("Not compiled: " + filename);
+	}
+
+	private static boolean hasDriverExpansion(Set<List<String>> runcommands, String filename) {
+		for (List<String> cmd : runcommands) {
+			if (cmd.contains("-###") && containsInputFile(cmd, filename)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsInputFile(List<String> cmd, String filename) {
+		for (String arg : cmd) {
+			if (arg.endsWith("/" + filename)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
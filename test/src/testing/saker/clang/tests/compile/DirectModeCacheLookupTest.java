@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import saker.build.file.path.SakerPath;
+import saker.build.file.provider.LocalFileProvider;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+@SakerTest
+public class DirectModeCacheLookupTest extends ClangTestCase {
+	private static final SakerPath PATH_MAINC_OBJ = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default/main.c.o");
+
+	private static final Path CACHE_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "saker.clang.tests",
+			DirectModeCacheLookupTest.class.getSimpleName());
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		userparams.put("saker.clang.compile.cache.directory", CACHE_DIRECTORY.toString());
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		LocalFileProvider.getInstance().createDirectories(CACHE_DIRECTORY);
+		LocalFileProvider.getInstance().clearDirectoryRecursively(CACHE_DIRECTORY);
+
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("main.c");
+		SakerPath pheader = PATH_WORKING_DIRECTORY.resolve("include/header.h");
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/nested.h"), "1");
+		files.putFile(pheader, src("#include <nested.h>", "2"));
+		files.putFile(pmain, src("#include <header.h>", "10"));
+
+		runScriptTask("build");
+		assertNotEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 2, 10));
+
+		//the include set of the previous compilation is checked when the manifest is not found
+		deleteManifests();
+		files.delete(PATH_MAINC_OBJ);
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 2, 10));
+
+		//the hashes of the included files differ, the lookup misses
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/nested.h"), "3");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertNotEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 3, 2, 10));
+
+		//the new include set is recorded in the manifest
+		files.delete(PATH_MAINC_OBJ);
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 3, 2, 10));
+
+		//the include set changes, the previous set doesn't contain the new header
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/added.h"), "4");
+		files.putFile(pheader, src("#include <nested.h>", "#include <added.h>", "2"));
+		runScriptTask("build");
+		assertNotEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 3, 4, 2, 10));
+
+		files.delete(PATH_MAINC_OBJ);
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunCommands());
+		assertEquals(files.getAllBytes(PATH_MAINC_OBJ).toString(), compile(LANG_C, TARGET_DEFAULT, 3, 4, 2, 10));
+	}
+
+	private static void deleteManifests() throws IOException {
+		try (Stream<Path> stream = Files.walk(CACHE_DIRECTORY)) {
+			stream.filter(p -> p.getFileName().toString().endsWith(".manifest")).forEach(p -> {
+				try {
+					Files.delete(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+
+@SakerTest
+public class IncludeIndexInvalidationTest extends ClangTestCase {
+	private static final SakerPath PATH_BASEOBJ = PATH_BUILD_DIRECTORY.resolve("saker.clang.compile/default/");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("main.c");
+		SakerPath pother = PATH_WORKING_DIRECTORY.resolve("other.c");
+		SakerPath pplain = PATH_WORKING_DIRECTORY.resolve("plain.c");
+
+		SakerPath mainobj = PATH_BASEOBJ.resolve("main.c.o");
+		SakerPath otherobj = PATH_BASEOBJ.resolve("other.c.o");
+		SakerPath plainobj = PATH_BASEOBJ.resolve("plain.c.o");
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/common.h"), "1");
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/a.h"), "2");
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/b.h"), "3");
+		files.putFile(pmain, src("#include <common.h>", "#include <a.h>", "10"));
+		files.putFile(pother, src("#include <common.h>", "#include <b.h>", "20"));
+		files.putFile(pplain, "30");
+
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain, pother, pplain));
+		assertEquals(files.getAllBytes(mainobj).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 2, 10));
+		assertEquals(files.getAllBytes(otherobj).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 3, 20));
+		assertEquals(files.getAllBytes(plainobj).toString(), compile(LANG_C, TARGET_DEFAULT, 30));
+
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunTaskIdFactories());
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/a.h"), "4");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertEquals(files.getAllBytes(mainobj).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 4, 10));
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/b.h"), "5");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pother));
+		assertEquals(files.getAllBytes(otherobj).toString(), compile(LANG_C, TARGET_DEFAULT, 1, 5, 20));
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/common.h"), "6");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain, pother));
+		assertEquals(files.getAllBytes(mainobj).toString(), compile(LANG_C, TARGET_DEFAULT, 6, 4, 10));
+		assertEquals(files.getAllBytes(otherobj).toString(), compile(LANG_C, TARGET_DEFAULT, 6, 5, 20));
+
+		//the header is no longer included by the main file, so its modification only affects the other file
+		files.putFile(pmain, src("#include <a.h>", "10"));
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain));
+		assertEquals(files.getAllBytes(mainobj).toString(), compile(LANG_C, TARGET_DEFAULT, 4, 10));
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/common.h"), "7");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pother));
+		assertEquals(files.getAllBytes(otherobj).toString(), compile(LANG_C, TARGET_DEFAULT, 7, 5, 20));
+		assertEquals(files.getAllBytes(plainobj).toString(), compile(LANG_C, TARGET_DEFAULT, 30));
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import saker.build.file.path.SakerPath;
+import saker.build.file.provider.LocalFileProvider;
+import testing.saker.SakerTest;
+import testing.saker.build.tests.EnvironmentTestCaseConfiguration;
+
+/**
+ * Tests that the includes of the new source files are predicted by scanning them, and the predictions are used for the
+ * cache lookup when there is no previous compilation state.
+ */
+@SakerTest
+public class IncludeScanPredictionTest extends ClangTestCase {
+	private static final SakerPath PATH_REBUILD_OUTPUT_DIRECTORY = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/rebuild");
+
+	private static final Path CACHE_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "saker.clang.tests",
+			IncludeScanPredictionTest.class.getSimpleName());
+
+	@Override
+	protected Set<EnvironmentTestCaseConfiguration> getTestConfigurations() {
+		Map<String, String> userparams = new TreeMap<>();
+		userparams.put("saker.clang.compile.cache.directory", CACHE_DIRECTORY.toString());
+		return EnvironmentTestCaseConfiguration.builder(super.getTestConfigurations())
+				.setEnvironmentUserParameters(userparams).build();
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		LocalFileProvider.getInstance().createDirectories(CACHE_DIRECTORY);
+		LocalFileProvider.getInstance().clearDirectoryRecursively(CACHE_DIRECTORY);
+
+		SakerPath pmain = PATH_WORKING_DIRECTORY.resolve("main.c");
+		SakerPath pcomputed = PATH_WORKING_DIRECTORY.resolve("computed.c");
+
+		//the include in the guarded header is not conditional
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/guarded.h"),
+				src("#ifndef GUARDED_H", "#define GUARDED_H", "#include <nested.h>", "1", "#endif"));
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/once.h"), src("#pragma once", "2"));
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/nested.h"), "3");
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/feature.h"), "4");
+		files.putFile(pmain, src("#include <guarded.h>", "#include <once.h>", "#include <guarded.h>",
+				"#include <once.h>", "10"));
+		//the include of the macro is undecidable for the scanner
+		files.putFile(pcomputed, src("#include FEATURE_HEADER", "20"));
+
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain, pcomputed));
+		assertEquals(getMetric().getRunCommands().size(), 2);
+
+		//the manifests are not found, only the predicted includes can be used for the lookup
+		//the rebuild task has no previous state, so the files are scanned
+		deleteManifests();
+		runScriptTask("rebuild");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(pmain, pcomputed));
+		Set<List<String>> runcommands = getMetric().getRunCommands().keySet();
+		assertEquals(runcommands.size(), 1);
+		//the commands contain the mirror paths of the files
+		assertTrue(runcommands.iterator().next().stream().anyMatch(arg -> arg.endsWith("/computed.c")));
+		assertEquals(files.getAllBytes(PATH_REBUILD_OUTPUT_DIRECTORY.resolve("main.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 3, 1, 2, 10));
+		assertEquals(files.getAllBytes(PATH_REBUILD_OUTPUT_DIRECTORY.resolve("computed.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 4, 20));
+	}
+
+	private static void deleteManifests() throws IOException {
+		try (Stream<Path> stream = Files.walk(CACHE_DIRECTORY)) {
+			stream.filter(p -> p.getFileName().toString().endsWith(".manifest")).forEach(p -> {
+				try {
+					Files.delete(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+}
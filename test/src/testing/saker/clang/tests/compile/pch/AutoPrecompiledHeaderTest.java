@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile.pch;
+
+import java.util.List;
+import java.util.Set;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.clang.tests.compile.ClangTestCase;
+
+@SakerTest
+public class AutoPrecompiledHeaderTest extends ClangTestCase {
+	private static final SakerPath PATH_OUTPUT_DIRECTORY = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default");
+	private static final SakerPath PATH_UMBRELLA_HEADER = PATH_OUTPUT_DIRECTORY.resolve("pch/auto-pch-1.h");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/a.h"), src("#ifndef A_H", "#define A_H", "1", "#endif"));
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/b.h"), src("#ifndef B_H", "#define B_H", "2", "#endif"));
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("include/c.h"), src("#ifndef C_H", "#define C_H", "3", "#endif"));
+		for (int i = 1; i <= 4; i++) {
+			files.putFile(PATH_WORKING_DIRECTORY.resolve("f" + i + ".c"),
+					src("#include <a.h>", "#include <b.h>", Integer.toString(10 + i)));
+		}
+		//different include order, the precompiled header would change the order of the declarations
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("f5.c"), src("#include <b.h>", "#include <a.h>", "15"));
+
+		runScriptTask("build");
+		//no include information yet, nothing is precompiled
+		assertEquals(getMetric().getRunCommands().size(), 5);
+		assertHeaderPrecompilationWasntRun();
+		assertObjects(1, 2);
+
+		//trigger the recompilation, the header is assigned based on the previous includes
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("f5.c"), src("#include <b.h>", "#include <a.h>", "15", ""));
+		runScriptTask("build");
+		assertEquals(files.getAllBytes(PATH_UMBRELLA_HEADER).toString(),
+				"// Generated precompiled header. Do not modify.\n#include <a.h>\n#include <b.h>\n");
+		assertHeaderPrecompilationRunOnlyOnce();
+		Set<List<String>> runcommands = getMetric().getRunCommands().keySet();
+		//the header, and all of the source files as their configuration changed
+		assertEquals(runcommands.size(), 6);
+		assertEquals(countPrecompiledHeaderCompilations(runcommands), 1);
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(isCompiledWithPrecompiledHeader(runcommands, "f" + i + ".c"));
+		}
+		assertFalse(isCompiledWithPrecompiledHeader(runcommands, "f5.c"));
+		assertObjects(1, 2);
+
+		//the new include is not a member yet, the header is reused
+		for (int i = 1; i <= 4; i++) {
+			files.putFile(PATH_WORKING_DIRECTORY.resolve("f" + i + ".c"),
+					src("#include <a.h>", "#include <b.h>", "#include <c.h>", Integer.toString(10 + i)));
+		}
+		runScriptTask("build");
+		assertHeaderPrecompilationWasntRun();
+		runcommands = getMetric().getRunCommands().keySet();
+		assertEquals(runcommands.size(), 4);
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(isCompiledWithPrecompiledHeader(runcommands, "f" + i + ".c"));
+		}
+		assertObjects(1, 2, 3);
+
+		//the candidates changed, the header is regenerated and compiled again
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("f1.c"),
+				src("#include <a.h>", "#include <b.h>", "#include <c.h>", "11", ""));
+		runScriptTask("build");
+		assertEquals(files.getAllBytes(PATH_UMBRELLA_HEADER).toString(),
+				"// Generated precompiled header. Do not modify.\n#include <a.h>\n#include <b.h>\n#include <c.h>\n");
+		assertHeaderPrecompilationRunOnlyOnce();
+		runcommands = getMetric().getRunCommands().keySet();
+		assertEquals(runcommands.size(), 2);
+		assertEquals(countPrecompiledHeaderCompilations(runcommands), 1);
+		assertTrue(isCompiledWithPrecompiledHeader(runcommands, "f1.c"));
+		assertObjects(1, 2, 3);
+
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunTaskIdFactories());
+	}
+
+	private void assertObjects(int... headervalues) throws Exception {
+		for (int i = 1; i <= 4; i++) {
+			int[] vals = new int[headervalues.length + 1];
+			System.arraycopy(headervalues, 0, vals, 0, headervalues.length);
+			vals[headervalues.length] = 10 + i;
+			//the same output with or without the precompiled header
+			assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("f" + i + ".c.o")).toString(),
+					compile(LANG_C, TARGET_DEFAULT, vals));
+		}
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("f5.c.o")).toString(),
+				compile(LANG_C, TARGET_DEFAULT, 2, 1, 15));
+	}
+
+	private static int countPrecompiledHeaderCompilations(Set<List<String>> runcommands) {
+		int result = 0;
+		for (List<String> cmd : runcommands) {
+			if (cmd.contains("c-header")) {
+				++result;
+			}
+		}
+		return result;
+	}
+
+	private static boolean isCompiledWithPrecompiledHeader(Set<List<String>> runcommands, String filename) {
+		for (List<String> cmd : runcommands) {
+			for (String arg : cmd) {
+				if (arg.endsWith("/" + filename)) {
+					return cmd.contains("-include-pch");
+				}
+			}
+		}
+		throw new AssertionError("Not compiled: " + filename);
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.clang.tests.compile.pch;
+
+import java.util.List;
+import java.util.Set;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.clang.tests.compile.ClangTestCase;
+
+@SakerTest
+public class MultiPrecompiledHeaderCompileTest extends ClangTestCase {
+	private static final SakerPath PATH_OUTPUT_DIRECTORY = PATH_BUILD_DIRECTORY
+			.resolve("saker.clang.compile/default");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		runScriptTask("build");
+		//the source files read the compiled headers, so they would fail if the headers weren't compiled before them
+		assertHeaderPrecompilationRunOnlyOnce();
+		Set<List<String>> runcommands = getMetric().getRunCommands().keySet();
+		assertEquals(countPrecompiledHeaderCompilations(runcommands), 2);
+		assertEquals(runcommands.size(), 6);
+		String firstpch = getPrecompiledHeaderArgument(runcommands, "one.cpp");
+		String secondpch = getPrecompiledHeaderArgument(runcommands, "three.cpp");
+		assertEquals(getPrecompiledHeaderArgument(runcommands, "two.cpp"), firstpch);
+		assertEquals(getPrecompiledHeaderArgument(runcommands, "four.cpp"), secondpch);
+		assertFalse(firstpch.equals(secondpch));
+		assertObjects(100, 200);
+
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunTaskIdFactories());
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("second/pch.h"), "300".getBytes());
+		runScriptTask("build");
+		//only the changed header and its source files are compiled
+		assertHeaderPrecompilationRunOnlyOnce();
+		runcommands = getMetric().getRunCommands().keySet();
+		assertEquals(countPrecompiledHeaderCompilations(runcommands), 1);
+		assertEquals(runcommands.size(), 3);
+		assertEquals(getPrecompiledHeaderArgument(runcommands, "three.cpp"), secondpch);
+		assertEquals(getPrecompiledHeaderArgument(runcommands, "four.cpp"), secondpch);
+		assertObjects(100, 300);
+	}
+
+	private void assertObjects(int firstpch, int secondpch) throws Exception {
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("one.cpp.o")).toString(),
+				compile(LANG_CPP, TARGET_DEFAULT, firstpch, 1));
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("two.cpp.o")).toString(),
+				compile(LANG_CPP, TARGET_DEFAULT, firstpch, 2));
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("three.cpp.o")).toString(),
+				compile(LANG_CPP, TARGET_DEFAULT, secondpch, 3));
+		assertEquals(files.getAllBytes(PATH_OUTPUT_DIRECTORY.resolve("four.cpp.o")).toString(),
+				compile(LANG_CPP, TARGET_DEFAULT, secondpch, 4));
+	}
+
+	private static int countPrecompiledHeaderCompilations(Set<List<String>> runcommands) {
+		int result = 0;
+		for (List<String> cmd : runcommands) {
+			if (cmd.contains("c++-header")) {
+				++result;
+			}
+		}
+		return result;
+	}
+
+	private static String getPrecompiledHeaderArgument(Set<List<String>> runcommands, String filename) {
+		for (List<String> cmd : runcommands) {
+			for (String arg : cmd) {
+				if (arg.endsWith("/" + filename)) {
+					int idx = cmd.indexOf("-include-pch");
+					if (idx < 0) {
+						throw new AssertionError("Compiled without precompiled header: " + cmd);
+					}
+					return cmd.get(idx + 1);
+				}
+			}
+		}
+		throw new AssertionError("Not compiled: " + filename);
+	}
+
+}
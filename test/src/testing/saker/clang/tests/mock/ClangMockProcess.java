@@ -28,13 +28,18 @@ import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
 import testing.saker.clang.ClangTestMetric.MetricProcessIOConsumer;
 
 public class ClangMockProcess {
+	/**
+	 * The exit code of the process when it is terminated while sleeping.
+	 */
+	public static final int EXIT_CODE_TERMINATED = 143;
+
 	private ClangMockProcess() {
 		throw new UnsupportedOperationException();
 	}
 
-	public static int run(List<String> commands, boolean mergestderr, MetricProcessIOConsumer stdoutconsumer,
-			MetricProcessIOConsumer stderrconsumer, String defaulttarget, String version, String defaultthreadmodel)
-			throws IOException {
+	public static int run(List<String> commands, SakerPath workingdir, boolean mergestderr,
+			MetricProcessIOConsumer stdoutconsumer, MetricProcessIOConsumer stderrconsumer, String defaulttarget,
+			String version, String defaultthreadmodel, String depfilelineseparator) throws IOException {
 		try {
 			try (UnsyncByteArrayOutputStream stdoutbaos = new UnsyncByteArrayOutputStream();
 					UnsyncByteArrayOutputStream stderrbaos = new UnsyncByteArrayOutputStream()) {
@@ -44,11 +49,20 @@ public class ClangMockProcess {
 
 					SakerPath exepath = SakerPath.valueOf(commands.get(0));
 
-					SakerPath outputpath = SakerPath.valueOf(requireCommandArgument(commands, "-o"));
-					List<SakerPath> inputfiles = getInputFiles(commands);
-
 					String target = defaulttarget;
-					resultCode = executeClang(inputfiles, outputpath, stdout, stderr, commands, target, version);
+					if (commands.contains("-###")) {
+						resultCode = printDriverJobs(commands, stderr, target, version);
+					} else {
+						if (commands.size() > 1 && "-cc1".equals(commands.get(1))) {
+							//the frontend is invoked directly, the target is specified in the command line
+							target = requireCommandArgument(commands, "-triple");
+							commands = getDriverCommandsOfFrontendJob(commands);
+						}
+						List<SakerPath> inputfiles = getInputFiles(commands);
+
+						resultCode = executeClang(inputfiles, workingdir, stdout, stderr, commands, target, version,
+								depfilelineseparator);
+					}
 				} finally {
 					if (stdoutconsumer != null) {
 						stdoutconsumer.handleOutput(ByteBuffer.wrap(stdoutbaos.getBuffer(), 0, stdoutbaos.size()));
@@ -65,15 +79,138 @@ public class ClangMockProcess {
 		return -1;
 	}
 
-	private static int executeClang(List<SakerPath> inputpaths, SakerPath outputpath, PrintStream stdout,
-			PrintStream stderr, List<String> commands, String target, String version) throws IOException {
+	private static int executeClang(List<SakerPath> inputpaths, SakerPath workingdir, PrintStream stdout,
+			PrintStream stderr, List<String> commands, String target, String version, String depfilelineseparator)
+			throws IOException {
+		String output = getCommandArgument(commands, "-o");
 
 		if (commands.contains("-c")) {
 			//compile only
-			return executeCompilation(inputpaths, outputpath, stdout, stderr, commands, target, version);
+			if (output == null) {
+				return executeBatchCompilation(inputpaths, workingdir, stdout, stderr, commands, target, version,
+						depfilelineseparator);
+			}
+			if (inputpaths.size() > 1) {
+				throw new IllegalArgumentException("Too many compilation inputs: " + inputpaths);
+			}
+			SakerPath outputpath = SakerPath.valueOf(output);
+			SakerPath depfile = SakerPath.valueOf(requireCommandArgument(commands, "-MF"));
+			return executeCompilation(inputpaths.get(0), outputpath, depfile, outputpath, stdout, stderr, commands,
+					target, version, depfilelineseparator);
+		}
+
+		return executeLinking(inputpaths, SakerPath.valueOf(requireCommandArgument(commands, "-o")), commands,
+				target, version);
+	}
+
+	/**
+	 * Prints the frontend job of a compilation the same way as clang does for the <code>-###</code> argument.
+	 * <p>
+	 * The frontend commands are the driver commands prefixed with some <code>-cc1</code> arguments. If
+	 * <code>-gsplit-dwarf</code> is specified, the split debug info output path is added that is derived from the
+	 * object file path.
+	 */
+	private static int printDriverJobs(List<String> commands, PrintStream stderr, String target, String version) {
+		List<SakerPath> inputfiles = getInputFiles(commands);
+		if (inputfiles.size() != 1) {
+			throw new IllegalArgumentException("Invalid driver expansion inputs: " + inputfiles);
+		}
+		String output = requireCommandArgument(commands, "-o");
+		List<String> job = new ArrayList<>();
+		job.add(commands.get(0));
+		job.add("-cc1");
+		job.add("-triple");
+		job.add(target);
+		job.add("-emit-obj");
+		job.add("-main-file-name");
+		job.add(inputfiles.get(0).getFileName());
+		if (commands.contains("-gsplit-dwarf")) {
+			job.add("-split-dwarf-file");
+			job.add(output.substring(0, output.lastIndexOf('.')) + ".dwo");
+		}
+		for (String cmd : commands.subList(1, commands.size())) {
+			switch (cmd) {
+				case "-###":
+				case "-c":
+				case "-gsplit-dwarf": {
+					break;
+				}
+				default: {
+					job.add(cmd);
+					break;
+				}
+			}
+		}
+		stderr.println("clang version " + version);
+		stderr.println("Target: " + target);
+		stderr.println("Thread model: posix");
+		stderr.println("InstalledDir: /usr/bin");
+		StringBuilder sb = new StringBuilder();
+		for (String arg : job) {
+			sb.append(" \"");
+			for (int i = 0; i < arg.length(); i++) {
+				char c = arg.charAt(i);
+				if (c == '"' || c == '\\' || c == '$') {
+					sb.append('\\');
+				}
+				sb.append(c);
+			}
+			sb.append('"');
+		}
+		stderr.println(sb);
+		return 0;
+	}
+
+	private static List<String> getDriverCommandsOfFrontendJob(List<String> commands) {
+		List<String> result = new ArrayList<>();
+		result.add(commands.get(0));
+		for (Iterator<String> it = commands.subList(2, commands.size()).iterator(); it.hasNext();) {
+			String cmd = it.next();
+			switch (cmd) {
+				case "-triple":
+				case "-main-file-name": {
+					//skip argument
+					it.next();
+					break;
+				}
+				case "-split-dwarf-file": {
+					throw new IllegalArgumentException("Split debug info output shouldn't be templated: " + commands);
+				}
+				case "-emit-obj": {
+					result.add("-c");
+					break;
+				}
+				default: {
+					result.add(cmd);
+					break;
+				}
+			}
 		}
+		return result;
+	}
 
-		return executeLinking(inputpaths, outputpath, commands, target, version);
+	private static int executeBatchCompilation(List<SakerPath> inputpaths, SakerPath workingdir, PrintStream stdout,
+			PrintStream stderr, List<String> commands, String target, String version, String depfilelineseparator)
+			throws IOException {
+		if (workingdir == null) {
+			throw new IllegalArgumentException("No working directory for the outputs of: " + inputpaths);
+		}
+		String deptarget = getCommandArgument(commands, "-MT");
+		for (SakerPath inputpath : inputpaths) {
+			//the outputs are created in the working directory, named after the inputs
+			String filename = inputpath.getFileName();
+			int dotidx = filename.lastIndexOf('.');
+			String stem = dotidx < 0 ? filename : filename.substring(0, dotidx);
+			SakerPath outputpath = workingdir.resolve(stem + ".o");
+			SakerPath depfile = commands.contains("-MMD") ? workingdir.resolve(stem + ".d") : null;
+			int res = executeCompilation(inputpath, outputpath, depfile,
+					deptarget == null ? outputpath : SakerPath.valueOf(deptarget), stdout, stderr, commands, target,
+					version, depfilelineseparator);
+			if (res != 0) {
+				return res;
+			}
+		}
+		return 0;
 	}
 
 	private static int executeLinking(List<SakerPath> inputpaths, SakerPath outputpath, List<String> commands,
@@ -120,12 +257,9 @@ public class ClangMockProcess {
 		return 0;
 	}
 
-	private static int executeCompilation(List<SakerPath> inputpaths, SakerPath outputpath, PrintStream stdout,
-			PrintStream stderr, List<String> commands, String target, String version) throws IOException {
-		if (inputpaths.size() > 1) {
-			throw new IllegalArgumentException("Too many compilation inputs: " + inputpaths);
-		}
-		SakerPath depfile = SakerPath.valueOf(requireCommandArgument(commands, "-MF"));
+	private static int executeCompilation(SakerPath inputpath, SakerPath outputpath, SakerPath depfile,
+			SakerPath deptarget, PrintStream stdout, PrintStream stderr, List<String> commands, String target,
+			String version, String depfilelineseparator) throws IOException {
 		String language = requireCommandArgument(commands, "-x").toLowerCase(Locale.ENGLISH);
 		StringBuilder pch = null;
 		if (language.endsWith("-header")) {
@@ -135,15 +269,15 @@ public class ClangMockProcess {
 		UnsyncByteArrayOutputStream depfilebaos = new UnsyncByteArrayOutputStream();
 		UnsyncByteArrayOutputStream fileoutbuf = new UnsyncByteArrayOutputStream();
 		try (PrintStream depfileout = new PrintStream(depfilebaos)) {
-
-			SakerPath inputpath = inputpaths.get(0);
-
 			int langmultiplier = getLanguageMockMultipler(language);
 			int targetmultiplier = getTargetMultiplier(target);
 
 			List<SakerPath> includedirs = getIncludeDirectoriesFromCommands(commands);
 			LinkedList<SourceLine> pendinglines = new LinkedList<>();
 			Set<SakerPath> includedpaths = new TreeSet<>();
+			Set<String> definedmacros = getDefinedMacroNames(commands);
+			//the nesting depth of the conditional directives that are skipped
+			int skipdepth = 0;
 
 			for (Iterator<String> it = commands.iterator(); it.hasNext();) {
 				String cmd = it.next();
@@ -178,11 +312,47 @@ public class ClangMockProcess {
 					if (line.isEmpty()) {
 						continue;
 					}
+					if (skipdepth > 0) {
+						if (line.startsWith("#if")) {
+							++skipdepth;
+						} else if (line.equals("#endif")) {
+							--skipdepth;
+						}
+						continue;
+					}
+					if (line.startsWith("//") || line.equals("#endif") || line.equals("#pragma once")) {
+						//comments, the end of the entered conditionals, and the headers are only included once anyway
+						continue;
+					}
+					if (line.startsWith("#ifndef ")) {
+						if (definedmacros.contains(line.substring(8).trim())) {
+							//include guarded header that was already included, e.g. in the precompiled header
+							skipdepth = 1;
+						}
+						continue;
+					}
+					if (line.startsWith("#define ")) {
+						definedmacros.add(line.substring(8).trim());
+						if (pch != null) {
+							//the macros are available for the files that use the precompiled header
+							pch.append(line);
+							pch.append('\n');
+						}
+						continue;
+					}
 					if (line.startsWith("#include ")) {
 						String includephrase = line.substring(9).trim();
 						if (includephrase.isEmpty()) {
 							return -2;
 						}
+						if (includephrase.charAt(0) != '<' && includephrase.charAt(0) != '\"') {
+							//computed include, the macro is replaced by its definition
+							String defineval = getDefineValue(commands, includephrase);
+							if (defineval == null || defineval.isEmpty()) {
+								return -3;
+							}
+							includephrase = defineval;
+						}
 						SakerPath includepath = SakerPath
 								.valueOf(includephrase.substring(1, includephrase.length() - 1));
 						if (includephrase.charAt(0) == '<' && includephrase.charAt(includephrase.length() - 1) == '>') {
@@ -197,6 +367,29 @@ public class ClangMockProcess {
 						}
 						continue;
 					}
+					if (line.startsWith("#warning ")) {
+						printWarning(srcline, line.substring(9), stdout);
+						continue;
+					}
+					if (line.startsWith("#note ")) {
+						printNote(srcline, line.substring(6), stdout);
+						continue;
+					}
+					if (line.startsWith("#print ")) {
+						//print the rest of the line to the output as is
+						stdout.println(line.substring(7));
+						continue;
+					}
+					if (line.startsWith("#sleep ")) {
+						//simulate a long compilation, the argument is in milliseconds
+						try {
+							Thread.sleep(Long.parseLong(line.substring(7).trim()));
+						} catch (InterruptedException e) {
+							//the process was destroyed
+							return EXIT_CODE_TERMINATED;
+						}
+						continue;
+					}
 					if (pch != null) {
 						pch.append(line);
 						pch.append('\n');
@@ -219,17 +412,22 @@ public class ClangMockProcess {
 					outps.println(lineval * langmultiplier * targetmultiplier);
 				}
 			}
-			depfileout.println(outputpath + ": \\");
+			if (!commands.contains("-MD")) {
+				//-MMD omits the headers found in the system include directories
+				List<SakerPath> systemincludedirs = getSystemIncludeDirectoriesFromCommands(commands);
+				includedpaths.removeIf(ip -> isSystemHeader(systemincludedirs, ip));
+			}
+			depfileout.print(deptarget + ": \\" + depfilelineseparator);
 			if (includedpaths.isEmpty()) {
-				depfileout.println(inputpath);
+				depfileout.print(inputpath.toString().replace(" ", "\\ ") + depfilelineseparator);
 			} else {
-				depfileout.println(inputpath + " \\");
+				depfileout.print(inputpath.toString().replace(" ", "\\ ") + " \\" + depfilelineseparator);
 				for (Iterator<SakerPath> it = includedpaths.iterator(); it.hasNext();) {
 					SakerPath ip = it.next();
 					depfileout.print("  ");
 					depfileout.print(ip.toString().replace(" ", "\\ "));
 					if (it.hasNext()) {
-						depfileout.println(" \\");
+						depfileout.print(" \\" + depfilelineseparator);
 					}
 				}
 			}
@@ -284,6 +482,21 @@ public class ClangMockProcess {
 		stdout.println(includeline.sourcePath + ":1:10: fatal error: '" + includepath + "' file not found");
 	}
 
+	private static void printWarning(SourceLine line, String message, PrintStream stdout) {
+		for (SakerPath ip : line.includeStack) {
+			stdout.println("In file included from " + ip + ":1:");
+		}
+		stdout.println(line.sourcePath + ":1:2: warning: " + message + " [-W#warnings]");
+		stdout.println(line.line);
+		stdout.println(" ^");
+	}
+
+	private static void printNote(SourceLine line, String message, PrintStream stdout) {
+		stdout.println(line.sourcePath + ":1:1: note: " + message);
+		stdout.println(line.line);
+		stdout.println("^");
+	}
+
 	private static void includeResolvedIncludePath(SourceLine includeline, LinkedList<SourceLine> pendinglines,
 			SakerPath includepath, PrintStream stdout, PrintStream stderr, Set<SakerPath> includedpaths,
 			List<String> commands) throws IOException {
@@ -380,9 +593,31 @@ public class ClangMockProcess {
 				result.add(SakerPath.valueOf(it.next()));
 			}
 		}
+		//the system directories are searched after the user ones
+		result.addAll(getSystemIncludeDirectoriesFromCommands(commands));
 		return result;
 	}
 
+	private static List<SakerPath> getSystemIncludeDirectoriesFromCommands(List<String> commands) {
+		List<SakerPath> result = new ArrayList<>();
+		for (Iterator<String> it = commands.iterator(); it.hasNext();) {
+			String cmd = it.next();
+			if ("-isystem".equals(cmd)) {
+				result.add(SakerPath.valueOf(it.next()));
+			}
+		}
+		return result;
+	}
+
+	private static boolean isSystemHeader(List<SakerPath> systemincludedirs, SakerPath path) {
+		for (SakerPath dir : systemincludedirs) {
+			if (path.startsWith(dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private static SourceLine nextLine(BufferedReader reader, Deque<SourceLine> pendinglines, SakerPath inputpath)
 			throws IOException {
 		if (!pendinglines.isEmpty()) {
@@ -395,6 +630,19 @@ public class ClangMockProcess {
 		return new SourceLine(inputpath, nl);
 	}
 
+	private static Set<String> getDefinedMacroNames(List<String> commands) {
+		Set<String> result = new TreeSet<>();
+		for (Iterator<String> it = commands.iterator(); it.hasNext();) {
+			String cmd = it.next();
+			if ("-D".equals(cmd)) {
+				String arg = it.next();
+				int idx = arg.indexOf('=');
+				result.add(idx < 0 ? arg : arg.substring(0, idx));
+			}
+		}
+		return result;
+	}
+
 	private static String getDefineValue(List<String> commands, String word) {
 		for (Iterator<String> it = commands.iterator(); it.hasNext();) {
 			String cmd = it.next();
@@ -429,13 +677,18 @@ public class ClangMockProcess {
 				case "-include":
 				case "-include-pch":
 				case "-MF":
+				case "-MT":
+				case "-isystem":
 				case "-x": {
 					//skip argument
 					it.next();
 					break;
 				}
 				case "-c":
-				case "-MMD": {
+				case "-MD":
+				case "-MMD":
+				case "-###":
+				case "-gsplit-dwarf": {
 					//skip
 					break;
 				}
@@ -451,6 +704,14 @@ public class ClangMockProcess {
 	}
 
 	public static String requireCommandArgument(List<String> commands, String cmdname) {
+		String result = getCommandArgument(commands, cmdname);
+		if (result == null) {
+			throw new IllegalArgumentException("No command found with name: " + cmdname);
+		}
+		return result;
+	}
+
+	public static String getCommandArgument(List<String> commands, String cmdname) {
 		for (Iterator<String> it = commands.iterator(); it.hasNext();) {
 			String cmd = it.next();
 			if (cmd.equals(cmdname)) {
@@ -459,7 +720,7 @@ public class ClangMockProcess {
 				}
 			}
 		}
-		throw new IllegalArgumentException("No command found with name: " + cmdname);
+		return null;
 	}
 
 	public static int getTargetMultiplier(String target) {
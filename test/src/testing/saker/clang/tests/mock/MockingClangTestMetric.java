@@ -7,6 +7,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
 
 import saker.build.file.path.SakerPath;
@@ -41,9 +42,14 @@ public class MockingClangTestMetric extends CollectingTestMetric implements Clan
 
 	protected ConcurrentSkipListMap<SakerPath, String> compiledFileClusterNames = new ConcurrentSkipListMap<>();
 	protected ConcurrentHashMap<List<String>, LongAdder> runCommands = new ConcurrentHashMap<>();
+	protected ConcurrentSkipListMap<SakerPath, String> compilerOutputs = new ConcurrentSkipListMap<>();
+	protected AtomicInteger runningProcessCount = new AtomicInteger();
+	protected AtomicInteger maxRunningProcessCount = new AtomicInteger();
 
 	protected Map<String, String> clusterClangDefaultTargets = new ConcurrentSkipListMap<>();
 
+	protected String dependencyFileLineSeparator = System.lineSeparator();
+
 	public MockingClangTestMetric() {
 		clusterClangDefaultTargets.put("", DEFAULT_TARGET);
 	}
@@ -64,6 +70,10 @@ public class MockingClangTestMetric extends CollectingTestMetric implements Clan
 		}
 	}
 
+	public void setDependencyFileLineSeparator(String dependencyFileLineSeparator) {
+		this.dependencyFileLineSeparator = dependencyFileLineSeparator;
+	}
+
 	public ConcurrentHashMap<List<String>, LongAdder> getRunCommands() {
 		return runCommands;
 	}
@@ -71,6 +81,13 @@ public class MockingClangTestMetric extends CollectingTestMetric implements Clan
 	@Override
 	public int runProcess(SakerEnvironment environment, List<String> command, boolean mergestderr,
 			MetricProcessIOConsumer stdoutconsumer, MetricProcessIOConsumer stderrconsumer) throws IOException {
+		return runProcess(environment, command, null, mergestderr, stdoutconsumer, stderrconsumer);
+	}
+
+	@Override
+	public int runProcess(SakerEnvironment environment, List<String> command, SakerPath workingdir,
+			boolean mergestderr, MetricProcessIOConsumer stdoutconsumer, MetricProcessIOConsumer stderrconsumer)
+			throws IOException {
 		runCommands.computeIfAbsent(command, x -> new LongAdder()).increment();
 		System.out.println("MockingClangTestMetric.startProcess() " + command);
 		SakerPath exepath = SakerPath.valueOf(command.get(0));
@@ -89,8 +106,13 @@ public class MockingClangTestMetric extends CollectingTestMetric implements Clan
 		} else {
 			throw new IOException("Exe not found: " + exepath);
 		}
-		return ClangMockProcess.run(command, mergestderr, stdoutconsumer, stderrconsumer, defaulttarget,
-				compilerversion, defaultthreadmodel);
+		maxRunningProcessCount.accumulateAndGet(runningProcessCount.incrementAndGet(), Math::max);
+		try {
+			return ClangMockProcess.run(command, workingdir, mergestderr, stdoutconsumer, stderrconsumer,
+					defaulttarget, compilerversion, defaultthreadmodel, dependencyFileLineSeparator);
+		} finally {
+			runningProcessCount.decrementAndGet();
+		}
 	}
 
 	@Override
@@ -98,6 +120,11 @@ public class MockingClangTestMetric extends CollectingTestMetric implements Clan
 		compiledFileClusterNames.put(path, ObjectUtils.nullDefault(getEnvironmentClusterName(environment), ""));
 	}
 
+	@Override
+	public void compilerOutput(SakerPath path, String output) {
+		compilerOutputs.put(path, output);
+	}
+
 	private static String getEnvironmentClusterName(SakerEnvironment environment) {
 		return environment.getUserParameters().get(EnvironmentTestCase.TEST_CLUSTER_NAME_ENV_PARAM);
 	}
@@ -125,6 +152,17 @@ public class MockingClangTestMetric extends CollectingTestMetric implements Clan
 		return compiledFileClusterNames;
 	}
 
+	public ConcurrentSkipListMap<SakerPath, String> getCompilerOutputs() {
+		return compilerOutputs;
+	}
+
+	/**
+	 * Gets the maximum number of processes that were running at the same time.
+	 */
+	public int getMaxRunningProcessCount() {
+		return maxRunningProcessCount.get();
+	}
+
 	private static String getClangVersionString(String version, String target, String threadmodel) {
 		return "clang version " + version + " (tags/RELEASE_600/final)\n" + "Target: " + target + "\n"
 				+ "Thread model: " + threadmodel + "\n" + "InstalledDir: /usr/bin\n" + "";
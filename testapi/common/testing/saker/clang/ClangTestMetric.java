@@ -29,9 +29,18 @@ public interface ClangTestMetric {
 		throw new UnsupportedOperationException();
 	}
 
+	public default int runProcess(SakerEnvironment environment, List<String> command, SakerPath workingdir,
+			boolean mergestderr, MetricProcessIOConsumer stdoutconsumer, MetricProcessIOConsumer stderrconsumer)
+			throws IOException {
+		return runProcess(environment, command, mergestderr, stdoutconsumer, stderrconsumer);
+	}
+
 	public default void compiling(SakerPath path, SakerEnvironment environment) {
 	}
 
+	public default void compilerOutput(SakerPath path, String output) {
+	}
+
 	public default String getClangVersionString(String clangExe, SakerEnvironment environment) throws IOException {
 		throw new FileNotFoundException("Clang executable not found: " + clangExe);
 	}